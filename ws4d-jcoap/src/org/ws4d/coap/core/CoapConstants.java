@@ -93,6 +93,22 @@ public final class CoapConstants {
 	 */
 	public static final int RESPONSE_TIMEOUT_MS = 2000;
 
+	/**
+	 * The number of milliseconds a server waits for the response to a CON
+	 * request before it sends an empty ACK and answers with a separate
+	 * response. Must be shorter than RESPONSE_TIMEOUT_MS, otherwise the client
+	 * retransmits the request.<br>
+	 * See rfc7252 - 5.2.2. "Separate" for further details.
+	 */
+	public static final int ACK_DEADLINE_MS = 1000;
+
+	/**
+	 * The number of milliseconds a server waits for an asynchronous resource
+	 * to provide its value. Afterwards the request is answered with 5.03, so
+	 * a resource that never completes does not hold the request forever.
+	 */
+	public static final int ASYNC_RESPONSE_TIMEOUT_MS = 30000;
+
 	/**
 	 * For a new confirmable message, the initial timeout is set to a random
 	 * duration (often not an integral number of seconds)
@@ -107,11 +123,152 @@ public final class CoapConstants {
 	 */
 	public static final int MAX_RETRANSMIT = 4;
 
+	/**
+	 * The default number of confirmable messages that may be outstanding
+	 * towards a remote endpoint, further messages are queued until one of
+	 * them is acknowledged. See rfc7252 - 4.7. "Congestion Control"
+	 */
+	public static final int NSTART = 1;
+
 	// TODO: ACK_RST_RETRANS_TIMEOUT_MS: Documentation & what is the right value?
 	/**
 	 * 
 	 */
 	public static final int ACK_RST_RETRANS_TIMEOUT_MS = 120000;
+
+	/**
+	 * The time from starting to send a confirmable message to the time when an
+	 * acknowledgement is no longer expected, i.e. how long received message ids
+	 * are remembered to detect duplicates.<br>
+	 * See rfc7252 - 4.8.2. "Time Values Derived from Transmission Parameters"
+	 */
+	public static final int EXCHANGE_LIFETIME_MS = 247000;
+
+	/**
+	 * The time from sending a non-confirmable message to the time its message
+	 * id may be reused, i.e. how long responses to NON and multicast requests
+	 * are expected.<br>
+	 * See rfc7252 - 4.8.2. "Time Values Derived from Transmission Parameters"
+	 */
+	public static final int NON_LIFETIME_MS = 145000;
+
+	/**
+	 * The number of received datagrams that may wait for a dispatch thread.
+	 * Requests beyond this limit are answered with 5.03 (CON) or dropped
+	 * (NON).
+	 */
+	public static final int INBOUND_QUEUE_LIMIT = 1024;
+
+	/**
+	 * The number of messages that may wait for the worker thread to be sent.
+	 * NON messages beyond this limit are dropped.
+	 */
+	public static final int OUTBOUND_QUEUE_LIMIT = 1024;
+
+	/**
+	 * The number of messages of higher priority classes the socket handler
+	 * sends before a waiting message of a lower class, e.g. a notification,
+	 * gets its turn.
+	 */
+	public static final int SEND_STARVATION_LIMIT = 16;
+
+	/**
+	 * The number of NON messages per second a socket handler sends to a
+	 * remote endpoint on average, 0 if NON messages are not paced. NON
+	 * messages are not acknowledged, so nothing else limits them. rfc7252 -
+	 * 4.7 asks for a rate limit of unacknowledged traffic (PROBING_RATE), this
+	 * limit counts messages instead of bytes. Pacing is off by default, as it
+	 * defers and eventually drops NON messages an application may rely on.
+	 */
+	public static final double NON_PACING_RATE = 0;
+
+	/**
+	 * The number of NON messages that may be sent to a remote endpoint at
+	 * once after an idle period
+	 */
+	public static final int NON_PACING_BURST = 32;
+
+	/**
+	 * The longest time in ms a NON message waits for its turn. Messages that
+	 * would have to wait longer are dropped.
+	 */
+	public static final int NON_PACING_MAX_DELAY_MS = 10000;
+
+	/**
+	 * The Max-Age in seconds of a 5.03 response of an overloaded server, i.e.
+	 * the time after which the client may retry the request<br>
+	 * See rfc7252 - 5.9.3.4. "5.03 Service Unavailable" for further details.
+	 */
+	public static final int SERVICE_UNAVAILABLE_MAX_AGE_S = 5;
+
+	/**
+	 * The number of requests a resource server handles at the same time,
+	 * including asynchronous requests waiting for their resource. Further
+	 * requests are answered with 5.03 (CON) or dropped (NON).
+	 */
+	public static final int MAX_PENDING_REQUESTS = 1024;
+
+	/**
+	 * The number of server channels, i.e. remote endpoints, a socket handler
+	 * keeps. The least recently active channels are evicted to make room for
+	 * new ones.
+	 */
+	public static final int SERVER_CHANNEL_CAPACITY = 10000;
+
+	/**
+	 * The time in ms after which a server channel without received or sent
+	 * messages is evicted.
+	 */
+	public static final int SERVER_CHANNEL_IDLE_TIMEOUT_MS = EXCHANGE_LIFETIME_MS;
+
+	/**
+	 * The largest body in bytes a server reassembles from a block wise PUT or
+	 * POST request. Larger bodies are refused with 4.13.
+	 */
+	public static final int BLOCK1_MAX_SIZE = 64 * 1024 * 1024;
+
+	/**
+	 * The body size in bytes above which a block wise PUT or POST request is
+	 * reassembled in a memory mapped temporary file instead of the heap.
+	 */
+	public static final int BLOCK1_SPILL_THRESHOLD = 1024 * 1024;
+
+	/**
+	 * The number of block wise PUT or POST requests a socket handler
+	 * reassembles at the same time
+	 */
+	public static final int BLOCK1_TRANSFERS = 1024;
+
+	/**
+	 * The number of bytes all block wise PUT or POST requests of a socket
+	 * handler may hold at the same time. A block beyond this budget drops its
+	 * transfer, which is answered with 5.03.
+	 */
+	public static final long BLOCK1_BUDGET = 256L * 1024 * 1024;
+
+	/**
+	 * The time in ms after which an unfinished block wise PUT or POST request
+	 * without further blocks is dropped.
+	 */
+	public static final int BLOCK1_TIMEOUT_MS = EXCHANGE_LIFETIME_MS;
+
+	/**
+	 * The default memory in bytes a socket handler uses to keep sent ACK and
+	 * RST messages for their retransmission on duplicate requests
+	 */
+	public static final int REPLAY_CACHE_SIZE = 1024 * 1024;
+
+	/**
+	 * The default maximum number of sent ACK and RST messages a socket handler
+	 * keeps for their retransmission on duplicate requests
+	 */
+	public static final int REPLAY_CACHE_ENTRIES = 16384;
+
+	/**
+	 * The number of idle direct buffers of UDP_BUFFER_SIZE a socket handler
+	 * keeps to serialize outgoing messages into
+	 */
+	public static final int SEND_BUFFER_POOL_SIZE = 4;
 	
 	/**
 	 * The maximal length of a path segment in byte
@@ -133,4 +290,11 @@ public final class CoapConstants {
 	 * The size of the receive buffer
 	 */
 	public static final int RECEIVE_BUFFER_SIZE = 330000;
+
+	/**
+	 * The default number of threads per socket that parse received messages
+	 * and hand them to their channels. Messages of the same remote endpoint
+	 * are always handled by the same thread.
+	 */
+	public static final int DISPATCH_THREADS = Runtime.getRuntime().availableProcessors();
 }
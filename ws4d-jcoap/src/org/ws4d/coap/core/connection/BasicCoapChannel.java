@@ -16,6 +16,7 @@
 package org.ws4d.coap.core.connection;
 
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
 
 import org.ws4d.coap.core.connection.api.CoapChannel;
 import org.ws4d.coap.core.connection.api.CoapSocketHandler;
@@ -29,6 +30,8 @@ public abstract class BasicCoapChannel implements CoapChannel {
 	private CoapSocketHandler socketHandler;
 	private InetAddress remoteAddress;
 	private int remotePort;
+	/** created on first use, a send should not allocate it every time */
+	private InetSocketAddress remoteSocketAddress = null;
 	private int localPort;
 	/** null means no block option */
 	private CoapBlockSize maxReceiveBlocksize;
@@ -82,6 +85,13 @@ public abstract class BasicCoapChannel implements CoapChannel {
 		return this.remotePort;
 	}
 
+	InetSocketAddress getRemoteSocketAddress() {
+		if (this.remoteSocketAddress == null) {
+			this.remoteSocketAddress = new InetSocketAddress(this.remoteAddress, this.remotePort);
+		}
+		return this.remoteSocketAddress;
+	}
+
 	/*
 	 * A channel is identified (and therefore unique) by its remote address,
 	 * remote port and the local port
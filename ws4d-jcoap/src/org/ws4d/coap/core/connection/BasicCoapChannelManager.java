@@ -17,8 +17,14 @@ package org.ws4d.coap.core.connection;
 
 import java.io.IOException;
 import java.net.InetAddress;
-import java.util.HashMap;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
 import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
@@ -29,8 +35,10 @@ import org.ws4d.coap.core.connection.api.CoapChannelManager;
 import org.ws4d.coap.core.connection.api.CoapClientChannel;
 import org.ws4d.coap.core.connection.api.CoapServerChannel;
 import org.ws4d.coap.core.connection.api.CoapSocketHandler;
+import org.ws4d.coap.core.enumerations.CoapRetransmissionPolicy;
 import org.ws4d.coap.core.messages.BasicCoapRequest;
 import org.ws4d.coap.core.messages.api.CoapMessage;
+import org.ws4d.coap.core.tools.CoapExecutors;
 
 /**
  * @author Christian Lerche <christian.lerche@uni-rostock.de>
@@ -38,9 +46,27 @@ import org.ws4d.coap.core.messages.api.CoapMessage;
 public class BasicCoapChannelManager implements CoapChannelManager {
 	// global message id
 	private static final Logger logger = LogManager.getLogger();
-	private int globalMessageId;
+	private final AtomicInteger globalMessageId = new AtomicInteger();
 	private static BasicCoapChannelManager instance;
-	private HashMap<Integer, SocketInformation> socketMap = new HashMap<Integer, SocketInformation>();
+	private Map<Integer, SocketInformation> socketMap = new ConcurrentHashMap<Integer, SocketInformation>();
+	/** if true, all client channels share a single socket handler */
+	private volatile boolean sharedClientEndpoint = false;
+	private BasicCoapSocketHandler sharedClientHandler = null;
+	/** number of dispatch threads of newly created socket handlers */
+	private volatile int dispatchThreads = CoapConstants.DISPATCH_THREADS;
+	/** retransmission policy of newly created socket handlers */
+	private CoapRetransmissionPolicy retransmissionPolicy = CoapRetransmissionPolicy.FIXED;
+	/** outstanding CON messages per remote endpoint of newly created socket handlers */
+	private int nstart = CoapConstants.NSTART;
+	private int inboundQueueLimit = CoapConstants.INBOUND_QUEUE_LIMIT;
+	private int outboundQueueLimit = CoapConstants.OUTBOUND_QUEUE_LIMIT;
+	private int serverChannelCapacity = CoapConstants.SERVER_CHANNEL_CAPACITY;
+	private long serverChannelIdleTimeout = CoapConstants.SERVER_CHANNEL_IDLE_TIMEOUT_MS;
+	private double nonPacingRate = CoapConstants.NON_PACING_RATE;
+	private int nonPacingBurst = CoapConstants.NON_PACING_BURST;
+	private int block1MaxSize = CoapConstants.BLOCK1_MAX_SIZE;
+	private int block1SpillThreshold = CoapConstants.BLOCK1_SPILL_THRESHOLD;
+	private long block1Timeout = CoapConstants.BLOCK1_TIMEOUT_MS;
 	
 	private BasicCoapChannelManager() {
 		initRandom();
@@ -53,13 +79,19 @@ public class BasicCoapChannelManager implements CoapChannelManager {
 		return instance;
 	}
 
+	/**
+	 * Not synchronized, so the dispatch threads of all sockets create server
+	 * channels in parallel. The socket handler adds the channel to its
+	 * concurrent channel table, see ChannelTable.putIfAbsent(). So
+	 * CoapServer.onAccept() may be called concurrently.
+	 */
 	@Override
-	public synchronized CoapServerChannel createServerChannel(CoapSocketHandler socketHandler, CoapMessage message,
+	public CoapServerChannel createServerChannel(CoapSocketHandler socketHandler, CoapMessage message,
 			InetAddress addr, int port) {
 		SocketInformation socketInfo = this.socketMap.get(socketHandler.getLocalPort());
 
-		if (socketInfo.getServerListener() == null) {
-			/* this is not a server socket */
+		if (socketInfo == null || socketInfo.getServerListener() == null) {
+			/* this is not a server socket, or its listener is not registered yet */
 			throw new IllegalStateException("Invalid server socket");
 		}
 
@@ -77,41 +109,73 @@ public class BasicCoapChannelManager implements CoapChannelManager {
 	}
 
 	@Override
-	public synchronized int getNewMessageID() {
-		if (this.globalMessageId < CoapConstants.MESSAGE_ID_MAX) {
-			++this.globalMessageId;
-		} else
-			this.globalMessageId = CoapConstants.MESSAGE_ID_MIN;
-		return this.globalMessageId;
+	public int getNewMessageID() {
+		/* the counter wraps at 2^32, a multiple of the id range */
+		return this.globalMessageId.incrementAndGet() & CoapConstants.MESSAGE_ID_MAX;
 	}
 
 	@Override
-	public synchronized void initRandom() {
+	public void initRandom() {
 		// generate random 16 bit messageId
 		Random random = new Random();
-		this.globalMessageId = random.nextInt(CoapConstants.MESSAGE_ID_MAX + 1);
+		this.globalMessageId.set(random.nextInt(CoapConstants.MESSAGE_ID_MAX + 1));
 	}
 
 	@Override
 	public void createServerListener(CoapServer listener, int localPort) {
-		if (!this.socketMap.containsKey(localPort)) {
-			try {
-				SocketInformation socketInfo = new SocketInformation(new BasicCoapSocketHandler(this, localPort),
-						listener);
-				this.socketMap.put(localPort, socketInfo);
-			} catch (IOException e) {
-				logger.warn(e.getLocalizedMessage());
-			}
-		} else {
+		createServerListener(listener, localPort, 1);
+	}
+
+	@Override
+	public void createServerListener(CoapServer listener, int localPort, int sockets) {
+		createServerListener(listener, localPort, sockets, CoapExecutors.inline());
+	}
+
+	@Override
+	public synchronized void createServerListener(CoapServer listener, int localPort, int sockets,
+			Executor requestExecutor) {
+		if (sockets < 1) {
+			throw new IllegalArgumentException("At least one socket is required");
+		}
+		if (this.socketMap.containsKey(localPort)) {
 			throw new IllegalStateException("address already in use");
 		}
+		boolean reusePort = sockets > 1;
+		if (reusePort && !BasicCoapSocketHandler.isReusePortSupported()) {
+			logger.warn("SO_REUSEPORT is not supported, listening with a single socket on port " + localPort);
+			reusePort = false;
+			sockets = 1;
+		}
+		List<CoapSocketHandler> handlers = new ArrayList<CoapSocketHandler>(sockets);
+		try {
+			/* only the first socket joins the multicast groups */
+			BasicCoapSocketHandler first = configure(new BasicCoapSocketHandler(this, localPort, true,
+					this.dispatchThreads, reusePort));
+			first.setRequestExecutor(requestExecutor);
+			handlers.add(first);
+			for (int i = 1; i < sockets; i++) {
+				BasicCoapSocketHandler handler = configure(new BasicCoapSocketHandler(this, first.getLocalPort(),
+						false, this.dispatchThreads, true));
+				handler.setRequestExecutor(requestExecutor);
+				handlers.add(handler);
+			}
+		} catch (IOException e) {
+			logger.warn(e.getLocalizedMessage());
+			for (CoapSocketHandler handler : handlers) {
+				handler.close();
+			}
+			return;
+		}
+		this.socketMap.put(localPort, new SocketInformation(handlers, listener));
 	}
 
-	public void removeServerListener(CoapServer listener, int localPort) {
+	public synchronized void removeServerListener(CoapServer listener, int localPort) {
 		if (this.socketMap.containsKey(localPort)) {
 			SocketInformation socketInfo = this.socketMap.get(localPort);
 			if (socketInfo.getServerListener().equals(listener)) {
-				socketInfo.getSocketHandler().close();
+				for (CoapSocketHandler handler : socketInfo.getSocketHandlers()) {
+					handler.close();
+				}
 				this.socketMap.remove(localPort);
 			}
 		}
@@ -121,9 +185,13 @@ public class BasicCoapChannelManager implements CoapChannelManager {
 	public CoapClientChannel connect(CoapClient client, InetAddress addr, int port) {
 		CoapSocketHandler socketHandler = null;
 		try {
-			socketHandler = new BasicCoapSocketHandler(this);
-			SocketInformation sockInfo = new SocketInformation(socketHandler, null);
-			this.socketMap.put(socketHandler.getLocalPort(), sockInfo);
+			if (this.sharedClientEndpoint) {
+				socketHandler = getSharedClientHandler();
+			} else {
+				socketHandler = configure(new BasicCoapSocketHandler(this, 0, true, this.dispatchThreads));
+				SocketInformation sockInfo = new SocketInformation(socketHandler, null);
+				this.socketMap.put(socketHandler.getLocalPort(), sockInfo);
+			}
 			return socketHandler.connect(client, addr, port);
 		} catch (IOException e) {
 			logger.warn(e.getLocalizedMessage());
@@ -131,23 +199,124 @@ public class BasicCoapChannelManager implements CoapChannelManager {
 		return null;
 	}
 
+	@Override
+	public synchronized void setSharedClientEndpoint(boolean shared) {
+		this.sharedClientEndpoint = shared;
+	}
+
+	@Override
+	public synchronized void setDispatchThreads(int threads) {
+		if (threads < 1) {
+			throw new IllegalArgumentException("At least one dispatch thread is required");
+		}
+		this.dispatchThreads = threads;
+	}
+
+	@Override
+	public synchronized void setRetransmissionPolicy(CoapRetransmissionPolicy policy) {
+		if (policy == null) {
+			throw new IllegalArgumentException("retransmission policy must not be null");
+		}
+		this.retransmissionPolicy = policy;
+	}
+
+	@Override
+	public synchronized void setNstart(int nstart) {
+		if (nstart < 1) {
+			throw new IllegalArgumentException("NSTART must be at least 1");
+		}
+		this.nstart = nstart;
+	}
+
+	@Override
+	public synchronized void setQueueLimits(int inbound, int outbound) {
+		if (inbound < 1 || outbound < 1) {
+			throw new IllegalArgumentException("Queue limits must be at least 1");
+		}
+		this.inboundQueueLimit = inbound;
+		this.outboundQueueLimit = outbound;
+	}
+
+	@Override
+	public synchronized void setServerChannelLimits(int capacity, long idleTimeout) {
+		if (capacity < 1 || idleTimeout < 1) {
+			throw new IllegalArgumentException("Capacity and idle timeout must be at least 1");
+		}
+		this.serverChannelCapacity = capacity;
+		this.serverChannelIdleTimeout = idleTimeout;
+	}
+
+	@Override
+	public synchronized void setNonPacing(double rate, int burst) {
+		if (burst < 1) {
+			throw new IllegalArgumentException("Burst must be at least 1");
+		}
+		this.nonPacingRate = rate;
+		this.nonPacingBurst = burst;
+	}
+
+	@Override
+	public synchronized void setBlock1Limits(int maxSize, int spillThreshold, long timeout) {
+		if (maxSize < 1 || spillThreshold < 0 || timeout < 1) {
+			throw new IllegalArgumentException("Size and timeout must be at least 1, threshold not negative");
+		}
+		this.block1MaxSize = maxSize;
+		this.block1SpillThreshold = spillThreshold;
+		this.block1Timeout = timeout;
+	}
+
+	/**
+	 * Applies the settings of this channel manager to a new socket handler.
+	 */
+	private synchronized BasicCoapSocketHandler configure(BasicCoapSocketHandler handler) {
+		handler.setRetransmissionPolicy(this.retransmissionPolicy);
+		handler.setNstart(this.nstart);
+		handler.setQueueLimits(this.inboundQueueLimit, this.outboundQueueLimit);
+		handler.setServerChannelLimits(this.serverChannelCapacity, this.serverChannelIdleTimeout);
+		handler.setNonPacing(this.nonPacingRate, this.nonPacingBurst);
+		handler.setBlock1Limits(this.block1MaxSize, this.block1SpillThreshold, this.block1Timeout);
+		return handler;
+	}
+
+	/**
+	 * @return The socket handler that is shared by all client channels. It is
+	 *         created on first use and bound to an ephemeral port.
+	 * @throws IOException
+	 *             if the socket could not be opened
+	 */
+	private synchronized CoapSocketHandler getSharedClientHandler() throws IOException {
+		if (this.sharedClientHandler == null) {
+			/* a client endpoint does not need to listen for multicast requests */
+			this.sharedClientHandler = configure(new BasicCoapSocketHandler(this, 0, false, this.dispatchThreads));
+			this.sharedClientHandler.setMultiplexed(true);
+			this.socketMap.put(this.sharedClientHandler.getLocalPort(),
+					new SocketInformation(this.sharedClientHandler, null));
+		}
+		return this.sharedClientHandler;
+	}
+
 	@Override
 	public void setMessageId(int globalMessageId) {
-		this.globalMessageId = globalMessageId;
+		this.globalMessageId.set(globalMessageId);
 	}
 
 	private class SocketInformation {
-		private CoapSocketHandler handler = null;
+		/* several handlers if the port is shared with SO_REUSEPORT */
+		private List<CoapSocketHandler> handlers = null;
 		private CoapServer listener = null;
 
 		public SocketInformation(CoapSocketHandler socketHandler, CoapServer serverListener) {
+			this(Collections.singletonList(socketHandler), serverListener);
+		}
+
+		public SocketInformation(List<CoapSocketHandler> socketHandlers, CoapServer serverListener) {
 			super();
-			this.handler = socketHandler;
+			this.handlers = socketHandlers;
 			this.listener = serverListener;
 		}
 
-		public CoapSocketHandler getSocketHandler() {
-			return this.handler;
+		public List<CoapSocketHandler> getSocketHandlers() {
+			return this.handlers;
 		}
 
 		public CoapServer getServerListener() {
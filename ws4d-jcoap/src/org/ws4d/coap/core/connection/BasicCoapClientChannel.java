@@ -18,7 +18,18 @@ package org.ws4d.coap.core.connection;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.net.InetAddress;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
@@ -28,12 +39,15 @@ import org.ws4d.coap.core.connection.api.CoapSocketHandler;
 import org.ws4d.coap.core.enumerations.CoapBlockSize;
 import org.ws4d.coap.core.enumerations.CoapPacketType;
 import org.ws4d.coap.core.enumerations.CoapRequestCode;
+import org.ws4d.coap.core.enumerations.CoapResponseCode;
 import org.ws4d.coap.core.messages.BasicCoapRequest;
 import org.ws4d.coap.core.messages.BasicCoapResponse;
 import org.ws4d.coap.core.messages.CoapBlockOption;
 import org.ws4d.coap.core.messages.CoapEmptyMessage;
 import org.ws4d.coap.core.messages.api.CoapMessage;
 import org.ws4d.coap.core.messages.api.CoapRequest;
+import org.ws4d.coap.core.tools.BlockDownloadWindow;
+import org.ws4d.coap.core.tools.BlockUploadWindow;
 
 /**
  * @author Christian Lerche <christian.lerche@uni-rostock.de>
@@ -43,6 +57,13 @@ import org.ws4d.coap.core.messages.api.CoapRequest;
 public class BasicCoapClientChannel extends BasicCoapChannel implements CoapClientChannel {
 	private CoapClient client = null;
 	private ClientBlockContext blockContext = null;
+	/** outstanding block requests of a block wise transfer, 1 for stop-and-wait */
+	private volatile int blockWindow = 1;
+	private PipelinedDownload download = null;
+	private PipelinedUpload upload = null;
+	private static final Random stemRandom = new Random();
+	/** a download restarts if the representation changes, but not forever */
+	private static final int MAX_DOWNLOAD_RESTARTS = 3;
 	private CoapRequest lastRequest = null;
 	private Object trigger = null;
 	private static final Logger logger = LogManager.getLogger();
@@ -58,6 +79,20 @@ public class BasicCoapClientChannel extends BasicCoapChannel implements CoapClie
 		this.getSocketHandler().removeClientChannel(this);
 	}
 
+	/*
+	 * Several client channels may share a socket handler and a remote
+	 * endpoint, so a client channel is only equal to itself.
+	 */
+	@Override
+	public int hashCode() {
+		return System.identityHashCode(this);
+	}
+
+	@Override
+	public boolean equals(Object obj) {
+		return this == obj;
+	}
+
 	public byte[] getLastToken() {
 		if (this.lastRequest != null) {
 			return this.lastRequest.getToken();
@@ -85,12 +120,42 @@ public class BasicCoapClientChannel extends BasicCoapChannel implements CoapClie
 			this.sendMessage(new CoapEmptyMessage(CoapPacketType.ACK, message.getMessageID()));
 		}
 
+		if (this.download != null) {
+			int number = this.download.blockOf(message.getToken());
+			if (number >= 0) {
+				this.download.outstanding.remove(number);
+				handleDownloadBlock((BasicCoapResponse) message, number);
+				return;
+			}
+			if (number == BlockTokens.STALE) {
+				/* e.g. a block beyond the end of a finished download */
+				return;
+			}
+		}
+		if (this.upload != null) {
+			int number = this.upload.blockOf(message.getToken());
+			if (number >= 0) {
+				this.upload.outstanding.remove(number);
+				handleUploadResponse((BasicCoapResponse) message, number);
+				return;
+			}
+			if (number == BlockTokens.STALE) {
+				/* e.g. the response to a block of an aborted upload */
+				return;
+			}
+		}
+
 		/* check for blockwise transfer */
 
 		@SuppressWarnings("unused")
 		CoapBlockOption block1 = message.getBlock1();
 
 		CoapBlockOption block2 = message.getBlock2();
+		if (this.blockContext == null && block2 != null && canPipeline(block2)) {
+			this.download = new PipelinedDownload(this.lastRequest, block2.getBlockSize());
+			startDownload((BasicCoapResponse) message, block2);
+			return;
+		}
 		if (this.blockContext == null && block2 != null) {
 			/* initiate blockwise transfer */
 			this.blockContext = new ClientBlockContext(block2, this.getMaxReceiveBlocksize());
@@ -123,7 +188,8 @@ public class BasicCoapClientChannel extends BasicCoapChannel implements CoapClie
 				} else {
 					/* create a new request for the next block */
 					BasicCoapRequest request = new BasicCoapRequest(this.lastRequest.getPacketType(),
-							this.lastRequest.getRequestCode(), this.getSocketHandler().getChannelManager().getNewMessageID());
+							this.lastRequest.getRequestCode(), this.getSocketHandler().getNewMessageID(
+									this.getRemoteAddress(), this.getRemotePort()));
 					request.copyHeaderOptions((BasicCoapRequest) this.blockContext.getFirstRequest());
 					request.setToken(this.blockContext.getFirstRequest().getToken());
 					if (request.getRequestCode() == CoapRequestCode.GET) {
@@ -174,16 +240,343 @@ public class BasicCoapClientChannel extends BasicCoapChannel implements CoapClie
 		}
 	}
 
+	/**
+	 * Sets the number of block requests a block wise GET or an upload started
+	 * with startUpload() keeps outstanding. With a window of 1 the blocks are
+	 * transferred one after the other. A larger window requests the following
+	 * blocks of a GET in parallel as soon as the first block arrived, the
+	 * blocks are reassembled in any order. Each block request is a CON message
+	 * and retransmitted on its own.<br>
+	 * <br>
+	 * The server has to answer each block request with the requested block,
+	 * e.g. a CoapResourceServer with stateless Block2 serving, and has to
+	 * accept upload blocks out of order, as the Block1Reassembler does.<br>
+	 * <br>
+	 * The socket handler sends at most NSTART CON messages to a remote
+	 * endpoint at once and queues the others. The window has no effect
+	 * unless the caller raises NSTART to at least the window, see
+	 * CoapChannelManager.setNstart(). NSTART applies to all traffic of the
+	 * socket handler, so it is not raised here.
+	 * 
+	 * @param window
+	 *            - the maximum number of outstanding block requests
+	 */
+	@Override
+	public void setBlockWindow(int window) {
+		if (window < 1) {
+			throw new IllegalArgumentException("Window must be at least 1");
+		}
+		this.blockWindow = window;
+	}
+
+	public int getBlockWindow() {
+		return this.blockWindow;
+	}
+
+	/**
+	 * @return True, if the first block of a response starts a pipelined
+	 *         download
+	 */
+	private boolean canPipeline(CoapBlockOption block2) {
+		CoapRequest request = this.lastRequest;
+		return this.blockWindow > 1 && request != null && request.getRequestCode() == CoapRequestCode.GET
+				&& request.getPacketType() == CoapPacketType.CON && request.getObserveOption() == null
+				&& block2.getNumber() == 0 && !block2.isLast() && !this.getRemoteAddress().isMulticastAddress();
+	}
+
+	private void startDownload(BasicCoapResponse response, CoapBlockOption block2) {
+		PipelinedDownload download = this.download;
+		CoapBlockSize blockSize = block2.getBlockSize();
+		if (this.getMaxReceiveBlocksize() != null && blockSize.compareTo(this.getMaxReceiveBlocksize()) > 0) {
+			blockSize = this.getMaxReceiveBlocksize();
+		}
+		download.blockSize = blockSize;
+		byte[] payload = response.getPayload();
+		Integer size2 = response.getSize2();
+		download.window = new BlockDownloadWindow(blockSize, this.blockWindow, size2 == null ? 0 : size2.intValue(),
+				payload == null ? new byte[0] : payload);
+		download.etag = response.getETag();
+		if (download.window.isComplete()) {
+			finishDownload(response);
+		} else {
+			requestBlocks();
+		}
+	}
+
+	private void requestBlocks() {
+		PipelinedDownload download = this.download;
+		int number;
+		while ((number = download.window.nextBlock()) >= 0) {
+			requestBlock(number);
+		}
+	}
+
+	private void requestBlock(int number) {
+		BasicCoapRequest request = createRequest(true, CoapRequestCode.GET);
+		request.copyHeaderOptions((BasicCoapRequest) this.download.request);
+		request.setToken(this.download.token(number));
+		request.setBlock2(new CoapBlockOption(number, false, this.download.blockSize));
+		this.download.outstanding.put(number, request);
+		sendMessage(request);
+	}
+
+	private void handleDownloadBlock(BasicCoapResponse response, int number) {
+		PipelinedDownload download = this.download;
+		CoapBlockOption block2 = response.getBlock2();
+		if (download.window == null) {
+			/* restarted, the first block decides again */
+			if (response.getResponseCode() == CoapResponseCode.Content_205 && block2 != null
+					&& block2.getNumber() == 0 && !block2.isLast()) {
+				startDownload(response, block2);
+			} else {
+				download.finished = true;
+				this.client.onResponse(this, response);
+			}
+			return;
+		}
+		if (response.getResponseCode() != CoapResponseCode.Content_205 || block2 == null) {
+			if (download.window.isBeyondEnd(number)) {
+				download.window.cancel(number);
+				return;
+			}
+			/*
+			 * the error is the response to the request, unless the block turns
+			 * out to lie beyond the end
+			 */
+			if (download.window.fail(number)) {
+				download.error = response;
+			}
+			if (download.window.isFailed()) {
+				failDownload();
+			}
+			return;
+		}
+		if (block2.getNumber() != number || block2.getBlockSize() != download.blockSize) {
+			logger.warn("Server does not serve the requested blocks, pipelined download aborted");
+			download.finished = true;
+			this.client.onResponse(this, response);
+			return;
+		}
+		if (download.etag != null && !Arrays.equals(download.etag, response.getETag())) {
+			/* the representation changed during the transfer */
+			if (++download.restarts > MAX_DOWNLOAD_RESTARTS) {
+				download.finished = true;
+				this.client.onResponse(this, response);
+				return;
+			}
+			download.nextGeneration();
+			requestBlock(0);
+			return;
+		}
+		byte[] payload = response.getPayload();
+		if (!download.window.addBlock(number, payload == null ? new byte[0] : payload, block2.isLast())) {
+			/* duplicate */
+			return;
+		}
+		if (download.window.isComplete()) {
+			finishDownload(response);
+		} else if (download.window.isFailed()) {
+			failDownload();
+		} else {
+			requestBlocks();
+		}
+	}
+
+	private void failDownload() {
+		PipelinedDownload download = this.download;
+		download.window = null;
+		download.finished = true;
+		this.client.onResponse(this, download.error);
+	}
+
+	private void finishDownload(BasicCoapResponse response) {
+		PipelinedDownload download = this.download;
+		response.setPayload(download.window.getPayload());
+		download.window = null;
+		download.finished = true;
+		this.client.onResponse(this, response);
+	}
+
+	/**
+	 * Starts a block wise PUT or POST that reads its body from a stream. The
+	 * blocks are read when they are sent and up to the block window of them
+	 * are outstanding at the same time, see {@link #setBlockWindow(int)}. The
+	 * first block is read by the calling thread, the following ones by a
+	 * reader thread, so a slow stream does not block the socket handler. The
+	 * blocks are CON requests, even for a NON template, as every block has to
+	 * be acknowledged. The final response or the first error response is
+	 * passed to the client, a failure to read the body as failed connection.
+	 * 
+	 * @param request
+	 *            - the request obtained by createRequest(), its options are
+	 *            copied to every block and its payload is ignored
+	 * @param body
+	 *            - the body, read up to its end or the given size and not
+	 *            closed
+	 * @param size
+	 *            - the size of the body in bytes, -1 if it is unknown. A known
+	 *            size is sent in the Size1 option.
+	 * @return The upload, to follow its progress
+	 * @throws IOException
+	 *             if the first block cannot be read
+	 * @throws IllegalStateException
+	 *             if another upload of this channel is still running
+	 */
+	@Override
+	public BlockUploadWindow startUpload(CoapRequest request, InputStream body, long size) throws IOException {
+		if (request.getRequestCode() != CoapRequestCode.POST && request.getRequestCode() != CoapRequestCode.PUT) {
+			throw new IllegalArgumentException("Only PUT and POST requests have a body");
+		}
+		/* without a limit the largest blocks are sent */
+		CoapBlockSize blockSize = this.getMaxSendBlocksize() == null ? CoapBlockSize.BLOCK_1024
+				: this.getMaxSendBlocksize();
+		CoapBlockOption block1 = request.getBlock1();
+		if (block1 != null && block1.getBlockSize().compareTo(blockSize) < 0) {
+			blockSize = block1.getBlockSize();
+		}
+		if (this.upload != null && !this.upload.finished) {
+			throw new IllegalStateException("Another upload is still running");
+		}
+		PipelinedUpload upload = new PipelinedUpload(request,
+				new BlockUploadWindow(body, size, blockSize, this.blockWindow));
+		this.upload = upload;
+		sendBlocks(upload);
+		return upload.window;
+	}
+
+	/**
+	 * Starts a block wise PUT or POST that reads its body from the current
+	 * position of a file to its end, see
+	 * {@link #startUpload(CoapRequest, InputStream, long)}.
+	 */
+	@Override
+	public BlockUploadWindow startUpload(CoapRequest request, FileChannel body) throws IOException {
+		return startUpload(request, Channels.newInputStream(body), body.size() - body.position());
+	}
+
+	private void sendBlocks(PipelinedUpload upload) throws IOException {
+		BlockUploadWindow.Block block;
+		while ((block = upload.window.nextBlock()) != null) {
+			CoapBlockOption block1 = block.getOption();
+			/* a NON block would never be retransmitted and stall the upload */
+			BasicCoapRequest request = createRequest(true, upload.request.getRequestCode());
+			request.copyHeaderOptions((BasicCoapRequest) upload.request);
+			request.setToken(upload.token(block1.getNumber()));
+			request.setBlock1(block1);
+			long size = upload.window.getSize();
+			if (block1.getNumber() == 0 && size >= 0 && size <= Integer.MAX_VALUE) {
+				request.setSize1((int) size);
+			}
+			request.setPayload(block.getPayload());
+			upload.outstanding.put(block1.getNumber(), request);
+			sendMessage(request);
+		}
+	}
+
+	/**
+	 * Sends the blocks the window allows on the reader thread. A single task
+	 * per upload runs at a time, further requests make it look again.
+	 */
+	private void scheduleBlocks(final PipelinedUpload upload) {
+		if (upload.readRequests.getAndIncrement() > 0) {
+			return;
+		}
+		BlockReader.INSTANCE.execute(new Runnable() {
+			@Override
+			public void run() {
+				int requests;
+				do {
+					requests = upload.readRequests.get();
+					try {
+						sendBlocks(upload);
+					} catch (IOException e) {
+						logger.error("Cannot read the body of a block wise upload: " + e.getLocalizedMessage());
+						failUpload(upload);
+						upload.readRequests.set(0);
+						return;
+					}
+				} while (!upload.readRequests.compareAndSet(requests, 0));
+			}
+		});
+	}
+
+	private void failUpload(PipelinedUpload upload) {
+		synchronized (upload) {
+			if (upload.finished) {
+				return;
+			}
+			upload.finished = true;
+		}
+		upload.window.abort();
+		this.client.onConnectionFailed(this, false, false);
+	}
+
+	private void handleUploadResponse(BasicCoapResponse response, int number) {
+		PipelinedUpload upload = this.upload;
+		BlockUploadWindow window = upload.window;
+		if (response.getResponseCode() == CoapResponseCode.Continue_231) {
+			CoapBlockOption block1 = response.getBlock1();
+			if (number == 0 && block1 != null) {
+				/* the server may ask for smaller blocks */
+				window.reduceBlockSize(block1.getBlockSize());
+			}
+			if (window.acknowledge(number)) {
+				scheduleBlocks(upload);
+			}
+			return;
+		}
+		/* the final response or an error ends the upload */
+		synchronized (upload) {
+			if (upload.finished) {
+				return;
+			}
+			upload.finished = true;
+		}
+		boolean success = response.getResponseCode().getValue() < CoapResponseCode.Bad_Request_400.getValue();
+		if (!success || !window.acknowledge(number) || !window.isComplete()) {
+			window.abort();
+		}
+		this.client.onResponse(this, response);
+	}
+
 	@Override
 	public void lostConnection(boolean notReachable, boolean resetByServer) {
+		/*
+		 * a block request was given up, the transfers are kept, so late
+		 * responses to their blocks are dropped
+		 */
+		PipelinedDownload download = this.download;
+		if (download != null) {
+			download.finished = true;
+			cancelBlocks(download);
+		}
+		PipelinedUpload upload = this.upload;
+		if (upload != null) {
+			synchronized (upload) {
+				upload.finished = true;
+			}
+			upload.window.abort();
+			cancelBlocks(upload);
+		}
 		this.client.onConnectionFailed(this, notReachable, resetByServer);
 
 	}
 
+	/**
+	 * Gives up the block requests of a transfer that still wait for their
+	 * response.
+	 */
+	private void cancelBlocks(BlockTokens transfer) {
+		for (CoapMessage request : transfer.outstanding.values()) {
+			this.getSocketHandler().cancelMessage(request);
+		}
+		transfer.outstanding.clear();
+	}
+
 	@Override
 	public BasicCoapRequest createRequest(boolean reliable, CoapRequestCode requestCode) {
 		BasicCoapRequest msg = new BasicCoapRequest(reliable ? CoapPacketType.CON : CoapPacketType.NON, requestCode,
-				this.getSocketHandler().getChannelManager().getNewMessageID());
+				this.getSocketHandler().getNewMessageID(this.getRemoteAddress(), this.getRemotePort()));
 		msg.setChannel(this);
 		return msg;
 	}
@@ -360,7 +753,7 @@ public class BasicCoapClientChannel extends BasicCoapChannel implements CoapClie
 		 */
 		public CoapBlockOption getNextBlock() {
 			if (!this.sending) {
-				this.blockNumber++; // ignore the rest (no rest should be there)
+				/* addBlock() already advanced to the next block */
 				return new CoapBlockOption(this.blockNumber, false, this.blockSize);
 			}
 			this.blockNumber++;
@@ -406,6 +799,111 @@ public class BasicCoapClientChannel extends BasicCoapChannel implements CoapClie
 		}
 	}
 
+	/**
+	 * The tokens of the block requests of a pipelined transfer. They consist
+	 * of a random stem, a generation that changes on every restart, and the
+	 * block number. So every response is assigned to its block, and responses
+	 * of an earlier generation or a finished transfer are ignored.
+	 */
+	private static class BlockTokens {
+		static final int FOREIGN = -1;
+		static final int STALE = -2;
+
+		final byte[] stem = new byte[4];
+		volatile boolean finished = false;
+		/* the block requests that wait for their response, by block number */
+		final ConcurrentMap<Integer, CoapMessage> outstanding = new ConcurrentHashMap<Integer, CoapMessage>();
+
+		BlockTokens() {
+			stemRandom.nextBytes(this.stem);
+		}
+
+		void nextGeneration() {
+			this.stem[3]++;
+		}
+
+		byte[] token(int number) {
+			byte[] token = Arrays.copyOf(this.stem, 8);
+			token[4] = (byte) (number >>> 24);
+			token[5] = (byte) (number >>> 16);
+			token[6] = (byte) (number >>> 8);
+			token[7] = (byte) number;
+			return token;
+		}
+
+		/**
+		 * @return The block number of a response, FOREIGN if it does not
+		 *         belong to this download or STALE if it belongs to an
+		 *         earlier generation or the download is finished
+		 */
+		int blockOf(byte[] token) {
+			if (token == null || token.length != 8 || token[0] != this.stem[0] || token[1] != this.stem[1]
+					|| token[2] != this.stem[2]) {
+				return FOREIGN;
+			}
+			if (this.finished || token[3] != this.stem[3]) {
+				return STALE;
+			}
+			return (token[4] & 0xFF) << 24 | (token[5] & 0xFF) << 16 | (token[6] & 0xFF) << 8 | token[7] & 0xFF;
+		}
+	}
+
+	/**
+	 * A block wise GET with several outstanding block requests.
+	 */
+	private static class PipelinedDownload extends BlockTokens {
+		/* the template of the block requests */
+		final CoapRequest request;
+		CoapBlockSize blockSize;
+		/* null while a restarted download waits for its first block */
+		BlockDownloadWindow window = null;
+		byte[] etag = null;
+		int restarts = 0;
+		/* the error response of the first failed block */
+		BasicCoapResponse error = null;
+
+		PipelinedDownload(CoapRequest request, CoapBlockSize blockSize) {
+			this.request = request;
+			this.blockSize = blockSize;
+		}
+
+		@Override
+		void nextGeneration() {
+			super.nextGeneration();
+			this.window = null;
+			this.etag = null;
+			this.error = null;
+		}
+	}
+
+	/**
+	 * A block wise PUT or POST with several outstanding block requests.
+	 */
+	private static class PipelinedUpload extends BlockTokens {
+		/* the template of the block requests */
+		final CoapRequest request;
+		final BlockUploadWindow window;
+		/* responses since the reader last looked for blocks to send */
+		final AtomicInteger readRequests = new AtomicInteger();
+
+		PipelinedUpload(CoapRequest request, BlockUploadWindow window) {
+			this.request = request;
+			this.window = window;
+		}
+	}
+
+	/* shared by all channels, reads the blocks of uploads */
+	private static class BlockReader {
+		static final ExecutorService INSTANCE = Executors.newCachedThreadPool(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "CoAP-BlockReader");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+	}
+
 	@Override
 	public void setTrigger(Object o) {
 		this.trigger = o;
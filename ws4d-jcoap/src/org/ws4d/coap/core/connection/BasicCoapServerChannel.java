@@ -16,16 +16,17 @@
 package org.ws4d.coap.core.connection;
 
 import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
-import java.io.IOException;
 import java.net.InetAddress;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
 
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
+import org.ws4d.coap.core.CoapConstants;
 import org.ws4d.coap.core.CoapServer;
-import org.ws4d.coap.core.connection.api.CoapChannel;
 import org.ws4d.coap.core.connection.api.CoapServerChannel;
 import org.ws4d.coap.core.connection.api.CoapSocketHandler;
+import org.ws4d.coap.core.connection.api.ServerChannelListener;
 import org.ws4d.coap.core.enumerations.CoapBlockSize;
 import org.ws4d.coap.core.enumerations.CoapMediaType;
 import org.ws4d.coap.core.enumerations.CoapPacketType;
@@ -45,7 +46,12 @@ import org.ws4d.coap.core.messages.api.CoapResponse;
  */
 
 public class BasicCoapServerChannel extends BasicCoapChannel implements CoapServerChannel {
+	private static final Logger logger = LogManager.getLogger();
 	private CoapServer server = null;
+	/*
+	 * guarded by this channel: written by the dispatch thread and, through
+	 * addBlockContext(), by the threads of the request executor
+	 */
 	private CoapRequest lastRequest;
 	private ServerBlockContext blockContext = null;
 
@@ -60,11 +66,39 @@ public class BasicCoapServerChannel extends BasicCoapChannel implements CoapServ
 		this.getSocketHandler().removeServerChannel(this);
 	}
 
+	/**
+	 * Releases the state of this channel after the socket handler evicted it
+	 * and notifies the server.
+	 */
+	void evicted() {
+		synchronized (this) {
+			this.blockContext = null;
+		}
+		if (this.server instanceof ServerChannelListener) {
+			final ServerChannelListener listener = (ServerChannelListener) this.server;
+			runServerCallback(new Runnable() {
+				@Override
+				public void run() {
+					listener.onServerChannelEvicted(BasicCoapServerChannel.this);
+				}
+			});
+		}
+	}
+
 	@Override
 	public void handleMessage(CoapMessage message) {
 		/* message MUST be a request */
 		if (message.getPacketType() == CoapPacketType.RST) {
-			this.server.onReset(this.lastRequest);
+			final CoapRequest resetRequest;
+			synchronized (this) {
+				resetRequest = this.lastRequest;
+			}
+			runServerCallback(new Runnable() {
+				@Override
+				public void run() {
+					BasicCoapServerChannel.this.server.onReset(resetRequest);
+				}
+			});
 			// TODO Notify Server to handle reset messages (Reset ongoing blockwise transfer --> delete BlockContext)
 			// this.blockContext = null;
 			return;
@@ -80,54 +114,126 @@ public class BasicCoapServerChannel extends BasicCoapChannel implements CoapServ
 		}
 
 		BasicCoapRequest request = (BasicCoapRequest) message;
-		this.lastRequest = request;
 		CoapBlockOption block1 = request.getBlock1();
-
-		if (this.blockContext == null && block1 != null) {
-			this.blockContext = new ServerBlockContext(block1, this.getMaxReceiveBlocksize());
-			this.blockContext.setFirstRequest(request);
+		boolean upload = block1 != null
+				&& (request.getRequestCode() == CoapRequestCode.PUT || request.getRequestCode() == CoapRequestCode.POST);
+		BasicCoapResponse blockResponse = null;
+		synchronized (this) {
+			this.lastRequest = request;
+			if (!upload && this.blockContext != null && !this.blockContext.isFinished()
+					&& request.getRequestCode() == CoapRequestCode.GET) {
+				CoapBlockOption newBlock = this.blockContext.getNextBlock();
+				blockResponse = createResponse(request, CoapResponseCode.Content_205);
+				blockResponse.setBlock2(newBlock);
+				blockResponse.setPayload(this.blockContext.getNextPayload(newBlock));
+				if (this.blockContext.isFinished()) {
+					this.blockContext = null;
+				}
+			}
+		}
+		if (blockResponse != null) {
+			sendMessage(blockResponse);
+			return;
+		}
+		if (upload && !reassemble(request, block1)) {
+			return;
 		}
 
-		if (this.blockContext != null) {
-			if (!this.blockContext.isFinished()) {
-				BasicCoapResponse response = null;
-				if ((this.blockContext.getFirstRequest().getRequestCode() == CoapRequestCode.PUT
-						|| this.blockContext.getFirstRequest().getRequestCode() == CoapRequestCode.POST)
-						&& request.getRequestCode() != CoapRequestCode.GET) {
-					this.blockContext.addBlock(request, block1);
-					if (!this.blockContext.isFinished()) {
-						response = createResponse(request, CoapResponseCode.Continue_231);
-						response.setBlock1(block1);
-						sendMessage(response);
-						return;
-					}
-				} else if (this.blockContext.getFirstRequest().getRequestCode() == CoapRequestCode.GET
-						&& request.getRequestCode() == CoapRequestCode.GET) {
-					CoapBlockOption newBlock = this.blockContext.getNextBlock();
-					response = createResponse(request, CoapResponseCode.Content_205);
-					response.setBlock2(newBlock);
-					response.setPayload(this.blockContext.getNextPayload(newBlock));
-					// System.out.println("Sending Block Number: " +
-					// newBlock.getNumber()+"; Payload: " + new
-					// String(response.getPayload()) );
-					sendMessage(response);
-					if (this.blockContext.isFinished()) {
-						this.blockContext = null;
-					}
-					return;
+		final CoapServerChannel channel = (CoapServerChannel) request.getChannel();
+		final CoapRequest completeRequest = request;
+		try {
+			executeServerCallback(new Runnable() {
+				@Override
+				public void run() {
+					BasicCoapServerChannel.this.server.onRequest(channel, completeRequest);
 				}
-			}
+			});
+		} catch (RejectedExecutionException e) {
+			shedRequest(completeRequest);
+		}
+	}
+
+	/**
+	 * Adds a block of a PUT or POST request to its transfer and answers it,
+	 * unless it was the last block.
+	 * 
+	 * @return True, if the body is complete and was set as payload of the
+	 *         request
+	 */
+	private boolean reassemble(BasicCoapRequest request, CoapBlockOption block1) {
+		Block1Reassembler.Result result = this.getSocketHandler().getBlock1Reassembler()
+				.addBlock(new ChannelKey(this.getRemoteAddress(), this.getRemotePort()), request);
+		BasicCoapResponse response;
+		switch (result.getStatus()) {
+		case COMPLETE:
+			request.setPayloadBuffer(result.getBody().getBuffer());
+			return true;
+		case CONTINUE:
+			response = createResponse(request, CoapResponseCode.Continue_231);
+			response.setBlock1(block1);
+			break;
+		case TOO_LARGE:
+			response = createResponse(request, CoapResponseCode.Request_Entity_To_Large_413);
+			response.setSize1(this.getSocketHandler().getBlock1Reassembler().getMaxBodySize());
+			break;
+		case INCOMPLETE:
+			response = createResponse(request, CoapResponseCode.Request_Entity_Incomplete_408);
+			break;
+		case BUSY:
+			response = createResponse(request, CoapResponseCode.Service_Unavailable_503);
+			response.setMaxAge(CoapConstants.SERVICE_UNAVAILABLE_MAX_AGE_S);
+			break;
+		default:
+			response = createResponse(request, CoapResponseCode.Internal_Server_Error_500);
+			break;
 		}
+		sendMessage(response);
+		return false;
+	}
 
-		if (this.blockContext == null || (this.blockContext.getFirstRequest().getRequestCode() != CoapRequestCode.GET
-				&& this.blockContext.isFinished())) {
-			CoapChannel channel = request.getChannel();
-			if (this.blockContext != null) {
-				request.setPayload(this.blockContext.getPayload());
-				this.blockContext = null;
-			}
-			this.server.onRequest((CoapServerChannel) channel, request);
+	/**
+	 * Runs a callback of the server with the request executor of the socket
+	 * handler. The block contexts are handled before on the dispatch thread.
+	 */
+	private void runServerCallback(Runnable callback) {
+		try {
+			executeServerCallback(callback);
+		} catch (RejectedExecutionException e) {
+			logger.warn("Request executor rejected a server callback: " + e.getLocalizedMessage());
+		}
+	}
+
+	/**
+	 * A {@link FairRequestScheduler} queues the callback with the other
+	 * callbacks of this remote endpoint.
+	 */
+	private void executeServerCallback(Runnable callback) {
+		Executor executor = this.getSocketHandler().getRequestExecutor();
+		if (executor instanceof FairRequestScheduler) {
+			((FairRequestScheduler) executor).execute(new ChannelKey(this.getRemoteAddress(), this.getRemotePort()),
+					callback);
+		} else {
+			executor.execute(callback);
+		}
+	}
+
+	/**
+	 * Answers a request the request executor rejected with 5.03, or drops it
+	 * if it is a NON request.
+	 */
+	private void shedRequest(CoapRequest request) {
+		boolean confirmable = request.getPacketType() == CoapPacketType.CON;
+		if (this.getSocketHandler() instanceof BasicCoapSocketHandler) {
+			((BasicCoapSocketHandler) this.getSocketHandler()).countShedRequest(confirmable);
+		}
+		if (!confirmable) {
+			logger.warn("Request executor rejected a NON request: request dropped");
+			return;
 		}
+		logger.warn("Request executor rejected a request: answered with 5.03");
+		BasicCoapResponse response = createResponse(request, CoapResponseCode.Service_Unavailable_503);
+		response.setMaxAge(CoapConstants.SERVICE_UNAVAILABLE_MAX_AGE_S);
+		sendMessage(response);
 	}
 
 	@Override
@@ -136,7 +242,12 @@ public class BasicCoapServerChannel extends BasicCoapChannel implements CoapServ
 	}
 
 	public void lostConnection(boolean notReachable, boolean resetByServer) {
-		this.server.onSeparateResponseFailed(this);
+		runServerCallback(new Runnable() {
+			@Override
+			public void run() {
+				BasicCoapServerChannel.this.server.onSeparateResponseFailed(BasicCoapServerChannel.this);
+			}
+		});
 	}
 
 	@Override
@@ -173,8 +284,8 @@ public class BasicCoapServerChannel extends BasicCoapChannel implements CoapServ
 			/*
 			 * The separate Response is CON (normally a Response is ACK or NON)
 			 */
-			response = new BasicCoapResponse(CoapPacketType.CON, responseCode, this.getSocketHandler().getChannelManager().getNewMessageID(),
-					request.getToken());
+			response = new BasicCoapResponse(CoapPacketType.CON, responseCode, this.getSocketHandler()
+					.getNewMessageID(this.getRemoteAddress(), this.getRemotePort()), request.getToken());
 			/* send ack immediately */
 			sendMessage(new CoapEmptyMessage(CoapPacketType.ACK, request.getMessageID()));
 		} else if (request.getPacketType() == CoapPacketType.NON) {
@@ -214,8 +325,8 @@ public class BasicCoapServerChannel extends BasicCoapChannel implements CoapServ
 			packetType = CoapPacketType.NON;
 		}
 
-		response = new BasicCoapResponse(packetType, responseCode, this.getSocketHandler().getChannelManager().getNewMessageID(),
-				request.getToken());
+		response = new BasicCoapResponse(packetType, responseCode, this.getSocketHandler().getNewMessageID(
+				this.getRemoteAddress(), this.getRemotePort()), request.getToken());
 		response.setChannel(this);
 		response.setObserveOption(sequenceNumber);
 		return response;
@@ -232,7 +343,8 @@ public class BasicCoapServerChannel extends BasicCoapChannel implements CoapServ
 	}
 
 	public CoapResponse addBlockContext(CoapRequest request, byte[] payload) {
-		CoapBlockSize bSize = request.getBlock2().getBlockSize();
+		CoapBlockSize bSize = (null == request.getBlock2()) ? this.getMaxSendBlocksize()
+				: request.getBlock2().getBlockSize();
 		BasicCoapResponse response = this.createResponse(request, CoapResponseCode.Content_205);
 		if (this.getMaxSendBlocksize() != null && bSize.compareTo(this.getMaxSendBlocksize()) > 0) {
 			bSize = this.getMaxSendBlocksize();
@@ -241,62 +353,35 @@ public class BasicCoapServerChannel extends BasicCoapChannel implements CoapServ
 		if (bSize.getSize() >= payload.length) {
 			response.setPayload(payload);
 		} else {
-			this.blockContext = new ServerBlockContext(bSize, payload);
-			this.blockContext.setFirstRequest(request);
+			ServerBlockContext context = new ServerBlockContext(bSize, payload);
+			context.setFirstRequest(request);
 			CoapBlockOption block2 = new CoapBlockOption(0, true, bSize);
 			response.copyHeaderOptions((BasicCoapRequest) request);
 			response.setBlock2(block2);
 			response.setBlock2(block2);
-			response.setPayload(this.blockContext.getNextPayload(block2));
+			response.setPayload(context.getNextPayload(block2));
+			synchronized (this) {
+				this.blockContext = context;
+			}
 		}
 		return response;
 	}
 
+	/**
+	 * Serves the blocks of a response in sequence. Block wise requests are
+	 * reassembled by the {@link Block1Reassembler} of the socket handler.
+	 */
 	private class ServerBlockContext {
 
-		private ByteArrayOutputStream incomingStream;
 		private ByteArrayInputStream outgoingStream;
 		private boolean finished = false;
-		private boolean sending = false; // false=receiving; true=sending
-		private CoapBlockSize blockSize; // null means no block option
+		private CoapBlockSize blockSize;
 		private int blockNumber;
 		private int maxBlockNumber;
 		private CoapRequest request;
-		private final Logger logger = LogManager.getLogger();
-
-		/**
-		 * Create BlockContext for GET requests. This is done automatically, if
-		 * the sent GET request or the obtained response contain a
-		 * Block2-Option.
-		 * 
-		 * @param blockOption
-		 *            The CoapBlockOption object, that contains the block size
-		 *            indicated by the server
-		 * @param maxBlocksize
-		 *            Indicates the maximum block size supported by the client
-		 */
-		public ServerBlockContext(CoapBlockOption blockOption, CoapBlockSize maxBlocksize) {
-			this.incomingStream = new ByteArrayOutputStream();
-			this.outgoingStream = null;
-
-			/* determine the right blocksize (min of remote and max) */
-			if (maxBlocksize == null) {
-				this.blockSize = blockOption.getBlockSize();
-			} else {
-				int max = maxBlocksize.getSize();
-				int remote = blockOption.getBlockSize().getSize();
-				if (remote < max) {
-					this.blockSize = blockOption.getBlockSize();
-				} else {
-					this.blockSize = maxBlocksize;
-				}
-			}
-			this.blockNumber = blockOption.getNumber();
-			this.sending = false;
-		}
 
 		/**
-		 * Create BlockContext for POST or PUT requests. Is only called by
+		 * Create BlockContext for a response. Is only called by
 		 * addBlockContext().
 		 * 
 		 * @param maxBlocksize
@@ -306,61 +391,12 @@ public class BasicCoapServerChannel extends BasicCoapChannel implements CoapServ
 		 */
 		public ServerBlockContext(CoapBlockSize maxBlocksize, byte[] payload) {
 			this.outgoingStream = new ByteArrayInputStream(payload);
-			this.incomingStream = null;
 			this.blockSize = maxBlocksize;
 
 			this.blockNumber = 0;
 			this.maxBlockNumber = payload.length / this.blockSize.getSize() - 1;
 			if (payload.length % this.blockSize.getSize() > 0)
 				this.maxBlockNumber++;
-
-			this.sending = true;
-		}
-
-		public byte[] getPayload() {
-			if (!this.sending) {
-				try {
-					this.incomingStream.close();
-				} catch (IOException e) {
-					this.logger.warn(e.getLocalizedMessage());
-				}
-				return this.incomingStream.toByteArray();
-			} else if (this.outgoingStream != null) {
-				byte[] payload = new byte[this.outgoingStream.available()];
-				this.outgoingStream.read(payload, 0, this.outgoingStream.available());
-				return payload;
-			} else
-				return null;
-		}
-
-		/**
-		 * Adds the new obtained data block to the complete payload, in the case
-		 * of blockwise GET requests.
-		 * 
-		 * @param msg
-		 *            The received CoAP message
-		 * @param block
-		 *            The block option of the CoAP message, indicating which
-		 *            block of data was received and whether there are more to
-		 *            follow.
-		 * @return Indicates whether the operation was successful.
-		 */
-		public boolean addBlock(CoapMessage msg, CoapBlockOption block) {
-			int number = block.getNumber();
-			if (number > this.blockNumber)
-				return false;
-
-			this.blockNumber++;
-			try {
-				this.incomingStream.write(msg.getPayload());
-			} catch (IOException e) {
-				this.logger.warn("ERROR: Cannot write data block to input buffer! "+e.getLocalizedMessage());
-			}
-			if (block.isLast()) {
-				this.finished = true;
-			}
-
-			return true;
 		}
 
 		/**
@@ -371,10 +407,6 @@ public class BasicCoapServerChannel extends BasicCoapChannel implements CoapServ
 		 *         (POST or PUT) or received (GET)
 		 */
 		public CoapBlockOption getNextBlock() {
-			if (!this.sending) {
-				this.blockNumber++; // ignore the rest (no rest should be there)
-				return new CoapBlockOption(this.blockNumber, false, this.blockSize);
-			}
 			this.blockNumber++;
 			if (this.blockNumber == this.maxBlockNumber)
 				return new CoapBlockOption(this.blockNumber, false, this.blockSize);
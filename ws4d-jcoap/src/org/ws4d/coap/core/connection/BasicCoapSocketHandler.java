@@ -16,21 +16,34 @@
 package org.ws4d.coap.core.connection;
 
 import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
 import java.net.DatagramPacket;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.net.MulticastSocket;
 import java.net.NetworkInterface;
+import java.net.SocketAddress;
+import java.nio.BufferOverflowException;
 import java.nio.ByteBuffer;
 import java.nio.channels.DatagramChannel;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.Selector;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Enumeration;
-import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
-import java.util.concurrent.ConcurrentLinkedQueue;
-import java.util.concurrent.PriorityBlockingQueue;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
@@ -41,11 +54,27 @@ import org.ws4d.coap.core.connection.api.CoapChannelManager;
 import org.ws4d.coap.core.connection.api.CoapClientChannel;
 import org.ws4d.coap.core.connection.api.CoapServerChannel;
 import org.ws4d.coap.core.connection.api.CoapSocketHandler;
+import org.ws4d.coap.core.connection.api.ServerChannelListener;
+import org.ws4d.coap.core.enumerations.CoapHeaderOptionType;
 import org.ws4d.coap.core.enumerations.CoapPacketType;
-import org.ws4d.coap.core.messages.AbstractCoapMessage;
+import org.ws4d.coap.core.enumerations.CoapResponseCode;
+import org.ws4d.coap.core.enumerations.CoapRetransmissionPolicy;
+import org.ws4d.coap.core.enumerations.CoapSendPriority;
 import org.ws4d.coap.core.messages.CoapEmptyMessage;
+import org.ws4d.coap.core.messages.CoapMessageView;
 import org.ws4d.coap.core.messages.api.CoapMessage;
-import org.ws4d.coap.core.tools.TimeoutHashMap;
+import org.ws4d.coap.core.messages.api.CoapResponse;
+import org.ws4d.coap.core.tools.ChannelTable;
+import org.ws4d.coap.core.tools.CoapExecutors;
+import org.ws4d.coap.core.tools.DatagramReplayCache;
+import org.ws4d.coap.core.tools.DirectBufferPool;
+import org.ws4d.coap.core.tools.ExchangeStore;
+import org.ws4d.coap.core.tools.HashedTimingWheel;
+import org.ws4d.coap.core.tools.MessageIdAllocator;
+import org.ws4d.coap.core.tools.PrioritySendQueue;
+import org.ws4d.coap.core.tools.RttEstimator;
+import org.ws4d.coap.core.tools.SendWindow;
+import org.ws4d.coap.core.tools.TokenBucket;
 
 /**
  * @author Christian Lerche <christian.lerche@uni-rostock.de>
@@ -65,29 +94,129 @@ public class BasicCoapSocketHandler implements CoapSocketHandler {
 	// TODO can be removed MC receive thread can also handle unicast messages
 	private ReceiveThread receiveThread = null;
 	private ReceiveThread receiveMCThread = null;
-	private Map<ChannelKey, CoapClientChannel> clientChannels = new HashMap<ChannelKey, CoapClientChannel>();
-	private Map<ChannelKey, CoapServerChannel> serverChannels = new HashMap<ChannelKey, CoapServerChannel>();
+	private DispatchThread[] dispatchThreads = null;
+	private ConcurrentMap<ChannelKey, CoapClientChannel> clientChannels = new ConcurrentHashMap<ChannelKey, CoapClientChannel>();
+	/** idle channels are evicted, see handleTimeouts() */
+	private ChannelTable<ChannelKey, CoapServerChannel> serverChannels = new ChannelTable<ChannelKey, CoapServerChannel>(
+			CoapConstants.SERVER_CHANNEL_CAPACITY, CoapConstants.SERVER_CHANNEL_IDLE_TIMEOUT_MS);
+	private volatile long nextServerChannelSweep = 0;
+	/** block wise PUT and POST requests of the server channels, abandoned ones are swept with the channels */
+	private Block1Reassembler block1Reassembler = new Block1Reassembler(CoapConstants.BLOCK1_MAX_SIZE,
+			CoapConstants.BLOCK1_SPILL_THRESHOLD, CoapConstants.BLOCK1_TRANSFERS, CoapConstants.BLOCK1_TIMEOUT_MS);
+	/**
+	 * the outstanding requests of the client channels by token and remote
+	 * endpoint, requests to a multicast group are registered without remote
+	 * endpoint
+	 */
+	private ConcurrentMap<TokenKey, TokenExchange> tokenExchanges = new ConcurrentHashMap<TokenKey, TokenExchange>();
+	/** the exchanges of each client channel, so a removed channel does not have to search for its exchanges */
+	private ConcurrentMap<CoapClientChannel, Set<TokenExchange>> channelExchanges =
+			new ConcurrentHashMap<CoapClientChannel, Set<TokenExchange>>();
+	/** if true, any number of client channels may share this socket, even towards the same remote endpoint */
+	private boolean multiplexed = false;
+	private static final Random tokenRandom = new Random();
+	private static final Random timeoutRandom = new Random();
 
 	private CoapChannelManager channelManager = null;
 	private DatagramChannel dgramChannel = null;
 	private MulticastSocket dgramSocket = null;
 
-	/** contains all received message keys of a remote (message id generated by the remote) to detect duplications */
-	private TimeoutHashMap<MessageKey, Boolean> duplicateRemoteMap = new TimeoutHashMap<MessageKey, Boolean>(CoapConstants.ACK_RST_RETRANS_TIMEOUT_MS);
-	
-	/** contains all received message keys of the host (message id generated by the host) to detect duplications */
-	private TimeoutHashMap<Integer, Boolean> duplicateHostMap = new TimeoutHashMap<Integer, Boolean>(CoapConstants.ACK_RST_RETRANS_TIMEOUT_MS);
-	
 	/** contains all messages that (possibly) needs to be retransmitted (ACK, RST) */
-	private TimeoutHashMap<MessageKey, CoapMessage> retransMsgMap = new TimeoutHashMap<MessageKey, CoapMessage>(CoapConstants.ACK_RST_RETRANS_TIMEOUT_MS);
+	private volatile DatagramReplayCache replayCache = new DatagramReplayCache(CoapConstants.REPLAY_CACHE_SIZE,
+			CoapConstants.REPLAY_CACHE_ENTRIES, CoapConstants.ACK_RST_RETRANS_TIMEOUT_MS);
 	
 	/** contains all messages that are not confirmed yet (CON), MessageID is always generated by Host and therefore unique */
-	private TimeoutHashMap<Integer, CoapMessage> timeoutConMsgMap = new TimeoutHashMap<Integer, CoapMessage>(CoapConstants.ACK_RST_RETRANS_TIMEOUT_MS);
+	private ConcurrentMap<MessageKey, Retransmission> timeoutConMsgMap = new ConcurrentHashMap<MessageKey, Retransmission>();
+
+	/** CON messages that wait in a send window or the send buffer for their first transmission */
+	private ConcurrentMap<MessageKey, CoapMessage> unsentConMsgs = new ConcurrentHashMap<MessageKey, CoapMessage>();
+
+	/** message ids are allocated per remote endpoint, idle allocators are removed after EXCHANGE_LIFETIME_MS */
+	private ConcurrentMap<ChannelKey, MessageIdAllocator> messageIds = new ConcurrentHashMap<ChannelKey, MessageIdAllocator>();
 	
-	/** this queue handles the timeout objects in the right order */
-	private PriorityBlockingQueue<TimeoutObject<Integer>> timeoutQueue = new PriorityBlockingQueue<TimeoutObject<Integer>>();
+	/** schedules the retransmissions, driven by the worker thread */
+	private HashedTimingWheel timer = new HashedTimingWheel();
+
+	/** determines whether the RTT estimators drive the timeouts of CON messages */
+	private volatile CoapRetransmissionPolicy retransmissionPolicy = CoapRetransmissionPolicy.FIXED;
+
+	/** RTT statistics per remote endpoint, idle estimators are removed after EXCHANGE_LIFETIME_MS */
+	private ConcurrentMap<ChannelKey, RttEstimator> rttEstimators = new ConcurrentHashMap<ChannelKey, RttEstimator>();
+	private long nextPeerStateSweep = 0;
+
+	/** limits the outstanding CON messages per remote endpoint, idle windows are removed with the estimators */
+	private ConcurrentMap<ChannelKey, SendWindow<CoapMessage>> sendWindows = new ConcurrentHashMap<ChannelKey, SendWindow<CoapMessage>>();
+	private volatile int nstart = CoapConstants.NSTART;
+
+	/** paces the NON messages per remote endpoint, idle buckets are removed with the estimators */
+	private ConcurrentMap<ChannelKey, TokenBucket> pacers = new ConcurrentHashMap<ChannelKey, TokenBucket>();
+	private volatile double nonPacingRate = CoapConstants.NON_PACING_RATE;
+	private volatile int nonPacingBurst = CoapConstants.NON_PACING_BURST;
+
+	/** runs the server callbacks, received messages are parsed on the dispatch threads */
+	private volatile Executor requestExecutor = CoapExecutors.inline();
+
+	/** high-water marks of the dispatch queues and the send buffer */
+	private volatile int inboundQueueLimit = CoapConstants.INBOUND_QUEUE_LIMIT;
+	private volatile int outboundQueueLimit = CoapConstants.OUTBOUND_QUEUE_LIMIT;
+	private AtomicLong shedRequests = new AtomicLong();
+	private AtomicLong droppedRequests = new AtomicLong();
+	private AtomicLong droppedMessages = new AtomicLong();
+	/** the 5.03 reply to a shed request, shared by the receive threads */
+	private final ByteBuffer shedReply = ByteBuffer.allocate(32);
+
+	/** messages are serialized into these buffers and sent without further copies */
+	private DirectBufferPool sendBuffers = new DirectBufferPool(CoapConstants.UDP_BUFFER_SIZE,
+			CoapConstants.SEND_BUFFER_POOL_SIZE);
 
 	public BasicCoapSocketHandler(CoapChannelManager channelManager, int port) throws IOException {
+		this(channelManager, port, true, CoapConstants.DISPATCH_THREADS);
+	}
+
+	/**
+	 * @param channelManager
+	 *            - the channel manager that created this socket handler
+	 * @param port
+	 *            - the local port to bind to, 0 for an ephemeral port
+	 * @param multicast
+	 *            - true, if the socket handler should join the all CoAP nodes
+	 *            multicast groups and listen for multicast requests
+	 * @param dispatchThreads
+	 *            - the number of threads that parse and dispatch received
+	 *            messages
+	 * @throws IOException
+	 *             if the socket could not be opened
+	 */
+	public BasicCoapSocketHandler(CoapChannelManager channelManager, int port, boolean multicast, int dispatchThreads)
+			throws IOException {
+		this(channelManager, port, multicast, dispatchThreads, false);
+	}
+
+	/**
+	 * @param channelManager
+	 *            - the channel manager that created this socket handler
+	 * @param port
+	 *            - the local port to bind to, 0 for an ephemeral port
+	 * @param multicast
+	 *            - true, if the socket handler should join the all CoAP nodes
+	 *            multicast groups and listen for multicast requests
+	 * @param dispatchThreads
+	 *            - the number of threads that parse and dispatch received
+	 *            messages
+	 * @param reusePort
+	 *            - true to open the socket with SO_REUSEPORT, so that further
+	 *            socket handlers can be bound to the same port. The kernel
+	 *            then distributes the remote endpoints among these sockets.
+	 * @throws IOException
+	 *             if the socket could not be opened or SO_REUSEPORT is not
+	 *             supported
+	 * @see #isReusePortSupported()
+	 */
+	public BasicCoapSocketHandler(CoapChannelManager channelManager, int port, boolean multicast, int dispatchThreads,
+			boolean reusePort) throws IOException {
+		if (dispatchThreads < 1) {
+			throw new IllegalArgumentException("At least one dispatch thread is required");
+		}
 		this.channelManager = channelManager;
 
 		Enumeration<NetworkInterface> Interfaces = NetworkInterface.getNetworkInterfaces();
@@ -102,32 +231,101 @@ public class BasicCoapSocketHandler implements CoapSocketHandler {
 
 		this.dgramChannel = DatagramChannel.open();
 		this.dgramChannel.socket().setReuseAddress(true);
-		this.dgramChannel.socket().setReuseAddress(true);
+		if (reusePort) {
+			setReusePort(this.dgramChannel);
+		}
 		this.dgramChannel.socket().bind(new InetSocketAddress(port));
 
 		this.localPort = this.dgramChannel.socket().getLocalPort();
 		this.dgramChannel.configureBlocking(false);
-
-		this.dgramSocket = new MulticastSocket(port);
-		this.dgramSocket.setReuseAddress(true);
-		this.dgramSocket.setNetworkInterface(NetworkAdapter);
-		this.dgramSocket.setSoTimeout(0);
-		this.dgramSocket.setReceiveBufferSize(CoapConstants.RECEIVE_BUFFER_SIZE);
-
-		this.dgramSocket.joinGroup(InetAddress.getByName(CoapConstants.COAP_ALL_NODES_IPV6_LL_MC_ADDR));
-		this.dgramSocket.joinGroup(InetAddress.getByName(CoapConstants.COAP_ALL_NODES_IPV6_SL_MC_ADDR));
-		this.dgramSocket.joinGroup(InetAddress.getByName(CoapConstants.COAP_ALL_NODES_IPV4_MC_ADDR));
+		/* allows responses to broadcast requests, set once instead of per send */
+		this.dgramChannel.socket().setBroadcast(true);
+
+		if (multicast) {
+			this.dgramSocket = new MulticastSocket(port);
+			this.dgramSocket.setReuseAddress(true);
+			this.dgramSocket.setNetworkInterface(NetworkAdapter);
+			this.dgramSocket.setSoTimeout(0);
+			this.dgramSocket.setReceiveBufferSize(CoapConstants.RECEIVE_BUFFER_SIZE);
+
+			this.dgramSocket.joinGroup(InetAddress.getByName(CoapConstants.COAP_ALL_NODES_IPV6_LL_MC_ADDR));
+			this.dgramSocket.joinGroup(InetAddress.getByName(CoapConstants.COAP_ALL_NODES_IPV6_SL_MC_ADDR));
+			this.dgramSocket.joinGroup(InetAddress.getByName(CoapConstants.COAP_ALL_NODES_IPV4_MC_ADDR));
+		}
 
 		this.workerThread = new WorkerThread();
 		this.workerThread.start();
 
+		this.dispatchThreads = new DispatchThread[dispatchThreads];
+		for (int i = 0; i < dispatchThreads; i++) {
+			this.dispatchThreads[i] = new DispatchThread();
+			this.dispatchThreads[i].start();
+		}
+
 		this.receiveThread = new ReceiveThread(false);
 		this.receiveThread.start();
 
-		this.receiveMCThread = new ReceiveThread(true);
-		this.receiveMCThread.start();
+		if (multicast) {
+			this.receiveMCThread = new ReceiveThread(true);
+			this.receiveMCThread.start();
+		}
 	}
 	
+	/**
+	 * @return true, if the JDK and the operating system allow to bind several
+	 *         sockets to the same port with SO_REUSEPORT
+	 */
+	public static boolean isReusePortSupported() {
+		if (reusePortOption() == null) {
+			return false;
+		}
+		DatagramChannel channel = null;
+		try {
+			channel = DatagramChannel.open();
+			setReusePort(channel);
+			return true;
+		} catch (IOException e) {
+			return false;
+		} finally {
+			if (channel != null) {
+				try {
+					channel.close();
+				} catch (IOException e) {
+					logger.warn(e.getLocalizedMessage());
+				}
+			}
+		}
+	}
+
+	/**
+	 * @return The SO_REUSEPORT socket option, null if the JDK does not know it
+	 */
+	private static Object reusePortOption() {
+		/* StandardSocketOptions.SO_REUSEPORT is only available on newer JDKs */
+		try {
+			return Class.forName("java.net.StandardSocketOptions").getField("SO_REUSEPORT").get(null);
+		} catch (Exception e) {
+			return null;
+		}
+	}
+
+	private static void setReusePort(DatagramChannel channel) throws IOException {
+		Object option = reusePortOption();
+		if (option == null) {
+			throw new IOException("SO_REUSEPORT is not supported by this JDK");
+		}
+		try {
+			Method setOption = DatagramChannel.class.getMethod("setOption", Class.forName("java.net.SocketOption"),
+					Object.class);
+			setOption.invoke(channel, option, Boolean.TRUE);
+		} catch (InvocationTargetException e) {
+			/* e.g. UnsupportedOperationException if the OS does not support it */
+			throw new IOException("SO_REUSEPORT could not be set: " + e.getCause());
+		} catch (Exception e) {
+			throw new IOException("SO_REUSEPORT could not be set: " + e);
+		}
+	}
+
 	DatagramChannel getDatagramChannel(){
 		return this.dgramChannel;
 	}
@@ -136,33 +334,590 @@ public class BasicCoapSocketHandler implements CoapSocketHandler {
 		return this.dgramSocket;
 	}
 	
-	Map<Integer, Boolean> getDuplicateHostMap(){
-		return this.duplicateHostMap;
+	/**
+	 * Confirms a CON message. Its retransmission is cancelled.
+	 * 
+	 * @param addr
+	 *            - the address the ACK or RST was received from
+	 * @param msgId
+	 *            - the message id of the ACK or RST
+	 * @return The confirmed message or null, if no CON message with this id is
+	 *         waiting for confirmation
+	 */
+	CoapMessage confirmMessage(InetSocketAddress addr, int msgId) {
+		Retransmission retransmission = this.timeoutConMsgMap.remove(new MessageKey(addr.getAddress(),
+				addr.getPort(), msgId));
+		if (retransmission == null) {
+			return null;
+		}
+		retransmission.timeout.cancel();
+		/* the RTT is measured from the first transmission, see RttEstimator */
+		retransmission.estimator.addSample(System.currentTimeMillis() - retransmission.firstSent,
+				retransmission.transmissions - 1);
+		releaseSendWindow(retransmission.msg.getChannel());
+		return retransmission.msg;
 	}
 
-	Map<Integer, CoapMessage> getTimeoutConMsgMap(){
-		return this.timeoutConMsgMap;
+	@Override
+	public void cancelMessage(CoapMessage message) {
+		CoapChannel channel = message.getChannel();
+		MessageKey key = new MessageKey(channel.getRemoteAddress(), channel.getRemotePort(), message.getMessageID());
+		Retransmission retransmission = this.timeoutConMsgMap.remove(key);
+		if (retransmission != null) {
+			retransmission.timeout.cancel();
+			releaseSendWindow(channel);
+		} else if (this.unsentConMsgs.remove(key) != null) {
+			SendWindow<CoapMessage> window = this.sendWindows.get(new ChannelKey(channel.getRemoteAddress(),
+					channel.getRemotePort()));
+			if (window == null || !window.remove(message)) {
+				/* admitted already, the worker thread skips it */
+				releaseSendWindow(channel);
+			}
+		}
+		if (message.isRequest()) {
+			TokenExchange exchange = this.tokenExchanges.get(new TokenKey(message.getToken(),
+					channel.getRemoteAddress(), channel.getRemotePort()));
+			if (exchange != null && exchange.channel == channel) {
+				removeExchange(exchange);
+			}
+		}
 	}
-	
-	Map<MessageKey, CoapMessage> getRetransMsgMap(){
-		return this.retransMsgMap;
+
+	/**
+	 * @return True, if the CON message may be sent now. False, if it has to
+	 *         wait for an outstanding CON message towards the same remote
+	 *         endpoint.
+	 */
+	private boolean admitToSendWindow(CoapMessage message) {
+		ChannelKey key = new ChannelKey(message.getChannel().getRemoteAddress(), message.getChannel().getRemotePort());
+		for (;;) {
+			SendWindow<CoapMessage> window = this.sendWindows.get(key);
+			if (window == null) {
+				SendWindow<CoapMessage> created = new SendWindow<CoapMessage>(this.nstart);
+				window = this.sendWindows.putIfAbsent(key, created);
+				if (window == null) {
+					window = created;
+				}
+			}
+			synchronized (window) {
+				if (!window.isRetired()) {
+					return window.admit(message);
+				}
+			}
+			/* removed by handleTimeouts() in the meantime */
+			this.sendWindows.remove(key, window);
+		}
 	}
-	
-	PriorityBlockingQueue<TimeoutObject<Integer>> getTimeoutQueue(){
-		return this.timeoutQueue;
+
+	/**
+	 * Frees the slot of a confirmed or failed CON message and sends the next
+	 * queued one.
+	 */
+	private void releaseSendWindow(CoapChannel channel) {
+		SendWindow<CoapMessage> window = this.sendWindows.get(new ChannelKey(channel.getRemoteAddress(),
+				channel.getRemotePort()));
+		if (window == null) {
+			return;
+		}
+		CoapMessage next = window.release();
+		if (next != null && this.workerThread != null) {
+			this.workerThread.addMessageToSendBuffer(next);
+		}
+	}
+
+	/**
+	 * Sets the number of CON messages that may be outstanding towards a remote
+	 * endpoint. Further CON messages wait until one of them is acknowledged or
+	 * given up.
+	 * 
+	 * @param nstart
+	 *            - the maximum number of outstanding CON messages per remote
+	 *            endpoint, at least 1
+	 */
+	public void setNstart(int nstart) {
+		if (nstart < 1) {
+			throw new IllegalArgumentException("NSTART must be at least 1");
+		}
+		this.nstart = nstart;
+		for (SendWindow<CoapMessage> window : this.sendWindows.values()) {
+			window.setLimit(nstart);
+			CoapMessage next = window.next();
+			while (next != null && this.workerThread != null) {
+				this.workerThread.addMessageToSendBuffer(next);
+				next = window.next();
+			}
+		}
+	}
+
+	public int getNstart() {
+		return this.nstart;
+	}
+
+	/**
+	 * @param remoteAddress
+	 *            - the address of the remote endpoint
+	 * @param remotePort
+	 *            - the port of the remote endpoint
+	 * @return The send window of the remote endpoint, e.g. to read its queue
+	 *         depth, or null if no CON message was sent to it recently
+	 */
+	public SendWindow<CoapMessage> getSendWindow(InetAddress remoteAddress, int remotePort) {
+		return this.sendWindows.get(new ChannelKey(remoteAddress, remotePort));
+	}
+
+	/**
+	 * @return A read-only view of the send windows of all remote endpoints a
+	 *         CON message was sent to recently
+	 */
+	public Map<ChannelKey, SendWindow<CoapMessage>> getSendWindows() {
+		return Collections.unmodifiableMap(this.sendWindows);
+	}
+
+	/**
+	 * @return The number of CON messages of all remote endpoints that wait
+	 *         for their send window
+	 */
+	public int getQueuedMessageCount() {
+		int count = 0;
+		for (SendWindow<CoapMessage> window : this.sendWindows.values()) {
+			count += window.getQueueDepth();
+		}
+		return count;
+	}
+
+	/**
+	 * Sets the high-water marks of the queues. Once a dispatch queue holds
+	 * more than inbound datagrams, further CON requests are answered with
+	 * 5.03 and a Max-Age retry hint and NON requests are dropped, without
+	 * parsing them completely. Responses and empty messages are still queued,
+	 * they complete exchanges and therefore reduce the load. Once the send
+	 * buffer holds more than outbound messages, further NON messages are
+	 * dropped. CON messages are limited by NSTART and ACKs by the inbound
+	 * limit, so they are always queued.
+	 * 
+	 * @param inbound
+	 *            - the limit of each dispatch queue
+	 * @param outbound
+	 *            - the limit of the send buffer
+	 */
+	public void setQueueLimits(int inbound, int outbound) {
+		if (inbound < 1 || outbound < 1) {
+			throw new IllegalArgumentException("Queue limits must be at least 1");
+		}
+		this.inboundQueueLimit = inbound;
+		this.outboundQueueLimit = outbound;
+	}
+
+	public int getInboundQueueLimit() {
+		return this.inboundQueueLimit;
+	}
+
+	public int getOutboundQueueLimit() {
+		return this.outboundQueueLimit;
+	}
+
+	/**
+	 * @return The number of received datagrams waiting for a dispatch thread
+	 */
+	public int getInboundQueueDepth() {
+		int depth = 0;
+		for (DispatchThread dispatchThread : this.dispatchThreads) {
+			depth += dispatchThread.getQueueDepth();
+		}
+		return depth;
+	}
+
+	/**
+	 * @return The number of messages waiting for the worker thread
+	 */
+	public int getOutboundQueueDepth() {
+		return this.workerThread == null ? 0 : this.workerThread.getQueueDepth();
+	}
+
+	/**
+	 * @return The send buffer of the worker thread, e.g. to read the queue
+	 *         depth of a {@link CoapSendPriority} by its ordinal, or null if
+	 *         the socket handler has no worker thread
+	 */
+	public PrioritySendQueue<CoapMessage> getSendQueue() {
+		return this.workerThread == null ? null : this.workerThread.workerSendBuffer;
+	}
+
+	/**
+	 * @return The class a message is sent with. Piggybacked responses are
+	 *         answers the remote retransmits its request for, so they are
+	 *         never bulk.
+	 */
+	static CoapSendPriority priorityOf(CoapMessage msg) {
+		if (msg.isEmpty()) {
+			return CoapSendPriority.CONTROL;
+		}
+		if (msg.getPacketType() == CoapPacketType.ACK) {
+			return CoapSendPriority.RESPONSE;
+		}
+		if (msg.getBlock1() != null || msg.getBlock2() != null) {
+			return CoapSendPriority.BULK;
+		}
+		if (msg.isResponse()) {
+			return msg.getObserveOption() != null ? CoapSendPriority.BULK : CoapSendPriority.RESPONSE;
+		}
+		return CoapSendPriority.REQUEST;
+	}
+
+	/**
+	 * @return The number of CON requests answered with 5.03 due to overload
+	 */
+	public long getShedRequestCount() {
+		return this.shedRequests.get();
+	}
+
+	/**
+	 * @return The number of NON requests dropped due to overload
+	 */
+	public long getDroppedRequestCount() {
+		return this.droppedRequests.get();
+	}
+
+	/**
+	 * @return The number of outgoing NON messages dropped due to overload or
+	 *         as they exceeded the pacing of their remote endpoint
+	 */
+	public long getDroppedMessageCount() {
+		return this.droppedMessages.get();
+	}
+
+	/**
+	 * Counts a request that was not handled due to overload, e.g. as the
+	 * request executor rejected it.
+	 * 
+	 * @param confirmable
+	 *            - true, if the request was answered with 5.03, false if a NON
+	 *            request was dropped
+	 */
+	void countShedRequest(boolean confirmable) {
+		if (confirmable) {
+			this.shedRequests.incrementAndGet();
+		} else {
+			this.droppedRequests.incrementAndGet();
+		}
+	}
+
+	/**
+	 * Sets the pacing of NON messages, including notifications. Every remote
+	 * endpoint has a token bucket that is refilled with rate tokens per
+	 * second and holds up to burst tokens. A NON message without a token is
+	 * deferred by the timer of the worker thread, or dropped if it would wait
+	 * longer than NON_PACING_MAX_DELAY_MS. Dropped messages are logged and
+	 * counted, see {@link #getDroppedMessageCount()} and
+	 * {@link TokenBucket#getDroppedCount()}. Resets the buckets of all remote
+	 * endpoints.
+	 * 
+	 * @param rate
+	 *            - the NON messages per second and remote endpoint, 0 to
+	 *            disable the pacing (the default)
+	 * @param burst
+	 *            - the NON messages that may be sent at once, at least 1
+	 */
+	public void setNonPacing(double rate, int burst) {
+		if (burst < 1) {
+			throw new IllegalArgumentException("Burst must be at least 1");
+		}
+		this.nonPacingRate = Math.max(0, rate);
+		this.nonPacingBurst = burst;
+		this.pacers.clear();
+	}
+
+	public double getNonPacingRate() {
+		return this.nonPacingRate;
+	}
+
+	public int getNonPacingBurst() {
+		return this.nonPacingBurst;
+	}
+
+	/**
+	 * @param remoteAddress
+	 *            - the address of the remote endpoint
+	 * @param remotePort
+	 *            - the port of the remote endpoint
+	 * @return The token bucket of the remote endpoint, e.g. to read the number
+	 *         of deferred messages, or null if no NON message was sent to it
+	 *         recently
+	 */
+	public TokenBucket getPacer(InetAddress remoteAddress, int remotePort) {
+		return this.pacers.get(new ChannelKey(remoteAddress, remotePort));
+	}
+
+	/**
+	 * @return A read-only view of the token buckets of all remote endpoints a
+	 *         NON message was sent to recently
+	 */
+	public Map<ChannelKey, TokenBucket> getPacers() {
+		return Collections.unmodifiableMap(this.pacers);
+	}
+
+	private TokenBucket pacerFor(CoapChannel channel, long now) {
+		ChannelKey key = new ChannelKey(channel.getRemoteAddress(), channel.getRemotePort());
+		TokenBucket pacer = this.pacers.get(key);
+		if (pacer == null) {
+			pacer = new TokenBucket(this.nonPacingRate, this.nonPacingBurst, now);
+			TokenBucket existing = this.pacers.putIfAbsent(key, pacer);
+			if (existing != null) {
+				pacer = existing;
+			}
+		}
+		return pacer;
+	}
+
+	@Override
+	public Executor getRequestExecutor() {
+		return this.requestExecutor;
+	}
+
+	/**
+	 * Sets the executor that runs the callbacks of the server channels, e.g.
+	 * CoapServer.onRequest(). The default runs them on the dispatch thread,
+	 * see {@link CoapExecutors} for alternatives.
+	 * 
+	 * @param executor
+	 *            - the executor of the server callbacks
+	 */
+	public void setRequestExecutor(Executor executor) {
+		if (executor == null) {
+			throw new IllegalArgumentException("request executor must not be null");
+		}
+		this.requestExecutor = executor;
+	}
+
+	@Override
+	public int getNewMessageID(InetAddress remoteAddress, int remotePort) {
+		ChannelKey key = new ChannelKey(remoteAddress, remotePort);
+		MessageIdAllocator allocator = this.messageIds.get(key);
+		if (allocator == null) {
+			MessageIdAllocator created = new MessageIdAllocator(this.channelManager.getNewMessageID(),
+					new LiveMessageIds(remoteAddress, remotePort));
+			allocator = this.messageIds.putIfAbsent(key, created);
+			if (allocator == null) {
+				allocator = created;
+			}
+		}
+		return allocator.allocate();
+	}
+
+	/**
+	 * @param remoteAddress
+	 *            - the address of the remote endpoint
+	 * @param remotePort
+	 *            - the port of the remote endpoint
+	 * @return The message id allocator of the remote endpoint, e.g. to read
+	 *         the number of skipped ids, or null if no message id was
+	 *         allocated for it recently
+	 */
+	public MessageIdAllocator getMessageIdAllocator(InetAddress remoteAddress, int remotePort) {
+		return this.messageIds.get(new ChannelKey(remoteAddress, remotePort));
+	}
+
+	/**
+	 * The message ids of a remote endpoint that wait for their ACK or RST or
+	 * for their first transmission
+	 */
+	private class LiveMessageIds implements MessageIdAllocator.LiveCheck {
+		private final InetAddress remoteAddress;
+		private final int remotePort;
+
+		LiveMessageIds(InetAddress remoteAddress, int remotePort) {
+			this.remoteAddress = remoteAddress;
+			this.remotePort = remotePort;
+		}
+
+		public boolean isLive(int messageId) {
+			Map<MessageKey, Retransmission> pending = BasicCoapSocketHandler.this.timeoutConMsgMap;
+			Map<MessageKey, CoapMessage> unsent = BasicCoapSocketHandler.this.unsentConMsgs;
+			if (pending.isEmpty() && unsent.isEmpty()) {
+				return false;
+			}
+			MessageKey key = new MessageKey(this.remoteAddress, this.remotePort, messageId);
+			return pending.containsKey(key) || unsent.containsKey(key);
+		}
+	}
+
+	/**
+	 * @param policy
+	 *            - FIXED for the rfc7252 timeouts, ADAPTIVE to derive the
+	 *            timeouts from the RTT of each remote endpoint. Applies to
+	 *            exchanges started afterwards.
+	 */
+	public void setRetransmissionPolicy(CoapRetransmissionPolicy policy) {
+		if (policy == null) {
+			throw new IllegalArgumentException("retransmission policy must not be null");
+		}
+		this.retransmissionPolicy = policy;
+	}
+
+	public CoapRetransmissionPolicy getRetransmissionPolicy() {
+		return this.retransmissionPolicy;
+	}
+
+	/**
+	 * RTT samples are collected regardless of the retransmission policy.
+	 * 
+	 * @param remoteAddress
+	 *            - the address of the remote endpoint
+	 * @param remotePort
+	 *            - the port of the remote endpoint
+	 * @return The RTT estimator of the remote endpoint or null, if no CON
+	 *         message was sent to it recently
+	 */
+	public RttEstimator getRttEstimator(InetAddress remoteAddress, int remotePort) {
+		return this.rttEstimators.get(new ChannelKey(remoteAddress, remotePort));
+	}
+
+	/**
+	 * @return A read-only view of the RTT estimators of all remote endpoints
+	 *         a CON message was sent to recently
+	 */
+	public Map<ChannelKey, RttEstimator> getRttEstimators() {
+		return Collections.unmodifiableMap(this.rttEstimators);
+	}
+
+	private RttEstimator rttEstimatorFor(CoapChannel channel) {
+		ChannelKey key = new ChannelKey(channel.getRemoteAddress(), channel.getRemotePort());
+		RttEstimator estimator = this.rttEstimators.get(key);
+		if (estimator == null) {
+			RttEstimator created = new RttEstimator();
+			estimator = this.rttEstimators.putIfAbsent(key, created);
+			if (estimator == null) {
+				estimator = created;
+			}
+		}
+		return estimator;
 	}
 	
-	TimeoutHashMap<MessageKey, Boolean> getDuplicateRemoteMap(){
-		return this.duplicateRemoteMap;
+	/**
+	 * @return The cache of sent ACK and RST messages, e.g. to read its
+	 *         eviction counters
+	 */
+	public DatagramReplayCache getReplayCache() {
+		return this.replayCache;
+	}
+
+	/**
+	 * Replaces the cache of sent ACK and RST messages by an empty one with
+	 * other limits.
+	 * 
+	 * @param bytes
+	 *            - the memory for serialized messages in bytes
+	 * @param entries
+	 *            - the maximum number of cached messages
+	 */
+	public void setReplayCacheLimits(int bytes, int entries) {
+		this.replayCache = new DatagramReplayCache(bytes, entries, CoapConstants.ACK_RST_RETRANS_TIMEOUT_MS);
 	}
 	
-	Map<ChannelKey, CoapServerChannel> getServerChannels(){
+	ChannelTable<ChannelKey, CoapServerChannel> getServerChannels(){
+		return this.serverChannels;
+	}
+
+	/**
+	 * @return The table of server channels, e.g. to read the number of live
+	 *         channels and the eviction counters
+	 */
+	public ChannelTable<ChannelKey, CoapServerChannel> getServerChannelTable() {
 		return this.serverChannels;
 	}
+
+	/**
+	 * Sets the limits of the server channels. Channels without received or
+	 * sent messages for the idle timeout are evicted, as well as the least
+	 * recently active ones if a new remote endpoint exceeds the capacity. The
+	 * server is notified if it implements {@link ServerChannelListener}.
+	 * 
+	 * @param capacity
+	 *            - the maximum number of server channels
+	 * @param idleTimeout
+	 *            - the idle timeout in ms
+	 */
+	public void setServerChannelLimits(int capacity, long idleTimeout) {
+		this.serverChannels.setLimits(capacity, idleTimeout);
+		/* reschedule the sweep with the new timeout */
+		this.nextServerChannelSweep = 0;
+	}
+
+	/**
+	 * Sets the limits of the reassembly of block wise PUT and POST requests.
+	 * Larger bodies are refused with 4.13, bodies above the spill threshold
+	 * are kept in a memory mapped temporary file, and transfers without a
+	 * block for the timeout are dropped.
+	 * 
+	 * @param maxSize
+	 *            - the largest accepted body in bytes
+	 * @param spillThreshold
+	 *            - the body size in bytes above which a file is used
+	 * @param timeout
+	 *            - the time in ms after which an abandoned transfer is dropped
+	 */
+	public void setBlock1Limits(int maxSize, int spillThreshold, long timeout) {
+		this.block1Reassembler.setLimits(maxSize, spillThreshold, CoapConstants.BLOCK1_TRANSFERS, timeout);
+		/* reschedule the sweep with the new timeout */
+		this.nextServerChannelSweep = 0;
+	}
+
+	@Override
+	public Block1Reassembler getBlock1Reassembler() {
+		return this.block1Reassembler;
+	}
+
+	private void releaseServerChannels(List<CoapServerChannel> evicted) {
+		if (evicted.isEmpty()) {
+			return;
+		}
+		logger.info("Evicted " + evicted.size() + " server channels");
+		for (CoapServerChannel channel : evicted) {
+			if (channel instanceof BasicCoapServerChannel) {
+				((BasicCoapServerChannel) channel).evicted();
+			}
+		}
+	}
 	
 	Map<ChannelKey, CoapClientChannel> getClientChannels(){
 		return this.clientChannels;
 	}
+
+	/**
+	 * @return The client channel of a remote endpoint for a response that
+	 *         matches no request. Null in multiplexed mode, as several
+	 *         channels may talk to the endpoint and the response must not
+	 *         reach a client that did not ask for it.
+	 */
+	private CoapClientChannel fallbackClientChannel(InetSocketAddress addr) {
+		if (this.multiplexed) {
+			return null;
+		}
+		return this.clientChannels.get(new ChannelKey(addr.getAddress(), addr.getPort()));
+	}
+
+	/**
+	 * Rejects a message that cannot be processed with an RST.
+	 */
+	private void sendReset(InetSocketAddress addr, int msgId) {
+		CoapChannel fakeChannel = new BasicCoapServerChannel(this, null, addr.getAddress(), addr.getPort());
+		CoapEmptyMessage rstMsg = new CoapEmptyMessage(CoapPacketType.RST, msgId);
+		rstMsg.setChannel(fakeChannel);
+		sendMessage(rstMsg);
+	}
+
+	/**
+	 * Allows any number of client channels to share this socket handler, even
+	 * towards the same remote endpoint. Responses are then assigned to their
+	 * channel by token and remote endpoint. Requests without a token get a
+	 * random one.
+	 * 
+	 * @param multiplexed
+	 *            - true to enable the multiplexing of client channels
+	 */
+	void setMultiplexed(boolean multiplexed) {
+		this.multiplexed = multiplexed;
+	}
 	
 	WorkerThread getWorkerThread(){
 		return this.workerThread;
@@ -203,8 +958,7 @@ public class BasicCoapSocketHandler implements CoapSocketHandler {
 					try {
 						BasicCoapSocketHandler.this.getDatagramSocket().receive(dgramPacket);
 						addr = new InetSocketAddress(dgramPacket.getAddress(), dgramPacket.getPort());
-						this.dgramBuffer.position(dgramPacket.getLength());
-						handleIncommingMessage(this.dgramBuffer, addr);
+						dispatch(this.dgramBuffer.array(), dgramPacket.getLength(), addr);
 					} catch (IOException e2) {
 						logger.warn("IO exception"+e2.getLocalizedMessage());
 					}
@@ -212,17 +966,20 @@ public class BasicCoapSocketHandler implements CoapSocketHandler {
 			} else {
 				while (BasicCoapSocketHandler.this.getDatagramChannel() != null) {
 
-					/* handle incoming packets */
-					this.dgramBuffer.clear();
-					try {
-						addr = (InetSocketAddress) BasicCoapSocketHandler.this.getDatagramChannel().receive(this.dgramBuffer);
-					} catch (IOException e1) {
-						logger.warn(e1.getLocalizedMessage());
-					}
-					if (addr != null) {
-						logger.info("handle incomming msg");
-						handleIncommingMessage(this.dgramBuffer, addr);
-					}
+					/* drain all packets from the socket before waiting again */
+					do {
+						this.dgramBuffer.clear();
+						addr = null;
+						try {
+							addr = (InetSocketAddress) BasicCoapSocketHandler.this.getDatagramChannel().receive(this.dgramBuffer);
+						} catch (IOException e1) {
+							logger.warn(e1.getLocalizedMessage());
+						}
+						if (addr != null) {
+							logger.info("handle incomming msg");
+							dispatch(this.dgramBuffer.array(), this.dgramBuffer.position(), addr);
+						}
+					} while (addr != null);
 
 					// Wait until new message is in the receive buffer of the socket
 					try {
@@ -233,47 +990,223 @@ public class BasicCoapSocketHandler implements CoapSocketHandler {
 				}
 			}
 		}
+	}
 
-		private boolean isHostDuplicate(int msgId) {
-			if (BasicCoapSocketHandler.this.getDuplicateHostMap().get(msgId) != null) {
+	/**
+	 * Hands a received datagram over to the dispatch thread that is
+	 * responsible for the remote endpoint. All datagrams of a remote endpoint
+	 * are handled by the same thread and therefore in order, while different
+	 * remote endpoints are handled in parallel.
+	 * 
+	 * @param buffer
+	 *            - the receive buffer, it is copied and can be reused afterwards
+	 * @param length
+	 *            - the length of the datagram
+	 * @param addr
+	 *            - the address the datagram was received from
+	 */
+	void dispatch(byte[] buffer, int length, InetSocketAddress addr) {
+		DispatchThread dispatchThread = this.dispatchThreads[dispatchIndex(addr.getAddress(), addr.getPort())];
+		if (dispatchThread.getQueueDepth() >= this.inboundQueueLimit && shed(buffer, length, addr)) {
+			return;
+		}
+		byte[] data = new byte[length];
+		System.arraycopy(buffer, 0, data, 0, length);
+		dispatchThread.enqueue(new ReceivedDatagram(data, addr));
+	}
+
+	/**
+	 * Answers a CON request with 5.03 or drops a NON request if the dispatch
+	 * queue is full. Only the header is read, the duplicate detection is
+	 * skipped, so a retransmission is judged again. The reply is encoded from
+	 * the header and sent right away, like a replayed response, so shedding
+	 * does not allocate a message or a channel.
+	 * 
+	 * @return True, if the datagram was handled. False, if it is no request
+	 *         and has to be queued anyway.
+	 */
+	private boolean shed(byte[] buffer, int length, InetSocketAddress addr) {
+		int tokenLength = length < 4 ? 0 : buffer[0] & 0x0F;
+		if (length < 4 + tokenLength || tokenLength > 8 || (buffer[0] & 0xC0) != 0x40) {
+			/* invalid anyway */
+			return true;
+		}
+		int code = buffer[1] & 0xFF;
+		if (code == 0 || code > 31) {
+			/* empty messages and responses are no requests */
+			return false;
+		}
+		if (((buffer[0] >> 4) & 0x03) != CoapPacketType.CON.getValue()) {
+			this.droppedRequests.incrementAndGet();
+			return true;
+		}
+		synchronized (this.shedReply) {
+			ByteBuffer reply = this.shedReply;
+			reply.clear();
+			reply.put((byte) (0x40 | (CoapPacketType.ACK.getValue() << 4) | tokenLength));
+			reply.put((byte) CoapResponseCode.Service_Unavailable_503.getValue());
+			/* message id and token */
+			reply.put(buffer, 2, 2 + tokenLength);
+			putMaxAge(reply, CoapConstants.SERVICE_UNAVAILABLE_MAX_AGE_S);
+			reply.flip();
+			try {
+				getDatagramChannel().send(reply, addr);
+			} catch (IOException e) {
+				logger.error("Send UDP message failed: " + e.getLocalizedMessage());
+			}
+		}
+		this.shedRequests.incrementAndGet();
+		return true;
+	}
+
+	/**
+	 * Appends a Max-Age option as the first option of a message.
+	 */
+	private static void putMaxAge(ByteBuffer buffer, int maxAge) {
+		int length = 0;
+		for (int value = maxAge; value != 0; value >>>= 8) {
+			length++;
+		}
+		/* option delta 14 needs one extended delta byte */
+		buffer.put((byte) (0xD0 | length));
+		buffer.put((byte) (CoapHeaderOptionType.Max_Age.getValue() - 13));
+		for (int i = length - 1; i >= 0; i--) {
+			buffer.put((byte) (maxAge >>> (8 * i)));
+		}
+	}
+
+	/**
+	 * @return The index of the dispatch thread responsible for a remote
+	 *         endpoint. The hash is the same as the one of the corresponding
+	 *         {@link ChannelKey}.
+	 */
+	int dispatchIndex(InetAddress inetAddr, int port) {
+		int hash = 31 * (31 + ((inetAddr == null) ? 0 : inetAddr.hashCode())) + port;
+		/* spread the bits, consecutive ports should not end up in neighbouring threads only */
+		hash ^= (hash >>> 16);
+		hash *= 0x85ebca6b;
+		hash ^= (hash >>> 13);
+		return (hash & 0x7FFFFFFF) % this.dispatchThreads.length;
+	}
+
+	private static class ReceivedDatagram {
+		final byte[] data;
+		final InetSocketAddress addr;
+
+		ReceivedDatagram(byte[] data, InetSocketAddress addr) {
+			this.data = data;
+			this.addr = addr;
+		}
+	}
+
+	/**
+	 * Parses received datagrams, performs the duplicate detection and hands the
+	 * messages to their channels. Every dispatch thread serves a fixed subset
+	 * of remote endpoints.
+	 */
+	private class DispatchThread extends Thread {
+		private BlockingQueue<ReceivedDatagram> queue = new LinkedBlockingQueue<ReceivedDatagram>();
+
+		/*
+		 * The duplicate detection. All messages of a remote endpoint are
+		 * handled by the same dispatch thread, so the stores are not shared.
+		 */
+		/** received message ids generated by the remotes */
+		private ExchangeStore remoteExchanges = new ExchangeStore(CoapConstants.EXCHANGE_LIFETIME_MS);
+		/** received message ids generated by the host (ACK, RST and responses) */
+		private ExchangeStore hostExchanges = new ExchangeStore(CoapConstants.EXCHANGE_LIFETIME_MS);
+
+		/** reused for every datagram, messages are only created for non-duplicates */
+		private CoapMessageView view = new CoapMessageView();
+
+		void enqueue(ReceivedDatagram datagram) {
+			this.queue.add(datagram);
+		}
+
+		int getQueueDepth() {
+			return this.queue.size();
+		}
+
+		@Override
+		public void run() {
+			while (!isInterrupted()) {
+				ReceivedDatagram datagram;
+				try {
+					datagram = this.queue.take();
+				} catch (InterruptedException e) {
+					break;
+				}
+				try {
+					handleIncommingMessage(datagram.data, datagram.data.length, datagram.addr);
+				} catch (RuntimeException e) {
+					/* a failing callback must not stop the dispatching for other endpoints */
+					logger.error("Handling of incoming message failed", e);
+				}
+			}
+		}
+
+		/**
+		 * @return true, if a message with this host generated message id was
+		 *         already received from the remote. Otherwise the message is
+		 *         remembered.
+		 */
+		private boolean isHostDuplicate(int msgId, InetSocketAddress addr) {
+			if (!this.hostExchanges.add(addr.getAddress(), addr.getPort(), msgId)) {
 				logger.info("Detected duplicate message");
 				return true;
 			}
 			return false;
 		}
 
-		private boolean isRemoteDuplicate(MessageKey msgKey) {
-			if (BasicCoapSocketHandler.this.getDuplicateRemoteMap().get(msgKey) != null) {
+		/**
+		 * @return true, if a message with this remote generated message id was
+		 *         already received from the remote. Otherwise the message is
+		 *         remembered.
+		 */
+		private boolean isRemoteDuplicate(int msgId, InetSocketAddress addr) {
+			if (!this.remoteExchanges.add(addr.getAddress(), addr.getPort(), msgId)) {
 				logger.info("Detected duplicate message");
 				return true;
 			}
 			return false;
 		}
 
-		private void retransmitRemoteDuplicate(MessageKey msgKey) {
-			CoapMessage retransMsg;
-			retransMsg = BasicCoapSocketHandler.this.getRetransMsgMap().get(msgKey);
-			if (retransMsg == null) {
-				logger.warn("Detected duplicate message but no response could be found");
-			} else {
-				BasicCoapSocketHandler.this.getWorkerThread().addMessageToSendBuffer(retransMsg);
+		private void retransmitRemoteDuplicate(int msgId, InetSocketAddress addr) {
+			try {
+				if (!BasicCoapSocketHandler.this.replayCache.replay(addr, msgId,
+						BasicCoapSocketHandler.this.getDatagramChannel())) {
+					logger.warn("Detected duplicate message but no response could be found");
+				}
+			} catch (IOException e) {
+				logger.error("Send UDP message failed: " + e.getLocalizedMessage());
 			}
 		}
 
-		private void handleIncommingMessage(ByteBuffer buffer, InetSocketAddress addr) {
-			CoapMessage msg;
+		/**
+		 * @return The message of the wrapped datagram or null, if it is invalid
+		 */
+		private CoapMessage createMessage() {
+			try {
+				return this.view.toMessage();
+			} catch (Exception e) {
+				logger.warn("Received invalid message: message dropped! " + e.getLocalizedMessage());
+				return null;
+			}
+		}
+
+		private void handleIncommingMessage(byte[] data, int length, InetSocketAddress addr) {
+			CoapPacketType packetType;
 			try {
-				msg = AbstractCoapMessage.parseMessage(buffer.array(), buffer.position());
+				this.view.wrap(data, 0, length);
+				packetType = this.view.getPacketType();
 			} catch (Exception e) {
 				logger.warn("Received invalid message: message dropped! "+ e.getLocalizedMessage());
 				return;
 			}
 
-			CoapPacketType packetType = msg.getPacketType();
-			int msgId = msg.getMessageID();
-			MessageKey msgKey = new MessageKey(msgId, addr.getAddress(), addr.getPort());
-
-			if (msg.isRequest()) {
+			CoapMessage msg;
+			int msgId = this.view.getMessageID();
+			if (this.view.isRequest()) {
 				/*
 				 * --- INCOMING REQUEST: This is an incoming client request with
 				 * a message key generated by the remote client
@@ -287,8 +1220,12 @@ public class BasicCoapSocketHandler implements CoapSocketHandler {
 				 * check for duplicates and retransmit the response if a
 				 * duplication is detected
 				 */
-				if (isRemoteDuplicate(msgKey)) {
-					retransmitRemoteDuplicate(msgKey);
+				if (isRemoteDuplicate(msgId, addr)) {
+					retransmitRemoteDuplicate(msgId, addr);
+					return;
+				}
+				msg = createMessage();
+				if (msg == null) {
 					return;
 				}
 
@@ -300,19 +1237,15 @@ public class BasicCoapSocketHandler implements CoapSocketHandler {
 					channel = BasicCoapSocketHandler.this.getChannelManager()
 							.createServerChannel(BasicCoapSocketHandler.this, msg, addr.getAddress(), addr.getPort());
 					if (channel != null) {
-						/* add the new channel to the channel map */
-						addServerChannel(channel);
+						/* add the new channel to the channel map, unless another thread was faster */
+						channel = addServerChannel(channel);
 						logger.info("Created new server channel.");
 					} else {
 						/*
 						 * create failed -> server doesn't accept the connection
 						 * --> send RST
 						 */
-						CoapChannel fakeChannel = new BasicCoapServerChannel(BasicCoapSocketHandler.this, null,
-								addr.getAddress(), addr.getPort());
-						CoapEmptyMessage rstMsg = new CoapEmptyMessage(CoapPacketType.RST, msgId);
-						rstMsg.setChannel(fakeChannel);
-						sendMessage(rstMsg);
+						sendReset(addr, msgId);
 						return;
 
 					}
@@ -321,7 +1254,7 @@ public class BasicCoapSocketHandler implements CoapSocketHandler {
 				channel.handleMessage(msg);
 				return;
 
-			} else if (msg.isResponse()) {
+			} else if (this.view.isResponse()) {
 				/*
 				 * --- INCOMING RESPONSE: This is an incoming server response
 				 * (message ID generated by host) or a separate server response
@@ -339,15 +1272,27 @@ public class BasicCoapSocketHandler implements CoapSocketHandler {
 					 * This is a separate response, the message ID is generated
 					 * by the remote
 					 */
-					if (isRemoteDuplicate(msgKey)) {
-						retransmitRemoteDuplicate(msgKey);
+					if (isRemoteDuplicate(msgId, addr)) {
+						retransmitRemoteDuplicate(msgId, addr);
+						return;
+					}
+					msg = createMessage();
+					if (msg == null) {
 						return;
 					}
 					/* This is a separate Response */
-					CoapClientChannel channel = BasicCoapSocketHandler.this.getClientChannels()
-							.get(new ChannelKey(addr.getAddress(), addr.getPort()));
+					TokenExchange exchange = findExchange(msg, addr);
+					CoapClientChannel channel;
+					if (exchange != null) {
+						channel = exchange.channel;
+						completeExchange(exchange, msg);
+					} else {
+						channel = fallbackClientChannel(addr);
+					}
 					if (channel == null) {
-						logger.warn("Could not find channel of incomming separat response: message dropped");
+						/* unexpected, rfc7252 - 5.3.2 */
+						logger.warn("Could not find channel of incomming separat response: message rejected");
+						sendReset(addr, msgId);
 						return;
 					}
 					msg.setChannel(channel);
@@ -359,10 +1304,14 @@ public class BasicCoapSocketHandler implements CoapSocketHandler {
 				 * normal response (ACK or NON), message id was generated by
 				 * host
 				 */
-				if (isHostDuplicate(msgId)) {
+				if (isHostDuplicate(msgId, addr)) {
 					/* drop duplicate responses */
 					return;
 				}
+				msg = createMessage();
+				if (msg == null) {
+					return;
+				}
 
 				/* confirm the request */
 				/*
@@ -372,68 +1321,66 @@ public class BasicCoapSocketHandler implements CoapSocketHandler {
 				 * Corresponding to the spec the server should be aware of a NON
 				 * as answer to a CON
 				 */
-				BasicCoapSocketHandler.this.getTimeoutConMsgMap().remove(msgId);
-				CoapClientChannel channel = BasicCoapSocketHandler.this.getClientChannels()
-						.get(new ChannelKey(addr.getAddress(), addr.getPort()));
-
-				/*
-				 * If no channel for the message can be found via channel key,
-				 * it may be a multicast response! Check whether the message
-				 * tokens of the last request and the current response match. If
-				 * still no channel can be found, drop the message!
-				 */
+				CoapMessage confirmed = BasicCoapSocketHandler.this.confirmMessage(addr, msgId);
+				TokenExchange exchange = findExchange(msg, addr);
+				CoapClientChannel channel = null;
+				if (confirmed != null && confirmed.getChannel() instanceof CoapClientChannel) {
+					/* piggybacked response, the request knows its channel */
+					channel = (CoapClientChannel) confirmed.getChannel();
+				} else if (exchange != null) {
+					channel = exchange.channel;
+				} else {
+					channel = fallbackClientChannel(addr);
+				}
 				if (channel == null) {
-					boolean mcResp = false;
-					Iterator<ChannelKey> it = BasicCoapSocketHandler.this.getClientChannels().keySet().iterator();
-					while(it.hasNext()) {
-						channel = BasicCoapSocketHandler.this.getClientChannels().get(it.next());
-						try {
-							if (new String(channel.getLastToken()).equals(new String(msg.getToken()))) {
-								mcResp = true;
-								break;
-							}
-						} catch (Exception e) {
-							logger.warn(e.getLocalizedMessage());
-						}
-					}
-
-					if (!mcResp) {
-						logger.warn("Could not find channel of incomming response: message dropped");
-					} else if(null == channel){
-						logger.warn("Channel found, but is null");
-					} else {
-						msg.setChannel(channel);
-						channel.handleMCResponse(msg, addr.getAddress(), addr.getPort());
-					}
+					logger.warn("Could not find channel of incomming response: message dropped");
 					return;
 				}
 
 				msg.setChannel(channel);
+				if (exchange != null && exchange.multicast) {
+					/* responses to a multicast request come from the unicast address of each server */
+					channel.handleMCResponse(msg, addr.getAddress(), addr.getPort());
+					return;
+				}
+				if (exchange != null) {
+					completeExchange(exchange, msg);
+				}
 				channel.handleMessage(msg);
 				return;
 
 			} else {
-				if (msg.isEmpty()) {
+				if (this.view.isEmpty()) {
 					if (packetType == CoapPacketType.CON || packetType == CoapPacketType.NON) {
 						logger.warn("Invalid Packet Type: CON or NON packets cannot be empty");
 						return;
 					}
 
 					/* ACK or RST, Message Id was generated by the host */
-					if (isHostDuplicate(msgId)) {
+					if (isHostDuplicate(msgId, addr)) {
 						/* drop duplicate responses */
 						return;
 					}
+					msg = createMessage();
+					if (msg == null) {
+						return;
+					}
 
 					/* confirm */
-					BasicCoapSocketHandler.this.getTimeoutConMsgMap().remove(msgId);
+					CoapMessage confirmed = BasicCoapSocketHandler.this.confirmMessage(addr, msgId);
 
 					/* get channel */
 					/*
 					 * This can be an ACK/RST for a client or a server channel
 					 */
-					CoapChannel channel = BasicCoapSocketHandler.this.getClientChannels()
-							.get(new ChannelKey(addr.getAddress(), addr.getPort()));
+					CoapChannel channel = null;
+					if (confirmed != null) {
+						channel = confirmed.getChannel();
+					}
+					if (channel == null) {
+						channel = BasicCoapSocketHandler.this.getClientChannels()
+								.get(new ChannelKey(addr.getAddress(), addr.getPort()));
+					}
 					if (channel == null) {
 						channel = BasicCoapSocketHandler.this.getServerChannels()
 								.get(new ChannelKey(addr.getAddress(), addr.getPort()));
@@ -465,7 +1412,9 @@ public class BasicCoapSocketHandler implements CoapSocketHandler {
 
 	private class WorkerThread extends Thread {
 		private Selector selector = null;
-		private ConcurrentLinkedQueue<CoapMessage> workerSendBuffer = new ConcurrentLinkedQueue<CoapMessage>();
+		/* control messages and responses leave before requests and bulk transfers */
+		private PrioritySendQueue<CoapMessage> workerSendBuffer = new PrioritySendQueue<CoapMessage>(
+				CoapSendPriority.values().length, CoapConstants.SEND_STARVATION_LIMIT);
 
 		public WorkerThread() {
 			try {
@@ -505,19 +1454,58 @@ public class BasicCoapSocketHandler implements CoapSocketHandler {
 		}
 
 		synchronized void addMessageToSendBuffer(CoapMessage msg) {
-			this.workerSendBuffer.add(msg);
+			if (msg.getPacketType() == CoapPacketType.NON
+					&& this.workerSendBuffer.size() >= BasicCoapSocketHandler.this.outboundQueueLimit) {
+				BasicCoapSocketHandler.this.droppedMessages.incrementAndGet();
+				logger.warn("Send buffer full: NON message " + msg.getMessageID() + " dropped");
+				return;
+			}
+			this.workerSendBuffer.offer(msg, priorityOf(msg).ordinal());
 			/* send immediately */
 			this.selector.wakeup();
 		}
 
+		int getQueueDepth() {
+			return this.workerSendBuffer.size();
+		}
+
 		private void sendBufferedMessages() {
 			CoapMessage msg = this.workerSendBuffer.poll();
 			while (msg != null) {
-				sendUdpMsg(msg);
+				if (!deferByPacing(msg)) {
+					sendUdpMsg(msg);
+				}
 				msg = this.workerSendBuffer.poll();
 			}
 		}
 
+		/**
+		 * @return True, if a NON message has to wait for a token of its
+		 *         remote endpoint. It is sent by the timer or dropped.
+		 */
+		private boolean deferByPacing(final CoapMessage msg) {
+			if (msg.getPacketType() != CoapPacketType.NON || BasicCoapSocketHandler.this.nonPacingRate <= 0) {
+				return false;
+			}
+			long now = System.currentTimeMillis();
+			long delay = pacerFor(msg.getChannel(), now).reserve(now, CoapConstants.NON_PACING_MAX_DELAY_MS);
+			if (delay == 0) {
+				return false;
+			}
+			if (delay < 0) {
+				BasicCoapSocketHandler.this.droppedMessages.incrementAndGet();
+				logger.warn("NON message " + msg.getMessageID() + " exceeds the pacing of its remote endpoint: dropped");
+				return true;
+			}
+			BasicCoapSocketHandler.this.timer.schedule(new Runnable() {
+				@Override
+				public void run() {
+					sendUdpMsg(msg);
+				}
+			}, delay);
+			return true;
+		}
+
 		private void sendUdpMsg(CoapMessage msg) {
 			if (msg == null) {
 				return;
@@ -533,155 +1521,382 @@ public class BasicCoapSocketHandler implements CoapSocketHandler {
 				 * in case of a CON this is a Request requests must be added to
 				 * the timeout queue except this was the last retransmission
 				 */
+				MessageKey key = new MessageKey(inetAddr, port, msgId);
 				if (msg.maxRetransReached()) {
 					/* the connection is broken */
-					BasicCoapSocketHandler.this.getTimeoutConMsgMap().remove(msgId);
+					Retransmission last = BasicCoapSocketHandler.this.timeoutConMsgMap.remove(key);
+					if (last == null) {
+						/* confirmed or cancelled in the meantime */
+						return;
+					}
+					last.estimator.onFailure();
+					releaseSendWindow(msg.getChannel());
+					if (msg.isRequest()) {
+						/* no response will arrive */
+						TokenExchange exchange = BasicCoapSocketHandler.this.tokenExchanges.get(new TokenKey(msg
+								.getToken(), msg.getChannel().getRemoteAddress(), msg.getChannel().getRemotePort()));
+						if (exchange != null && exchange.channel == msg.getChannel()) {
+							removeExchange(exchange);
+						}
+					}
 					msg.getChannel().lostConnection(true, false);
 					return;
 				}
+				Retransmission previous = BasicCoapSocketHandler.this.timeoutConMsgMap.get(key);
+				if (previous == null && BasicCoapSocketHandler.this.unsentConMsgs.remove(key) == null) {
+					/* cancelled before it was sent, or confirmed while its retransmission was queued */
+					return;
+				}
 				msg.incRetransCounterAndTimeout();
-				BasicCoapSocketHandler.this.getTimeoutConMsgMap().put(msgId, msg);
-				TimeoutObject<Integer> tObj = new TimeoutObject<Integer>(msgId,
-						msg.getTimeout() + System.currentTimeMillis());
-				BasicCoapSocketHandler.this.getTimeoutQueue().add(tObj);
+				Retransmission next = new Retransmission(key, msg, previous);
+				if (previous == null) {
+					BasicCoapSocketHandler.this.timeoutConMsgMap.put(key, next);
+				} else if (BasicCoapSocketHandler.this.timeoutConMsgMap.replace(key, previous, next)) {
+					previous.timeout.cancel();
+				} else {
+					/* confirmed in the meantime */
+					next.timeout.cancel();
+					return;
+				}
 			}
 
-			if (packetType == CoapPacketType.ACK || packetType == CoapPacketType.RST) {
-				/* save this type of messages for a possible retransmission */
-				BasicCoapSocketHandler.this.getRetransMsgMap().put(new MessageKey(msgId, inetAddr, port), msg);
-			}
+			ByteBuffer buf = BasicCoapSocketHandler.this.sendBuffers.acquire();
+			try {
+				msg.serializeInto(buf);
+				buf.flip();
+				if (packetType == CoapPacketType.ACK || packetType == CoapPacketType.RST) {
+					/* save this type of messages for a possible retransmission */
+					BasicCoapSocketHandler.this.replayCache.put(inetAddr, port, msgId, buf);
+				}
 
-			/* Nothing to do for NON */
+				/* Nothing to do for NON */
 
-			/* send message */
-			ByteBuffer buf = ByteBuffer.wrap(msg.serialize());
-			try {
-				BasicCoapSocketHandler.this.getDatagramChannel().setBroadcast(true);
-				BasicCoapSocketHandler.this.getDatagramChannel().send(buf, new InetSocketAddress(inetAddr, port));
-				logger.info("Send Msg with ID: " + msg.getMessageID());
+				/* send message */
+				BasicCoapSocketHandler.this.getDatagramChannel().send(buf, remoteSocketAddress(msg.getChannel()));
+				if (logger.isInfoEnabled()) {
+					logger.info("Send Msg with ID: " + msgId);
+				}
+			} catch (BufferOverflowException e) {
+				logger.error("Send UDP message failed: message " + msgId + " exceeds the maximum datagram size");
 			} catch (IOException e) {
 				logger.error("Send UDP message failed: "+e.getLocalizedMessage());
+			} finally {
+				BasicCoapSocketHandler.this.sendBuffers.release(buf);
 			}
 		}
-	}
 
-	private class MessageKey {
-		private int msgID;
-		private InetAddress inetAddr;
-		private int port;
+		private SocketAddress remoteSocketAddress(CoapChannel channel) {
+			if (channel instanceof BasicCoapChannel) {
+				return ((BasicCoapChannel) channel).getRemoteSocketAddress();
+			}
+			return new InetSocketAddress(channel.getRemoteAddress(), channel.getRemotePort());
+		}
+	}
 
-		public MessageKey(int msgID, InetAddress inetAddr, int port) {
-			this.msgID = msgID;
-			this.inetAddr = inetAddr;
-			this.port = port;
+	/**
+	 * The pending retransmission of a CON message. It is run by the worker
+	 * thread if the message was not confirmed in time.
+	 */
+	private class Retransmission implements Runnable {
+		final MessageKey key;
+		final CoapMessage msg;
+		final HashedTimingWheel.Timeout timeout;
+		final RttEstimator estimator;
+		/** time of the first transmission in ms */
+		final long firstSent;
+		/** number of transmissions including this one */
+		final int transmissions;
+		/** the RTO the exchange started with, it selects the backoff factor */
+		final long initialRto;
+		final long delay;
+
+		/**
+		 * @param previous
+		 *            - the retransmission of the previous transmission or null,
+		 *            if this is the first transmission
+		 */
+		Retransmission(MessageKey key, CoapMessage msg, Retransmission previous) {
+			this.key = key;
+			this.msg = msg;
+			boolean adaptive = BasicCoapSocketHandler.this.retransmissionPolicy == CoapRetransmissionPolicy.ADAPTIVE;
+			if (previous == null) {
+				this.estimator = rttEstimatorFor(msg.getChannel());
+				this.estimator.onExchange();
+				this.firstSent = System.currentTimeMillis();
+				this.transmissions = 1;
+				if (adaptive) {
+					/* randomized like the rfc7252 timeout, ACK_RANDOM_FACTOR 1.5 */
+					this.initialRto = this.estimator.getRto();
+					this.delay = this.initialRto + (long) (timeoutRandom.nextDouble() * this.initialRto / 2);
+				} else {
+					this.delay = msg.getTimeout();
+					this.initialRto = this.delay;
+				}
+			} else {
+				this.estimator = previous.estimator;
+				this.estimator.onRetransmission();
+				this.firstSent = previous.firstSent;
+				this.transmissions = previous.transmissions + 1;
+				this.initialRto = previous.initialRto;
+				if (adaptive) {
+					this.delay = Math.min(RttEstimator.MAX_RTO_MS * 2,
+							(long) (previous.delay * RttEstimator.getBackoffFactor(this.initialRto)));
+				} else {
+					this.delay = msg.getTimeout();
+				}
+			}
+			this.timeout = BasicCoapSocketHandler.this.timer.schedule(this, this.delay);
 		}
 
-		@Override
-		public int hashCode() {
-			final int prime = 31;
-			int result = 1;
-			result = prime * result + getOuterType().hashCode();
-			result = prime * result + ((this.inetAddr == null) ? 0 : this.inetAddr.hashCode());
-			result = prime * result + this.msgID;
-			result = prime * result + this.port;
-			return result;
+		public void run() {
+			/* retransmit message after expired timeout */
+			if (BasicCoapSocketHandler.this.timeoutConMsgMap.get(this.key) == this) {
+				BasicCoapSocketHandler.this.workerThread.addMessageToSendBuffer(this.msg);
+			}
 		}
+	}
 
-		@Override
-		public boolean equals(Object obj) {
-			if (this == obj)
-				return true;
-			if (obj == null)
-				return false;
-			if (getClass() != obj.getClass())
-				return false;
-			MessageKey other = (MessageKey) obj;
-			if (!getOuterType().equals(other.getOuterType()))
-				return false;
-			if (this.inetAddr == null) {
-				if (other.inetAddr != null)
-					return false;
-			} else if (!this.inetAddr.equals(other.inetAddr))
-				return false;
-			if (this.msgID != other.msgID)
-				return false;
-			if (this.port != other.port)
-				return false;
-			return true;
+	/**
+	 * An outstanding request of a client channel, identified by its token. It
+	 * is removed when its final response arrives, when the request is given
+	 * up or when no response arrived within its lifetime.
+	 */
+	private class TokenExchange implements Runnable {
+		final TokenKey key;
+		final CoapClientChannel channel;
+		final boolean multicast;
+		/** extended by notifications of an observation */
+		volatile long expires;
+		volatile HashedTimingWheel.Timeout timeout;
+
+		TokenExchange(TokenKey key, CoapClientChannel channel, boolean multicast, long lifetime) {
+			this.key = key;
+			this.channel = channel;
+			this.multicast = multicast;
+			this.expires = System.currentTimeMillis() + lifetime;
+			this.timeout = BasicCoapSocketHandler.this.timer.schedule(this, lifetime);
 		}
 
-		private BasicCoapSocketHandler getOuterType() {
-			return BasicCoapSocketHandler.this;
+		public void run() {
+			long remaining = this.expires - System.currentTimeMillis();
+			if (remaining > 0) {
+				this.timeout = BasicCoapSocketHandler.this.timer.schedule(this, remaining);
+				return;
+			}
+			if (BasicCoapSocketHandler.this.tokenExchanges.remove(this.key, this)) {
+				unindexExchange(this);
+			}
 		}
 	}
 
-	private class TimeoutObject<T> implements Comparable<TimeoutObject<?>> {
-		private long expires;
-		private T object;
-
-		public TimeoutObject(T object, long expires) {
-			this.expires = expires;
-			this.object = object;
+	/**
+	 * Runs the expired retransmissions.
+	 * 
+	 * @return Milliseconds until the next timeout expires. POLLING_INTERVALL if
+	 *         there is no timeout to wait for.
+	 */
+	long handleTimeouts() {
+		long nextTimeout = this.timer.advance();
+		long now = System.currentTimeMillis();
+		if (now >= this.nextPeerStateSweep) {
+			Iterator<RttEstimator> it = this.rttEstimators.values().iterator();
+			while (it.hasNext()) {
+				if (now - it.next().getLastActivity() > CoapConstants.EXCHANGE_LIFETIME_MS) {
+					it.remove();
+				}
+			}
+			Iterator<MessageIdAllocator> allocators = this.messageIds.values().iterator();
+			while (allocators.hasNext()) {
+				/* a new allocator continues with the channel manager's sequence */
+				if (now - allocators.next().getLastAllocation() > CoapConstants.EXCHANGE_LIFETIME_MS) {
+					allocators.remove();
+				}
+			}
+			Iterator<TokenBucket> pacerIt = this.pacers.values().iterator();
+			while (pacerIt.hasNext()) {
+				if (pacerIt.next().isIdle(now)) {
+					pacerIt.remove();
+				}
+			}
+			Iterator<SendWindow<CoapMessage>> windows = this.sendWindows.values().iterator();
+			while (windows.hasNext()) {
+				if (windows.next().retireIfIdle()) {
+					windows.remove();
+				}
+			}
+			this.nextPeerStateSweep = now + CoapConstants.EXCHANGE_LIFETIME_MS;
 		}
-
-		public T getObject() {
-			return this.object;
+		if (now >= this.nextServerChannelSweep) {
+			releaseServerChannels(this.serverChannels.evictIdle(now));
+			int abandoned = this.block1Reassembler.expire(now);
+			if (abandoned > 0) {
+				logger.info("Dropped " + abandoned + " abandoned block wise transfers");
+			}
+			long sweepTimeout = Math.min(this.serverChannels.getIdleTimeout(), this.block1Reassembler.getTimeout());
+			this.nextServerChannelSweep = now + Math.max(1, sweepTimeout / 2);
 		}
-		
-		public long getExpire(){
-			return this.expires;
+		/* wake up in time for the next sweep of the server channels */
+		long waitFor = Math.min(this.nextServerChannelSweep - now, POLLING_INTERVALL);
+		if (nextTimeout < 0) {
+			/* no pending timeouts */
+			return waitFor;
 		}
+		return Math.min(nextTimeout, waitFor);
+	}
 
-		public int compareTo(TimeoutObject<?> o) {
-			return (int) (this.expires - o.expires);
+	private void addClientChannel(CoapClientChannel channel) {
+		/* the first channel towards a remote endpoint is used if a response carries no known token */
+		this.clientChannels.putIfAbsent(new ChannelKey(channel.getRemoteAddress(), channel.getRemotePort()), channel);
+	}
+
+	/**
+	 * Looks up the outstanding request of an incoming response by its token,
+	 * first among the requests sent to the remote endpoint of the response,
+	 * then among the multicast requests.
+	 * 
+	 * @param msg
+	 *            - the incoming response
+	 * @param addr
+	 *            - the address the response was received from
+	 * @return The exchange of the request or null, if no request matches
+	 */
+	TokenExchange findExchange(CoapMessage msg, InetSocketAddress addr) {
+		if (this.tokenExchanges.isEmpty()) {
+			return null;
+		}
+		byte[] token = msg.getToken();
+		TokenExchange exchange = this.tokenExchanges.get(new TokenKey(token, addr.getAddress(), addr.getPort()));
+		if (exchange == null) {
+			exchange = this.tokenExchanges.get(new TokenKey(token, null, 0));
 		}
+		return exchange;
 	}
 
 	/**
-	 * @return Milliseconds until the next timeout expires. POLLING_INTERVALL if
-	 *         there is no timeout to wait for.
+	 * Removes the exchange of a unicast request once its final response was
+	 * received. Exchanges of observations are kept as long as notifications
+	 * arrive, exchanges of multicast requests until they expire.
 	 */
-	long handleTimeouts() {
-		long nextTimeout = POLLING_INTERVALL;
+	private void completeExchange(TokenExchange exchange, CoapMessage response) {
+		if (response.isEmpty() || exchange.multicast) {
+			return;
+		}
+		if (response.getObserveOption() != null) {
+			/* the next notification is expected before the current one becomes stale */
+			long maxAge = (response instanceof CoapResponse) ? ((CoapResponse) response).getMaxAge() : -1;
+			exchange.expires = System.currentTimeMillis() + CoapConstants.EXCHANGE_LIFETIME_MS
+					+ (maxAge < 0 ? CoapConstants.COAP_DEFAULT_MAX_AGE_MS : maxAge * 1000);
+			return;
+		}
+		removeExchange(exchange);
+	}
 
+	private void removeExchange(TokenExchange exchange) {
+		if (this.tokenExchanges.remove(exchange.key, exchange)) {
+			exchange.timeout.cancel();
+			unindexExchange(exchange);
+		}
+	}
+
+	private void indexExchange(TokenExchange exchange) {
 		while (true) {
-			TimeoutObject<Integer> tObj;
-			tObj = this.timeoutQueue.peek();
-			if (tObj == null) {
-				/* timeout queue is empty */
-				nextTimeout = POLLING_INTERVALL;
-				break;
+			Set<TokenExchange> exchanges = this.channelExchanges.get(exchange.channel);
+			if (exchanges == null) {
+				exchanges = new HashSet<TokenExchange>();
+				Set<TokenExchange> existing = this.channelExchanges.putIfAbsent(exchange.channel, exchanges);
+				if (existing != null) {
+					exchanges = existing;
+				}
 			}
-
-			nextTimeout = tObj.getExpire() - System.currentTimeMillis();
-			if (nextTimeout > 0) {
-				/* timeout not expired */
-				break;
+			synchronized (exchanges) {
+				/* an empty set is removed from the index and must not be used anymore */
+				if (this.channelExchanges.get(exchange.channel) == exchanges) {
+					exchanges.add(exchange);
+					return;
+				}
 			}
-			/*
-			 * timeout expired, sendMessage will send the message and create a
-			 * new timeout if the message was already confirmed,
-			 * nonConfirmedMsgMap.get() will return null
-			 */
-			this.timeoutQueue.poll();
-			Integer msgId = tObj.getObject();
+		}
+	}
 
-			/* retransmit message after expired timeout */
+	private void unindexExchange(TokenExchange exchange) {
+		Set<TokenExchange> exchanges = this.channelExchanges.get(exchange.channel);
+		if (exchanges == null) {
+			return;
+		}
+		synchronized (exchanges) {
+			exchanges.remove(exchange);
+			if (exchanges.isEmpty()) {
+				this.channelExchanges.remove(exchange.channel, exchanges);
+			}
+		}
+	}
 
-			CoapMessage msg = null;
-			msg = this.timeoutConMsgMap.get(msgId);
-			if (msg != null)
-				sendMessage(msg);
+	/**
+	 * Registers an outgoing request so that its responses can be assigned to
+	 * the sending channel. In multiplexed mode a request without a token gets
+	 * a random 4 byte token. A request to a multicast group is registered by
+	 * its token only, as the responses come from the unicast address of each
+	 * server.
+	 * 
+	 * @param channel
+	 *            - the sending client channel
+	 * @param request
+	 *            - the outgoing request
+	 */
+	private void registerToken(BasicCoapClientChannel channel, CoapMessage request) {
+		boolean multicast = channel.getRemoteAddress().isMulticastAddress();
+		InetAddress remoteAddress = multicast ? null : channel.getRemoteAddress();
+		int remotePort = multicast ? 0 : channel.getRemotePort();
+		byte[] token = request.getToken();
+		TokenKey key;
+		if (token == null || token.length == 0) {
+			if (!this.multiplexed && !multicast) {
+				return;
+			}
+			token = new byte[4];
+			do {
+				tokenRandom.nextBytes(token);
+				key = new TokenKey(token, remoteAddress, remotePort);
+			} while (this.tokenExchanges.containsKey(key));
+			request.setToken(token);
+		} else {
+			key = new TokenKey(token, remoteAddress, remotePort);
+		}
+		long lifetime = (multicast || request.getPacketType() == CoapPacketType.NON) ? CoapConstants.NON_LIFETIME_MS
+				: CoapConstants.EXCHANGE_LIFETIME_MS;
+		TokenExchange exchange = new TokenExchange(key, channel, multicast, lifetime);
+		/* indexed first, so a response that completes the exchange right away also finds it in the index */
+		indexExchange(exchange);
+		TokenExchange previous = this.tokenExchanges.put(key, exchange);
+		if (previous != null) {
+			/* e.g. the next block of a blockwise transfer reuses the token */
+			previous.timeout.cancel();
+			unindexExchange(previous);
+			if (previous.channel != channel) {
+				logger.warn("Token of an outstanding request of another channel reused, "
+						+ "the responses go to the new request");
+			}
 		}
-		return nextTimeout;
 	}
 
-	private void addClientChannel(CoapClientChannel channel) {
-		this.clientChannels.put(new ChannelKey(channel.getRemoteAddress(), channel.getRemotePort()), channel);
+	/**
+	 * The number of requests that wait for a response, e.g. to watch for
+	 * leaking exchanges
+	 */
+	public int getPendingExchangeCount() {
+		return this.tokenExchanges.size();
 	}
 
-	void addServerChannel(CoapServerChannel channel) {
-		this.serverChannels.put(new ChannelKey(channel.getRemoteAddress(), channel.getRemotePort()), channel);
+	/**
+	 * @return The channel of the remote endpoint in the table, the given one
+	 *         or one that was added by another thread in the meantime
+	 */
+	CoapServerChannel addServerChannel(CoapServerChannel channel) {
+		List<CoapServerChannel> evicted = new ArrayList<CoapServerChannel>(0);
+		CoapServerChannel existing = this.serverChannels.putIfAbsent(new ChannelKey(channel.getRemoteAddress(),
+				channel.getRemotePort()), channel, evicted);
+		releaseServerChannels(evicted);
+		return existing != null ? existing : channel;
 	}
 
 	@Override
@@ -691,31 +1906,76 @@ public class BasicCoapSocketHandler implements CoapSocketHandler {
 
 	@Override
 	public void removeClientChannel(CoapClientChannel channel) {
-		this.clientChannels.remove(new ChannelKey(channel.getRemoteAddress(), channel.getRemotePort()));
+		this.clientChannels.remove(new ChannelKey(channel.getRemoteAddress(), channel.getRemotePort()), channel);
+		Set<TokenExchange> exchanges = this.channelExchanges.remove(channel);
+		if (exchanges == null) {
+			return;
+		}
+		List<TokenExchange> removed;
+		synchronized (exchanges) {
+			removed = new ArrayList<TokenExchange>(exchanges);
+			exchanges.clear();
+		}
+		for (TokenExchange exchange : removed) {
+			if (this.tokenExchanges.remove(exchange.key, exchange)) {
+				exchange.timeout.cancel();
+			}
+		}
 	}
 
 	@Override
 	public void removeServerChannel(CoapServerChannel channel) {
-		this.serverChannels.remove(new ChannelKey(channel.getRemoteAddress(), channel.getRemotePort()));
+		this.serverChannels.remove(new ChannelKey(channel.getRemoteAddress(), channel.getRemotePort()), channel);
 	}
 
 	@Override
 	public void close() {
 		if (BasicCoapSocketHandler.this.clientChannels != null)
 			BasicCoapSocketHandler.this.clientChannels.clear();
+		for (TokenExchange exchange : this.tokenExchanges.values()) {
+			exchange.timeout.cancel();
+		}
+		this.tokenExchanges.clear();
+		this.channelExchanges.clear();
+		for (Retransmission retransmission : this.timeoutConMsgMap.values()) {
+			retransmission.timeout.cancel();
+		}
+		this.timeoutConMsgMap.clear();
+		this.unsentConMsgs.clear();
 		if (BasicCoapSocketHandler.this.serverChannels != null)
 			BasicCoapSocketHandler.this.serverChannels.clear();
+		this.block1Reassembler.clear();
 
 		try {
 			BasicCoapSocketHandler.this.dgramChannel.close();
 		} catch (IOException e) {
 			logger.warn(e.getLocalizedMessage());
 		}
+		for (DispatchThread dispatchThread : this.dispatchThreads) {
+			dispatchThread.interrupt();
+		}
 		/* TODO: wake up threads (receive & worker) and kill them */
 	}
 
 	@Override
 	public void sendMessage(CoapMessage message) {
+		if (message.isRequest() && message.getChannel() instanceof BasicCoapClientChannel) {
+			registerToken((BasicCoapClientChannel) message.getChannel(), message);
+		}
+		if (message.getChannel() instanceof CoapServerChannel) {
+			/* a notification keeps the channel of an observer alive */
+			this.serverChannels.get(new ChannelKey(message.getChannel().getRemoteAddress(), message.getChannel()
+					.getRemotePort()));
+		}
+		if (message.getPacketType() == CoapPacketType.CON) {
+			/* its message id stays live while it waits to be sent */
+			this.unsentConMsgs.put(new MessageKey(message.getChannel().getRemoteAddress(), message.getChannel()
+					.getRemotePort(), message.getMessageID()), message);
+			if (!admitToSendWindow(message)) {
+				/* sent by releaseSendWindow() */
+				return;
+			}
+		}
 		if (this.workerThread != null) {
 			this.workerThread.addMessageToSendBuffer(message);
 		}
@@ -727,7 +1987,7 @@ public class BasicCoapSocketHandler implements CoapSocketHandler {
 			return null;
 		}
 
-		if (this.clientChannels.containsKey(new ChannelKey(remoteAddress, remotePort))) {
+		if (!this.multiplexed && this.clientChannels.containsKey(new ChannelKey(remoteAddress, remotePort))) {
 			/* channel already exists */
 			logger.warn("Cannot connect: Client channel already exists");
 			return null;
@@ -0,0 +1,487 @@
+/* Copyright 2016 University of Rostock
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *****************************************************************************/
+
+package org.ws4d.coap.core.connection;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.ws4d.coap.core.CoapConstants;
+import org.ws4d.coap.core.enumerations.CoapRequestCode;
+import org.ws4d.coap.core.messages.CoapBlockOption;
+import org.ws4d.coap.core.messages.api.CoapRequest;
+import org.ws4d.coap.core.tools.BlockBuffer;
+import org.ws4d.coap.core.tools.ChannelTable;
+
+/**
+ * Reassembles the bodies of block wise PUT and POST requests (rfc7959 -
+ * Block1). A transfer is identified by the remote endpoint, the request code
+ * and the request URI, as the token may change between the blocks. A client
+ * may therefore run several uploads to different resources at the same time.
+ * <br>
+ * <br>
+ * The body is collected in a {@link BlockBuffer} that grows with the received
+ * blocks and is kept in a memory mapped temporary file above the spill
+ * threshold. The Size1 option is only checked, not trusted. Bodies larger
+ * than the maximum size are refused, the channel answers them with 4.13 and
+ * the maximum size in Size1. All transfers together may hold up to the
+ * budget; a block beyond it drops its transfer, which the channel answers
+ * with 5.03. Transfers without a block for the timeout are dropped by
+ * {@link #expire(long)}, as are the least recently active transfers if
+ * there are too many.<br>
+ * <br>
+ * A client may keep several blocks outstanding. Blocks that overtake a
+ * missing one are written to the buffer behind the gap and count to the body
+ * once the gap is filled, up to {@link #MAX_BLOCKS_AHEAD} blocks beyond the
+ * missing one. A block further ahead is refused with 4.08 and has to be sent
+ * again, the transfer is kept. The transfer has to start with block 0 and
+ * the last block has to follow all others, so the client sends them only
+ * after the previous blocks were acknowledged.<br>
+ * <br>
+ * Transfers are looked up in a concurrent table and locked one at a time, so
+ * uploads to different resources or from different clients do not wait for
+ * each other.
+ */
+public class Block1Reassembler {
+	private static final Logger logger = LogManager.getLogger();
+
+	public enum Status {
+		/** the block was added, more blocks are expected (2.31) */
+		CONTINUE,
+		/** the last block was added, the body is available */
+		COMPLETE,
+		/** the block does not continue a known transfer (4.08) */
+		INCOMPLETE,
+		/** the body exceeds the maximum size (4.13) */
+		TOO_LARGE,
+		/** the body could not be stored (5.00) */
+		FAILED,
+		/** the transfers exceed the budget, the transfer was dropped (5.03) */
+		BUSY
+	}
+
+	/**
+	 * The outcome of a received block.
+	 */
+	public static class Result {
+		private final Status status;
+		private final BlockBuffer body;
+
+		Result(Status status, BlockBuffer body) {
+			this.status = status;
+			this.body = body;
+		}
+
+		public Status getStatus() {
+			return this.status;
+		}
+
+		/**
+		 * @return The reassembled body, only set if the status is
+		 *         {@link Status#COMPLETE}
+		 */
+		public BlockBuffer getBody() {
+			return this.body;
+		}
+	}
+
+	private static final Result CONTINUE = new Result(Status.CONTINUE, null);
+	private static final Result INCOMPLETE = new Result(Status.INCOMPLETE, null);
+	private static final Result TOO_LARGE = new Result(Status.TOO_LARGE, null);
+	private static final Result FAILED = new Result(Status.FAILED, null);
+	private static final Result BUSY = new Result(Status.BUSY, null);
+
+	/** blocks stored per transfer behind a missing block */
+	public static final int MAX_BLOCKS_AHEAD = 32;
+
+	private final ChannelTable<TransferKey, Transfer> transfers;
+	private volatile int maxSize;
+	private volatile int spillThreshold;
+	private volatile long budget = CoapConstants.BLOCK1_BUDGET;
+	/** the bytes held by all transfers */
+	private final AtomicLong buffered = new AtomicLong();
+
+	/* statistics */
+	private final AtomicLong completed = new AtomicLong();
+	private final AtomicLong incomplete = new AtomicLong();
+	private final AtomicLong tooLarge = new AtomicLong();
+	private final AtomicLong expired = new AtomicLong();
+	private final AtomicLong spilled = new AtomicLong();
+	private final AtomicLong reordered = new AtomicLong();
+	private final AtomicLong busy = new AtomicLong();
+
+	/**
+	 * @param maxSize
+	 *            - the largest accepted body in bytes
+	 * @param spillThreshold
+	 *            - the body size in bytes above which a memory mapped file is
+	 *            used
+	 * @param capacity
+	 *            - the maximum number of concurrent transfers
+	 * @param timeout
+	 *            - the time in ms after which an abandoned transfer is dropped
+	 */
+	public Block1Reassembler(int maxSize, int spillThreshold, int capacity, long timeout) {
+		this.transfers = new ChannelTable<TransferKey, Transfer>(capacity, timeout);
+		setLimits(maxSize, spillThreshold, capacity, timeout);
+	}
+
+	/**
+	 * Changes the limits, running transfers keep their buffers.
+	 */
+	public void setLimits(int maxSize, int spillThreshold, int capacity, long timeout) {
+		if (maxSize < 1 || spillThreshold < 0) {
+			throw new IllegalArgumentException("Maximum size must be at least 1 and spill threshold not negative");
+		}
+		this.transfers.setLimits(capacity, timeout);
+		this.maxSize = maxSize;
+		this.spillThreshold = spillThreshold;
+	}
+
+	/**
+	 * Sets the number of bytes all transfers may hold together. Blocks
+	 * beyond it drop their transfer, a Size1 beyond it is refused.
+	 * 
+	 * @param budget
+	 *            - the budget in bytes, at least 1
+	 */
+	public void setBudget(long budget) {
+		if (budget < 1) {
+			throw new IllegalArgumentException("Budget must be at least 1");
+		}
+		this.budget = budget;
+	}
+
+	/**
+	 * Adds the Block1 payload of a request to its transfer. Block 0 starts a
+	 * new transfer, replacing an unfinished one of the same resource.
+	 * 
+	 * @param endpoint
+	 *            - the remote endpoint of the request
+	 * @param request
+	 *            - a PUT or POST request with Block1 option
+	 * @return The outcome, with the body if the block was the last one
+	 */
+	public Result addBlock(ChannelKey endpoint, CoapRequest request) {
+		CoapBlockOption block = request.getBlock1();
+		TransferKey key = new TransferKey(endpoint, request);
+		Transfer transfer = this.transfers.get(key);
+		int maxSize = this.maxSize;
+		if (block.getNumber() == 0) {
+			if (transfer != null) {
+				/* the client restarted the transfer */
+				drop(key, transfer);
+			}
+			Integer size1 = request.getSize1();
+			if (size1 != null && (size1.intValue() < 0 || size1.intValue() > getMaxBodySize())) {
+				this.tooLarge.incrementAndGet();
+				return TOO_LARGE;
+			}
+			try {
+				/* the buffer grows with the blocks, a client may announce any size */
+				transfer = new Transfer(new BlockBuffer(0, this.spillThreshold, maxSize));
+			} catch (IOException e) {
+				logger.error("Cannot store block wise transfer: " + e.getLocalizedMessage());
+				return FAILED;
+			}
+			release(this.transfers.put(key, transfer));
+		} else if (transfer == null) {
+			this.incomplete.incrementAndGet();
+			return INCOMPLETE;
+		}
+
+		byte[] payload = request.getPayload();
+		if (payload == null) {
+			payload = new byte[0];
+		}
+		synchronized (transfer) {
+			if (transfer.closed) {
+				/* dropped in the meantime, e.g. as it expired */
+				this.incomplete.incrementAndGet();
+				return INCOMPLETE;
+			}
+			Result result = addBlock(key, transfer, block, payload, maxSize);
+			if (!transfer.closed) {
+				settle(transfer);
+			}
+			return result;
+		}
+	}
+
+	private Result addBlock(TransferKey key, Transfer transfer, CoapBlockOption block, byte[] payload,
+			int maxSize) {
+		int position = block.getBytePosition();
+		if ((long) position + payload.length > maxSize) {
+			drop(key, transfer);
+			this.tooLarge.incrementAndGet();
+			return TOO_LARGE;
+		}
+		BlockBuffer body = transfer.body;
+		int end = position + payload.length;
+		boolean ahead = position > body.size();
+		if (ahead && (block.isLast()
+				|| position - body.size() > MAX_BLOCKS_AHEAD * block.getBlockSize().getSize())) {
+			/* the last block has to follow all others, other blocks are accepted again later */
+			this.incomplete.incrementAndGet();
+			return INCOMPLETE;
+		}
+		/* blocks written ahead occupy their gap as well */
+		if (!reserve(transfer, Math.max(0, end - body.extent()))) {
+			drop(key, transfer);
+			this.busy.incrementAndGet();
+			logger.warn("Block wise transfers exceed the budget of " + this.budget + " bytes: transfer dropped");
+			return BUSY;
+		}
+		boolean wasMapped = body.isMapped();
+		try {
+			if (ahead) {
+				/* the block overtook an earlier one, it is stored before it is acknowledged */
+				body.writeAhead(position, payload);
+				Integer previous = transfer.ahead.get(Integer.valueOf(position));
+				if (previous == null || previous.intValue() < end) {
+					transfer.ahead.put(Integer.valueOf(position), Integer.valueOf(end));
+				}
+				this.reordered.incrementAndGet();
+			} else {
+				body.write(position, payload);
+				/* blocks that waited for this one */
+				int size = body.size();
+				Map.Entry<Integer, Integer> next;
+				while ((next = transfer.ahead.firstEntry()) != null && next.getKey().intValue() <= size) {
+					transfer.ahead.pollFirstEntry();
+					size = Math.max(size, next.getValue().intValue());
+				}
+				body.advance(size);
+			}
+		} catch (IOException e) {
+			logger.error("Cannot store block wise transfer: " + e.getLocalizedMessage());
+			drop(key, transfer);
+			return FAILED;
+		}
+		if (body.isMapped() && !wasMapped) {
+			this.spilled.incrementAndGet();
+		}
+		if (ahead || !block.isLast()) {
+			return CONTINUE;
+		}
+		drop(key, transfer);
+		this.completed.incrementAndGet();
+		return new Result(Status.COMPLETE, body);
+	}
+
+	/**
+	 * Adds bytes a transfer is about to hold to the budget.
+	 * 
+	 * @return False, if the budget is exceeded
+	 */
+	private boolean reserve(Transfer transfer, int bytes) {
+		if (this.buffered.addAndGet(bytes) > this.budget) {
+			this.buffered.addAndGet(-bytes);
+			return false;
+		}
+		transfer.reserved += bytes;
+		return true;
+	}
+
+	/* corrects the reservation to the bytes the transfer actually holds */
+	private void settle(Transfer transfer) {
+		long held = transfer.body.extent();
+		this.buffered.addAndGet(held - transfer.reserved);
+		transfer.reserved = held;
+	}
+
+	private void drop(TransferKey key, Transfer transfer) {
+		this.transfers.remove(key, transfer);
+		close(transfer);
+	}
+
+	/* the body of a completed transfer stays readable */
+	private void close(Transfer transfer) {
+		synchronized (transfer) {
+			if (transfer.closed) {
+				return;
+			}
+			transfer.closed = true;
+			transfer.body.close();
+			this.buffered.addAndGet(-transfer.reserved);
+			transfer.reserved = 0;
+		}
+	}
+
+	/**
+	 * Drops the transfers without a block for the timeout.
+	 * 
+	 * @param now
+	 *            - the current time in ms
+	 * @return The number of dropped transfers
+	 */
+	public int expire(long now) {
+		List<Transfer> abandoned = this.transfers.evictIdle(now);
+		this.expired.addAndGet(abandoned.size());
+		release(abandoned);
+		return abandoned.size();
+	}
+
+	/**
+	 * Drops all running transfers.
+	 */
+	public void clear() {
+		List<Transfer> running = this.transfers.values();
+		this.transfers.clear();
+		release(running);
+	}
+
+	private void release(List<Transfer> transfers) {
+		for (Transfer transfer : transfers) {
+			close(transfer);
+		}
+	}
+
+	public int getMaxSize() {
+		return this.maxSize;
+	}
+
+	/**
+	 * @return The largest body that is accepted, limited by the maximum size
+	 *         and the budget
+	 */
+	public int getMaxBodySize() {
+		return (int) Math.min(this.maxSize, this.budget);
+	}
+
+	public long getBudget() {
+		return this.budget;
+	}
+
+	/**
+	 * @return The number of bytes all running transfers hold
+	 */
+	public long getBufferedBytes() {
+		return this.buffered.get();
+	}
+
+	public int getSpillThreshold() {
+		return this.spillThreshold;
+	}
+
+	public long getTimeout() {
+		return this.transfers.getIdleTimeout();
+	}
+
+	/**
+	 * @return The number of running transfers
+	 */
+	public int getTransferCount() {
+		return this.transfers.size();
+	}
+
+	/**
+	 * @return The number of reassembled bodies
+	 */
+	public long getCompletedCount() {
+		return this.completed.get();
+	}
+
+	/**
+	 * @return The number of blocks that did not continue a transfer
+	 */
+	public long getIncompleteCount() {
+		return this.incomplete.get();
+	}
+
+	/**
+	 * @return The number of refused transfers
+	 */
+	public long getTooLargeCount() {
+		return this.tooLarge.get();
+	}
+
+	/**
+	 * @return The number of abandoned transfers that were dropped, including
+	 *         those dropped to make room for new ones
+	 */
+	public long getExpiredCount() {
+		return this.expired.get() + this.transfers.getCapacityEvictionCount();
+	}
+
+	/**
+	 * @return The number of transfers that were kept in a memory mapped file
+	 */
+	public long getSpilledCount() {
+		return this.spilled.get();
+	}
+
+	/**
+	 * @return The number of blocks that overtook an earlier block and were
+	 *         held back
+	 */
+	public long getReorderedCount() {
+		return this.reordered.get();
+	}
+
+	/**
+	 * @return The number of transfers dropped as they exceeded the budget
+	 */
+	public long getBusyCount() {
+		return this.busy.get();
+	}
+
+	/**
+	 * A running transfer. Its fields are guarded by the transfer itself.
+	 */
+	private static class Transfer {
+		final BlockBuffer body;
+		/* the bytes of the budget held by this transfer */
+		long reserved = 0;
+		boolean closed = false;
+		/* the start and end of the blocks written behind a gap */
+		final TreeMap<Integer, Integer> ahead = new TreeMap<Integer, Integer>();
+
+		Transfer(BlockBuffer body) {
+			this.body = body;
+		}
+	}
+
+	private static class TransferKey {
+		private final ChannelKey endpoint;
+		private final CoapRequestCode code;
+		private final String uri;
+
+		TransferKey(ChannelKey endpoint, CoapRequest request) {
+			this.endpoint = endpoint;
+			this.code = request.getRequestCode();
+			this.uri = request.getUriPath() + "?" + request.getUriQuery();
+		}
+
+		@Override
+		public int hashCode() {
+			return (this.endpoint.hashCode() * 31 + this.code.hashCode()) * 31 + this.uri.hashCode();
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (!(obj instanceof TransferKey)) {
+				return false;
+			}
+			TransferKey other = (TransferKey) obj;
+			return this.endpoint.equals(other.endpoint) && this.code == other.code && this.uri.equals(other.uri);
+		}
+	}
+}
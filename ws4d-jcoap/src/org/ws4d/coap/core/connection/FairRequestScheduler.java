@@ -0,0 +1,262 @@
+/* Copyright 2016 University of Rostock
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *****************************************************************************/
+
+package org.ws4d.coap.core.connection;
+
+import java.net.InetAddress;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * A request executor that shares the request handling fairly among the
+ * remote endpoints. Every remote endpoint has its own queue and the queues
+ * are served by deficit round robin: in its turn a remote endpoint may run as
+ * many callbacks as its weight (1 by default). A remote endpoint that floods
+ * the server therefore only fills its own queue, while the requests of other
+ * endpoints wait for at most one round.<br>
+ * <br>
+ * The callbacks run on the delegate executor, at most concurrency at the
+ * same time. The queues only build up if all of them are busy, so the
+ * delegate should provide at least concurrency threads, e.g.
+ * {@link org.ws4d.coap.core.tools.CoapExecutors#boundedPool(int, int)}. If
+ * the queue of a remote endpoint is full, further callbacks are rejected and
+ * the requests are answered with 5.03.
+ */
+public class FairRequestScheduler implements Executor {
+	private static final Logger logger = LogManager.getLogger();
+
+	/* the queue of callbacks that are not bound to a remote endpoint */
+	private static final ChannelKey UNKEYED = new ChannelKey(null, 0);
+
+	private final Executor delegate;
+	private final int concurrency;
+	private final int queueLimit;
+
+	/* guarded by this */
+	private final Map<ChannelKey, Flow> flows = new HashMap<ChannelKey, Flow>();
+	private final ArrayDeque<Flow> activeFlows = new ArrayDeque<Flow>();
+	private final Map<ChannelKey, Integer> weights = new HashMap<ChannelKey, Integer>();
+	private int running = 0;
+	private int queued = 0;
+	private long rejected = 0;
+
+	private final Runnable worker = new Runnable() {
+		@Override
+		public void run() {
+			Runnable task;
+			while ((task = next()) != null) {
+				try {
+					task.run();
+				} catch (RuntimeException e) {
+					logger.error("Server callback failed", e);
+				}
+			}
+		}
+	};
+
+	/**
+	 * @param delegate
+	 *            - runs the callbacks
+	 * @param concurrency
+	 *            - the number of callbacks that run at the same time
+	 * @param queueLimit
+	 *            - the number of callbacks per remote endpoint that may wait
+	 */
+	public FairRequestScheduler(Executor delegate, int concurrency, int queueLimit) {
+		if (delegate == null) {
+			throw new IllegalArgumentException("delegate must not be null");
+		}
+		if (concurrency < 1 || queueLimit < 1) {
+			throw new IllegalArgumentException("Concurrency and queue limit must be at least 1");
+		}
+		this.delegate = delegate;
+		this.concurrency = concurrency;
+		this.queueLimit = queueLimit;
+	}
+
+	/**
+	 * Runs a callback that is not bound to a remote endpoint. All of them
+	 * share one queue.
+	 */
+	@Override
+	public void execute(Runnable command) {
+		execute(UNKEYED, command);
+	}
+
+	/**
+	 * Runs a callback in the turn of its remote endpoint.
+	 *
+	 * @param key
+	 *            - the remote endpoint
+	 * @param command
+	 *            - the callback
+	 * @throws RejectedExecutionException
+	 *             if the queue of the remote endpoint is full or the delegate
+	 *             rejected the callback
+	 */
+	public void execute(ChannelKey key, Runnable command) {
+		if (command == null) {
+			throw new NullPointerException();
+		}
+		synchronized (this) {
+			Flow flow = this.flows.get(key);
+			if (flow == null) {
+				Integer weight = this.weights.get(key);
+				flow = new Flow(key, weight == null ? 1 : weight.intValue());
+				this.flows.put(key, flow);
+				this.activeFlows.add(flow);
+			} else if (flow.queue.size() >= this.queueLimit) {
+				this.rejected++;
+				throw new RejectedExecutionException("Queue of the remote endpoint is full");
+			}
+			flow.queue.add(command);
+			this.queued++;
+			if (this.running >= this.concurrency) {
+				/* a running worker picks it up */
+				return;
+			}
+			this.running++;
+		}
+		try {
+			this.delegate.execute(this.worker);
+		} catch (RejectedExecutionException e) {
+			synchronized (this) {
+				this.running--;
+				Flow flow = this.flows.get(key);
+				if (flow != null && flow.queue.removeLastOccurrence(command)) {
+					this.queued--;
+					if (flow.queue.isEmpty()) {
+						deactivate(flow);
+					}
+				}
+				this.rejected++;
+			}
+			throw e;
+		}
+	}
+
+	/**
+	 * @return The next callback in deficit round robin order, or null if all
+	 *         queues are empty. In the latter case the calling worker ends.
+	 */
+	private synchronized Runnable next() {
+		Flow flow = this.activeFlows.peek();
+		if (flow == null) {
+			this.running--;
+			return null;
+		}
+		if (flow.deficit == 0) {
+			/* the turn of this remote endpoint starts */
+			flow.deficit = flow.weight;
+		}
+		Runnable task = flow.queue.poll();
+		this.queued--;
+		flow.deficit--;
+		if (flow.queue.isEmpty()) {
+			deactivate(flow);
+		} else if (flow.deficit == 0) {
+			/* the turn is over */
+			this.activeFlows.poll();
+			this.activeFlows.add(flow);
+		}
+		return task;
+	}
+
+	private void deactivate(Flow flow) {
+		this.activeFlows.remove(flow);
+		this.flows.remove(flow.key);
+	}
+
+	/**
+	 * Sets the number of callbacks a remote endpoint may run in its turn,
+	 * e.g. to prefer a gateway that forwards the requests of many devices.
+	 * Takes effect with the next turn.
+	 *
+	 * @param remoteAddress
+	 *            - the address of the remote endpoint
+	 * @param remotePort
+	 *            - the port of the remote endpoint
+	 * @param weight
+	 *            - the weight, at least 1
+	 */
+	public synchronized void setWeight(InetAddress remoteAddress, int remotePort, int weight) {
+		if (weight < 1) {
+			throw new IllegalArgumentException("Weight must be at least 1");
+		}
+		ChannelKey key = new ChannelKey(remoteAddress, remotePort);
+		if (weight == 1) {
+			this.weights.remove(key);
+		} else {
+			this.weights.put(key, weight);
+		}
+		Flow flow = this.flows.get(key);
+		if (flow != null) {
+			flow.weight = weight;
+		}
+	}
+
+	public synchronized int getWeight(InetAddress remoteAddress, int remotePort) {
+		Integer weight = this.weights.get(new ChannelKey(remoteAddress, remotePort));
+		return weight == null ? 1 : weight.intValue();
+	}
+
+	/**
+	 * @return The number of callbacks of a remote endpoint that wait
+	 */
+	public synchronized int getQueueDepth(InetAddress remoteAddress, int remotePort) {
+		Flow flow = this.flows.get(new ChannelKey(remoteAddress, remotePort));
+		return flow == null ? 0 : flow.queue.size();
+	}
+
+	/**
+	 * @return The number of callbacks of all remote endpoints that wait
+	 */
+	public synchronized int getQueuedCount() {
+		return this.queued;
+	}
+
+	/**
+	 * @return The number of remote endpoints with waiting callbacks
+	 */
+	public synchronized int getActiveFlowCount() {
+		return this.activeFlows.size();
+	}
+
+	/**
+	 * @return The number of rejected callbacks
+	 */
+	public synchronized long getRejectedCount() {
+		return this.rejected;
+	}
+
+	private static class Flow {
+		final ChannelKey key;
+		final ArrayDeque<Runnable> queue = new ArrayDeque<Runnable>();
+		int weight;
+		/* callbacks left in the current turn */
+		int deficit = 0;
+
+		Flow(ChannelKey key, int weight) {
+			this.key = key;
+			this.weight = weight;
+		}
+	}
+}
@@ -0,0 +1,64 @@
+/* Copyright 2016 University of Rostock
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *****************************************************************************/
+
+package org.ws4d.coap.core.connection;
+
+import java.net.InetAddress;
+
+/**
+ * Identifies a message by its message id and the remote endpoint it was sent
+ * to. Message ids are allocated per remote endpoint, so the id alone is not
+ * unique within a socket handler.
+ */
+public class MessageKey {
+	private InetAddress inetAddr;
+	private int port;
+	private int messageId;
+
+	public MessageKey(InetAddress inetAddr, int port, int messageId) {
+		this.inetAddr = inetAddr;
+		this.port = port;
+		this.messageId = messageId;
+	}
+
+	@Override
+	public int hashCode() {
+		final int prime = 31;
+		int result = 1;
+		result = prime * result + ((this.inetAddr == null) ? 0 : this.inetAddr.hashCode());
+		result = prime * result + this.port;
+		result = prime * result + this.messageId;
+		return result;
+	}
+
+	@Override
+	public boolean equals(Object obj) {
+		if (this == obj)
+			return true;
+		if (obj == null)
+			return false;
+		if (getClass() != obj.getClass())
+			return false;
+		MessageKey other = (MessageKey) obj;
+		if (this.messageId != other.messageId || this.port != other.port)
+			return false;
+		if (this.inetAddr == null) {
+			if (other.inetAddr != null)
+				return false;
+		} else if (!this.inetAddr.equals(other.inetAddr))
+			return false;
+		return true;
+	}
+}
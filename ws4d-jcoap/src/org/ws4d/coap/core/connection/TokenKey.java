@@ -0,0 +1,70 @@
+/* Copyright 2016 University of Rostock
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *****************************************************************************/
+
+package org.ws4d.coap.core.connection;
+
+import java.net.InetAddress;
+
+/**
+ * Identifies a request by its token and the remote endpoint it was sent to. A
+ * token is at most 8 byte long and therefore packed into a single long.
+ */
+public class TokenKey {
+	private long token;
+	private int tokenLength;
+	private InetAddress inetAddr;
+	private int port;
+
+	public TokenKey(byte[] token, InetAddress inetAddr, int port) {
+		this.tokenLength = (token == null) ? 0 : token.length;
+		for (int i = 0; i < this.tokenLength; i++) {
+			this.token = (this.token << 8) | (token[i] & 0xFF);
+		}
+		this.inetAddr = inetAddr;
+		this.port = port;
+	}
+
+	@Override
+	public int hashCode() {
+		final int prime = 31;
+		int result = 1;
+		result = prime * result + ((this.inetAddr == null) ? 0 : this.inetAddr.hashCode());
+		result = prime * result + this.port;
+		result = prime * result + (int) (this.token ^ (this.token >>> 32));
+		result = prime * result + this.tokenLength;
+		return result;
+	}
+
+	@Override
+	public boolean equals(Object obj) {
+		if (this == obj)
+			return true;
+		if (obj == null)
+			return false;
+		if (getClass() != obj.getClass())
+			return false;
+		TokenKey other = (TokenKey) obj;
+		if (this.token != other.token || this.tokenLength != other.tokenLength)
+			return false;
+		if (this.inetAddr == null) {
+			if (other.inetAddr != null)
+				return false;
+		} else if (!this.inetAddr.equals(other.inetAddr))
+			return false;
+		if (this.port != other.port)
+			return false;
+		return true;
+	}
+}
@@ -16,9 +16,11 @@
 package org.ws4d.coap.core.connection.api;
 
 import java.net.InetAddress;
+import java.util.concurrent.Executor;
 
 import org.ws4d.coap.core.CoapClient;
 import org.ws4d.coap.core.CoapServer;
+import org.ws4d.coap.core.enumerations.CoapRetransmissionPolicy;
 import org.ws4d.coap.core.messages.api.CoapMessage;
 
 /**
@@ -27,7 +29,9 @@ import org.ws4d.coap.core.messages.api.CoapMessage;
 public interface CoapChannelManager {
 
 	/**
-	 * Creates a new, global message ID for a new CoAP message
+	 * Creates a new, global message ID. Socket handlers allocate the message
+	 * IDs per remote endpoint and start each sequence with a global one, see
+	 * {@link CoapSocketHandler#getNewMessageID(InetAddress, int)}.
 	 * 
 	 * @return Message ID
 	 */
@@ -55,6 +59,38 @@ public interface CoapChannelManager {
 	 */
 	public void createServerListener(CoapServer serverListener, int localPort);
 
+	/**
+	 * creates a server socket listener for incoming connections that is served
+	 * by several sockets bound to the same port with SO_REUSEPORT. Each socket
+	 * has its own receive and worker threads and its own duplicate detection
+	 * and retransmission state. The operating system distributes the remote
+	 * endpoints among the sockets. Only the first socket listens for multicast
+	 * requests. Falls back to a single socket if SO_REUSEPORT is not
+	 * supported.
+	 * 
+	 * @param serverListener
+	 * @param localPort
+	 * @param sockets
+	 *            - the number of sockets to open, e.g. the number of cores
+	 */
+	public void createServerListener(CoapServer serverListener, int localPort, int sockets);
+
+	/**
+	 * creates a server socket listener like
+	 * {@link #createServerListener(CoapServer, int, int)} whose callbacks, e.g.
+	 * onRequest(), are run by the given executor. Received messages are still
+	 * parsed on the threads of the sockets.
+	 * 
+	 * @param serverListener
+	 * @param localPort
+	 * @param sockets
+	 *            - the number of sockets to open, e.g. the number of cores
+	 * @param requestExecutor
+	 *            - runs the callbacks of the server listener, see
+	 *            {@link org.ws4d.coap.core.tools.CoapExecutors}
+	 */
+	public void createServerListener(CoapServer serverListener, int localPort, int sockets, Executor requestExecutor);
+
 	/**
 	 * removes a server socket listener for incoming connections
 	 * 
@@ -73,6 +109,110 @@ public interface CoapChannelManager {
 	 */
 	public CoapClientChannel connect(CoapClient client, InetAddress addr, int port);
 
+	/**
+	 * Enables or disables the shared client endpoint. If enabled, all
+	 * subsequent calls of connect() return channels that share a single socket
+	 * and its threads instead of opening a new socket per channel. Responses
+	 * are assigned to their channel by token and remote endpoint. Channels that
+	 * were already connected are not affected.
+	 * 
+	 * @param shared
+	 *            - true to share one socket among all client channels
+	 */
+	public void setSharedClientEndpoint(boolean shared);
+
+	/**
+	 * Sets the number of threads each subsequently created socket handler uses
+	 * to parse and dispatch received messages. Messages of one remote endpoint
+	 * are always handled by the same thread, so their order is preserved.
+	 * Defaults to the number of available processors.
+	 * 
+	 * @param threads
+	 *            - the number of dispatch threads per socket, at least 1
+	 */
+	public void setDispatchThreads(int threads);
+
+	/**
+	 * Sets how each subsequently created socket handler computes the timeouts
+	 * of confirmable messages. ADAPTIVE derives them from the RTT measured
+	 * towards each remote endpoint, FIXED (the default) uses the rfc7252
+	 * timeouts.
+	 * 
+	 * @param policy
+	 *            - the retransmission policy
+	 */
+	public void setRetransmissionPolicy(CoapRetransmissionPolicy policy);
+
+	/**
+	 * Sets the number of confirmable messages each subsequently created socket
+	 * handler keeps outstanding towards a remote endpoint. Further messages
+	 * wait in a queue until an outstanding one is acknowledged or given up.
+	 * Defaults to 1, see rfc7252 - 4.7.
+	 * 
+	 * @param nstart
+	 *            - the maximum number of outstanding CON messages per remote
+	 *            endpoint, at least 1
+	 */
+	public void setNstart(int nstart);
+
+	/**
+	 * Sets the high-water marks of the receive and send queues of each
+	 * subsequently created socket handler. Requests beyond the inbound limit
+	 * are answered with 5.03 (CON) or dropped (NON), NON messages beyond the
+	 * outbound limit are dropped.
+	 * 
+	 * @param inbound
+	 *            - the number of received datagrams that may wait for a
+	 *            dispatch thread, at least 1
+	 * @param outbound
+	 *            - the number of messages that may wait to be sent, at least 1
+	 */
+	public void setQueueLimits(int inbound, int outbound);
+
+	/**
+	 * Sets the limits of the server channels of each subsequently created
+	 * socket handler. Idle channels are evicted, as well as the least
+	 * recently active ones if the capacity is exceeded.
+	 * 
+	 * @param capacity
+	 *            - the maximum number of server channels per socket handler
+	 * @param idleTimeout
+	 *            - the time in ms after which a channel without received or
+	 *            sent messages is evicted
+	 * @see ServerChannelListener
+	 */
+	public void setServerChannelLimits(int capacity, long idleTimeout);
+
+	/**
+	 * Sets the pacing of NON messages, including notifications, of each
+	 * subsequently created socket handler. Every remote endpoint gets a token
+	 * bucket, NON messages without a token are deferred. Pacing is disabled by
+	 * default.
+	 * 
+	 * @param rate
+	 *            - the NON messages per second and remote endpoint, 0 to
+	 *            disable the pacing (the default)
+	 * @param burst
+	 *            - the NON messages that may be sent at once, at least 1
+	 */
+	public void setNonPacing(double rate, int burst);
+
+	/**
+	 * Sets the limits of the reassembly of block wise PUT and POST requests of
+	 * each subsequently created socket handler. Larger bodies are refused with
+	 * 4.13, bodies above the spill threshold are kept in a memory mapped
+	 * temporary file instead of the heap.
+	 * 
+	 * @param maxSize
+	 *            - the largest accepted body in bytes
+	 * @param spillThreshold
+	 *            - the body size in bytes above which a file is used
+	 * @param timeout
+	 *            - the time in ms after which an unfinished transfer without
+	 *            further blocks is dropped
+	 */
+	public void setBlock1Limits(int maxSize, int spillThreshold, long timeout);
+
 	/**
 	 * This function is for testing purposes only, to have a determined message
 	 * id
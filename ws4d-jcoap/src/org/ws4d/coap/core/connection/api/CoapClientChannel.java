@@ -15,8 +15,13 @@
 
 package org.ws4d.coap.core.connection.api;
 
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.FileChannel;
+
 import org.ws4d.coap.core.enumerations.CoapRequestCode;
 import org.ws4d.coap.core.messages.api.CoapRequest;
+import org.ws4d.coap.core.tools.BlockUploadWindow;
 
 /**
  * @author Christian Lerche <christian.lerche@uni-rostock.de>
@@ -38,6 +43,45 @@ public interface CoapClientChannel extends CoapChannel {
 	 */
 	public CoapRequest addBlockContext(CoapRequest request);
 
+	/**
+	 * Sets the number of block requests a block wise GET or upload keeps
+	 * outstanding, 1 to transfer the blocks one after the other. The socket
+	 * handler only sends that many block requests at once if its NSTART is
+	 * raised to at least the window, see CoapChannelManager.setNstart().
+	 * 
+	 * @param window
+	 *            - the maximum number of outstanding block requests
+	 */
+	public void setBlockWindow(int window);
+
+	/**
+	 * Starts a block wise PUT or POST that reads its body block by block from
+	 * a stream.
+	 * 
+	 * @param request
+	 *            - the request, its options are copied to every block
+	 * @param body
+	 *            - the body, read up to its end or the given size
+	 * @param size
+	 *            - the size of the body in bytes, -1 if it is unknown
+	 * @return The upload, to follow its progress
+	 * @throws IOException
+	 *             if the first block cannot be read
+	 * @throws IllegalStateException
+	 *             if another upload of this channel is still running
+	 */
+	public BlockUploadWindow startUpload(CoapRequest request, InputStream body, long size) throws IOException;
+
+	/**
+	 * Starts a block wise PUT or POST that reads its body block by block from
+	 * the current position of a file to its end.
+	 * 
+	 * @return The upload, to follow its progress
+	 * @throws IOException
+	 *             if the first block cannot be read
+	 */
+	public BlockUploadWindow startUpload(CoapRequest request, FileChannel body) throws IOException;
+
 	/**
 	 * 
 	 * @param o
@@ -0,0 +1,34 @@
+/* Copyright 2016 University of Rostock
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *****************************************************************************/
+
+package org.ws4d.coap.core.connection.api;
+
+/**
+ * May be implemented by a CoapServer to release the state it keeps per
+ * channel, e.g. observations, when the socket handler evicts an idle channel
+ * or makes room for new remote endpoints. A later request of the same remote
+ * endpoint creates a new channel.
+ */
+public interface ServerChannelListener {
+
+	/**
+	 * Called with the request executor of the socket handler after the
+	 * channel was evicted.
+	 *
+	 * @param channel
+	 *            - the evicted channel
+	 */
+	public void onServerChannelEvicted(CoapServerChannel channel);
+}
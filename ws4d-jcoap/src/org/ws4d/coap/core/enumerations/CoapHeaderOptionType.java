@@ -33,6 +33,9 @@ public enum CoapHeaderOptionType {
 	Block1(27,true,true,false,false),
 	// draft-ietf-core-block-20 - 4. The Size2 and Size1 Options
 	Size2(28,false,false,true,false);
+
+	/* values() copies the array on every call */
+	private static final CoapHeaderOptionType[] VALUES = values();
 	
 	private int number;
 	private boolean critical;
@@ -53,7 +56,7 @@ public enum CoapHeaderOptionType {
 	 * @return the corresponding CoAP header option enum element
 	 */
 	public static CoapHeaderOptionType parse(int optionTypeValue) {
-		for(CoapHeaderOptionType t : CoapHeaderOptionType.values()){
+		for(CoapHeaderOptionType t : VALUES){
 			if(t.getValue() == optionTypeValue)	return t;
 		}
 		return null;
@@ -28,6 +28,9 @@ public enum CoapPacketType {
 	ACK(0x02),
 	RST(0x03);
 
+	/* values() copies the array on every call */
+	private static final CoapPacketType[] VALUES = values();
+
 	private int packetType;
 
 	private CoapPacketType(int packetType) {
@@ -40,7 +43,7 @@ public enum CoapPacketType {
 	 * @throws IllegalStateException if packetType parameter is out of range.
 	 */
 	public static CoapPacketType parse(int packetType) {
-		for(CoapPacketType t : CoapPacketType.values()){
+		for(CoapPacketType t : VALUES){
 			if(t.getValue() == packetType) return t;
 		}
 		throw new IllegalStateException("Unknown CoAP Packet Type");
@@ -27,6 +27,9 @@ public enum CoapRequestCode {
 	PUT(3),
 	DELETE(4);
 
+	/* values() copies the array on every call */
+	private static final CoapRequestCode[] VALUES = values();
+
 	private int code;
 
 	private CoapRequestCode(int code) {	this.code = code;}
@@ -42,7 +45,7 @@ public enum CoapRequestCode {
 	 * @throws IllegalArgumentException, if codeValue is out of range.
 	 */
 	public static CoapRequestCode parse(int codeValue) {
-		for(CoapRequestCode t : CoapRequestCode.values()){
+		for(CoapRequestCode t : VALUES){
 			if(t.getValue() == codeValue) return t;
 		}
 		throw new IllegalArgumentException("Invalid Request Code");
@@ -57,6 +57,9 @@ public enum CoapResponseCode {
 	// additional
 	UNKNOWN(-1);
 
+	/* values() copies the array on every call */
+	private static final CoapResponseCode[] VALUES = values();
+
 	private int code;
 
 	private CoapResponseCode(int code) {this.code = code;}
@@ -70,7 +73,7 @@ public enum CoapResponseCode {
 	 *             if codeValue is out of range.
 	 */
 	public static CoapResponseCode parse(int codeValue) {
-		for(CoapResponseCode t : CoapResponseCode.values()){
+		for(CoapResponseCode t : VALUES){
 			if(t.getValue() == codeValue) return t;
 		}
 		if (codeValue >= 32 && codeValue <= 191) {
@@ -0,0 +1,33 @@
+/* Copyright 2016 University of Rostock
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *****************************************************************************/
+
+package org.ws4d.coap.core.enumerations;
+
+/**
+ * Determines how the timeouts of confirmable messages are computed.
+ */
+public enum CoapRetransmissionPolicy {
+	/**
+	 * rfc7252 - 4.2: the initial timeout is a random value between
+	 * RESPONSE_TIMEOUT_MS and RESPONSE_TIMEOUT_MS * RESPONSE_RANDOM_FACTOR, it
+	 * is doubled on every retransmission.
+	 */
+	FIXED,
+	/**
+	 * The initial timeout and the backoff are derived from RTT samples of the
+	 * remote endpoint (CoCoA, draft-ietf-core-cocoa).
+	 */
+	ADAPTIVE
+}
@@ -0,0 +1,40 @@
+/* Copyright 2016 University of Rostock
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *****************************************************************************/
+
+package org.ws4d.coap.core.enumerations;
+
+/**
+ * The classes of outgoing messages, in the order they are sent by the socket
+ * handler.
+ */
+public enum CoapSendPriority {
+	/**
+	 * Empty ACK and RST messages. A late ACK makes the remote retransmit.
+	 */
+	CONTROL,
+	/**
+	 * Piggybacked responses and separate responses
+	 */
+	RESPONSE,
+	/**
+	 * Requests
+	 */
+	REQUEST,
+	/**
+	 * Notifications of observers and blockwise transfers, except for
+	 * piggybacked responses
+	 */
+	BULK
+}
@@ -35,6 +35,8 @@ public abstract class AbstractCoapMessage implements CoapMessage {
 	/* use the logger of the channel manager */
 	private static final Logger logger = LogManager.getLogger();
 	protected static final int HEADER_LENGTH = 4;
+	/* shared by all messages, creating a Random per message is expensive */
+	private static final Random timeoutRandom = new Random();
 
 	/* Header */
 	private int version;
@@ -48,6 +50,12 @@ public abstract class AbstractCoapMessage implements CoapMessage {
 	/* Options */
 	private CoapHeaderOptions options = new CoapHeaderOptions();
 
+	/*
+	 * the received datagram: token, options and payload are decoded on first
+	 * access, until then options are read from the datagram
+	 */
+	private CoapMessageView view = null;
+
 	/* Payload */
 	private byte[] payload = null;
 	private int payloadLength = 0;
@@ -78,34 +86,39 @@ public abstract class AbstractCoapMessage implements CoapMessage {
 	}
 
 	protected void deserialize(byte[] bytes, int length, int offset) {
-		/* check length to avoid buffer overflow exceptions */
-		this.version = 1;
-		this.packetType = (CoapPacketType.parse((bytes[offset + 0] & 0x30) >> 4));
-		this.tokenLength = bytes[offset + 0] & 0x0F;
-
-		this.messageCodeValue = (bytes[offset + 1] & 0xFF);
-		this.messageId = ((bytes[offset + 2] << 8) & 0xFF00) + (bytes[offset + 3] & 0xFF);
-
-		this.token = new byte[this.tokenLength];
-		for (int i = 0; i < this.tokenLength; i++) {
-			this.token[i] = bytes[offset + HEADER_LENGTH + i];
-		}
-
-		/* serialize options */
-		this.options = new CoapHeaderOptions(bytes, offset + HEADER_LENGTH + this.tokenLength, length);
-		/* get and check payload length */
-		this.payloadLength = length - HEADER_LENGTH - this.options.getDeserializedLength() - this.tokenLength;
-		if (this.payloadLength < 0) {
-			throw new IllegalStateException("Invaldid CoAP Message (payload length negative)");
-		} else if (this.payloadLength > 0) {
-			/* copy payload */
-			this.payloadLength--;
-			int payloadOffset = offset + HEADER_LENGTH + this.options.getDeserializedLength() + this.tokenLength + 1;
-			this.payload = new byte[this.payloadLength];
-			for (int i = 0; i < this.payloadLength; i++) {
-				this.payload[i] = bytes[i + payloadOffset];
-			}
+		deserialize(new CoapMessageView(bytes, offset, length));
+	}
+
+	/**
+	 * Takes the header from a view. The token, the options and the payload
+	 * are decoded when they are accessed first.
+	 * 
+	 * @param messageView
+	 *            - a validated view, it is owned by this message afterwards
+	 */
+	protected void deserialize(CoapMessageView messageView) {
+		this.version = messageView.getVersion();
+		this.packetType = messageView.getPacketType();
+		this.tokenLength = messageView.getTokenLength();
+		this.messageCodeValue = messageView.getMessageCodeValue();
+		this.messageId = messageView.getMessageID();
+		this.payloadLength = messageView.getPayloadLength();
+		this.token = null;
+		this.payload = null;
+		this.options = null;
+		this.view = messageView;
+	}
+
+	/**
+	 * @return The view of the received datagram, as long as the options were
+	 *         not decoded. Reading options from it is cheaper than decoding
+	 *         them. Otherwise null.
+	 */
+	protected CoapMessageView getUndecodedView() {
+		if (this.options == null) {
+			return this.view;
 		}
+		return null;
 	}
 
 	public static CoapMessage parseMessage(byte[] bytes, int length) {
@@ -113,17 +126,23 @@ public abstract class AbstractCoapMessage implements CoapMessage {
 	}
 
 	public static CoapMessage parseMessage(byte[] bytes, int length, int offset) {
+		return parseMessage(new CoapMessageView(bytes, offset, length));
+	}
+
+	/**
+	 * @param messageView
+	 *            - a validated view, it is owned by the message afterwards
+	 */
+	static CoapMessage parseMessage(CoapMessageView messageView) {
 		/*
 		 * we "peek" the header to determine the kind of message
 		 */
-		int messageCodeValue = (bytes[offset + 1] & 0xFF);
-
-		if (messageCodeValue == 0) {
-			return new CoapEmptyMessage(bytes, length, offset);
-		} else if (messageCodeValue >= 0 && messageCodeValue <= 31) {
-			return new BasicCoapRequest(bytes, length, offset);
-		} else if (messageCodeValue >= 64 && messageCodeValue <= 191) {
-			return new BasicCoapResponse(bytes, length, offset);
+		if (messageView.isEmpty()) {
+			return new CoapEmptyMessage(messageView);
+		} else if (messageView.isRequest()) {
+			return new BasicCoapRequest(messageView);
+		} else if (messageView.isResponse()) {
+			return new BasicCoapResponse(messageView);
 		} else {
 			throw new IllegalArgumentException("unknown CoAP message");
 		}
@@ -143,6 +162,9 @@ public abstract class AbstractCoapMessage implements CoapMessage {
 	}
 	
 	public CoapHeaderOptions getOptions(){
+		if (this.options == null) {
+			this.options = this.view.getOptions();
+		}
 		return this.options;
 	}
 
@@ -152,6 +174,9 @@ public abstract class AbstractCoapMessage implements CoapMessage {
 	}
 
 	public byte[] getPayload() {
+		if (this.payload == null && this.payloadLength > 0 && this.view != null) {
+			this.payload = this.view.getPayload();
+		}
 		return this.payload;
 	}
 
@@ -170,54 +195,42 @@ public abstract class AbstractCoapMessage implements CoapMessage {
 	}
 
 	public byte[] serialize() {
-		/* serialize header options first to get the length */
-		int optionsLength = 0;
-		byte[] optionsArray = null;
-		if (this.options != null) {
-			optionsArray = this.options.serialize();
-			optionsLength = this.options.getSerializedLength();
-		}
-
-		/* allocate memory for the complete packet */
-		int length = HEADER_LENGTH + this.tokenLength + optionsLength + this.payloadLength;
-		if (this.payloadLength > 0)
-			length++;
-
-		byte[] serializedPacket = new byte[length];
+		byte[] serializedPacket = new byte[getSerializedLength()];
+		serializeInto(ByteBuffer.wrap(serializedPacket));
+		return serializedPacket;
+	}
 
+	@Override
+	public void serializeInto(ByteBuffer buffer) {
 		/* serialize header */
-		serializedPacket[0] = (byte) ((this.version & 0x03) << 6);
-		serializedPacket[0] |= (byte) ((this.packetType.getValue() & 0x03) << 4);
-		serializedPacket[0] |= (byte) (this.tokenLength & 0x0F);
-		serializedPacket[1] = (byte) (this.getMessageCodeValue() & 0xFF);
-		serializedPacket[2] = (byte) ((this.messageId >> 8) & 0xFF);
-		serializedPacket[3] = (byte) (this.messageId & 0xFF);
+		int firstByte = ((this.version & 0x03) << 6) | ((this.packetType.getValue() & 0x03) << 4)
+				| (this.tokenLength & 0x0F);
+		buffer.put((byte) firstByte);
+		buffer.put((byte) (this.getMessageCodeValue() & 0xFF));
+		buffer.putShort((short) this.messageId);
 
 		/* insert token into packet */
-		for (int i = 0; i < this.tokenLength; i++) {
-			serializedPacket[HEADER_LENGTH + i] = this.token[i];
+		if (this.tokenLength > 0) {
+			buffer.put(getToken(), 0, this.tokenLength);
 		}
 
-		/* copy serialized options to the final array */
-		int offset = HEADER_LENGTH + this.tokenLength;
-		for (int i = 0; i < optionsLength; i++)
-			if (optionsArray != null) {
-				serializedPacket[i + offset] = optionsArray[i];
-			}
+		getOptions().serializeInto(buffer);
 
-		/* insert payload marker */
-		offset = HEADER_LENGTH + this.tokenLength + optionsLength;
+		/* insert payload marker and payload */
 		if (this.payloadLength > 0) {
-			serializedPacket[offset] = (byte) 0xFF;
-			offset += 1;
+			buffer.put((byte) 0xFF);
+			buffer.put(getPayload(), 0, this.payloadLength);
 		}
+	}
 
-		/* copy payload to the final array */
-		for (int i = 0; i < this.payloadLength; i++) {
-			serializedPacket[i + offset] = this.payload[i];
+	@Override
+	public int getSerializedLength() {
+		int length = HEADER_LENGTH + this.tokenLength + getOptions().getSerializedLength();
+		if (this.payloadLength > 0) {
+			/* payload marker */
+			length += 1 + this.payloadLength;
 		}
-
-		return serializedPacket;
+		return length;
 	}
 
 	public void setPayload(byte[] payload) {
@@ -242,7 +255,7 @@ public abstract class AbstractCoapMessage implements CoapMessage {
 
 	@Override
 	public void setContentType(CoapMediaType mediaType) {
-		CoapHeaderOption option = this.options.getOption(CoapHeaderOptionType.Content_Format);
+		CoapHeaderOption option = getOptions().getOption(CoapHeaderOptionType.Content_Format);
 		if (option != null) {
 			/* content Type MUST only exists once */
 			throw new IllegalStateException("added content option twice");
@@ -255,22 +268,30 @@ public abstract class AbstractCoapMessage implements CoapMessage {
 		byte[] data = long2CoapUint(mediaType.getValue());
 		/* no need to check result, mediaType is safe */
 		/* add option to Coap Header */
-		this.options.addOption(new CoapHeaderOption(CoapHeaderOptionType.Content_Format, data));
+		getOptions().addOption(new CoapHeaderOption(CoapHeaderOptionType.Content_Format, data));
 	}
 
 	@Override
 	public CoapMediaType getContentType() {
+		CoapMessageView undecoded = getUndecodedView();
+		if (undecoded != null) {
+			int index = undecoded.indexOf(CoapHeaderOptionType.Content_Format.getValue());
+			if (index < 0)
+				return CoapMediaType.UNKNOWN;
+			return CoapMediaType.parse((int) undecoded.getOptionUint(index));
+		}
 		CoapHeaderOption option = this.options.getOption(CoapHeaderOptionType.Content_Format);
 		if (option == null)
 			return CoapMediaType.UNKNOWN;
 		/* no need to check length, CoapMediaType parse function will do */
-		int mediaTypeCode = (int) coapUint2Long(
-				this.options.getOption(CoapHeaderOptionType.Content_Format).getOptionData());
-		return CoapMediaType.parse(mediaTypeCode);
+		return CoapMediaType.parse((int) option.getOptionUint());
 	}
 
 	@Override
 	public byte[] getToken() {
+		if (this.token == null && this.view != null) {
+			this.token = this.view.getToken();
+		}
 		return this.token;
 	}
 
@@ -288,6 +309,11 @@ public abstract class AbstractCoapMessage implements CoapMessage {
 
 	@Override
 	public CoapBlockOption getBlock1() {
+		CoapMessageView undecoded = getUndecodedView();
+		if (undecoded != null) {
+			int index = undecoded.indexOf(CoapHeaderOptionType.Block1.getValue());
+			return index < 0 ? null : new CoapBlockOption(undecoded.getOptionValue(index));
+		}
 		CoapHeaderOption option = this.options.getOption(CoapHeaderOptionType.Block1);
 		if (option == null) {
 			return null;
@@ -299,17 +325,22 @@ public abstract class AbstractCoapMessage implements CoapMessage {
 
 	@Override
 	public void setBlock1(CoapBlockOption blockOption) {
-		CoapHeaderOption option = this.options.getOption(CoapHeaderOptionType.Block1);
+		CoapHeaderOption option = getOptions().getOption(CoapHeaderOptionType.Block1);
 		if (option != null) {
 			// option already exists
-			this.options.removeOption(CoapHeaderOptionType.Block1);
+			getOptions().removeOption(CoapHeaderOptionType.Block1);
 		}
-		this.options.addOption(CoapHeaderOptionType.Block1, blockOption.getBytes());
-		option = this.options.getOption(CoapHeaderOptionType.Block1);
+		getOptions().addOption(CoapHeaderOptionType.Block1, blockOption.getBytes());
+		option = getOptions().getOption(CoapHeaderOptionType.Block1);
 	}
 
 	@Override
 	public CoapBlockOption getBlock2() {
+		CoapMessageView undecoded = getUndecodedView();
+		if (undecoded != null) {
+			int index = undecoded.indexOf(CoapHeaderOptionType.Block2.getValue());
+			return index < 0 ? null : new CoapBlockOption(undecoded.getOptionValue(index));
+		}
 		CoapHeaderOption option = this.options.getOption(CoapHeaderOptionType.Block2);
 		if (option == null) {
 			return null;
@@ -320,34 +351,94 @@ public abstract class AbstractCoapMessage implements CoapMessage {
 
 	@Override
 	public void setBlock2(CoapBlockOption blockOption) {
-		CoapHeaderOption option = this.options.getOption(CoapHeaderOptionType.Block2);
+		CoapHeaderOption option = getOptions().getOption(CoapHeaderOptionType.Block2);
 		if (option != null) {
 			// option already exists
-			this.options.removeOption(CoapHeaderOptionType.Block2);
+			getOptions().removeOption(CoapHeaderOptionType.Block2);
 		}
-		this.options.addOption(CoapHeaderOptionType.Block2, blockOption.getBytes());
+		getOptions().addOption(CoapHeaderOptionType.Block2, blockOption.getBytes());
+	}
+
+	@Override
+	public Integer getSize1() {
+		CoapMessageView undecoded = getUndecodedView();
+		if (undecoded != null) {
+			int index = undecoded.indexOf(CoapHeaderOptionType.Size1.getValue());
+			return index < 0 ? null : Integer.valueOf((int) undecoded.getOptionUint(index));
+		}
+		CoapHeaderOption option = this.options.getOption(CoapHeaderOptionType.Size1);
+		if (option == null) {
+			return null;
+		}
+		return Integer.valueOf((int) option.getOptionUint());
+	}
+
+	@Override
+	public void setSize1(int size) {
+		if (size < 0) {
+			throw new IllegalArgumentException("Size1 must not be negative");
+		}
+		if (getOptions().getOption(CoapHeaderOptionType.Size1) != null) {
+			getOptions().removeOption(CoapHeaderOptionType.Size1);
+		}
+		getOptions().addOption(CoapHeaderOptionType.Size1, long2CoapUint(size));
+	}
+
+	@Override
+	public Integer getSize2() {
+		CoapMessageView undecoded = getUndecodedView();
+		if (undecoded != null) {
+			int index = undecoded.indexOf(CoapHeaderOptionType.Size2.getValue());
+			return index < 0 ? null : Integer.valueOf((int) undecoded.getOptionUint(index));
+		}
+		CoapHeaderOption option = this.options.getOption(CoapHeaderOptionType.Size2);
+		if (option == null) {
+			return null;
+		}
+		return Integer.valueOf((int) option.getOptionUint());
+	}
+
+	@Override
+	public void setSize2(int size) {
+		if (size < 0) {
+			throw new IllegalArgumentException("Size2 must not be negative");
+		}
+		if (getOptions().getOption(CoapHeaderOptionType.Size2) != null) {
+			getOptions().removeOption(CoapHeaderOptionType.Size2);
+		}
+		getOptions().addOption(CoapHeaderOptionType.Size2, long2CoapUint(size));
 	}
 
 	@Override
 	public Integer getObserveOption() {
+		CoapMessageView undecoded = getUndecodedView();
+		if (undecoded != null) {
+			int index = undecoded.indexOf(CoapHeaderOptionType.Observe.getValue());
+			if (index < 0) {
+				return null;
+			}
+			if (undecoded.getOptionValueLength(index) > 2) {
+				logger.warn("invalid observe option length, return null");
+				return null;
+			}
+			return (int) undecoded.getOptionUint(index);
+		}
 		CoapHeaderOption option = this.options.getOption(CoapHeaderOptionType.Observe);
 		if (option == null) {
 			return null;
 		}
-		byte[] data = option.getOptionData();
-
-		if (data.length < 0 || data.length > 2) {
+		if (option.getOptionData().length > 2) {
 			logger.warn("invalid observe option length, return null");
 			return null;
 		}
-		return (int) AbstractCoapMessage.coapUint2Long(data);
+		return (int) option.getOptionUint();
 	}
 
 	@Override
 	public void setObserveOption(int sequenceNumber) {
-		CoapHeaderOption option = this.options.getOption(CoapHeaderOptionType.Observe);
+		CoapHeaderOption option = getOptions().getOption(CoapHeaderOptionType.Observe);
 		if (option != null) {
-			this.options.removeOption(CoapHeaderOptionType.Observe);
+			getOptions().removeOption(CoapHeaderOptionType.Observe);
 		}
 
 		byte[] data = long2CoapUint(sequenceNumber);
@@ -356,16 +447,16 @@ public abstract class AbstractCoapMessage implements CoapMessage {
 			throw new IllegalArgumentException("invalid observe option length");
 		}
 
-		this.options.addOption(CoapHeaderOptionType.Observe, data);
+		getOptions().addOption(CoapHeaderOptionType.Observe, data);
 	}
 
 	public void copyHeaderOptions(AbstractCoapMessage origin) {
-		this.options.removeAll();
-		this.options.copyFrom(origin.options);
+		getOptions().removeAll();
+		getOptions().copyFrom(origin.getOptions());
 	}
 
 	public void removeOption(CoapHeaderOptionType optionType) {
-		this.options.removeOption(optionType);
+		getOptions().removeOption(optionType);
 	}
 
 	@Override
@@ -381,9 +472,8 @@ public abstract class AbstractCoapMessage implements CoapMessage {
 	@Override
 	public int getTimeout() {
 		if (this.timeout == 0) {
-			Random random = new Random();
 			this.timeout = CoapConstants.RESPONSE_TIMEOUT_MS
-					+ random.nextInt((int) (CoapConstants.RESPONSE_TIMEOUT_MS * CoapConstants.RESPONSE_RANDOM_FACTOR) - CoapConstants.RESPONSE_TIMEOUT_MS);
+					+ timeoutRandom.nextInt((int) (CoapConstants.RESPONSE_TIMEOUT_MS * CoapConstants.RESPONSE_RANDOM_FACTOR) - CoapConstants.RESPONSE_TIMEOUT_MS);
 		}
 		return this.timeout;
 	}
@@ -444,16 +534,11 @@ public abstract class AbstractCoapMessage implements CoapMessage {
 			return -1;
 		}
 
-		/* fill with leading zeros */
-		byte[] tmp = new byte[8];
+		long value = 0;
 		for (int i = 0; i < data.length; i++) {
-			tmp[i + 8 - data.length] = data[i];
+			value = (value << 8) | (data[i] & 0xFF);
 		}
-
-		/* convert to long */
-		ByteBuffer buf = ByteBuffer.wrap(tmp);
-		/* byte buffer contains 8 bytes */
-		return buf.getLong();
+		return value;
 	}
 
 	protected static byte[] long2CoapUint(long value) {
@@ -467,26 +552,13 @@ public abstract class AbstractCoapMessage implements CoapMessage {
 			return new byte[0];
 		}
 
-		/* convert long to byte array with a fixed length of 8 byte */
-		ByteBuffer buf = ByteBuffer.allocate(8);
-		buf.putLong(value);
-		byte[] tmp = buf.array();
-
-		/* remove leading zeros */
-		int leadingZeros = 0;
-		for (int i = 0; i < tmp.length; i++) {
-			if (tmp[i] == 0) {
-				leadingZeros = i + 1;
-			} else {
-				break;
-			}
-		}
-		/* copy to byte array without leading zeros */
-		byte[] result = new byte[8 - leadingZeros];
-		for (int i = 0; i < result.length; i++) {
-			result[i] = tmp[i + leadingZeros];
+		/* the number of bytes without leading zeros */
+		int length = (64 - Long.numberOfLeadingZeros(value) + 7) / 8;
+		byte[] result = new byte[length];
+		for (int i = length - 1; i >= 0; i--) {
+			result[i] = (byte) value;
+			value >>>= 8;
 		}
-
 		return result;
 	}
 
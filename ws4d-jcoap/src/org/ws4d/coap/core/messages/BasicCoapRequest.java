@@ -15,8 +15,10 @@
 
 package org.ws4d.coap.core.messages;
 
+import java.io.InputStream;
 import java.io.UnsupportedEncodingException;
 import java.net.URLDecoder;
+import java.nio.ByteBuffer;
 import java.util.Iterator;
 import java.util.Vector;
 
@@ -28,6 +30,7 @@ import org.ws4d.coap.core.enumerations.CoapMediaType;
 import org.ws4d.coap.core.enumerations.CoapPacketType;
 import org.ws4d.coap.core.enumerations.CoapRequestCode;
 import org.ws4d.coap.core.messages.api.CoapRequest;
+import org.ws4d.coap.core.tools.ByteBufferInputStream;
 
 /**
  * @author Christian Lerche <christian.lerche@uni-rostock.de>
@@ -36,6 +39,10 @@ public class BasicCoapRequest extends AbstractCoapMessage implements CoapRequest
 
 	private static final Logger logger = LogManager.getLogger();
 	private CoapRequestCode requestCode;
+	/* the Uri-Path read from the received datagram, see getUriPath() */
+	private String receivedUriPath = null;
+	/* the reassembled body of a block wise transfer, see setPayloadBuffer() */
+	private ByteBuffer payloadBuffer = null;
 
 	public BasicCoapRequest(byte[] bytes, int length) {
 		/* length ought to be provided by UDP header */
@@ -43,7 +50,11 @@ public class BasicCoapRequest extends AbstractCoapMessage implements CoapRequest
 	}
 
 	public BasicCoapRequest(byte[] bytes, int length, int offset) {
-		deserialize(bytes, length, offset);
+		this(new CoapMessageView(bytes, offset, length));
+	}
+
+	BasicCoapRequest(CoapMessageView view) {
+		deserialize(view);
 		/*
 		 * check if request code is valid, this function throws an error in case
 		 * of an invalid argument
@@ -63,6 +74,64 @@ public class BasicCoapRequest extends AbstractCoapMessage implements CoapRequest
 		super.setToken(token);
 	}
 
+	/**
+	 * Sets the body without copying it, e.g. the reassembled body of a block
+	 * wise transfer. It is only copied into an array if
+	 * {@link #getPayload()} is called.
+	 * 
+	 * @param body
+	 *            - the body, from its position to its limit
+	 */
+	public void setPayloadBuffer(ByteBuffer body) {
+		super.setPayload((byte[]) null);
+		this.payloadBuffer = body.asReadOnlyBuffer();
+	}
+
+	@Override
+	public byte[] getPayload() {
+		byte[] payload = super.getPayload();
+		if (payload == null && this.payloadBuffer != null) {
+			payload = new byte[this.payloadBuffer.remaining()];
+			this.payloadBuffer.duplicate().get(payload);
+			super.setPayload(payload);
+		}
+		return payload;
+	}
+
+	@Override
+	public int getPayloadLength() {
+		if (this.payloadBuffer != null && super.getPayload() == null) {
+			return this.payloadBuffer.remaining();
+		}
+		return super.getPayloadLength();
+	}
+
+	@Override
+	public void setPayload(byte[] payload) {
+		this.payloadBuffer = null;
+		super.setPayload(payload);
+	}
+
+	@Override
+	public void setPayload(char[] payload) {
+		this.payloadBuffer = null;
+		super.setPayload(payload);
+	}
+
+	@Override
+	public ByteBuffer getPayloadBuffer() {
+		if (this.payloadBuffer != null) {
+			return this.payloadBuffer.duplicate();
+		}
+		byte[] payload = super.getPayload();
+		return ByteBuffer.wrap(payload == null ? new byte[0] : payload).asReadOnlyBuffer();
+	}
+
+	@Override
+	public InputStream getPayloadStream() {
+		return new ByteBufferInputStream(getPayloadBuffer());
+	}
+
 	@Override
 	public CoapRequestCode getRequestCode() {
 		return this.requestCode;
@@ -194,11 +263,22 @@ public class BasicCoapRequest extends AbstractCoapMessage implements CoapRequest
 			throw new IllegalStateException("Illegal Uri-Port Option length");
 		}
 		/* checked length -> cast is safe */
-		return (int) coapUint2Long(this.getOptions().getOption(CoapHeaderOptionType.Uri_Port).getOptionData());
+		return (int) option.getOptionUint();
 	}
 
 	@Override
 	public String getUriPath() throws IllegalArgumentException {
+		CoapMessageView undecoded = getUndecodedView();
+		if (undecoded != null) {
+			/*
+			 * the datagram is immutable, so the path is built once no matter
+			 * how often the server asks for it
+			 */
+			if (this.receivedUriPath == null) {
+				this.receivedUriPath = getUriPath(undecoded);
+			}
+			return this.receivedUriPath;
+		}
 		if (this.getOptions().getOption(CoapHeaderOptionType.Uri_Path) == null) {
 			return null;
 		}
@@ -217,6 +297,27 @@ public class BasicCoapRequest extends AbstractCoapMessage implements CoapRequest
 		}
 	}
 
+	private static String getUriPath(CoapMessageView view) throws IllegalArgumentException {
+		int uriPath = CoapHeaderOptionType.Uri_Path.getValue();
+		int index = view.indexOf(uriPath);
+		if (index < 0) {
+			return null;
+		}
+		StringBuilder uriPathBuilder = new StringBuilder();
+		try {
+			while (index >= 0) {
+				uriPathBuilder.append("/");
+				uriPathBuilder.append(new String(view.getData(), view.getOptionValueOffset(index),
+						view.getOptionValueLength(index), "UTF-8"));
+				index = view.nextIndexOf(uriPath, index + 1);
+			}
+			return URLDecoder.decode(uriPathBuilder.toString(), "UTF-8");
+		} catch (UnsupportedEncodingException e) {
+			logger.warn("Invalid Encoding");
+			throw new IllegalArgumentException("Invalid Encoding");
+		}
+	}
+
 	@Override
 	public void addAccept(CoapMediaType mediaType) {
 		this.getOptions().addOption(CoapHeaderOptionType.Accept, long2CoapUint(mediaType.getValue()));
@@ -230,7 +331,7 @@ public class BasicCoapRequest extends AbstractCoapMessage implements CoapRequest
 		Vector<CoapMediaType> acceptList = new Vector<CoapMediaType>();
 		for (CoapHeaderOption option : this.getOptions()) {
 			if (option.getOptionType() == CoapHeaderOptionType.Accept) {
-				CoapMediaType accept = CoapMediaType.parse((int) coapUint2Long(option.getOptionData()));
+				CoapMediaType accept = CoapMediaType.parse((int) option.getOptionUint());
 				// if (accept != CoapMediaType.UNKNOWN){
 				/* add also UNKNOWN types to list */
 				acceptList.add(accept);
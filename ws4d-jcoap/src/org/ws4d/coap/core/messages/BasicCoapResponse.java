@@ -31,7 +31,11 @@ public class BasicCoapResponse extends AbstractCoapMessage implements CoapRespon
 	}
 
 	public BasicCoapResponse(byte[] bytes, int length, int offset) {
-		deserialize(bytes, length, offset);
+		this(new CoapMessageView(bytes, offset, length));
+	}
+
+	BasicCoapResponse(CoapMessageView view) {
+		deserialize(view);
 		/*
 		 * check if response code is valid, this function throws an error in
 		 * case of an invalid argument
@@ -78,11 +82,8 @@ public class BasicCoapResponse extends AbstractCoapMessage implements CoapRespon
 
 	@Override
 	public long getMaxAge() {
-		CoapHeaderOption option = this.getOptions().getOption(CoapHeaderOptionType.Max_Age);
-		if (option == null) {
-			return -1;
-		}
-		return coapUint2Long((this.getOptions().getOption(CoapHeaderOptionType.Max_Age).getOptionData()));
+		/* -1 if the option is not present */
+		return this.getOptions().getOptionUint(CoapHeaderOptionType.Max_Age);
 	}
 
 	@Override
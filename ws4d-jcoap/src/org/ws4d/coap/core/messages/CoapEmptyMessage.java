@@ -27,7 +27,11 @@ public class CoapEmptyMessage extends AbstractCoapMessage {
 	}
 
 	public CoapEmptyMessage(byte[] bytes, int length, int offset) {
-		deserialize(bytes, length, offset);
+		this(new CoapMessageView(bytes, offset, length));
+	}
+
+	CoapEmptyMessage(CoapMessageView view) {
+		deserialize(view);
 		/*
 		 * check if response code is valid, this function throws an error in
 		 * case of an invalid argument
@@ -36,7 +40,7 @@ public class CoapEmptyMessage extends AbstractCoapMessage {
 			throw new IllegalArgumentException("Not an empty CoAP message.");
 		}
 
-		if (length != HEADER_LENGTH) {
+		if (view.getLength() != HEADER_LENGTH) {
 			throw new IllegalArgumentException("Invalid length of an empty message");
 		}
 	}
@@ -1,5 +1,7 @@
 package org.ws4d.coap.core.messages;
 
+import java.nio.ByteBuffer;
+
 import org.ws4d.coap.core.enumerations.CoapHeaderOptionType;
 
 public class CoapHeaderOption implements Comparable<CoapHeaderOption> {
@@ -16,12 +18,22 @@ public class CoapHeaderOption implements Comparable<CoapHeaderOption> {
 	}
 
 	public CoapHeaderOption(CoapHeaderOptionType optionType, byte[] value) throws IllegalArgumentException{
+		this(optionType.getValue(), value);
+	}
+
+	/**
+	 * @param optionTypeValue
+	 *            - the option number, it may be unknown to this implementation
+	 * @param value
+	 *            - the option value
+	 */
+	public CoapHeaderOption(int optionTypeValue, byte[] value) throws IllegalArgumentException {
 		if (value == null) {
 			throw new IllegalArgumentException("Header option value MUST NOT be null");
 		}
 
-		this.optionType = optionType;
-		this.optionTypeValue = optionType.getValue();
+		this.optionType = CoapHeaderOptionType.parse(optionTypeValue);
+		this.optionTypeValue = optionTypeValue;
 		this.optionData = value;
 		if (value.length < 13) {
 			this.shortLength = value.length;
@@ -116,7 +128,36 @@ public class CoapHeaderOption implements Comparable<CoapHeaderOption> {
 		return this.optionData;
 	}
 
+	/**
+	 * @return The value decoded as unsigned integer (rfc7252 - 3.2) or -1, if
+	 *         the value is longer than 8 bytes
+	 */
+	public long getOptionUint() {
+		if (this.optionData.length > 8) {
+			return -1;
+		}
+		long value = 0;
+		for (int i = 0; i < this.optionData.length; i++) {
+			value = (value << 8) | (this.optionData[i] & 0xFF);
+		}
+		return value;
+	}
+
+	/**
+	 * @return The serialized length of this option following an option with
+	 *         the number 0
+	 */
 	public int getSerializeLength() {
+		return getSerializeLength(0);
+	}
+
+	/**
+	 * @param lastOptionNumber
+	 *            - the number of the preceding option, the delta determines
+	 *            the length of the option header
+	 * @return The serialized length of this option
+	 */
+	public int getSerializeLength(int lastOptionNumber) {
 		int serializedLength = this.optionData.length;
 		if (hasLongLength()) {
 			// If shortLength is 14, two extra length bytes follow the
@@ -133,11 +174,12 @@ public class CoapHeaderOption implements Comparable<CoapHeaderOption> {
 			serializedLength++;
 		}
 
-		if (this.optionTypeValue > 13) {
+		int optionDelta = this.optionTypeValue - lastOptionNumber;
+		if (optionDelta > 12) {
 			serializedLength++;
 		}
 
-		if (this.optionTypeValue > 268) {
+		if (optionDelta > 268) {
 			serializedLength++;
 		}
 
@@ -157,18 +199,48 @@ public class CoapHeaderOption implements Comparable<CoapHeaderOption> {
 		return this.optionType;
 	}
 
+	/**
+	 * Writes this option at the position of the buffer and advances it.
+	 * 
+	 * @param buffer
+	 *            - the buffer to write to
+	 * @param lastOptionNumber
+	 *            - the number of the preceding option
+	 * @throws java.nio.BufferOverflowException
+	 *             if the remaining space of the buffer is too small
+	 */
+	public void serializeInto(ByteBuffer buffer, int lastOptionNumber) {
+		int optionDelta = this.optionTypeValue - lastOptionNumber;
+		int valueLength = this.optionData.length;
+		int deltaNibble = optionDelta < 13 ? optionDelta : (optionDelta < 269 ? 13 : 14);
+		int lengthNibble = valueLength < 13 ? valueLength : (valueLength < 269 ? 13 : 14);
+
+		buffer.put((byte) ((deltaNibble << 4) | lengthNibble));
+		if (deltaNibble == 13) {
+			buffer.put((byte) (optionDelta - 13));
+		} else if (deltaNibble == 14) {
+			buffer.putShort((short) (optionDelta - 269));
+		}
+		if (lengthNibble == 13) {
+			buffer.put((byte) (valueLength - 13));
+		} else if (lengthNibble == 14) {
+			buffer.putShort((short) (valueLength - 269));
+		}
+		buffer.put(this.optionData);
+	}
+
 	public byte[] serializeOption(int lastOptionNumber) {
 
-		byte[] data = new byte[this.getSerializeLength()];
+		byte[] data = new byte[this.getSerializeLength(lastOptionNumber)];
 		int arrayIndex = 0;
 
 		int optionDelta = this.getOptionTypeValue() - lastOptionNumber;
 		if (optionDelta > 12 && optionDelta < 269) {
 			data[arrayIndex++] = (byte) (((13 & 0x0F) << 4) | (this.getShortLength() & 0x0F));
-			data[arrayIndex++] = (byte) (((optionDelta - 13) & 0x0F));
+			data[arrayIndex++] = (byte) ((optionDelta - 13) & 0xFF);
 		} else if (optionDelta >= 269) {
 			data[arrayIndex++] = (byte) (((14 & 0x0F) << 4) | (this.getShortLength() & 0x0F));
-			data[arrayIndex++] = (byte) (((optionDelta - 269) & 0xFFFF >> 8));
+			data[arrayIndex++] = (byte) (((optionDelta - 269) >> 8) & 0xFF);
 			data[arrayIndex++] = (byte) (((optionDelta - 269) & 0xFF));
 		} else {
 			data[arrayIndex++] = (byte) (((optionDelta & 0x0F) << 4) | (this.getShortLength() & 0x0F));
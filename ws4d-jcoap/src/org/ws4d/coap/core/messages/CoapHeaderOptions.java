@@ -1,16 +1,35 @@
 package org.ws4d.coap.core.messages;
 
-import java.util.Collections;
+import java.nio.ByteBuffer;
 import java.util.Iterator;
-import java.util.Vector;
+import java.util.NoSuchElementException;
 
 import org.ws4d.coap.core.enumerations.CoapHeaderOptionType;
 
+/**
+ * The options of a message, sorted by option number. Options with the same
+ * number keep the order in which they were added.<br>
+ * <br>
+ * The options are kept in a table of two arrays, the option numbers and the
+ * options, so the numbers are searched without touching the option objects.
+ * A bitmask marks the option numbers below 64 that are present, which covers
+ * all options defined so far; a lookup of an absent option is a single bit
+ * test. The uint accessors decode values without allocating.<br>
+ * <br>
+ * This class is not thread safe.
+ */
 public class CoapHeaderOptions implements Iterable<CoapHeaderOption> {
 
-	private Vector<CoapHeaderOption> headerOptions = new Vector<CoapHeaderOption>();
+	private static final int INITIAL_CAPACITY = 8;
+	/* option numbers below this are tracked in the presence mask */
+	private static final int MASK_BITS = 64;
+
+	private int[] numbers = new int[INITIAL_CAPACITY];
+	private CoapHeaderOption[] options = new CoapHeaderOption[INITIAL_CAPACITY];
+	private int count = 0;
+	/** bit n is set, if an option with the number n < 64 is present */
+	private long present = 0;
 	private int deserializedLength;
-	private int serializedLength = 0;
 
 	/*
 	 * public CoapHeaderOptions(byte[] bytes, int option_count){ this(bytes,
@@ -23,7 +42,7 @@ public class CoapHeaderOptions implements Iterable<CoapHeaderOption> {
 		this.deserializedLength = 0;
 		int lastOptionNumber = 0;
 		int optionOffset = offset;
-		while (bytes[optionOffset] != -1 && optionOffset < length - 1) {
+		while (optionOffset < length && bytes[optionOffset] != -1) {
 			CoapHeaderOption option = new CoapHeaderOption(bytes, optionOffset, lastOptionNumber);
 			lastOptionNumber = option.getOptionTypeValue();
 			this.deserializedLength += option.getDeserializedLength();
@@ -37,34 +56,78 @@ public class CoapHeaderOptions implements Iterable<CoapHeaderOption> {
 	}
 
 	public CoapHeaderOption getOption(int optionNumber) {
-		for (CoapHeaderOption headerOption : this.headerOptions) {
-			if (headerOption.getOptionTypeValue() == optionNumber) {
-				return headerOption;
-			}
-		}
-		return null;
+		int index = indexOf(optionNumber);
+		return index < 0 ? null : this.options[index];
 	}
 
 	public CoapHeaderOption getOption(CoapHeaderOptionType optionType) {
-		for (CoapHeaderOption headerOption : this.headerOptions) {
-			if (headerOption.getOptionTypeValue() == optionType.getValue()) {
-				return headerOption;
-			}
-		}
-		return null;
+		return getOption(optionType.getValue());
 	}
 
 	public boolean optionExists(CoapHeaderOptionType optionType) {
-		CoapHeaderOption option = getOption(optionType);
-		if (option == null) {
-			return false;
+		return optionExists(optionType.getValue());
+	}
+
+	public boolean optionExists(int optionNumber) {
+		if (optionNumber >= 0 && optionNumber < MASK_BITS) {
+			return (this.present & (1L << optionNumber)) != 0;
+		}
+		return indexOf(optionNumber) >= 0;
+	}
+
+	/**
+	 * @return The value of the first option with this number decoded as
+	 *         unsigned integer (rfc7252 - 3.2) or -1, if the option is not
+	 *         present or longer than 8 bytes
+	 */
+	public long getOptionUint(int optionNumber) {
+		int index = indexOf(optionNumber);
+		return index < 0 ? -1 : this.options[index].getOptionUint();
+	}
+
+	public long getOptionUint(CoapHeaderOptionType optionType) {
+		return getOptionUint(optionType.getValue());
+	}
+
+	/**
+	 * @return The number of options with this number
+	 */
+	public int countOptions(int optionNumber) {
+		int index = indexOf(optionNumber);
+		if (index < 0) {
+			return 0;
+		}
+		int end = index;
+		while (end < this.count && this.numbers[end] == optionNumber) {
+			end++;
 		}
-		return true;
+		return end - index;
 	}
 
 	public void addOption(CoapHeaderOption option) {
-		this.headerOptions.add(option);
-		Collections.sort(this.headerOptions);
+		int number = option.getOptionTypeValue();
+		if (this.count == this.numbers.length) {
+			int capacity = this.numbers.length * 2;
+			int[] grownNumbers = new int[capacity];
+			CoapHeaderOption[] grownOptions = new CoapHeaderOption[capacity];
+			System.arraycopy(this.numbers, 0, grownNumbers, 0, this.count);
+			System.arraycopy(this.options, 0, grownOptions, 0, this.count);
+			this.numbers = grownNumbers;
+			this.options = grownOptions;
+		}
+		/* behind all options with a lower or equal number */
+		int index = this.count;
+		if (index > 0 && this.numbers[index - 1] > number) {
+			index = upperBound(number);
+			System.arraycopy(this.numbers, index, this.numbers, index + 1, this.count - index);
+			System.arraycopy(this.options, index, this.options, index + 1, this.count - index);
+		}
+		this.numbers[index] = number;
+		this.options[index] = option;
+		this.count++;
+		if (number >= 0 && number < MASK_BITS) {
+			this.present |= 1L << number;
+		}
 	}
 
 	public void addOption(CoapHeaderOptionType optionType, byte[] value) {
@@ -72,85 +135,176 @@ public class CoapHeaderOptions implements Iterable<CoapHeaderOption> {
 	}
 
 	public void removeOption(CoapHeaderOptionType optionType) {
-		CoapHeaderOption headerOption;
-		// get elements of Vector
-
-		/*
-		 * note: iterating over and changing a vector at the same time is
-		 * not allowed
-		 */
-		int i = 0;
-		while (i < this.headerOptions.size()) {
-			headerOption = this.headerOptions.get(i);
-			if (headerOption.getOptionTypeValue() == optionType.getValue()) {
-				this.headerOptions.remove(i);
-			} else {
-				/* only increase when no element was removed */
-				i++;
-			}
+		removeOption(optionType.getValue());
+	}
+
+	/**
+	 * Removes all options with this number
+	 */
+	public void removeOption(int optionNumber) {
+		int index = indexOf(optionNumber);
+		if (index < 0) {
+			return;
+		}
+		int removed = countOptions(optionNumber);
+		int tail = this.count - index - removed;
+		System.arraycopy(this.numbers, index + removed, this.numbers, index, tail);
+		System.arraycopy(this.options, index + removed, this.options, index, tail);
+		for (int i = this.count - removed; i < this.count; i++) {
+			this.options[i] = null;
+		}
+		this.count -= removed;
+		if (optionNumber >= 0 && optionNumber < MASK_BITS) {
+			this.present &= ~(1L << optionNumber);
+		}
+	}
+
+	private void removeAt(int index) {
+		int number = this.numbers[index];
+		System.arraycopy(this.numbers, index + 1, this.numbers, index, this.count - index - 1);
+		System.arraycopy(this.options, index + 1, this.options, index, this.count - index - 1);
+		this.count--;
+		this.options[this.count] = null;
+		if (number >= 0 && number < MASK_BITS && indexOf(number) < 0) {
+			this.present &= ~(1L << number);
 		}
-		Collections.sort(this.headerOptions);
 	}
 
 	public void removeAll() {
-		this.headerOptions.clear();
+		for (int i = 0; i < this.count; i++) {
+			this.options[i] = null;
+		}
+		this.count = 0;
+		this.present = 0;
 	}
 
 	public void copyFrom(CoapHeaderOptions origin) {
-		for (CoapHeaderOption option : origin) {
-			addOption(option);
+		for (int i = 0; i < origin.count; i++) {
+			addOption(origin.options[i]);
 		}
 	}
 
-	public int getOptionCount() {
-		return this.headerOptions.size();
+	/**
+	 * @return The index of the first option with this number or -1
+	 */
+	private int indexOf(int optionNumber) {
+		if (optionNumber >= 0 && optionNumber < MASK_BITS && (this.present & (1L << optionNumber)) == 0) {
+			return -1;
+		}
+		/* binary search for the lower bound */
+		int low = 0;
+		int high = this.count;
+		while (low < high) {
+			int mid = (low + high) >>> 1;
+			if (this.numbers[mid] < optionNumber) {
+				low = mid + 1;
+			} else {
+				high = mid;
+			}
+		}
+		if (low < this.count && this.numbers[low] == optionNumber) {
+			return low;
+		}
+		return -1;
 	}
 
-	public byte[] serialize() {
-		/*
-		 * options are serialized here to be more efficient (only one byte
-		 * array necessary)
-		 */
-		int length = 0;
-
-		/* calculate the overall length first */
-		for (CoapHeaderOption option : this.headerOptions) {
-			length += option.getSerializeLength();
+	/**
+	 * @return The index behind the last option with a number lower or equal
+	 *         to optionNumber
+	 */
+	private int upperBound(int optionNumber) {
+		int low = 0;
+		int high = this.count;
+		while (low < high) {
+			int mid = (low + high) >>> 1;
+			if (this.numbers[mid] <= optionNumber) {
+				low = mid + 1;
+			} else {
+				high = mid;
+			}
 		}
+		return low;
+	}
 
-		byte[] data = new byte[length];
-		byte[] opt = null;
-		int arrayIndex = 0;
+	public int getOptionCount() {
+		return this.count;
+	}
 
-		int lastOptionNumber = 0; /* let's keep track of this */
-		for (CoapHeaderOption headerOption : this.headerOptions) {
-			opt = headerOption.serializeOption(lastOptionNumber);
-			for (int i = 0; i < opt.length; i++) {
-				data[arrayIndex++] = opt[i];
-			}
-			lastOptionNumber = headerOption.getOptionTypeValue();
-		}
-		this.serializedLength = length;
+	public byte[] serialize() {
+		byte[] data = new byte[getSerializedLength()];
+		serializeInto(ByteBuffer.wrap(data));
 		return data;
 	}
 
+	/**
+	 * Writes the options at the position of the buffer and advances it. In
+	 * contrast to {@link #serialize()} nothing is allocated.
+	 * 
+	 * @throws java.nio.BufferOverflowException
+	 *             if the remaining space of the buffer is too small
+	 */
+	public void serializeInto(ByteBuffer buffer) {
+		int lastOptionNumber = 0;
+		for (int i = 0; i < this.count; i++) {
+			this.options[i].serializeInto(buffer, lastOptionNumber);
+			lastOptionNumber = this.numbers[i];
+		}
+	}
+
 	public int getDeserializedLength() {
 		return this.deserializedLength;
 	}
 
+	/**
+	 * @return The length of the serialized options
+	 */
 	public int getSerializedLength() {
-		return this.serializedLength;
+		int length = 0;
+		int lastOptionNumber = 0;
+		for (int i = 0; i < this.count; i++) {
+			length += this.options[i].getSerializeLength(lastOptionNumber);
+			lastOptionNumber = this.numbers[i];
+		}
+		return length;
 	}
 
 	@Override
 	public Iterator<CoapHeaderOption> iterator() {
-		return this.headerOptions.iterator();
+		return new Iterator<CoapHeaderOption>() {
+			private int next = 0;
+			private int last = -1;
+
+			@Override
+			public boolean hasNext() {
+				return this.next < CoapHeaderOptions.this.count;
+			}
+
+			@Override
+			public CoapHeaderOption next() {
+				if (!hasNext()) {
+					throw new NoSuchElementException();
+				}
+				this.last = this.next++;
+				return CoapHeaderOptions.this.options[this.last];
+			}
+
+			@Override
+			public void remove() {
+				if (this.last < 0) {
+					throw new IllegalStateException();
+				}
+				removeAt(this.last);
+				this.next = this.last;
+				this.last = -1;
+			}
+		};
 	}
 
 	@Override
 	public String toString() {
 		String result = "\tOptions:\n";
-		for (CoapHeaderOption option : this.headerOptions) {
+		for (int i = 0; i < this.count; i++) {
+			CoapHeaderOption option = this.options[i];
 			result += "\t\t" + option.toString() + "\n";
 		}
 		return result;
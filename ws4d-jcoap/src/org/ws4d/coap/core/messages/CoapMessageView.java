@@ -0,0 +1,385 @@
+/* Copyright 2016 University of Rostock
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *****************************************************************************/
+
+package org.ws4d.coap.core.messages;
+
+import org.ws4d.coap.core.enumerations.CoapHeaderOptionType;
+import org.ws4d.coap.core.enumerations.CoapPacketType;
+import org.ws4d.coap.core.messages.api.CoapMessage;
+
+/**
+ * A read only view of a serialized CoAP message. Wrapping a datagram validates
+ * the header and indexes the options in a single pass; nothing is copied and,
+ * once the index has grown to the number of options, nothing is allocated.
+ * Header fields and option values are read directly from the datagram.<br>
+ * <br>
+ * A view can be reused for any number of datagrams, e.g. to check a received
+ * datagram for duplicates before a message is created. {@link #toMessage()}
+ * creates a message backed by the same datagram, which decodes its token,
+ * options and payload when they are accessed first. The datagram must not be
+ * modified as long as a view or message refers to it.<br>
+ * <br>
+ * This class is <b>not thread safe</b>.
+ */
+public class CoapMessageView {
+
+	private static final int HEADER_LENGTH = 4;
+	private static final int PAYLOAD_MARKER = 0xFF;
+	private static final byte[] EMPTY_TOKEN = new byte[0];
+
+	private byte[] data;
+	private int offset;
+	private int length;
+
+	/* three ints per option: number, value offset and value length */
+	private int[] options;
+	private int optionCount;
+	private int payloadOffset;
+
+	public CoapMessageView() {
+		this.options = new int[8 * 3];
+	}
+
+	/**
+	 * Creates a view of a datagram, see {@link #wrap(byte[], int, int)}
+	 */
+	public CoapMessageView(byte[] data, int offset, int length) {
+		this();
+		wrap(data, offset, length);
+	}
+
+	/**
+	 * Wraps a serialized message. The header and the options are validated.
+	 *
+	 * @param bytes
+	 *            - the datagram
+	 * @param off
+	 *            - the offset of the message in the datagram
+	 * @param len
+	 *            - the length of the message
+	 * @return this view
+	 * @throws IllegalArgumentException
+	 *             if the message is malformed or contains an unknown critical
+	 *             option
+	 */
+	public CoapMessageView wrap(byte[] bytes, int off, int len) throws IllegalArgumentException {
+		this.data = null;
+		this.optionCount = 0;
+		this.payloadOffset = -1;
+		if (bytes == null || off < 0 || len < HEADER_LENGTH || off + len > bytes.length) {
+			throw new IllegalArgumentException("Invalid CoAP message length");
+		}
+		if (((bytes[off] >> 6) & 0x03) != 1) {
+			throw new IllegalArgumentException("Unsupported CoAP version");
+		}
+		int tokenLength = bytes[off] & 0x0F;
+		if (tokenLength > 8) {
+			throw new IllegalArgumentException("Invalid token length");
+		}
+		int end = off + len;
+		int pos = off + HEADER_LENGTH + tokenLength;
+		if (pos > end) {
+			throw new IllegalArgumentException("Message too short for token");
+		}
+
+		int number = 0;
+		while (pos < end) {
+			int b = bytes[pos++] & 0xFF;
+			if (b == PAYLOAD_MARKER) {
+				if (pos == end) {
+					/* rfc7252 - 3. a marker followed by zero bytes is a format error */
+					throw new IllegalArgumentException("Payload marker without payload");
+				}
+				this.payloadOffset = pos;
+				break;
+			}
+			int delta = b >> 4;
+			int valueLength = b & 0x0F;
+			if (delta == 13) {
+				if (pos + 1 > end) {
+					throw new IllegalArgumentException("Truncated option delta");
+				}
+				delta = 13 + (bytes[pos++] & 0xFF);
+			} else if (delta == 14) {
+				if (pos + 2 > end) {
+					throw new IllegalArgumentException("Truncated option delta");
+				}
+				delta = 269 + (((bytes[pos] & 0xFF) << 8) | (bytes[pos + 1] & 0xFF));
+				pos += 2;
+			} else if (delta == 15) {
+				throw new IllegalArgumentException("Invalid option delta");
+			}
+			if (valueLength == 13) {
+				if (pos + 1 > end) {
+					throw new IllegalArgumentException("Truncated option length");
+				}
+				valueLength = 13 + (bytes[pos++] & 0xFF);
+			} else if (valueLength == 14) {
+				if (pos + 2 > end) {
+					throw new IllegalArgumentException("Truncated option length");
+				}
+				valueLength = 269 + (((bytes[pos] & 0xFF) << 8) | (bytes[pos + 1] & 0xFF));
+				pos += 2;
+			} else if (valueLength == 15) {
+				throw new IllegalArgumentException("Invalid option length");
+			}
+			number += delta;
+			if (pos + valueLength > end) {
+				throw new IllegalArgumentException("Truncated option value");
+			}
+			if ((number & 1) == 1 && CoapHeaderOptionType.parse(number) == null) {
+				throw new IllegalArgumentException("Unknown critical header option: " + number);
+			}
+			addOption(number, pos, valueLength);
+			pos += valueLength;
+		}
+
+		this.data = bytes;
+		this.offset = off;
+		this.length = len;
+		return this;
+	}
+
+	private void addOption(int number, int valueOffset, int valueLength) {
+		int i = this.optionCount * 3;
+		if (i == this.options.length) {
+			int[] grown = new int[this.options.length * 2];
+			System.arraycopy(this.options, 0, grown, 0, this.options.length);
+			this.options = grown;
+		}
+		this.options[i] = number;
+		this.options[i + 1] = valueOffset;
+		this.options[i + 2] = valueLength;
+		this.optionCount++;
+	}
+
+	/**
+	 * @return An independent view of the same datagram with an index of its
+	 *         own, so this view can be reused
+	 */
+	public CoapMessageView copy() {
+		checkWrapped();
+		CoapMessageView copy = new CoapMessageView(this.optionCount);
+		System.arraycopy(this.options, 0, copy.options, 0, this.optionCount * 3);
+		copy.data = this.data;
+		copy.offset = this.offset;
+		copy.length = this.length;
+		copy.optionCount = this.optionCount;
+		copy.payloadOffset = this.payloadOffset;
+		return copy;
+	}
+
+	private CoapMessageView(int optionCount) {
+		this.options = new int[optionCount * 3];
+	}
+
+	/**
+	 * Creates a message backed by the datagram of this view. The view can be
+	 * reused afterwards.
+	 *
+	 * @return The message
+	 * @throws IllegalArgumentException
+	 *             if the message code is invalid
+	 */
+	public CoapMessage toMessage() throws IllegalArgumentException {
+		return AbstractCoapMessage.parseMessage(copy());
+	}
+
+	private void checkWrapped() {
+		if (this.data == null) {
+			throw new IllegalStateException("No message wrapped");
+		}
+	}
+
+	/**
+	 * @return The wrapped datagram
+	 */
+	public byte[] getData() {
+		return this.data;
+	}
+
+	public int getOffset() {
+		return this.offset;
+	}
+
+	public int getLength() {
+		return this.length;
+	}
+
+	public int getVersion() {
+		return (this.data[this.offset] >> 6) & 0x03;
+	}
+
+	public CoapPacketType getPacketType() {
+		return CoapPacketType.parse((this.data[this.offset] & 0x30) >> 4);
+	}
+
+	public int getMessageCodeValue() {
+		return this.data[this.offset + 1] & 0xFF;
+	}
+
+	public int getMessageID() {
+		return ((this.data[this.offset + 2] & 0xFF) << 8) | (this.data[this.offset + 3] & 0xFF);
+	}
+
+	public boolean isEmpty() {
+		return getMessageCodeValue() == 0;
+	}
+
+	public boolean isRequest() {
+		int code = getMessageCodeValue();
+		return code > 0 && code <= 31;
+	}
+
+	public boolean isResponse() {
+		int code = getMessageCodeValue();
+		return code >= 64 && code <= 191;
+	}
+
+	public int getTokenLength() {
+		return this.data[this.offset] & 0x0F;
+	}
+
+	/**
+	 * @return A copy of the token, an empty array if the message has no token
+	 */
+	public byte[] getToken() {
+		int tokenLength = getTokenLength();
+		if (tokenLength == 0) {
+			return EMPTY_TOKEN;
+		}
+		byte[] token = new byte[tokenLength];
+		System.arraycopy(this.data, this.offset + HEADER_LENGTH, token, 0, tokenLength);
+		return token;
+	}
+
+	public int getOptionCount() {
+		return this.optionCount;
+	}
+
+	/**
+	 * @param index
+	 *            - the index of the option, options are ordered by number
+	 */
+	public int getOptionNumber(int index) {
+		return this.options[index * 3];
+	}
+
+	/**
+	 * @return The offset of the option value in the datagram
+	 */
+	public int getOptionValueOffset(int index) {
+		return this.options[index * 3 + 1];
+	}
+
+	public int getOptionValueLength(int index) {
+		return this.options[index * 3 + 2];
+	}
+
+	/**
+	 * @return The index of the first option with this number or -1, if the
+	 *         message has no such option
+	 */
+	public int indexOf(int optionNumber) {
+		return nextIndexOf(optionNumber, 0);
+	}
+
+	/**
+	 * @return The index of the next option with this number, starting at
+	 *         fromIndex, or -1, if the message has no further such option
+	 */
+	public int nextIndexOf(int optionNumber, int fromIndex) {
+		for (int i = fromIndex; i < this.optionCount; i++) {
+			int number = this.options[i * 3];
+			if (number == optionNumber) {
+				return i;
+			}
+			if (number > optionNumber) {
+				break;
+			}
+		}
+		return -1;
+	}
+
+	public boolean hasOption(int optionNumber) {
+		return indexOf(optionNumber) >= 0;
+	}
+
+	/**
+	 * @return A copy of the value of an option
+	 */
+	public byte[] getOptionValue(int index) {
+		byte[] value = new byte[getOptionValueLength(index)];
+		System.arraycopy(this.data, getOptionValueOffset(index), value, 0, value.length);
+		return value;
+	}
+
+	/**
+	 * Decodes the value of an option as an unsigned integer (rfc7252 - 3.2)
+	 * without allocating.
+	 *
+	 * @return The value or -1, if the value is longer than 8 bytes
+	 */
+	public long getOptionUint(int index) {
+		int valueLength = getOptionValueLength(index);
+		if (valueLength > 8) {
+			return -1;
+		}
+		int valueOffset = getOptionValueOffset(index);
+		long value = 0;
+		for (int i = 0; i < valueLength; i++) {
+			value = (value << 8) | (this.data[valueOffset + i] & 0xFF);
+		}
+		return value;
+	}
+
+	/**
+	 * @return The offset of the payload in the datagram or -1, if the message
+	 *         has no payload marker
+	 */
+	public int getPayloadOffset() {
+		return this.payloadOffset;
+	}
+
+	public int getPayloadLength() {
+		if (this.payloadOffset < 0) {
+			return 0;
+		}
+		return this.offset + this.length - this.payloadOffset;
+	}
+
+	/**
+	 * @return A copy of the payload or null, if the message has no payload
+	 */
+	public byte[] getPayload() {
+		if (this.payloadOffset < 0) {
+			return null;
+		}
+		byte[] payload = new byte[getPayloadLength()];
+		System.arraycopy(this.data, this.payloadOffset, payload, 0, payload.length);
+		return payload;
+	}
+
+	/**
+	 * @return The decoded options
+	 */
+	public CoapHeaderOptions getOptions() {
+		CoapHeaderOptions headerOptions = new CoapHeaderOptions();
+		for (int i = 0; i < this.optionCount; i++) {
+			headerOptions.addOption(new CoapHeaderOption(getOptionNumber(i), getOptionValue(i)));
+		}
+		return headerOptions;
+	}
+}
@@ -15,6 +15,8 @@
 
 package org.ws4d.coap.core.messages.api;
 
+import java.nio.ByteBuffer;
+
 import org.ws4d.coap.core.connection.api.CoapChannel;
 import org.ws4d.coap.core.enumerations.CoapHeaderOptionType;
 import org.ws4d.coap.core.enumerations.CoapMediaType;
@@ -52,6 +54,23 @@ public interface CoapMessage {
 	 */
 	public byte[] serialize();
 
+	/**
+	 * Writes the serialized CoAP message at the position of the buffer and
+	 * advances it. In contrast to {@link #serialize()} no memory is allocated.
+	 * 
+	 * @param buffer
+	 *            - the buffer to write to, e.g. a pooled direct buffer
+	 * @throws java.nio.BufferOverflowException
+	 *             if the remaining space of the buffer is too small. The
+	 *             position of the buffer is undefined in this case.
+	 */
+	public void serializeInto(ByteBuffer buffer);
+
+	/**
+	 * @return The length of the serialized CoAP message in bytes.
+	 */
+	public int getSerializedLength();
+
 	/**
 	 * increments the retransmission counter and doubles the timeout
 	 */
@@ -149,6 +168,33 @@ public interface CoapMessage {
 	 */
 	void setBlock2(CoapBlockOption blockOption);
 
+	/**
+	 * @return The Size1 option, i.e. the size of the whole request body of a
+	 *         block wise transfer or the largest body a server accepts, null
+	 *         if the option is not present (rfc7959 - 4).
+	 */
+	Integer getSize1();
+
+	/**
+	 * @param size
+	 *            The size in bytes of the whole request body or, in a 4.13
+	 *            response, the largest body the server accepts.
+	 */
+	void setSize1(int size);
+
+	/**
+	 * @return The Size2 option, i.e. the size of the whole representation of
+	 *         a block wise response, null if the option is not present
+	 *         (rfc7959 - 4).
+	 */
+	Integer getSize2();
+
+	/**
+	 * @param size
+	 *            The size in bytes of the whole representation.
+	 */
+	void setSize2(int size);
+
 	/**
 	 * 
 	 * @return
@@ -15,6 +15,8 @@
 
 package org.ws4d.coap.core.messages.api;
 
+import java.io.InputStream;
+import java.nio.ByteBuffer;
 import java.util.Vector;
 
 import org.ws4d.coap.core.enumerations.CoapMediaType;
@@ -153,6 +155,20 @@ public interface CoapRequest extends CoapMessage {
 	 * @param requestCode
 	 */
 	public void setRequestCode(CoapRequestCode requestCode);
+
+	/**
+	 * Reads the body without copying it. The body of a block wise PUT or POST
+	 * request is reassembled by the channel and may be kept in a memory
+	 * mapped file, {@link #getPayload()} copies it into a new array.
+	 * 
+	 * @return A read only buffer of the body, empty if there is none
+	 */
+	public ByteBuffer getPayloadBuffer();
+
+	/**
+	 * @return A stream of the body, see {@link #getPayloadBuffer()}
+	 */
+	public InputStream getPayloadStream();
 	
 	public CoapHeaderOptions getOptions();
 }
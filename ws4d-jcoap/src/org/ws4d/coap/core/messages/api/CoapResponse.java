@@ -16,6 +16,7 @@
 package org.ws4d.coap.core.messages.api;
 
 import org.ws4d.coap.core.enumerations.CoapResponseCode;
+import org.ws4d.coap.core.messages.CoapHeaderOptions;
 
 /**
  * @author Christian Lerche <christian.lerche@uni-rostock.de>
@@ -58,4 +59,6 @@ public interface CoapResponse extends CoapMessage {
 	 */
 	public void setResponseCode(CoapResponseCode responseCode);
 
+	public CoapHeaderOptions getOptions();
+
 }
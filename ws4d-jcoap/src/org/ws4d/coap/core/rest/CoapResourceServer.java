@@ -21,38 +21,70 @@ import java.net.SocketException;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.util.Enumeration;
-import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Vector;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.ws4d.coap.core.CoapServer;
 import org.ws4d.coap.core.CoapConstants;
 import org.ws4d.coap.core.connection.BasicCoapChannelManager;
+import org.ws4d.coap.core.connection.FairRequestScheduler;
 import org.ws4d.coap.core.connection.api.CoapServerChannel;
+import org.ws4d.coap.core.connection.api.ServerChannelListener;
 import org.ws4d.coap.core.enumerations.CoapMediaType;
+import org.ws4d.coap.core.enumerations.CoapPacketType;
 import org.ws4d.coap.core.enumerations.CoapRequestCode;
 import org.ws4d.coap.core.enumerations.CoapResponseCode;
+import org.ws4d.coap.core.messages.CoapBlockOption;
 import org.ws4d.coap.core.messages.api.CoapRequest;
 import org.ws4d.coap.core.messages.api.CoapResponse;
+import org.ws4d.coap.core.rest.api.AsyncCoapResource;
 import org.ws4d.coap.core.rest.api.CoapResource;
 import org.ws4d.coap.core.rest.api.ResourceServer;
+import org.ws4d.coap.core.rest.api.StreamingCoapResource;
+import org.ws4d.coap.core.tools.BlockSlicer;
+import org.ws4d.coap.core.tools.CoapExecutors;
+import org.ws4d.coap.core.tools.CoapFuture;
 
 /**
  * @author Christian Lerche <christian.lerche@uni-rostock.de>
  * @author Bjrn Konieczek <bjoern.konieczek@uni-rostock.de>
  * @author Bjrn Butzin <bjoern.butzin@uni-rostock.de>
  */
-public class CoapResourceServer implements ResourceServer {
+public class CoapResourceServer implements ResourceServer, ServerChannelListener {
 	private static final Logger logger = LogManager.getLogger();
 	private int port = 0;
-	private Map<String, byte[]> etags = new HashMap<String, byte[]>();
-	private Map<String, CoapResource> resources = new HashMap<String, CoapResource>();
+	private Map<String, byte[]> etags = new ConcurrentHashMap<String, byte[]>();
+	private Map<String, CoapResource> resources = new ConcurrentHashMap<String, CoapResource>();
 	private CoreResource coreResource = new CoreResource(this);
 	/** toggle if the creation of resources is allowed on this server **/
 	private boolean allowCreate = true;
+	/** runs the request handling, i.e. the methods of the resources */
+	private Executor requestExecutor = CoapExecutors.inline();
+	/** time an asynchronous resource has until a separate response is used */
+	private volatile long ackDeadline = CoapConstants.ACK_DEADLINE_MS;
+	/** time an asynchronous resource has until the request is answered with 5.03 */
+	private volatile long asyncTimeout = CoapConstants.ASYNC_RESPONSE_TIMEOUT_MS;
+	/** requests beyond this limit are answered with 5.03 or dropped */
+	private volatile int maxPendingRequests = CoapConstants.MAX_PENDING_REQUESTS;
+	private AtomicInteger pendingRequests = new AtomicInteger();
+	private AtomicLong shedRequests = new AtomicLong();
+	private AtomicLong droppedRequests = new AtomicLong();
+	/** serve Block2 requests by slicing the current representation */
+	private volatile boolean statelessBlock2 = false;
+	/** the last tagged representation per resource path */
+	private Map<String, TaggedRepresentation> representationTags = new ConcurrentHashMap<String, TaggedRepresentation>();
 
 	public Map<String, CoapResource> getResources() {
 		return this.resources;
@@ -85,7 +117,11 @@ public class CoapResourceServer implements ResourceServer {
 	@Override
 	public boolean updateResource(CoapResource resource, CoapRequest request) {
 		if (null != resource && this.resources.containsKey(resource.getPath())) {
-			resource.put(request.getPayload(), request.getContentType());
+			if (resource instanceof StreamingCoapResource) {
+				((StreamingCoapResource) resource).put(request.getPayloadBuffer(), request.getContentType());
+			} else {
+				resource.put(request.getPayload(), request.getContentType());
+			}
 			generateEtag(resource);
 			logger.info("updated ressource: " + resource.getPath());
 			return true;
@@ -95,8 +131,9 @@ public class CoapResourceServer implements ResourceServer {
 
 	@Override
 	public boolean deleteResource(String path) {
-		if (null != this.resources.remove(path)) {
+		if (null != path && null != this.resources.remove(path)) {
 			this.etags.remove(path);
+			this.representationTags.remove(path);
 			logger.info("deleted ressource: " + path);
 			this.coreResource.changed();
 			return true;
@@ -107,9 +144,16 @@ public class CoapResourceServer implements ResourceServer {
 	@Override
 	public final CoapResource getResource(String path) {
 		logger.info("read ressource: " + path);
+		if (null == path) {
+			return null;
+		}
 		return this.resources.get(path);
 	}
 
+	private byte[] getEtag(String path) {
+		return (null == path) ? null : this.etags.get(path);
+	}
+
 	@Override
 	public void start() throws Exception {
 		start(CoapConstants.COAP_DEFAULT_PORT);
@@ -126,10 +170,151 @@ public class CoapResourceServer implements ResourceServer {
 	 * @see {@link #start()} To start the server on the standard port
 	 */
 	public void start(int serverport) throws Exception {
+		start(serverport, 1);
+	}
+
+	/**
+	 * Start the ResourceServer with several sockets bound to the same port, so
+	 * that the request processing scales across cores. Requires SO_REUSEPORT,
+	 * otherwise a single socket is used.
+	 * 
+	 * @param serverport
+	 *            - The port to be used.
+	 * @param sockets
+	 *            - The number of sockets to open on this port.
+	 * @throws Exception
+	 *             if the connection can not be established
+	 */
+	public void start(int serverport, int sockets) throws Exception {
 		this.coreResource = new CoreResource(this);
 		this.resources.put(this.coreResource.getPath(), this.coreResource);
 		this.port = serverport;
-		BasicCoapChannelManager.getInstance().createServerListener(this, this.port);
+		BasicCoapChannelManager.getInstance().createServerListener(this, this.port, sockets, this.requestExecutor);
+	}
+
+	/**
+	 * Sets the executor that handles the requests, i.e. calls the methods of
+	 * the resources. The default handles them on the threads of the socket,
+	 * so a resource that blocks delays other requests. See
+	 * {@link CoapExecutors} for a bounded pool or a virtual thread per
+	 * request, and {@link FairRequestScheduler} to share the handling fairly
+	 * among the clients. Takes effect with the next start of the server.
+	 * 
+	 * @param executor
+	 *            - the executor of the request handling
+	 */
+	public void setRequestExecutor(Executor executor) {
+		if (executor == null) {
+			throw new IllegalArgumentException("request executor must not be null");
+		}
+		this.requestExecutor = executor;
+	}
+
+	public Executor getRequestExecutor() {
+		return this.requestExecutor;
+	}
+
+	/**
+	 * Sets the time an {@link AsyncCoapResource} has to provide its value for
+	 * a CON request. If the value is available in time, the response is
+	 * piggybacked on the ACK. Otherwise the request is acknowledged with an
+	 * empty ACK and the value is sent in a separate CON response. The default
+	 * is {@link CoapConstants#ACK_DEADLINE_MS}.
+	 * 
+	 * @param ackDeadline
+	 *            - the deadline in ms, 0 to always send a separate response
+	 */
+	public void setAckDeadline(long ackDeadline) {
+		if (ackDeadline < 0) {
+			throw new IllegalArgumentException("ACK deadline must not be negative");
+		}
+		this.ackDeadline = ackDeadline;
+	}
+
+	public long getAckDeadline() {
+		return this.ackDeadline;
+	}
+
+	/**
+	 * Sets the time an {@link AsyncCoapResource} has to provide its value at
+	 * all. Afterwards the request is answered with 5.03 and no longer counts
+	 * as pending. The default is {@link CoapConstants#ASYNC_RESPONSE_TIMEOUT_MS}.
+	 * 
+	 * @param asyncTimeout
+	 *            - the timeout in ms, at least 1
+	 */
+	public void setAsyncTimeout(long asyncTimeout) {
+		if (asyncTimeout < 1) {
+			throw new IllegalArgumentException("Timeout must be at least 1");
+		}
+		this.asyncTimeout = asyncTimeout;
+	}
+
+	public long getAsyncTimeout() {
+		return this.asyncTimeout;
+	}
+
+	/**
+	 * Selects how large representations are transferred block wise. By
+	 * default the channel copies the representation and serves the blocks in
+	 * sequence. In stateless mode every Block2 request reads the current
+	 * representation of the resource and is answered with the requested
+	 * slice, so blocks can be fetched in any order and in parallel while the
+	 * server keeps no state per client. A client detects a change of the
+	 * representation during the transfer by the ETag each block carries.
+	 * Resources should return the same array as long as their value does not
+	 * change, otherwise the ETag is computed again for every block.
+	 * 
+	 * @param stateless
+	 *            - true to slice the representation on demand
+	 */
+	public void setStatelessBlock2(boolean stateless) {
+		this.statelessBlock2 = stateless;
+	}
+
+	public boolean isStatelessBlock2() {
+		return this.statelessBlock2;
+	}
+
+	/**
+	 * Sets the number of requests that are handled at the same time,
+	 * including requests to an {@link AsyncCoapResource} that wait for their
+	 * value. Further CON requests are answered with 5.03 and a Max-Age retry
+	 * hint, further NON requests are dropped.
+	 * 
+	 * @param maxPendingRequests
+	 *            - the high-water mark, at least 1
+	 */
+	public void setMaxPendingRequests(int maxPendingRequests) {
+		if (maxPendingRequests < 1) {
+			throw new IllegalArgumentException("At least one pending request is required");
+		}
+		this.maxPendingRequests = maxPendingRequests;
+	}
+
+	public int getMaxPendingRequests() {
+		return this.maxPendingRequests;
+	}
+
+	/**
+	 * @return The number of requests that are currently handled
+	 */
+	public int getPendingRequestCount() {
+		return this.pendingRequests.get();
+	}
+
+	/**
+	 * @return The number of CON requests answered with 5.03 due to overload
+	 */
+	public long getShedRequestCount() {
+		return this.shedRequests.get();
+	}
+
+	/**
+	 * @return The number of NON requests dropped due to overload
+	 */
+	public long getDroppedRequestCount() {
+		return this.droppedRequests.get();
 	}
 
 	@Override
@@ -173,6 +358,37 @@ public class CoapResourceServer implements ResourceServer {
 
 	@Override
 	public void onRequest(CoapServerChannel channel, CoapRequest request) {
+		if (this.pendingRequests.incrementAndGet() > this.maxPendingRequests) {
+			this.pendingRequests.decrementAndGet();
+			shedRequest(channel, request);
+			return;
+		}
+		boolean pending = false;
+		try {
+			pending = handleRequest(channel, request);
+		} finally {
+			if (!pending) {
+				this.pendingRequests.decrementAndGet();
+			}
+		}
+	}
+
+	private void shedRequest(CoapServerChannel channel, CoapRequest request) {
+		if (request.getPacketType() != CoapPacketType.CON) {
+			this.droppedRequests.incrementAndGet();
+			return;
+		}
+		this.shedRequests.incrementAndGet();
+		CoapResponse response = channel.createResponse(request, CoapResponseCode.Service_Unavailable_503);
+		response.setMaxAge(CoapConstants.SERVICE_UNAVAILABLE_MAX_AGE_S);
+		channel.sendMessage(response);
+	}
+
+	/**
+	 * @return True, if the request is still pending, i.e. an asynchronous
+	 *         resource answers it later
+	 */
+	private boolean handleRequest(CoapServerChannel channel, CoapRequest request) {
 		CoapResponse response = null;
 		CoapRequestCode requestCode = request.getRequestCode();
 		String targetPath = request.getUriPath();
@@ -182,7 +398,7 @@ public class CoapResourceServer implements ResourceServer {
 		switch (requestCode) {
 		case GET:
 			if (null != request.getETag()) {
-				eTagMatch = request.getETag().indexOf(this.etags.get(targetPath));
+				eTagMatch = request.getETag().indexOf(getEtag(targetPath));
 			}
 			if (null == resource) {
 				response = channel.createResponse(request, CoapResponseCode.Not_Found_404);
@@ -213,20 +429,14 @@ public class CoapResourceServer implements ResourceServer {
 					// accepted formats option not present
 					// URI queries
 					Vector<String> uriQueries = request.getUriQuery();
+					if (resource instanceof AsyncCoapResource) {
+						new AsyncResponse(channel, request, resource)
+								.start(((AsyncCoapResource) resource).getAsync(uriQueries, mediaTypesAccepted));
+						return true;
+					}
 					CoapData responseValue = (null == uriQueries ? resource.get(mediaTypesAccepted)
 							: resource.get(uriQueries, mediaTypesAccepted));
-					// BLOCKWISE transfer?
-					if (null != request.getBlock2() || null != channel.getMaxSendBlocksize()) {
-						response = channel.addBlockContext(request, responseValue.getPayload());
-					} else {
-						response = channel.createResponse(request, CoapResponseCode.Content_205,
-								responseValue.getMediaType());
-						response.setPayload(responseValue.getPayload());
-					}
-					// OBSERVE?
-					if (null != request.getObserveOption() && resource.addObserver(request)) {
-						response.setObserveOption(resource.getObserveSequenceNumber());
-					}
+					response = createContentResponse(channel, request, resource, responseValue);
 				}
 			}
 			break;
@@ -248,7 +458,11 @@ public class CoapResourceServer implements ResourceServer {
 				response = channel.createResponse(request, CoapResponseCode.Created_201);
 			} else if (null != resource && resource.isPostable()) {
 				// resource exist & accepts post requests -> change
-				resource.post(request.getPayload(), request.getContentType());
+				if (resource instanceof StreamingCoapResource) {
+					((StreamingCoapResource) resource).post(request.getPayloadBuffer(), request.getContentType());
+				} else {
+					resource.post(request.getPayload(), request.getContentType());
+				}
 				response = channel.createResponse(request, CoapResponseCode.Changed_204);
 			} else {
 				response = channel.createResponse(request, CoapResponseCode.Forbidden_403);
@@ -256,7 +470,7 @@ public class CoapResourceServer implements ResourceServer {
 			break;
 		case PUT:
 			if (null != request.getIfMatchOption()) {
-				eTagMatch = request.getIfMatchOption().indexOf(this.etags.get(targetPath));
+				eTagMatch = request.getIfMatchOption().indexOf(getEtag(targetPath));
 			}
 			if (null == resource) {
 				// create
@@ -292,7 +506,197 @@ public class CoapResourceServer implements ResourceServer {
 			break;
 		}
 		channel.sendMessage(response);
+		return false;
+	}
 
+	private CoapResponse createContentResponse(CoapServerChannel channel, CoapRequest request,
+			CoapResource resource, CoapData responseValue) {
+		CoapResponse response;
+		// BLOCKWISE transfer?
+		if (this.statelessBlock2 && (null != request.getBlock2() || null != channel.getMaxSendBlocksize())) {
+			response = createBlockResponse(channel, request, resource, responseValue);
+			if (CoapResponseCode.Content_205 != response.getResponseCode()) {
+				return response;
+			}
+		} else if (null != request.getBlock2() || null != channel.getMaxSendBlocksize()) {
+			response = channel.addBlockContext(request, responseValue.getPayload());
+		} else {
+			response = channel.createResponse(request, CoapResponseCode.Content_205, responseValue.getMediaType());
+			response.setPayload(responseValue.getPayload());
+		}
+		// OBSERVE?
+		if (null != request.getObserveOption() && resource.addObserver(request)) {
+			response.setObserveOption(resource.getObserveSequenceNumber());
+		}
+		return response;
+	}
+
+	/**
+	 * Answers a Block2 request with the requested slice of the current
+	 * representation. Nothing is kept for later blocks, every block carries
+	 * the ETag of the representation it was cut from.
+	 */
+	private CoapResponse createBlockResponse(CoapServerChannel channel, CoapRequest request,
+			CoapResource resource, CoapData responseValue) {
+		byte[] representation = responseValue.getPayload();
+		CoapBlockOption block = BlockSlicer.block(request.getBlock2(), channel.getMaxSendBlocksize(),
+				representation.length);
+		if (null == block) {
+			return channel.createResponse(request, CoapResponseCode.Bad_Option_402);
+		}
+		CoapResponse response = channel.createResponse(request, CoapResponseCode.Content_205,
+				responseValue.getMediaType());
+		if (0 == block.getNumber() && block.isLast()) {
+			/* fits into a single block */
+			response.setPayload(representation);
+			return response;
+		}
+		response.setBlock2(block);
+		response.setSize2(representation.length);
+		response.setETag(getRepresentationTag(resource.getPath(), representation));
+		response.setPayload(BlockSlicer.slice(representation, block));
+		return response;
+	}
+
+	/**
+	 * @return The ETag of the representation, only computed again if the
+	 *         resource returned another array than for the last request
+	 */
+	private byte[] getRepresentationTag(String path, byte[] representation) {
+		TaggedRepresentation tagged = this.representationTags.get(path);
+		if (null == tagged || tagged.representation != representation) {
+			tagged = new TaggedRepresentation(representation, BlockSlicer.etag(representation));
+			this.representationTags.put(path, tagged);
+		}
+		return tagged.etag;
+	}
+
+	private static class TaggedRepresentation {
+		final byte[] representation;
+		final byte[] etag;
+
+		TaggedRepresentation(byte[] representation, byte[] etag) {
+			this.representation = representation;
+			this.etag = etag;
+		}
+	}
+
+	/**
+	 * Answers a GET request to an {@link AsyncCoapResource}. Either the value
+	 * is available before the ACK deadline and is piggybacked on the ACK, or
+	 * the deadline sends an empty ACK and the value follows in a separate
+	 * response. Both paths hold the lock, so exactly one of them wins. A
+	 * resource that does not complete within the response timeout is
+	 * answered with 5.03, so it does not count as pending forever.
+	 */
+	private class AsyncResponse implements Runnable, CoapFuture.Listener<CoapData> {
+		private final CoapServerChannel channel;
+		private final CoapRequest request;
+		private final CoapResource resource;
+		private ScheduledFuture<?> deadline = null;
+		private ScheduledFuture<?> timeout = null;
+		private CoapResponse separateResponse = null;
+		private boolean completed = false;
+
+		AsyncResponse(CoapServerChannel channel, CoapRequest request, CoapResource resource) {
+			this.channel = channel;
+			this.request = request;
+			this.resource = resource;
+		}
+
+		void start(CoapFuture<CoapData> future) {
+			synchronized (this) {
+				if (this.request.getPacketType() == CoapPacketType.CON) {
+					/* a NON request is not acknowledged, the response is sent on completion */
+					this.deadline = AckDeadlineTimer.INSTANCE.schedule(this, CoapResourceServer.this.ackDeadline,
+							TimeUnit.MILLISECONDS);
+				}
+				this.timeout = AckDeadlineTimer.INSTANCE.schedule(new Runnable() {
+					@Override
+					public void run() {
+						expire();
+					}
+				}, CoapResourceServer.this.asyncTimeout, TimeUnit.MILLISECONDS);
+			}
+			future.addListener(this);
+		}
+
+		/* the ACK deadline expired */
+		@Override
+		public synchronized void run() {
+			if (this.completed || null != this.separateResponse) {
+				return;
+			}
+			/* sends the empty ACK */
+			this.separateResponse = this.channel.createSeparateResponse(this.request, CoapResponseCode.Content_205);
+		}
+
+		@Override
+		public synchronized void onComplete(CoapData result, Throwable failure) {
+			if (this.completed) {
+				/* already answered after the timeout */
+				return;
+			}
+			CoapResponse response;
+			if (null != result) {
+				response = createContentResponse(this.channel, this.request, this.resource, result);
+			} else {
+				if (null != failure) {
+					logger.warn("Asynchronous resource " + this.resource.getPath() + " failed", failure);
+				} else {
+					logger.warn("Asynchronous resource " + this.resource.getPath() + " completed without a value");
+				}
+				response = this.channel.createResponse(this.request, CoapResponseCode.Internal_Server_Error_500);
+			}
+			respond(response);
+		}
+
+		/* the resource did not complete within the response timeout */
+		synchronized void expire() {
+			if (this.completed) {
+				return;
+			}
+			logger.warn("Asynchronous resource " + this.resource.getPath() + " did not complete in time");
+			CoapResponse response = this.channel.createResponse(this.request,
+					CoapResponseCode.Service_Unavailable_503);
+			response.setMaxAge(CoapConstants.SERVICE_UNAVAILABLE_MAX_AGE_S);
+			respond(response);
+		}
+
+		private void respond(CoapResponse response) {
+			this.completed = true;
+			CoapResourceServer.this.pendingRequests.decrementAndGet();
+			if (null != this.deadline) {
+				this.deadline.cancel(false);
+			}
+			if (null != this.timeout) {
+				this.timeout.cancel(false);
+			}
+			if (null == this.separateResponse) {
+				this.channel.sendMessage(response);
+				return;
+			}
+			/* the piggybacked response only serves as template */
+			CoapResponse separate = this.separateResponse;
+			separate.setResponseCode(response.getResponseCode());
+			separate.getOptions().removeAll();
+			separate.getOptions().copyFrom(response.getOptions());
+			separate.setPayload(response.getPayload());
+			this.channel.sendSeparateResponse(separate);
+		}
+	}
+
+	/* shared by all servers, only schedules the deadlines */
+	private static class AckDeadlineTimer {
+		static final ScheduledExecutorService INSTANCE = Executors
+				.newSingleThreadScheduledExecutor(new ThreadFactory() {
+					@Override
+					public Thread newThread(Runnable r) {
+						Thread thread = new Thread(r, "CoAP-AckDeadline");
+						thread.setDaemon(true);
+						return thread;
+					}
+				});
 	}
 
 	/**
@@ -327,6 +731,15 @@ public class CoapResourceServer implements ResourceServer {
 		logger.info("Reset Message Received!");
 	}
 
+	@Override
+	public void onServerChannelEvicted(CoapServerChannel channel) {
+		/* the client has to register again */
+		for (CoapResource resource : this.resources.values()) {
+			resource.removeObserver(channel);
+		}
+		logger.info("Removed observations of evicted channel");
+	}
+
 	/**
 	 * @return A string containing the representation of the current IP address
 	 *         or null
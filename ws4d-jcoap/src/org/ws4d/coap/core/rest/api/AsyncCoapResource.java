@@ -0,0 +1,50 @@
+/* Copyright 2016 University of Rostock
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *****************************************************************************/
+
+package org.ws4d.coap.core.rest.api;
+
+import java.util.List;
+
+import org.ws4d.coap.core.enumerations.CoapMediaType;
+import org.ws4d.coap.core.rest.CoapData;
+import org.ws4d.coap.core.rest.CoapResourceServer;
+import org.ws4d.coap.core.tools.CoapFuture;
+
+/**
+ * A resource that answers GET requests asynchronously, e.g. after reading a
+ * slow sensor or querying another server. The {@link CoapResourceServer}
+ * piggybacks the response on the ACK if the value is available within the
+ * ACK deadline of the server. Otherwise it acknowledges the request with an
+ * empty ACK and sends the value in a separate response, see rfc7252 - 5.2.2.
+ * <br>
+ * The other methods, e.g. {@link #get(List)} to notify observers, are still
+ * called synchronously.
+ */
+public interface AsyncCoapResource extends CoapResource {
+
+	/**
+	 * Starts to read the value of the resource. Must not block.
+	 *
+	 * @param query
+	 *            - the query parameters of the request, may be null
+	 * @param mediaTypesAccepted
+	 *            - the accepted media types, may be null
+	 * @return A future that is completed with the value in the most preferred
+	 *         media type possible. A failed future is answered with 5.00, a
+	 *         future that does not complete within the response timeout of
+	 *         the server with 5.03.
+	 */
+	public CoapFuture<CoapData> getAsync(List<String> query, List<CoapMediaType> mediaTypesAccepted);
+}
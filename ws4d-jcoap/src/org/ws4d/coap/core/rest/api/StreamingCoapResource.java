@@ -0,0 +1,51 @@
+/* Copyright 2016 University of Rostock
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *****************************************************************************/
+
+package org.ws4d.coap.core.rest.api;
+
+import java.nio.ByteBuffer;
+
+import org.ws4d.coap.core.enumerations.CoapMediaType;
+import org.ws4d.coap.core.rest.CoapResourceServer;
+
+/**
+ * A resource that takes the body of PUT and POST requests without copying
+ * it, e.g. to store a firmware image. The body of a block wise request is
+ * reassembled by the channel and may be kept in a memory mapped file. The
+ * {@link CoapResourceServer} calls these methods instead of
+ * {@link #put(byte[], CoapMediaType)} and {@link #post(byte[], CoapMediaType)}.
+ * A mapped body occupies its temporary file until the buffer is garbage
+ * collected, so the buffer should not be kept after the call.
+ */
+public interface StreamingCoapResource extends CoapResource {
+
+	/**
+	 * @param data
+	 *            - a read only buffer of the body
+	 * @param mediaType
+	 *            - the content format of the body
+	 * @return true if and only if the resource accepted the post
+	 */
+	public boolean post(ByteBuffer data, CoapMediaType mediaType);
+
+	/**
+	 * @param data
+	 *            - a read only buffer of the body
+	 * @param mediaType
+	 *            - the content format of the body
+	 * @return true if and only if the resource accepted the put
+	 */
+	public boolean put(ByteBuffer data, CoapMediaType mediaType);
+}
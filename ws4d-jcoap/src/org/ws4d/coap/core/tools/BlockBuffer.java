@@ -0,0 +1,248 @@
+/* Copyright 2016 University of Rostock
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *****************************************************************************/
+
+package org.ws4d.coap.core.tools;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Collects the body of a block wise transfer (rfc7959). If the size of the
+ * body is announced, e.g. by the Size1 option, the buffer is allocated once.
+ * Bodies larger than the spill threshold are written to a memory mapped
+ * temporary file instead of the heap, so a large upload occupies its size
+ * only once and mostly outside the heap.<br>
+ * <br>
+ * The temporary file is deleted right after it was opened where the platform
+ * allows it, otherwise by {@link #close()} or at the latest on exit. The
+ * mapping itself is released with the last reference to the buffer.<br>
+ * <br>
+ * A buffer is written by a single thread.
+ */
+public class BlockBuffer {
+
+	private static final int INITIAL_CAPACITY = 1024;
+
+	private final int spillThreshold;
+	private final int maxSize;
+	private ByteBuffer buffer;
+	private int size = 0;
+	/* the end of the data written so far, beyond size if blocks were written ahead */
+	private int extent = 0;
+
+	/* only set while a mapped buffer may still grow */
+	private RandomAccessFile file = null;
+	private File path = null;
+	private boolean mapped = false;
+
+	/**
+	 * @param expectedSize
+	 *            - the announced size of the body in bytes, 0 if it is unknown
+	 * @param spillThreshold
+	 *            - the size in bytes above which the body is kept in a memory
+	 *            mapped file
+	 * @param maxSize
+	 *            - the largest accepted body in bytes
+	 * @throws IOException
+	 *             if the temporary file cannot be created
+	 */
+	public BlockBuffer(int expectedSize, int spillThreshold, int maxSize) throws IOException {
+		if (expectedSize < 0 || expectedSize > maxSize) {
+			throw new IllegalArgumentException("Expected size must be between 0 and " + maxSize);
+		}
+		this.spillThreshold = spillThreshold;
+		this.maxSize = maxSize;
+		if (expectedSize > spillThreshold) {
+			this.buffer = map(expectedSize);
+		} else {
+			this.buffer = ByteBuffer.allocate(expectedSize > 0 ? expectedSize
+					: Math.min(INITIAL_CAPACITY, Math.min(spillThreshold, maxSize)));
+		}
+	}
+
+	/**
+	 * Writes a block. Blocks are expected in order, a block that starts before
+	 * the end, e.g. a repeated one, overwrites the data.
+	 * 
+	 * @param offset
+	 *            - the position of the block in the body, at most
+	 *            {@link #size()}
+	 * @param data
+	 *            - the payload of the block
+	 * @throws IOException
+	 *             if the temporary file cannot be extended
+	 */
+	public void write(int offset, byte[] data) throws IOException {
+		if (offset < 0 || offset > this.size) {
+			throw new IllegalArgumentException("Block at " + offset + " does not continue the body of " + this.size
+					+ " bytes");
+		}
+		put(offset, data);
+		this.size = Math.max(this.size, offset + data.length);
+	}
+
+	/**
+	 * Writes a block behind a gap, e.g. one that overtook an earlier block.
+	 * The block is stored, but only counts to the body once the gap is filled
+	 * and {@link #advance(int)} is called.
+	 * 
+	 * @param offset
+	 *            - the position of the block in the body
+	 * @param data
+	 *            - the payload of the block
+	 * @throws IOException
+	 *             if the temporary file cannot be extended
+	 */
+	public void writeAhead(int offset, byte[] data) throws IOException {
+		if (offset < 0) {
+			throw new IllegalArgumentException("Negative block position " + offset);
+		}
+		put(offset, data);
+	}
+
+	/**
+	 * Extends the body over blocks written ahead, as the gap before them was
+	 * filled.
+	 * 
+	 * @param end
+	 *            - the new size of the body, at most {@link #extent()}
+	 */
+	public void advance(int end) {
+		if (end > this.extent) {
+			throw new IllegalArgumentException("Only " + this.extent + " bytes were written");
+		}
+		this.size = Math.max(this.size, end);
+	}
+
+	private void put(int offset, byte[] data) throws IOException {
+		long end = (long) offset + data.length;
+		if (end > this.maxSize) {
+			throw new IllegalArgumentException("Body exceeds " + this.maxSize + " bytes");
+		}
+		ensureCapacity((int) end);
+		ByteBuffer target = this.buffer.duplicate();
+		target.position(offset);
+		target.put(data);
+		this.extent = Math.max(this.extent, (int) end);
+	}
+
+	private void ensureCapacity(int required) throws IOException {
+		int capacity = this.buffer.capacity();
+		if (required <= capacity) {
+			return;
+		}
+		int newCapacity = (int) Math.min(this.maxSize, Math.max(required, 2L * capacity));
+		if (this.mapped) {
+			/* the new mapping of the same file already contains the written data */
+			this.buffer = map(newCapacity);
+		} else if (newCapacity > this.spillThreshold) {
+			ByteBuffer spilled = map(newCapacity);
+			copyInto(spilled);
+			this.buffer = spilled;
+		} else {
+			ByteBuffer grown = ByteBuffer.allocate(newCapacity);
+			copyInto(grown);
+			this.buffer = grown;
+		}
+	}
+
+	private void copyInto(ByteBuffer target) {
+		ByteBuffer source = this.buffer.duplicate();
+		source.position(0);
+		source.limit(this.extent);
+		target.duplicate().put(source);
+	}
+
+	private ByteBuffer map(int capacity) throws IOException {
+		if (this.file == null) {
+			this.path = File.createTempFile("coap-block", ".tmp");
+			this.file = new RandomAccessFile(this.path, "rw");
+			if (this.path.delete()) {
+				this.path = null;
+			} else {
+				this.path.deleteOnExit();
+			}
+		}
+		this.file.setLength(capacity);
+		ByteBuffer mapping = this.file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+		this.mapped = true;
+		return mapping;
+	}
+
+	/**
+	 * Closes the temporary file, if any. The written data stays readable.
+	 * Further blocks cannot be written.
+	 */
+	public void close() {
+		if (this.file != null) {
+			try {
+				this.file.close();
+			} catch (IOException e) {
+				/* the mapping stays valid */
+			}
+			this.file = null;
+		}
+		if (this.path != null && this.path.delete()) {
+			this.path = null;
+		}
+	}
+
+	/**
+	 * @return A read only view of the written body, without copying it
+	 */
+	public ByteBuffer getBuffer() {
+		ByteBuffer view = this.buffer.asReadOnlyBuffer();
+		view.position(0);
+		view.limit(this.size);
+		return view.slice();
+	}
+
+	/**
+	 * @return A copy of the written body
+	 */
+	public byte[] toByteArray() {
+		byte[] body = new byte[this.size];
+		getBuffer().get(body);
+		return body;
+	}
+
+	/**
+	 * @return The number of written bytes
+	 */
+	public int size() {
+		return this.size;
+	}
+
+	/**
+	 * @return The end of the written data, including blocks written ahead
+	 */
+	public int extent() {
+		return this.extent;
+	}
+
+	public int getCapacity() {
+		return this.buffer.capacity();
+	}
+
+	/**
+	 * @return True, if the body is kept in a memory mapped file
+	 */
+	public boolean isMapped() {
+		return this.mapped;
+	}
+}
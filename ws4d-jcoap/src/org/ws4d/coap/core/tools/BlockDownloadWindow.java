@@ -0,0 +1,223 @@
+/* Copyright 2016 University of Rostock
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *****************************************************************************/
+
+package org.ws4d.coap.core.tools;
+
+import java.util.Arrays;
+import java.util.BitSet;
+
+import org.ws4d.coap.core.enumerations.CoapBlockSize;
+
+/**
+ * Keeps track of a pipelined block wise download (rfc7959 - Block2). Up to
+ * window block requests are outstanding at the same time, the blocks may
+ * arrive in any order and are written to their position in a buffer. If the
+ * size of the representation is known, e.g. from the Size2 option, the buffer
+ * is preallocated for the blocks of one window at most, as the size is given
+ * by the server; it grows as further blocks arrive. The last block is known from the response without the more
+ * flag or from the size. An error response for a block is only fatal if the
+ * block lies within the representation, so without the size it is kept
+ * until the last block is known.<br>
+ * <br>
+ * All methods are thread safe.
+ */
+public class BlockDownloadWindow {
+
+	private final int blockSize;
+	private final int window;
+	private byte[] data;
+	private int length;
+
+	private final BitSet received = new BitSet();
+	private final BitSet requested = new BitSet();
+	private int outstanding = 0;
+	private int nextBlock;
+	/* -1 while unknown */
+	private int lastBlock = -1;
+	/* the first block answered with an error, -1 if none */
+	private int failedBlock = -1;
+
+	/**
+	 * @param blockSize
+	 *            - the size of the requested blocks
+	 * @param window
+	 *            - the maximum number of outstanding block requests
+	 * @param expectedSize
+	 *            - the size of the representation, 0 if it is unknown
+	 * @param first
+	 *            - the payload of the first response, it may be larger than
+	 *            the block size, but a multiple of it
+	 */
+	public BlockDownloadWindow(CoapBlockSize blockSize, int window, int expectedSize, byte[] first) {
+		if (window < 1) {
+			throw new IllegalArgumentException("Window must be at least 1");
+		}
+		this.blockSize = blockSize.getSize();
+		this.window = window;
+		long preallocated = Math.min(expectedSize, (long) first.length + (long) window * this.blockSize);
+		this.data = new byte[(int) Math.max(first.length, preallocated)];
+		System.arraycopy(first, 0, this.data, 0, first.length);
+		this.length = first.length;
+		this.nextBlock = first.length / this.blockSize;
+		this.received.set(0, this.nextBlock);
+		if (expectedSize > first.length) {
+			this.lastBlock = (expectedSize - 1) / this.blockSize;
+		} else if (expectedSize > 0) {
+			/* the first response already holds the representation */
+			this.lastBlock = Math.max(0, this.nextBlock - 1);
+		}
+	}
+
+	/**
+	 * Takes the next block to request.
+	 *
+	 * @return The block number or -1, if the window is full or all blocks are
+	 *         requested
+	 */
+	public synchronized int nextBlock() {
+		if (this.outstanding >= this.window || this.lastBlock >= 0 && this.nextBlock > this.lastBlock
+				|| this.failedBlock >= 0 && this.nextBlock >= this.failedBlock) {
+			return -1;
+		}
+		this.requested.set(this.nextBlock);
+		this.outstanding++;
+		return this.nextBlock++;
+	}
+
+	/**
+	 * Adds a received block.
+	 *
+	 * @param number
+	 *            - the block number
+	 * @param payload
+	 *            - the payload of the block
+	 * @param last
+	 *            - true, if the response had no more flag
+	 * @return False, if the block was not requested or already received
+	 */
+	public synchronized boolean addBlock(int number, byte[] payload, boolean last) {
+		if (!this.requested.get(number)) {
+			return false;
+		}
+		this.requested.clear(number);
+		this.outstanding--;
+		int offset = number * this.blockSize;
+		int end = offset + payload.length;
+		if (end > this.data.length) {
+			this.data = Arrays.copyOf(this.data, Math.max(end, 2 * this.data.length));
+		}
+		System.arraycopy(payload, 0, this.data, offset, payload.length);
+		this.length = Math.max(this.length, end);
+		this.received.set(number);
+		if (last && (this.lastBlock < 0 || number < this.lastBlock)) {
+			this.lastBlock = number;
+			this.length = end;
+		}
+		return true;
+	}
+
+	/**
+	 * Gives up an outstanding block request, e.g. as it asked for a block
+	 * beyond the end.
+	 */
+	public synchronized void cancel(int number) {
+		if (this.requested.get(number)) {
+			this.requested.clear(number);
+			this.outstanding--;
+		}
+	}
+
+	/**
+	 * Gives up an outstanding block request that was answered with an error,
+	 * e.g. a 4.02 for a block beyond the end that is not known yet. No
+	 * blocks behind the first failed one are requested anymore.
+	 *
+	 * @return True, if the block is the first failed block so far
+	 */
+	public synchronized boolean fail(int number) {
+		cancel(number);
+		if (this.failedBlock >= 0 && number >= this.failedBlock) {
+			return false;
+		}
+		this.failedBlock = number;
+		return true;
+	}
+
+	/**
+	 * @return True, if the download cannot complete: a failed block lies
+	 *         within the representation, or all blocks in front of it were
+	 *         received without the last one
+	 */
+	public synchronized boolean isFailed() {
+		if (this.failedBlock < 0) {
+			return false;
+		}
+		if (this.lastBlock >= 0) {
+			return this.failedBlock <= this.lastBlock;
+		}
+		return this.received.nextClearBit(0) >= this.failedBlock;
+	}
+
+	/**
+	 * @return True, if the block lies beyond the known end of the
+	 *         representation
+	 */
+	public synchronized boolean isBeyondEnd(int number) {
+		return this.lastBlock >= 0 && number > this.lastBlock;
+	}
+
+	/**
+	 * @return True, if all blocks up to the last one were received
+	 */
+	public synchronized boolean isComplete() {
+		return this.lastBlock >= 0 && this.received.nextClearBit(0) > this.lastBlock;
+	}
+
+	/**
+	 * @return The representation, only complete if {@link #isComplete()}
+	 */
+	public synchronized byte[] getPayload() {
+		return this.length == this.data.length ? this.data : Arrays.copyOf(this.data, this.length);
+	}
+
+	public int getBlockSize() {
+		return this.blockSize;
+	}
+
+	public int getWindow() {
+		return this.window;
+	}
+
+	/**
+	 * @return The number of block requests that wait for their response
+	 */
+	public synchronized int getOutstanding() {
+		return this.outstanding;
+	}
+
+	/**
+	 * @return The number of received blocks, including the first response
+	 */
+	public synchronized int getReceivedCount() {
+		return this.received.cardinality();
+	}
+
+	/**
+	 * @return The number of the last block or -1, if it is not known yet
+	 */
+	public synchronized int getLastBlock() {
+		return this.lastBlock;
+	}
+}
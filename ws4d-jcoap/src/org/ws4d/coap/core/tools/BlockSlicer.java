@@ -0,0 +1,89 @@
+/* Copyright 2016 University of Rostock
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *****************************************************************************/
+
+package org.ws4d.coap.core.tools;
+
+import java.util.Arrays;
+import java.util.zip.CRC32;
+
+import org.ws4d.coap.core.enumerations.CoapBlockSize;
+import org.ws4d.coap.core.messages.CoapBlockOption;
+
+/**
+ * Cuts single Block2 blocks out of a representation without keeping any state
+ * between the requests (RFC 7959). Every block request is answered from the
+ * current representation, so blocks may be fetched in any order and by any
+ * number of clients. A client detects a change of the representation during
+ * the transfer by a changed ETag.
+ */
+public final class BlockSlicer {
+
+	private BlockSlicer() {
+		/* static methods only */
+	}
+
+	/**
+	 * Determines the block that answers a Block2 request. If the requested
+	 * size exceeds the maximum size of the server, the smaller size is used
+	 * and the block number is scaled, so the block still starts at the
+	 * requested position.
+	 *
+	 * @param requested
+	 *            - the Block2 option of the request, null for the first block
+	 * @param maxSize
+	 *            - the largest block size of the server, null if there is no
+	 *            limit
+	 * @param length
+	 *            - the length of the representation
+	 * @return The Block2 option of the response or null, if the block starts
+	 *         beyond the end of the representation
+	 */
+	public static CoapBlockOption block(CoapBlockOption requested, CoapBlockSize maxSize, int length) {
+		CoapBlockSize size = (null == requested) ? maxSize : requested.getBlockSize();
+		if (null == size) {
+			size = CoapBlockSize.BLOCK_1024;
+		}
+		int number = (null == requested) ? 0 : requested.getNumber();
+		if (null != maxSize && size.compareTo(maxSize) > 0) {
+			number = number * (size.getSize() / maxSize.getSize());
+			size = maxSize;
+		}
+		long offset = (long) number * size.getSize();
+		if (offset > 0 && offset >= length) {
+			return null;
+		}
+		return new CoapBlockOption(number, offset + size.getSize() < length, size);
+	}
+
+	/**
+	 * @return A copy of the bytes the block covers, at most the block size
+	 */
+	public static byte[] slice(byte[] representation, CoapBlockOption block) {
+		int from = block.getBytePosition();
+		int to = Math.min(representation.length, from + block.getBlockSize().getSize());
+		return Arrays.copyOfRange(representation, from, to);
+	}
+
+	/**
+	 * @return A 4 byte entity tag derived from the content of the
+	 *         representation
+	 */
+	public static byte[] etag(byte[] representation) {
+		CRC32 crc = new CRC32();
+		crc.update(representation, 0, representation.length);
+		long value = crc.getValue();
+		return new byte[] { (byte) (value >>> 24), (byte) (value >>> 16), (byte) (value >>> 8), (byte) value };
+	}
+}
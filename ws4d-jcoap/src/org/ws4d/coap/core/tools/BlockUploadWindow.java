@@ -0,0 +1,280 @@
+/* Copyright 2016 University of Rostock
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *****************************************************************************/
+
+
+package org.ws4d.coap.core.tools;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PushbackInputStream;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.ws4d.coap.core.enumerations.CoapBlockSize;
+import org.ws4d.coap.core.messages.CoapBlockOption;
+
+/**
+ * Keeps track of a pipelined block wise upload (rfc7959 - Block1) and reports
+ * its progress. The body is read from the source when a block is sent, so it
+ * is never held in memory as a whole. Up to window block requests are
+ * outstanding at the same time. Block 0 is sent alone, as it opens the
+ * transfer at the server, and the last block is held back until all others
+ * were acknowledged, as its response is the response to the whole request.
+ * <br>
+ * <br>
+ * All methods are thread safe.
+ */
+public class BlockUploadWindow {
+
+	private final PushbackInputStream source;
+	private final long size;
+	private final int window;
+	private CoapBlockSize blockSize;
+
+	/* the payload length of the outstanding blocks by block number */
+	private final Map<Integer, Integer> outstanding = new HashMap<Integer, Integer>();
+	private int nextBlock = 0;
+	private boolean firstAcknowledged = false;
+	/* the last block while it waits for the other acknowledgements */
+	private Block held = null;
+	/* -1 until the last block is sent */
+	private int lastBlock = -1;
+	private boolean complete = false;
+	private boolean aborted = false;
+
+	/* progress */
+	private long read = 0;
+	private long sent = 0;
+	private long acknowledged = 0;
+	private final long startTime = System.currentTimeMillis();
+	private long endTime = 0;
+
+	/**
+	 * @param source
+	 *            - the body, read up to its end or the given size
+	 * @param size
+	 *            - the size of the body in bytes, -1 if it is unknown
+	 * @param blockSize
+	 *            - the size of the blocks
+	 * @param window
+	 *            - the maximum number of outstanding block requests
+	 */
+	public BlockUploadWindow(InputStream source, long size, CoapBlockSize blockSize, int window) {
+		if (window < 1) {
+			throw new IllegalArgumentException("Window must be at least 1");
+		}
+		this.source = new PushbackInputStream(source, 1);
+		this.size = size;
+		this.blockSize = blockSize;
+		this.window = window;
+	}
+
+	/**
+	 * Takes the next block to send and reads its payload from the source.
+	 * 
+	 * @return The block or null, if no block may be sent now
+	 * @throws IOException
+	 *             if the source cannot be read
+	 */
+	public synchronized Block nextBlock() throws IOException {
+		if (this.complete || this.aborted || this.lastBlock >= 0) {
+			return null;
+		}
+		Block block = this.held;
+		if (block == null) {
+			if (this.outstanding.size() >= this.window || this.nextBlock > 0 && !this.firstAcknowledged) {
+				return null;
+			}
+			block = readBlock();
+		}
+		if (block.getOption().isLast() && !this.outstanding.isEmpty()) {
+			this.held = block;
+			return null;
+		}
+		this.held = null;
+		int length = block.getPayload().length;
+		this.outstanding.put(Integer.valueOf(block.getOption().getNumber()), Integer.valueOf(length));
+		this.sent += length;
+		if (block.getOption().isLast()) {
+			this.lastBlock = block.getOption().getNumber();
+		}
+		return block;
+	}
+
+	private Block readBlock() throws IOException {
+		int length = this.blockSize.getSize();
+		if (this.size >= 0) {
+			length = (int) Math.max(0, Math.min(length, this.size - this.read));
+		}
+		byte[] payload = new byte[length];
+		int count = 0;
+		while (count < length) {
+			int n = this.source.read(payload, count, length - count);
+			if (n < 0) {
+				break;
+			}
+			count += n;
+		}
+		if (count < length) {
+			/* the source ended early */
+			payload = Arrays.copyOf(payload, count);
+		}
+		this.read += count;
+		boolean last = count < length || (this.size >= 0 ? this.read >= this.size : isAtEnd());
+		return new Block(new CoapBlockOption(this.nextBlock++, !last, this.blockSize), payload);
+	}
+
+	private boolean isAtEnd() throws IOException {
+		int next = this.source.read();
+		if (next < 0) {
+			return true;
+		}
+		this.source.unread(next);
+		return false;
+	}
+
+	/**
+	 * Marks a block as acknowledged, the last block by the final response.
+	 * 
+	 * @return False, if the block was not outstanding
+	 */
+	public synchronized boolean acknowledge(int number) {
+		Integer length = this.outstanding.remove(Integer.valueOf(number));
+		if (length == null) {
+			return false;
+		}
+		this.acknowledged += length.intValue();
+		if (number == 0) {
+			this.firstAcknowledged = true;
+		}
+		if (number == this.lastBlock) {
+			this.complete = true;
+			this.endTime = System.currentTimeMillis();
+		}
+		return true;
+	}
+
+	/**
+	 * Continues with smaller blocks, e.g. as the server acknowledged block 0
+	 * with a smaller size. Only possible while block 0 is the only sent block.
+	 * 
+	 * @return False, if the block size cannot be changed anymore
+	 */
+	public synchronized boolean reduceBlockSize(CoapBlockSize blockSize) {
+		if (this.nextBlock != 1 || this.lastBlock >= 0 || blockSize.compareTo(this.blockSize) >= 0) {
+			return false;
+		}
+		this.nextBlock = (int) (this.sent / blockSize.getSize());
+		this.blockSize = blockSize;
+		return true;
+	}
+
+	/**
+	 * Stops the upload, e.g. as the server refused a block. The source is not
+	 * closed.
+	 */
+	public synchronized void abort() {
+		if (!this.complete && !this.aborted) {
+			this.aborted = true;
+			this.endTime = System.currentTimeMillis();
+			this.outstanding.clear();
+			this.held = null;
+		}
+	}
+
+	/**
+	 * @return The size of the body in bytes, -1 if it is unknown
+	 */
+	public long getSize() {
+		return this.size;
+	}
+
+	public synchronized CoapBlockSize getBlockSize() {
+		return this.blockSize;
+	}
+
+	public int getWindow() {
+		return this.window;
+	}
+
+	/**
+	 * @return The number of sent blocks that wait for their response
+	 */
+	public synchronized int getOutstanding() {
+		return this.outstanding.size();
+	}
+
+	/**
+	 * @return The number of bytes sent so far
+	 */
+	public synchronized long getSentBytes() {
+		return this.sent;
+	}
+
+	/**
+	 * @return The number of bytes the server acknowledged so far
+	 */
+	public synchronized long getAcknowledgedBytes() {
+		return this.acknowledged;
+	}
+
+	/**
+	 * @return True, if the server acknowledged the last block
+	 */
+	public synchronized boolean isComplete() {
+		return this.complete;
+	}
+
+	public synchronized boolean isAborted() {
+		return this.aborted;
+	}
+
+	/**
+	 * @return The time in ms since the start, or the duration of a finished
+	 *         upload
+	 */
+	public synchronized long getElapsedTime() {
+		return (this.endTime > 0 ? this.endTime : System.currentTimeMillis()) - this.startTime;
+	}
+
+	/**
+	 * @return The acknowledged bytes per second since the start
+	 */
+	public synchronized double getThroughput() {
+		return this.acknowledged * 1000.0 / Math.max(1, getElapsedTime());
+	}
+
+	/**
+	 * A block of the body with its Block1 option.
+	 */
+	public static class Block {
+		private final CoapBlockOption option;
+		private final byte[] payload;
+
+		Block(CoapBlockOption option, byte[] payload) {
+			this.option = option;
+			this.payload = payload;
+		}
+
+		public CoapBlockOption getOption() {
+			return this.option;
+		}
+
+		public byte[] getPayload() {
+			return this.payload;
+		}
+	}
+}
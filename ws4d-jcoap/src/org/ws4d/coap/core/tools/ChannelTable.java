@@ -0,0 +1,269 @@
+/* Copyright 2016 University of Rostock
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *****************************************************************************/
+
+package org.ws4d.coap.core.tools;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A concurrent table of channels that forgets idle channels. Every lookup
+ * counts as activity of the channel. Channels without activity for the idle
+ * timeout are removed by {@link #evictIdle(long)}, which has to be called
+ * periodically. If the table is full, adding a channel removes the least
+ * recently active eighth of the channels at once, so the cost of sorting is
+ * spread over many additions.<br>
+ * <br>
+ * Evicted channels are returned to the caller, which has to release their
+ * resources, e.g. observations and block contexts.
+ *
+ * @param <K>
+ *            - the key, e.g. the remote endpoint
+ * @param <V>
+ *            - the channel
+ */
+public class ChannelTable<K, V> {
+
+	private final ConcurrentMap<K, Entry<K, V>> entries = new ConcurrentHashMap<K, Entry<K, V>>();
+	private volatile int capacity;
+	private volatile long idleTimeout;
+
+	/* statistics */
+	private final AtomicLong added = new AtomicLong();
+	private final AtomicLong idleEvictions = new AtomicLong();
+	private final AtomicLong capacityEvictions = new AtomicLong();
+	private volatile int peakSize = 0;
+
+	/**
+	 * @param capacity
+	 *            - the maximum number of channels
+	 * @param idleTimeout
+	 *            - the time in ms after which a channel without activity is
+	 *            evicted
+	 */
+	public ChannelTable(int capacity, long idleTimeout) {
+		setLimits(capacity, idleTimeout);
+	}
+
+	/**
+	 * @param capacity
+	 *            - the maximum number of channels, at least 1
+	 * @param idleTimeout
+	 *            - the time in ms after which a channel without activity is
+	 *            evicted, at least 1
+	 */
+	public void setLimits(int capacity, long idleTimeout) {
+		if (capacity < 1 || idleTimeout < 1) {
+			throw new IllegalArgumentException("Capacity and idle timeout must be at least 1");
+		}
+		this.capacity = capacity;
+		this.idleTimeout = idleTimeout;
+	}
+
+	/**
+	 * @return The channel or null, if there is none. A found channel counts
+	 *         as active.
+	 */
+	public V get(K key) {
+		Entry<K, V> entry = this.entries.get(key);
+		if (entry == null) {
+			return null;
+		}
+		entry.lastActivity = System.currentTimeMillis();
+		return entry.value;
+	}
+
+	/**
+	 * Adds or replaces a channel. If the table is full, the least recently
+	 * active channels are evicted first.
+	 *
+	 * @return The evicted channels, empty if the table was not full
+	 */
+	public List<V> put(K key, V value) {
+		List<V> evicted = Collections.emptyList();
+		if (this.entries.size() >= this.capacity && !this.entries.containsKey(key)) {
+			evicted = evictLeastRecentlyActive(Math.max(1, this.capacity / 8));
+		}
+		this.entries.put(key, new Entry<K, V>(key, value, System.currentTimeMillis()));
+		this.added.incrementAndGet();
+		int size = this.entries.size();
+		if (size > this.peakSize) {
+			this.peakSize = size;
+		}
+		return evicted;
+	}
+
+	/**
+	 * Adds a channel unless the key already has one, e.g. as two threads
+	 * created a channel for the same remote endpoint at the same time. If the
+	 * table is full, the least recently active channels are evicted first.
+	 *
+	 * @param evicted
+	 *            - receives the evicted channels
+	 * @return The channel that was already in the table, null if the given
+	 *         one was added. A found channel counts as active.
+	 */
+	public V putIfAbsent(K key, V value, List<V> evicted) {
+		V existing = get(key);
+		if (existing != null) {
+			return existing;
+		}
+		if (this.entries.size() >= this.capacity) {
+			evicted.addAll(evictLeastRecentlyActive(Math.max(1, this.capacity / 8)));
+		}
+		Entry<K, V> previous = this.entries.putIfAbsent(key, new Entry<K, V>(key, value, System.currentTimeMillis()));
+		if (previous != null) {
+			previous.lastActivity = System.currentTimeMillis();
+			return previous.value;
+		}
+		this.added.incrementAndGet();
+		int size = this.entries.size();
+		if (size > this.peakSize) {
+			this.peakSize = size;
+		}
+		return null;
+	}
+
+	/**
+	 * Removes a channel, e.g. as it was closed. This is not counted as
+	 * eviction.
+	 *
+	 * @return True, if the channel was removed
+	 */
+	public boolean remove(K key, V value) {
+		Entry<K, V> entry = this.entries.get(key);
+		return entry != null && entry.value == value && this.entries.remove(key, entry);
+	}
+
+	/**
+	 * Removes all channels without activity for the idle timeout.
+	 *
+	 * @param now
+	 *            - the current time in ms
+	 * @return The evicted channels
+	 */
+	public List<V> evictIdle(long now) {
+		List<V> evicted = new ArrayList<V>();
+		long timeout = this.idleTimeout;
+		Iterator<Entry<K, V>> it = this.entries.values().iterator();
+		while (it.hasNext()) {
+			Entry<K, V> entry = it.next();
+			if (now - entry.lastActivity > timeout && this.entries.remove(entry.key, entry)) {
+				evicted.add(entry.value);
+			}
+		}
+		this.idleEvictions.addAndGet(evicted.size());
+		return evicted;
+	}
+
+	private synchronized List<V> evictLeastRecentlyActive(int count) {
+		if (this.entries.size() < this.capacity) {
+			/* another thread made room in the meantime */
+			return Collections.emptyList();
+		}
+		List<Entry<K, V>> candidates = new ArrayList<Entry<K, V>>(this.entries.values());
+		Collections.sort(candidates, new Comparator<Entry<K, V>>() {
+			@Override
+			public int compare(Entry<K, V> a, Entry<K, V> b) {
+				return a.lastActivity < b.lastActivity ? -1 : (a.lastActivity == b.lastActivity ? 0 : 1);
+			}
+		});
+		List<V> evicted = new ArrayList<V>(count);
+		for (int i = 0; i < candidates.size() && evicted.size() < count; i++) {
+			Entry<K, V> entry = candidates.get(i);
+			if (this.entries.remove(entry.key, entry)) {
+				evicted.add(entry.value);
+			}
+		}
+		this.capacityEvictions.addAndGet(evicted.size());
+		return evicted;
+	}
+
+	/**
+	 * @return A snapshot of all channels
+	 */
+	public List<V> values() {
+		List<V> values = new ArrayList<V>(this.entries.size());
+		for (Entry<K, V> entry : this.entries.values()) {
+			values.add(entry.value);
+		}
+		return values;
+	}
+
+	public void clear() {
+		this.entries.clear();
+	}
+
+	/**
+	 * @return The number of live channels
+	 */
+	public int size() {
+		return this.entries.size();
+	}
+
+	public int getCapacity() {
+		return this.capacity;
+	}
+
+	public long getIdleTimeout() {
+		return this.idleTimeout;
+	}
+
+	/**
+	 * @return The number of channels added so far
+	 */
+	public long getAddedCount() {
+		return this.added.get();
+	}
+
+	/**
+	 * @return The number of channels evicted as they were idle
+	 */
+	public long getIdleEvictionCount() {
+		return this.idleEvictions.get();
+	}
+
+	/**
+	 * @return The number of channels evicted as the table was full
+	 */
+	public long getCapacityEvictionCount() {
+		return this.capacityEvictions.get();
+	}
+
+	/**
+	 * @return The highest number of live channels so far
+	 */
+	public int getPeakSize() {
+		return this.peakSize;
+	}
+
+	private static class Entry<K, V> {
+		final K key;
+		final V value;
+		volatile long lastActivity;
+
+		Entry(K key, V value, long lastActivity) {
+			this.key = key;
+			this.value = value;
+			this.lastActivity = lastActivity;
+		}
+	}
+}
@@ -0,0 +1,129 @@
+/* Copyright 2016 University of Rostock
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *****************************************************************************/
+
+package org.ws4d.coap.core.tools;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Executors that run the request handling of a server, i.e. the callbacks of
+ * a CoapServer and therefore the methods of its resources. Received messages
+ * are always parsed on the threads of the socket handler, only the callbacks
+ * are handed to the executor. Responses may be sent from any thread.
+ */
+public final class CoapExecutors {
+
+	private static final Executor INLINE = new Executor() {
+		@Override
+		public void execute(Runnable command) {
+			command.run();
+		}
+	};
+
+	/* Executors.newVirtualThreadPerTaskExecutor() is available since Java 21 */
+	private static final Method newVirtualThreadPerTaskExecutor = lookupVirtualThreadExecutor();
+
+	private CoapExecutors() {
+	}
+
+	private static Method lookupVirtualThreadExecutor() {
+		try {
+			return Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+		} catch (NoSuchMethodException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * @return An executor that runs the callbacks on the dispatch thread of
+	 *         the socket handler. This has the lowest latency, but a blocking
+	 *         callback delays all messages of the remote endpoints handled by
+	 *         the same dispatch thread. This is the default.
+	 */
+	public static Executor inline() {
+		return INLINE;
+	}
+
+	/**
+	 * Creates a fixed pool of daemon threads with a bounded queue. If the
+	 * queue is full, the callback runs on the dispatch thread, which slows
+	 * down the reception instead of dropping requests.
+	 *
+	 * @param threads
+	 *            - the number of threads
+	 * @param queueCapacity
+	 *            - the number of callbacks that may wait for a thread
+	 * @return The pool, it has to be shut down by the caller
+	 */
+	public static ExecutorService boundedPool(int threads, int queueCapacity) {
+		if (threads < 1 || queueCapacity < 1) {
+			throw new IllegalArgumentException("At least one thread and a queue capacity of one are required");
+		}
+		return new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+				new ArrayBlockingQueue<Runnable>(queueCapacity), new HandlerThreadFactory(),
+				new ThreadPoolExecutor.CallerRunsPolicy());
+	}
+
+	/**
+	 * @return True, if the JVM supports virtual threads (Java 21 or newer)
+	 */
+	public static boolean isVirtualThreadSupported() {
+		return newVirtualThreadPerTaskExecutor != null;
+	}
+
+	/**
+	 * Creates an executor that runs every callback on a new virtual thread,
+	 * so blocking I/O in a resource does not occupy a platform thread.
+	 *
+	 * @return The executor, it has to be shut down by the caller
+	 * @throws UnsupportedOperationException
+	 *             if the JVM does not support virtual threads, see
+	 *             {@link #isVirtualThreadSupported()}
+	 */
+	public static ExecutorService virtualThreadPerRequest() {
+		if (newVirtualThreadPerTaskExecutor == null) {
+			throw new UnsupportedOperationException("Virtual threads require Java 21 or newer");
+		}
+		try {
+			return (ExecutorService) newVirtualThreadPerTaskExecutor.invoke(null);
+		} catch (IllegalAccessException e) {
+			throw new UnsupportedOperationException(e);
+		} catch (InvocationTargetException e) {
+			throw new UnsupportedOperationException(e.getCause());
+		}
+	}
+
+	private static class HandlerThreadFactory implements ThreadFactory {
+		private static final AtomicInteger poolNumber = new AtomicInteger();
+		private final int pool = poolNumber.incrementAndGet();
+		private final AtomicInteger threadNumber = new AtomicInteger();
+
+		@Override
+		public Thread newThread(Runnable r) {
+			Thread thread = new Thread(r, "CoAP-Handler-" + this.pool + "-" + this.threadNumber.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		}
+	}
+}
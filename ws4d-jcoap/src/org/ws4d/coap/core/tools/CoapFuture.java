@@ -0,0 +1,147 @@
+/* Copyright 2016 University of Rostock
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *****************************************************************************/
+
+package org.ws4d.coap.core.tools;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * The result of an asynchronous operation that is completed exactly once,
+ * either with a value or with a failure. Listeners run on the thread that
+ * completes the future, or immediately if it is already completed.
+ *
+ * @param <T>
+ *            - the type of the result
+ */
+public class CoapFuture<T> {
+	private static final Logger logger = LogManager.getLogger();
+
+	/**
+	 * Is notified when the future completes
+	 *
+	 * @param <T>
+	 *            - the type of the result
+	 */
+	public interface Listener<T> {
+		/**
+		 * @param result
+		 *            - the result, null if the operation failed
+		 * @param failure
+		 *            - the cause of the failure, null on success
+		 */
+		void onComplete(T result, Throwable failure);
+	}
+
+	private List<Listener<? super T>> listeners = new ArrayList<Listener<? super T>>();
+	private boolean done = false;
+	private T result;
+	private Throwable failure;
+
+	/**
+	 * @return A future that is already completed with the given result
+	 */
+	public static <T> CoapFuture<T> completed(T result) {
+		CoapFuture<T> future = new CoapFuture<T>();
+		future.complete(result);
+		return future;
+	}
+
+	/**
+	 * @param result
+	 *            - the result of the operation
+	 * @return True, if this call completed the future
+	 */
+	public boolean complete(T result) {
+		return finish(result, null);
+	}
+
+	/**
+	 * @param failure
+	 *            - the cause of the failure
+	 * @return True, if this call completed the future
+	 */
+	public boolean fail(Throwable failure) {
+		if (failure == null) {
+			throw new IllegalArgumentException("failure must not be null");
+		}
+		return finish(null, failure);
+	}
+
+	private boolean finish(T value, Throwable cause) {
+		List<Listener<? super T>> notify;
+		synchronized (this) {
+			if (this.done) {
+				return false;
+			}
+			this.done = true;
+			this.result = value;
+			this.failure = cause;
+			notify = this.listeners;
+			this.listeners = null;
+		}
+		for (Listener<? super T> listener : notify) {
+			notifyListener(listener, value, cause);
+		}
+		return true;
+	}
+
+	/**
+	 * Adds a listener that is notified on completion. If the future is
+	 * already completed, the listener is notified immediately.
+	 *
+	 * @param listener
+	 *            - the listener to add
+	 */
+	public void addListener(Listener<? super T> listener) {
+		synchronized (this) {
+			if (!this.done) {
+				this.listeners.add(listener);
+				return;
+			}
+		}
+		notifyListener(listener, this.result, this.failure);
+	}
+
+	private static <T> void notifyListener(Listener<? super T> listener, T value, Throwable cause) {
+		try {
+			listener.onComplete(value, cause);
+		} catch (RuntimeException e) {
+			logger.error("Listener of a future failed", e);
+		}
+	}
+
+	public synchronized boolean isDone() {
+		return this.done;
+	}
+
+	/**
+	 * @return The result, null if the future is not completed or failed
+	 */
+	public synchronized T getResult() {
+		return this.result;
+	}
+
+	/**
+	 * @return The cause of the failure, null if the future is not completed
+	 *         or succeeded
+	 */
+	public synchronized Throwable getFailure() {
+		return this.failure;
+	}
+}
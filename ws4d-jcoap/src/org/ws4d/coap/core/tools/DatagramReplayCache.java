@@ -0,0 +1,421 @@
+/* Copyright 2016 University of Rostock
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *****************************************************************************/
+
+package org.ws4d.coap.core.tools;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+
+/**
+ * Keeps serialized datagrams, e.g. ACK and RST messages, to send them again
+ * if a duplicate of the message they answer is received. The datagrams are
+ * indexed by the key of the exchange they belong to (remote address, remote
+ * port, message id).<br>
+ * <br>
+ * The datagrams are stored in a ring in a direct buffer, so they neither add
+ * objects to the heap nor need to be serialized again. The memory is bounded
+ * by the size of the ring and the maximum number of entries; if one of them
+ * is exceeded the oldest datagrams are evicted. Datagrams older than the
+ * lifetime are removed as well.<br>
+ * <br>
+ * All methods are synchronized. The critical sections are short, a replay
+ * writes the stored bytes to the channel without copying.
+ */
+public class DatagramReplayCache {
+
+	/*
+	 * record layout: int length, long expires, 3 * long key, data. A length
+	 * of PADDING marks the unused end of the ring.
+	 */
+	private static final int HEADER_LENGTH = 4 + 8 + 3 * 8;
+	private static final int PADDING = -1;
+
+	private final ByteBuffer ring;
+	/** a view of the ring used to send stored datagrams */
+	private final ByteBuffer sendView;
+	/** a view of the ring used to store datagrams */
+	private final ByteBuffer storeView;
+	private final int capacity;
+	private final long lifetime;
+
+	private int head = 0;
+	private int tail = 0;
+	private int used = 0;
+	private int count = 0;
+
+	/* the index: three longs per slot for the key, the record offset */
+	private final long[] keys;
+	private final int[] offsets;
+	private final int mask;
+	private final int maxEntries;
+
+	/* the key of the current operation */
+	private final long[] key = new long[3];
+
+	/* statistics */
+	private long stored = 0;
+	private long replayed = 0;
+	private long misses = 0;
+	private long evicted = 0;
+	private long expired = 0;
+	private long rejected = 0;
+
+	/**
+	 * @param capacity
+	 *            - the size of the ring in bytes
+	 * @param maxEntries
+	 *            - the maximum number of stored datagrams
+	 * @param lifetime
+	 *            - the time in ms after which a datagram is removed
+	 */
+	public DatagramReplayCache(int capacity, int maxEntries, long lifetime) {
+		if (capacity <= HEADER_LENGTH) {
+			throw new IllegalArgumentException("capacity too small");
+		}
+		if (maxEntries < 1) {
+			throw new IllegalArgumentException("at least one entry is required");
+		}
+		this.ring = ByteBuffer.allocateDirect(capacity);
+		this.sendView = this.ring.duplicate();
+		this.storeView = this.ring.duplicate();
+		this.capacity = capacity;
+		this.lifetime = lifetime;
+		this.maxEntries = maxEntries;
+		/* keep the load factor of the index below 0.5 */
+		int slots = 16;
+		while (slots < maxEntries * 2) {
+			slots <<= 1;
+		}
+		this.keys = new long[slots * 3];
+		this.offsets = new int[slots];
+		this.mask = slots - 1;
+	}
+
+	/**
+	 * Stores a datagram. A datagram stored before for the same exchange is
+	 * replaced.
+	 *
+	 * @param addr
+	 *            - the remote address
+	 * @param port
+	 *            - the remote port
+	 * @param messageId
+	 *            - the message id of the exchange
+	 * @param datagram
+	 *            - the serialized message
+	 * @param length
+	 *            - the length of the serialized message
+	 */
+	public synchronized void put(InetAddress addr, int port, int messageId, byte[] datagram, int length) {
+		int offset = reserve(addr, port, messageId, length);
+		if (offset >= 0) {
+			this.storeView.limit(this.capacity);
+			this.storeView.position(offset + HEADER_LENGTH);
+			this.storeView.put(datagram, 0, length);
+		}
+	}
+
+	/**
+	 * Stores a datagram. A datagram stored before for the same exchange is
+	 * replaced.
+	 *
+	 * @param addr
+	 *            - the remote address
+	 * @param port
+	 *            - the remote port
+	 * @param messageId
+	 *            - the message id of the exchange
+	 * @param datagram
+	 *            - the serialized message between position and limit. The
+	 *            position of the buffer is not changed.
+	 */
+	public synchronized void put(InetAddress addr, int port, int messageId, ByteBuffer datagram) {
+		int position = datagram.position();
+		int offset = reserve(addr, port, messageId, datagram.remaining());
+		if (offset >= 0) {
+			this.storeView.limit(this.capacity);
+			this.storeView.position(offset + HEADER_LENGTH);
+			this.storeView.put(datagram);
+			datagram.position(position);
+		}
+	}
+
+	/**
+	 * Makes room for a datagram, writes the record header and indexes it.
+	 *
+	 * @return The offset of the record or -1, if the datagram is too large
+	 */
+	private int reserve(InetAddress addr, int port, int messageId, int length) {
+		int needed = HEADER_LENGTH + length;
+		if (needed > this.capacity) {
+			this.rejected++;
+			return -1;
+		}
+		long now = System.currentTimeMillis();
+		removeExpired(now);
+		while (this.count >= this.maxEntries) {
+			evictOldest();
+		}
+		while (true) {
+			if (this.used == 0) {
+				this.head = 0;
+				this.tail = 0;
+			}
+			int free;
+			if (this.used == 0 || this.head > this.tail) {
+				free = this.capacity - this.head;
+			} else {
+				free = this.tail - this.head;
+			}
+			if (needed <= free) {
+				break;
+			}
+			if (this.head > this.tail) {
+				/* skip the end of the ring and continue at its start */
+				if (this.capacity - this.head >= 4) {
+					this.ring.putInt(this.head, PADDING);
+				}
+				this.used += this.capacity - this.head;
+				this.head = 0;
+			} else {
+				evictOldest();
+			}
+		}
+
+		ExchangeKeys.pack(addr, port, messageId, this.key);
+		int offset = this.head;
+		this.ring.putInt(offset, length);
+		this.ring.putLong(offset + 4, now + this.lifetime);
+		this.ring.putLong(offset + 12, this.key[0]);
+		this.ring.putLong(offset + 20, this.key[1]);
+		this.ring.putLong(offset + 28, this.key[2]);
+		this.head += needed;
+		this.used += needed;
+		this.count++;
+		this.stored++;
+
+		int slot = indexOf(this.key[0], this.key[1], this.key[2]);
+		if (slot >= 0) {
+			/* the old record is evicted in turn, but no longer indexed */
+			this.offsets[slot] = offset;
+		} else {
+			insert(this.key[0], this.key[1], this.key[2], offset);
+		}
+		return offset;
+	}
+
+	/**
+	 * Sends the stored datagram of an exchange again.
+	 *
+	 * @param remote
+	 *            - the remote address and port
+	 * @param messageId
+	 *            - the message id of the exchange
+	 * @param channel
+	 *            - the channel to send the datagram with
+	 * @return true, if a datagram was stored and sent
+	 * @throws IOException
+	 *             if sending failed
+	 */
+	public synchronized boolean replay(InetSocketAddress remote, int messageId, DatagramChannel channel)
+			throws IOException {
+		ExchangeKeys.pack(remote.getAddress(), remote.getPort(), messageId, this.key);
+		int slot = indexOf(this.key[0], this.key[1], this.key[2]);
+		if (slot < 0) {
+			this.misses++;
+			return false;
+		}
+		int offset = this.offsets[slot];
+		if (this.ring.getLong(offset + 4) <= System.currentTimeMillis()) {
+			this.misses++;
+			return false;
+		}
+		int length = this.ring.getInt(offset);
+		this.sendView.limit(offset + HEADER_LENGTH + length);
+		this.sendView.position(offset + HEADER_LENGTH);
+		channel.send(this.sendView, remote);
+		this.replayed++;
+		return true;
+	}
+
+	/**
+	 * @return The number of stored datagrams
+	 */
+	public synchronized int size() {
+		return this.count;
+	}
+
+	/**
+	 * @return The number of bytes in use, including record headers
+	 */
+	public synchronized int getUsedBytes() {
+		return this.used;
+	}
+
+	public synchronized long getStoredCount() {
+		return this.stored;
+	}
+
+	public synchronized long getReplayedCount() {
+		return this.replayed;
+	}
+
+	public synchronized long getMissCount() {
+		return this.misses;
+	}
+
+	/**
+	 * @return The number of datagrams removed before their lifetime ended
+	 *         because the capacity or the maximum number of entries was
+	 *         exceeded
+	 */
+	public synchronized long getEvictionCount() {
+		return this.evicted;
+	}
+
+	public synchronized long getExpirationCount() {
+		return this.expired;
+	}
+
+	/**
+	 * @return The number of datagrams not stored because they are larger than
+	 *         the ring
+	 */
+	public synchronized long getRejectedCount() {
+		return this.rejected;
+	}
+
+	public synchronized void clear() {
+		this.head = 0;
+		this.tail = 0;
+		this.used = 0;
+		this.count = 0;
+		for (int i = 0; i < this.keys.length; i++) {
+			this.keys[i] = 0;
+		}
+	}
+
+	private void removeExpired(long now) {
+		while (this.count > 0) {
+			skipPadding();
+			if (this.ring.getLong(this.tail + 4) > now) {
+				return;
+			}
+			removeOldest();
+			this.expired++;
+		}
+	}
+
+	private void evictOldest() {
+		if (this.used == 0) {
+			return;
+		}
+		skipPadding();
+		if (this.count > 0) {
+			removeOldest();
+			this.evicted++;
+		}
+	}
+
+	/**
+	 * Moves the tail to the start of the ring, if it points to the unused end
+	 */
+	private void skipPadding() {
+		if (this.used > 0 && this.tail > this.head || this.used == this.capacity) {
+			if (this.capacity - this.tail < 4 || this.ring.getInt(this.tail) == PADDING) {
+				this.used -= this.capacity - this.tail;
+				this.tail = 0;
+			}
+		}
+	}
+
+	private void removeOldest() {
+		int offset = this.tail;
+		int length = this.ring.getInt(offset);
+		long high = this.ring.getLong(offset + 12);
+		long low = this.ring.getLong(offset + 20);
+		long portMid = this.ring.getLong(offset + 28);
+		int slot = indexOf(high, low, portMid);
+		if (slot >= 0 && this.offsets[slot] == offset) {
+			remove(slot);
+		}
+		this.tail += HEADER_LENGTH + length;
+		this.used -= HEADER_LENGTH + length;
+		this.count--;
+		if (this.used == 0) {
+			this.head = 0;
+			this.tail = 0;
+		} else if (this.tail == this.capacity) {
+			this.tail = 0;
+		}
+	}
+
+	private int indexOf(long high, long low, long portMid) {
+		int slot = ExchangeKeys.hash(high, low, portMid) & this.mask;
+		while (true) {
+			int i = slot * 3;
+			long stored = this.keys[i + 2];
+			if (stored == 0) {
+				return -1;
+			}
+			if (stored == portMid && this.keys[i] == high && this.keys[i + 1] == low) {
+				return slot;
+			}
+			slot = (slot + 1) & this.mask;
+		}
+	}
+
+	private void insert(long high, long low, long portMid, int offset) {
+		int slot = ExchangeKeys.hash(high, low, portMid) & this.mask;
+		while (this.keys[slot * 3 + 2] != 0) {
+			slot = (slot + 1) & this.mask;
+		}
+		int i = slot * 3;
+		this.keys[i] = high;
+		this.keys[i + 1] = low;
+		this.keys[i + 2] = portMid;
+		this.offsets[slot] = offset;
+	}
+
+	/**
+	 * Removes an index entry with backward shift deletion, so linear probing
+	 * needs no tombstones.
+	 */
+	private void remove(int slot) {
+		int hole = slot;
+		int next = (hole + 1) & this.mask;
+		while (this.keys[next * 3 + 2] != 0) {
+			int n = next * 3;
+			int home = ExchangeKeys.hash(this.keys[n], this.keys[n + 1], this.keys[n + 2]) & this.mask;
+			/* move the entry if its home slot is not between the hole and its slot */
+			if (((next - home) & this.mask) >= ((next - hole) & this.mask)) {
+				int h = hole * 3;
+				this.keys[h] = this.keys[n];
+				this.keys[h + 1] = this.keys[n + 1];
+				this.keys[h + 2] = this.keys[n + 2];
+				this.offsets[hole] = this.offsets[next];
+				hole = next;
+			}
+			next = (next + 1) & this.mask;
+		}
+		int h = hole * 3;
+		this.keys[h] = 0;
+		this.keys[h + 1] = 0;
+		this.keys[h + 2] = 0;
+	}
+}
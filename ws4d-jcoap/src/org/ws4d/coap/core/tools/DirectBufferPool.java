@@ -0,0 +1,99 @@
+/* Copyright 2016 University of Rostock
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *****************************************************************************/
+
+package org.ws4d.coap.core.tools;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A pool of direct buffers of a fixed size. A datagram channel sends a heap
+ * buffer by copying it into a temporary direct buffer first; serializing into
+ * a pooled direct buffer saves this copy and the allocation.<br>
+ * <br>
+ * The pool is lock-free and does not allocate once it is warm: buffers are
+ * kept in the slots of an array. If all buffers are in use a new one is
+ * allocated; it is kept on release if a slot is free, otherwise it is left to
+ * the garbage collector.
+ */
+public class DirectBufferPool {
+
+	private final AtomicReferenceArray<ByteBuffer> slots;
+	private final int bufferSize;
+
+	private final AtomicLong allocated = new AtomicLong();
+
+	/**
+	 * @param bufferSize
+	 *            - the capacity of the buffers in bytes
+	 * @param maxPooled
+	 *            - the maximum number of idle buffers kept in the pool
+	 */
+	public DirectBufferPool(int bufferSize, int maxPooled) {
+		if (bufferSize < 1 || maxPooled < 1) {
+			throw new IllegalArgumentException("buffer size and pool size must be positive");
+		}
+		this.bufferSize = bufferSize;
+		this.slots = new AtomicReferenceArray<ByteBuffer>(maxPooled);
+	}
+
+	/**
+	 * @return A cleared buffer. It should be given back with
+	 *         {@link #release(ByteBuffer)} when it is not used anymore.
+	 */
+	public ByteBuffer acquire() {
+		for (int i = 0; i < this.slots.length(); i++) {
+			if (this.slots.get(i) != null) {
+				ByteBuffer buffer = this.slots.getAndSet(i, null);
+				if (buffer != null) {
+					buffer.clear();
+					return buffer;
+				}
+			}
+		}
+		this.allocated.incrementAndGet();
+		return ByteBuffer.allocateDirect(this.bufferSize);
+	}
+
+	/**
+	 * Gives a buffer back to the pool. The buffer must not be used afterwards.
+	 *
+	 * @param buffer
+	 *            - a buffer acquired from this pool
+	 */
+	public void release(ByteBuffer buffer) {
+		if (buffer == null || buffer.capacity() != this.bufferSize || !buffer.isDirect()) {
+			return;
+		}
+		for (int i = 0; i < this.slots.length(); i++) {
+			if (this.slots.get(i) == null && this.slots.compareAndSet(i, null, buffer)) {
+				return;
+			}
+		}
+	}
+
+	public int getBufferSize() {
+		return this.bufferSize;
+	}
+
+	/**
+	 * @return The number of buffers allocated so far. It stays constant once
+	 *         the pool holds enough buffers for all concurrent users.
+	 */
+	public long getAllocatedCount() {
+		return this.allocated.get();
+	}
+}
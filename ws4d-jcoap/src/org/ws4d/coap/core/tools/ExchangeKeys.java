@@ -0,0 +1,63 @@
+/* Copyright 2016 University of Rostock
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *****************************************************************************/
+
+package org.ws4d.coap.core.tools;
+
+import java.net.Inet4Address;
+import java.net.InetAddress;
+
+/**
+ * Packs the key of a message exchange (remote address, remote port, message
+ * id) into three longs. An IPv4 address is mapped into the IPv6 address space.
+ * The third long is never 0, so it can mark used slots of a hash table.
+ */
+final class ExchangeKeys {
+
+	private static final long IPV4_MAPPED_PREFIX = 0xFFFF00000000L;
+	private static final long USED = 1L << 32;
+
+	private ExchangeKeys() {
+	}
+
+	/**
+	 * @param key
+	 *            - receives address high, address low and used | port | mid
+	 */
+	static void pack(InetAddress addr, int port, int messageId, long[] key) {
+		if (addr instanceof Inet4Address) {
+			/* the hash code of an IPv4 address is the address itself */
+			key[0] = 0;
+			key[1] = IPV4_MAPPED_PREFIX | (addr.hashCode() & 0xFFFFFFFFL);
+		} else {
+			byte[] bytes = addr.getAddress();
+			long high = 0;
+			long low = 0;
+			for (int i = 0; i < 8; i++) {
+				high = (high << 8) | (bytes[i] & 0xFF);
+				low = (low << 8) | (bytes[i + 8] & 0xFF);
+			}
+			key[0] = high;
+			key[1] = low;
+		}
+		key[2] = USED | ((port & 0xFFFFL) << 16) | (messageId & 0xFFFFL);
+	}
+
+	static int hash(long high, long low, long portMid) {
+		long h = high * 0x9E3779B97F4A7C15L;
+		h = (h ^ low) * 0x9E3779B97F4A7C15L;
+		h = (h ^ portMid) * 0x9E3779B97F4A7C15L;
+		return (int) (h ^ (h >>> 32));
+	}
+}
@@ -0,0 +1,221 @@
+/* Copyright 2016 University of Rostock
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *****************************************************************************/
+
+package org.ws4d.coap.core.tools;
+
+import java.net.InetAddress;
+import java.util.Arrays;
+
+/**
+ * A compact set of message exchanges, each identified by the remote address,
+ * the remote port and the message id. Entries expire after a fixed lifetime,
+ * e.g. the EXCHANGE_LIFETIME of rfc7252 - 4.8.2.<br>
+ * <br>
+ * The keys are stored as primitives in open addressing hash tables: an IPv4
+ * address is mapped into the IPv6 address space, so every key takes three
+ * longs and no objects are allocated per entry. The entries are kept in a
+ * number of generations. New entries are added to the current generation;
+ * when a generation gets too old it is cleared as a whole and reused as the
+ * current one. Entries therefore live between the lifetime and lifetime *
+ * generations / (generations - 1).<br>
+ * <br>
+ * This class is <b>not thread safe</b>. It is meant to be owned by a single
+ * thread, e.g. one store per dispatch thread of a socket handler.
+ */
+public class ExchangeStore {
+
+	private static final float MAX_LOAD = 0.6f;
+
+	private final Generation[] generations;
+	/** the time span covered by a generation in ms */
+	private final long period;
+	private int current = 0;
+	private long nextRotation;
+
+	/* the key of the last lookup: address high, address low, port and mid */
+	private final long[] key = new long[3];
+
+	/**
+	 * @param lifetime
+	 *            - the minimal lifetime of an entry in ms
+	 */
+	public ExchangeStore(long lifetime) {
+		this(lifetime, 4, 256);
+	}
+
+	/**
+	 * @param lifetime
+	 *            - the minimal lifetime of an entry in ms
+	 * @param generations
+	 *            - the number of generations, at least 2. More generations
+	 *            remove expired entries more timely.
+	 * @param initialCapacity
+	 *            - the initial number of slots per generation
+	 */
+	public ExchangeStore(long lifetime, int generations, int initialCapacity) {
+		if (generations < 2) {
+			throw new IllegalArgumentException("at least 2 generations are required");
+		}
+		this.period = Math.max(1, lifetime / (generations - 1));
+		this.generations = new Generation[generations];
+		for (int i = 0; i < generations; i++) {
+			this.generations[i] = new Generation(initialCapacity);
+		}
+		this.nextRotation = System.currentTimeMillis() + this.period;
+	}
+
+	/**
+	 * Adds an exchange if it is not already stored.
+	 *
+	 * @param addr
+	 *            - the remote address
+	 * @param port
+	 *            - the remote port
+	 * @param messageId
+	 *            - the message id
+	 * @return true, if the exchange was added. false, if it is a duplicate.
+	 */
+	public boolean add(InetAddress addr, int port, int messageId) {
+		rotate();
+		ExchangeKeys.pack(addr, port, messageId, this.key);
+		if (find() != null) {
+			return false;
+		}
+		this.generations[this.current].insert(this.key[0], this.key[1], this.key[2]);
+		return true;
+	}
+
+	/**
+	 * @return true, if the exchange is stored and not expired
+	 */
+	public boolean contains(InetAddress addr, int port, int messageId) {
+		rotate();
+		ExchangeKeys.pack(addr, port, messageId, this.key);
+		return find() != null;
+	}
+
+	/**
+	 * @return The number of stored exchanges, including expired ones that were
+	 *         not removed yet
+	 */
+	public int size() {
+		int size = 0;
+		for (Generation generation : this.generations) {
+			size += generation.size;
+		}
+		return size;
+	}
+
+	public void clear() {
+		for (Generation generation : this.generations) {
+			generation.clear();
+		}
+	}
+
+	private Generation find() {
+		for (int i = 0; i < this.generations.length; i++) {
+			/* look into the youngest generation first */
+			int index = (this.current - i + this.generations.length) % this.generations.length;
+			Generation generation = this.generations[index];
+			if (generation.size > 0 && generation.indexOf(this.key[0], this.key[1], this.key[2]) >= 0) {
+				return generation;
+			}
+		}
+		return null;
+	}
+
+	private void rotate() {
+		long now = System.currentTimeMillis();
+		if (now < this.nextRotation) {
+			return;
+		}
+		/* after a long pause every generation has expired */
+		long rotations = Math.min((now - this.nextRotation) / this.period + 1, this.generations.length);
+		for (long i = 0; i < rotations; i++) {
+			this.current = (this.current + 1) % this.generations.length;
+			this.generations[this.current].clear();
+		}
+		this.nextRotation = now + this.period;
+	}
+
+	/**
+	 * An open addressing hash table with linear probing. Entries are never
+	 * removed individually, so no tombstones are needed.
+	 */
+	private static class Generation {
+		/* three longs per slot: address high, address low, used | port | mid */
+		long[] keys;
+		int mask;
+		int size;
+
+		Generation(int capacity) {
+			int slots = 16;
+			while (slots < capacity) {
+				slots <<= 1;
+			}
+			this.keys = new long[slots * 3];
+			this.mask = slots - 1;
+		}
+
+		int indexOf(long high, long low, long portMid) {
+			int slot = ExchangeKeys.hash(high, low, portMid) & this.mask;
+			while (true) {
+				int i = slot * 3;
+				long stored = this.keys[i + 2];
+				if (stored == 0) {
+					return -1;
+				}
+				if (stored == portMid && this.keys[i] == high && this.keys[i + 1] == low) {
+					return slot;
+				}
+				slot = (slot + 1) & this.mask;
+			}
+		}
+
+		void insert(long high, long low, long portMid) {
+			if (this.size + 1 > (this.mask + 1) * MAX_LOAD) {
+				grow();
+			}
+			int slot = ExchangeKeys.hash(high, low, portMid) & this.mask;
+			while (this.keys[slot * 3 + 2] != 0) {
+				slot = (slot + 1) & this.mask;
+			}
+			int i = slot * 3;
+			this.keys[i] = high;
+			this.keys[i + 1] = low;
+			this.keys[i + 2] = portMid;
+			this.size++;
+		}
+
+		private void grow() {
+			long[] old = this.keys;
+			this.keys = new long[old.length * 2];
+			this.mask = (this.mask << 1) | 1;
+			this.size = 0;
+			for (int i = 0; i < old.length; i += 3) {
+				if (old[i + 2] != 0) {
+					insert(old[i], old[i + 1], old[i + 2]);
+				}
+			}
+		}
+
+		void clear() {
+			if (this.size > 0) {
+				Arrays.fill(this.keys, 0);
+				this.size = 0;
+			}
+		}
+	}
+}
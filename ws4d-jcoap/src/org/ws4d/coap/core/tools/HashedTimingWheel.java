@@ -0,0 +1,294 @@
+/* Copyright 2016 University of Rostock
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *****************************************************************************/
+
+package org.ws4d.coap.core.tools;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A hashed timing wheel to schedule a large number of timeouts with O(1)
+ * schedule and cancel operations. Every timeout is hashed by its deadline into
+ * one of a fixed number of buckets, each covering one tick. Timeouts further
+ * in the future than one revolution share the buckets and are skipped until
+ * their deadline is reached.<br>
+ * <br>
+ * The wheel has no thread of its own. It is driven by a single owner thread
+ * that periodically calls {@link #advance()}, which runs the expired tasks on
+ * the owner thread. {@link #schedule(Runnable, long)} and
+ * {@link Timeout#cancel()} may be called from any thread; they take effect
+ * with the next call of {@link #advance()}.
+ */
+public class HashedTimingWheel {
+
+	/** the duration of a tick in nanoseconds */
+	private final long tickNanos;
+
+	/** the first timeout of every bucket, timeouts of a bucket form a doubly linked list */
+	private final Timeout[] buckets;
+	private final int mask;
+
+	/** one bit per non-empty bucket, so the next timeout is found a word at a time */
+	private final long[] occupied;
+
+	/** the point in time (System.nanoTime()) of tick 0 */
+	private final long startTime;
+
+	/** the next tick to be processed, only accessed by the owner thread */
+	private long tick = 0;
+
+	/** the number of timeouts in the buckets, only accessed by the owner thread */
+	private int size = 0;
+
+	/** timeouts scheduled since the last call of advance() */
+	private final Queue<Timeout> scheduled = new ConcurrentLinkedQueue<Timeout>();
+
+	/** timeouts cancelled since the last call of advance() */
+	private final Queue<Timeout> cancelled = new ConcurrentLinkedQueue<Timeout>();
+
+	/**
+	 * Creates a timing wheel with a tick of one millisecond and 1024 buckets
+	 */
+	public HashedTimingWheel() {
+		this(1, 1024);
+	}
+
+	/**
+	 * @param tickMillis
+	 *            - the duration of a tick in milliseconds and therefore the
+	 *            accuracy of the timeouts
+	 * @param ticksPerWheel
+	 *            - the number of buckets, rounded up to a power of two
+	 */
+	public HashedTimingWheel(long tickMillis, int ticksPerWheel) {
+		if (tickMillis < 1) {
+			throw new IllegalArgumentException("tickMillis must be at least 1");
+		}
+		if (ticksPerWheel < 1 || ticksPerWheel > (1 << 30)) {
+			throw new IllegalArgumentException("ticksPerWheel must be between 1 and 2^30");
+		}
+		int length = 1;
+		while (length < ticksPerWheel) {
+			length <<= 1;
+		}
+		this.tickNanos = tickMillis * 1000000L;
+		this.buckets = new Timeout[length];
+		this.mask = length - 1;
+		this.occupied = new long[(length + 63) >>> 6];
+		this.startTime = System.nanoTime();
+	}
+
+	/**
+	 * Schedules a task to be run by the owner thread.
+	 *
+	 * @param task
+	 *            - the task to run when the timeout expires
+	 * @param delayMillis
+	 *            - the delay in milliseconds
+	 * @return A handle to cancel the timeout
+	 */
+	public Timeout schedule(Runnable task, long delayMillis) {
+		if (task == null) {
+			throw new IllegalArgumentException("task must not be null");
+		}
+		Timeout timeout = new Timeout(this, task, System.nanoTime() + Math.max(0, delayMillis) * 1000000L);
+		this.scheduled.add(timeout);
+		return timeout;
+	}
+
+	/**
+	 * Runs all expired tasks. Must only be called by the owner thread.
+	 *
+	 * @return Milliseconds until the next non-empty tick, -1 if no timeout is
+	 *         pending. Timeouts scheduled by other threads in the meantime are
+	 *         not considered, the owner has to be woken up in that case.
+	 */
+	public long advance() {
+		transferScheduled();
+		removeCancelled();
+
+		long now = System.nanoTime();
+		long current = (now - this.startTime) / this.tickNanos;
+		if (current >= this.tick) {
+			/* every bucket has to be visited at most once */
+			long first = Math.max(this.tick, current - this.mask);
+			for (long t = first; t <= current; t++) {
+				expireBucket((int) (t & this.mask), now);
+			}
+			this.tick = current + 1;
+		}
+		return nextDelay();
+	}
+
+	/**
+	 * @return The number of pending timeouts as of the last call of
+	 *         {@link #advance()}. Must only be called by the owner thread.
+	 */
+	public int size() {
+		return this.size;
+	}
+
+	private void transferScheduled() {
+		Timeout timeout;
+		while ((timeout = this.scheduled.poll()) != null) {
+			if (timeout.state.get() != Timeout.ST_INIT) {
+				/* cancelled before it was added to the wheel */
+				continue;
+			}
+			/* round up, a bucket is only processed when all its deadlines are reached */
+			long deadlineTick = (timeout.deadline - this.startTime + this.tickNanos - 1) / this.tickNanos;
+			link(timeout, (int) (Math.max(deadlineTick, this.tick) & this.mask));
+		}
+	}
+
+	private void removeCancelled() {
+		Timeout timeout;
+		while ((timeout = this.cancelled.poll()) != null) {
+			if (timeout.bucket >= 0) {
+				unlink(timeout);
+			}
+		}
+	}
+
+	private void expireBucket(int index, long now) {
+		Timeout timeout = this.buckets[index];
+		while (timeout != null) {
+			Timeout next = timeout.next;
+			if (timeout.deadline - now <= 0) {
+				unlink(timeout);
+				if (timeout.state.compareAndSet(Timeout.ST_INIT, Timeout.ST_EXPIRED)) {
+					timeout.task.run();
+				}
+			}
+			timeout = next;
+		}
+	}
+
+	private long nextDelay() {
+		if (this.size == 0) {
+			return -1;
+		}
+		int distance = nextOccupied((int) (this.tick & this.mask));
+		if (distance < 0) {
+			return -1;
+		}
+		long wakeup = this.startTime + (this.tick + distance) * this.tickNanos;
+		return Math.max(1, (wakeup - System.nanoTime() + 999999) / 1000000);
+	}
+
+	/**
+	 * @return The number of buckets from the given one to the next non-empty
+	 *         bucket, wrapping around, or -1 if all buckets are empty
+	 */
+	private int nextOccupied(int from) {
+		int words = this.occupied.length;
+		int word = from >>> 6;
+		long bits = this.occupied[word] & (-1L << (from & 63));
+		for (int i = 0; i <= words; i++) {
+			if (bits != 0) {
+				int index = (word << 6) + Long.numberOfTrailingZeros(bits);
+				return (index - from) & this.mask;
+			}
+			word = (word + 1) % words;
+			bits = this.occupied[word];
+		}
+		return -1;
+	}
+
+	private void link(Timeout timeout, int index) {
+		timeout.bucket = index;
+		timeout.prev = null;
+		timeout.next = this.buckets[index];
+		if (timeout.next != null) {
+			timeout.next.prev = timeout;
+		} else {
+			this.occupied[index >>> 6] |= 1L << (index & 63);
+		}
+		this.buckets[index] = timeout;
+		this.size++;
+	}
+
+	private void unlink(Timeout timeout) {
+		if (timeout.prev != null) {
+			timeout.prev.next = timeout.next;
+		} else {
+			this.buckets[timeout.bucket] = timeout.next;
+			if (timeout.next == null) {
+				this.occupied[timeout.bucket >>> 6] &= ~(1L << (timeout.bucket & 63));
+			}
+		}
+		if (timeout.next != null) {
+			timeout.next.prev = timeout.prev;
+		}
+		timeout.prev = null;
+		timeout.next = null;
+		timeout.bucket = -1;
+		this.size--;
+	}
+
+	/**
+	 * A handle of a scheduled task.
+	 */
+	public static final class Timeout {
+		static final int ST_INIT = 0;
+		static final int ST_CANCELLED = 1;
+		static final int ST_EXPIRED = 2;
+
+		private final HashedTimingWheel wheel;
+		private final Runnable task;
+		/** the deadline as System.nanoTime() */
+		private final long deadline;
+		private final AtomicInteger state = new AtomicInteger(ST_INIT);
+
+		/* bucket list, only accessed by the owner thread */
+		private int bucket = -1;
+		private Timeout prev;
+		private Timeout next;
+
+		Timeout(HashedTimingWheel wheel, Runnable task, long deadline) {
+			this.wheel = wheel;
+			this.task = task;
+			this.deadline = deadline;
+		}
+
+		/**
+		 * Cancels the timeout. The task will not be run, even if it is already
+		 * expired but the owner thread did not run it yet.
+		 *
+		 * @return true, if the timeout was cancelled. false, if it already
+		 *         expired or was cancelled before.
+		 */
+		public boolean cancel() {
+			if (!this.state.compareAndSet(ST_INIT, ST_CANCELLED)) {
+				return false;
+			}
+			this.wheel.cancelled.add(this);
+			return true;
+		}
+
+		public boolean isCancelled() {
+			return this.state.get() == ST_CANCELLED;
+		}
+
+		public boolean isExpired() {
+			return this.state.get() == ST_EXPIRED;
+		}
+
+		public Runnable getTask() {
+			return this.task;
+		}
+	}
+}
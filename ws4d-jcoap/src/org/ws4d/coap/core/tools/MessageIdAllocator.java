@@ -0,0 +1,98 @@
+/* Copyright 2016 University of Rostock
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *****************************************************************************/
+
+package org.ws4d.coap.core.tools;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.ws4d.coap.core.CoapConstants;
+
+/**
+ * Allocates the message ids towards a single remote endpoint without locking.
+ * Ids are handed out in sequence, so an id is only reused after all other
+ * 65535 ids were used. Ids that are still live, e.g. of a CON message that
+ * waits for its ACK, are skipped.<br>
+ * <br>
+ * A remote endpoint detects duplicates by message id for EXCHANGE_LIFETIME,
+ * so a sender must not exceed 65536 messages per EXCHANGE_LIFETIME (about
+ * 265 messages per second) towards the same endpoint, see rfc7252 - 4.4.
+ */
+public class MessageIdAllocator {
+
+	/**
+	 * Tells whether a message id is still in use
+	 */
+	public interface LiveCheck {
+		boolean isLive(int messageId);
+	}
+
+	private final AtomicInteger next;
+	private final LiveCheck liveCheck;
+
+	/* statistics */
+	private final AtomicLong allocated = new AtomicLong();
+	private final AtomicLong skipped = new AtomicLong();
+	private volatile long lastAllocation;
+
+	/**
+	 * @param initial
+	 *            - the first message id, should be random
+	 * @param liveCheck
+	 *            - tells which ids to skip, may be null
+	 */
+	public MessageIdAllocator(int initial, LiveCheck liveCheck) {
+		this.next = new AtomicInteger(initial);
+		this.liveCheck = liveCheck;
+		this.lastAllocation = System.currentTimeMillis();
+	}
+
+	/**
+	 * @return The next message id that is not live. If all ids are live, the
+	 *         next id in sequence.
+	 */
+	public int allocate() {
+		int messageId = 0;
+		for (int i = 0; i <= CoapConstants.MESSAGE_ID_MAX; i++) {
+			/* the counter wraps at 2^32, a multiple of the id range */
+			messageId = this.next.getAndIncrement() & CoapConstants.MESSAGE_ID_MAX;
+			if (this.liveCheck == null || !this.liveCheck.isLive(messageId)) {
+				break;
+			}
+			this.skipped.incrementAndGet();
+		}
+		this.allocated.incrementAndGet();
+		this.lastAllocation = System.currentTimeMillis();
+		return messageId;
+	}
+
+	public long getAllocatedCount() {
+		return this.allocated.get();
+	}
+
+	/**
+	 * @return The number of ids that were skipped as they were still live
+	 */
+	public long getSkippedCount() {
+		return this.skipped.get();
+	}
+
+	/**
+	 * @return The time of the last allocation in ms
+	 */
+	public long getLastAllocation() {
+		return this.lastAllocation;
+	}
+}
@@ -0,0 +1,157 @@
+/* Copyright 2016 University of Rostock
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *****************************************************************************/
+
+package org.ws4d.coap.core.tools;
+
+import java.util.ArrayDeque;
+
+/**
+ * A queue with one FIFO per priority class, class 0 being the highest. The
+ * highest non-empty class is served first. To prevent starvation, a class
+ * that was passed over starvationLimit times while it was waiting is served
+ * next, regardless of the higher classes.
+ *
+ * @param <T>
+ *            - the type of the queued elements
+ */
+public class PrioritySendQueue<T> {
+
+	private final ArrayDeque<T>[] queues;
+	/* the number of elements of higher classes served while a class waited */
+	private final int[] passedOver;
+	private final int starvationLimit;
+	private int size = 0;
+
+	/* statistics */
+	private final long[] enqueued;
+	private final long[] promoted;
+	private final int[] maxDepth;
+
+	/**
+	 * @param classes
+	 *            - the number of priority classes
+	 * @param starvationLimit
+	 *            - the number of elements of higher classes after which a
+	 *            waiting class is served
+	 */
+	public PrioritySendQueue(int classes, int starvationLimit) {
+		if (classes < 1 || starvationLimit < 1) {
+			throw new IllegalArgumentException("At least one class and a starvation limit of one are required");
+		}
+		@SuppressWarnings({ "unchecked", "rawtypes" })
+		ArrayDeque<T>[] queues = new ArrayDeque[classes];
+		this.queues = queues;
+		for (int i = 0; i < classes; i++) {
+			this.queues[i] = new ArrayDeque<T>();
+		}
+		this.passedOver = new int[classes];
+		this.starvationLimit = starvationLimit;
+		this.enqueued = new long[classes];
+		this.promoted = new long[classes];
+		this.maxDepth = new int[classes];
+	}
+
+	/**
+	 * @param element
+	 *            - the element to queue
+	 * @param priority
+	 *            - the class of the element, 0 is the highest
+	 */
+	public synchronized void offer(T element, int priority) {
+		ArrayDeque<T> queue = this.queues[priority];
+		queue.add(element);
+		this.size++;
+		this.enqueued[priority]++;
+		if (queue.size() > this.maxDepth[priority]) {
+			this.maxDepth[priority] = queue.size();
+		}
+	}
+
+	/**
+	 * @return The next element or null, if all classes are empty
+	 */
+	public synchronized T poll() {
+		if (this.size == 0) {
+			return null;
+		}
+		int served = -1;
+		/* a starving class goes first, the lowest classes starve first */
+		for (int i = this.queues.length - 1; i > 0; i--) {
+			if (this.passedOver[i] >= this.starvationLimit && !this.queues[i].isEmpty()) {
+				served = i;
+				this.promoted[i]++;
+				break;
+			}
+		}
+		if (served < 0) {
+			for (int i = 0; i < this.queues.length; i++) {
+				if (!this.queues[i].isEmpty()) {
+					served = i;
+					break;
+				}
+			}
+		}
+		T element = this.queues[served].poll();
+		this.size--;
+		this.passedOver[served] = 0;
+		for (int i = 0; i < this.queues.length; i++) {
+			if (i != served && !this.queues[i].isEmpty()) {
+				this.passedOver[i]++;
+			}
+		}
+		return element;
+	}
+
+	public synchronized int size() {
+		return this.size;
+	}
+
+	public synchronized boolean isEmpty() {
+		return this.size == 0;
+	}
+
+	public int getClassCount() {
+		return this.queues.length;
+	}
+
+	/**
+	 * @return The number of queued elements of a class
+	 */
+	public synchronized int getQueueDepth(int priority) {
+		return this.queues[priority].size();
+	}
+
+	/**
+	 * @return The highest number of queued elements of a class so far
+	 */
+	public synchronized int getMaxQueueDepth(int priority) {
+		return this.maxDepth[priority];
+	}
+
+	/**
+	 * @return The number of elements of a class queued so far
+	 */
+	public synchronized long getEnqueuedCount(int priority) {
+		return this.enqueued[priority];
+	}
+
+	/**
+	 * @return The number of elements of a class served ahead of higher
+	 *         classes to prevent starvation
+	 */
+	public synchronized long getPromotedCount(int priority) {
+		return this.promoted[priority];
+	}
+}
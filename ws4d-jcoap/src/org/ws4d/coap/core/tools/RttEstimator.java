@@ -0,0 +1,244 @@
+/* Copyright 2016 University of Rostock
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *****************************************************************************/
+
+package org.ws4d.coap.core.tools;
+
+/**
+ * Estimates the retransmission timeout (RTO) towards a single remote endpoint
+ * following CoCoA (draft-ietf-core-cocoa).<br>
+ * <br>
+ * Two estimators are fed with RTT samples. A strong sample is taken from an
+ * exchange that was confirmed without retransmission. A weak sample is taken
+ * from an exchange that needed one or two retransmissions; it is measured
+ * from the first transmission, as it is unknown which transmission was
+ * answered. Both estimators follow rfc6298, the strong one with K = 4, the
+ * weak one with K = 1. The overall RTO moves halfway towards a new strong
+ * estimate and a quarter of the way towards a new weak one.<br>
+ * <br>
+ * The backoff factor depends on the RTO an exchange started with (variable
+ * backoff), and an RTO that was not updated for a while ages back towards the
+ * default.<br>
+ * <br>
+ * All methods are thread safe.
+ */
+public class RttEstimator {
+
+	/** the RTO of a remote endpoint without samples, rfc7252 ACK_TIMEOUT */
+	public static final long DEFAULT_RTO_MS = 2000;
+	/** a lower bound that keeps scheduling jitter from causing retransmissions */
+	public static final long MIN_RTO_MS = 50;
+	public static final long MAX_RTO_MS = 32000;
+
+	private static final int STRONG_K = 4;
+	private static final int WEAK_K = 1;
+
+	private final Estimator strong = new Estimator(STRONG_K);
+	private final Estimator weak = new Estimator(WEAK_K);
+
+	private long rto = DEFAULT_RTO_MS;
+	private long lastUpdate;
+	private long lastRtt = -1;
+	private long lastActivity;
+
+	/* statistics */
+	private long exchanges = 0;
+	private long retransmissions = 0;
+	private long failures = 0;
+
+	public RttEstimator() {
+		this.lastUpdate = System.currentTimeMillis();
+		this.lastActivity = this.lastUpdate;
+	}
+
+	/**
+	 * Adds the RTT of a confirmed exchange.
+	 *
+	 * @param rtt
+	 *            - the time from the first transmission to the confirmation in
+	 *            ms
+	 * @param retransmissionCount
+	 *            - the number of retransmissions of the exchange. Samples with
+	 *            more than two retransmissions are ignored.
+	 */
+	public synchronized void addSample(long rtt, int retransmissionCount) {
+		long now = System.currentTimeMillis();
+		if (retransmissionCount == 0) {
+			this.rto = (this.strong.update(rtt) + this.rto) / 2;
+		} else if (retransmissionCount <= 2) {
+			this.rto = (this.weak.update(rtt) + 3 * this.rto) / 4;
+		} else {
+			return;
+		}
+		this.rto = Math.max(MIN_RTO_MS, Math.min(MAX_RTO_MS, this.rto));
+		this.lastRtt = rtt;
+		this.lastUpdate = now;
+		this.lastActivity = now;
+	}
+
+	/**
+	 * @return The current RTO in ms, after aging: an RTO below 1 s is doubled
+	 *         if it was not updated for 16 RTOs, an RTO above 3 s moves
+	 *         halfway towards the default if it was not updated for 4 RTOs
+	 */
+	public synchronized long getRto() {
+		long now = System.currentTimeMillis();
+		if (this.rto < 1000 && now - this.lastUpdate > 16 * this.rto) {
+			this.rto = Math.min(2 * this.rto, DEFAULT_RTO_MS);
+			this.lastUpdate = now;
+		} else if (this.rto > 3000 && now - this.lastUpdate > 4 * this.rto) {
+			this.rto = (this.rto + DEFAULT_RTO_MS) / 2;
+			this.lastUpdate = now;
+		}
+		return this.rto;
+	}
+
+	/**
+	 * @param initialRto
+	 *            - the RTO the exchange started with
+	 * @return The factor the timeout is multiplied with on every
+	 *         retransmission: 3 for an RTO below 1 s, 1.5 above 3 s and 2
+	 *         otherwise
+	 */
+	public static double getBackoffFactor(long initialRto) {
+		if (initialRto < 1000) {
+			return 3;
+		}
+		if (initialRto > 3000) {
+			return 1.5;
+		}
+		return 2;
+	}
+
+	/**
+	 * Counts a new exchange, e.g. the first transmission of a CON message
+	 */
+	public synchronized void onExchange() {
+		this.exchanges++;
+		this.lastActivity = System.currentTimeMillis();
+	}
+
+	public synchronized void onRetransmission() {
+		this.retransmissions++;
+		this.lastActivity = System.currentTimeMillis();
+	}
+
+	/**
+	 * Counts an exchange that was given up after the last retransmission
+	 */
+	public synchronized void onFailure() {
+		this.failures++;
+	}
+
+	/**
+	 * @return The smoothed RTT of strong samples in ms or -1, if there is none
+	 */
+	public synchronized long getStrongRtt() {
+		return this.strong.srtt;
+	}
+
+	/**
+	 * @return The smoothed RTT of weak samples in ms or -1, if there is none
+	 */
+	public synchronized long getWeakRtt() {
+		return this.weak.srtt;
+	}
+
+	/**
+	 * @return The most recent RTT sample in ms or -1, if there is none
+	 */
+	public synchronized long getLastRtt() {
+		return this.lastRtt;
+	}
+
+	public synchronized long getStrongSampleCount() {
+		return this.strong.samples;
+	}
+
+	public synchronized long getWeakSampleCount() {
+		return this.weak.samples;
+	}
+
+	public synchronized long getExchangeCount() {
+		return this.exchanges;
+	}
+
+	public synchronized long getRetransmissionCount() {
+		return this.retransmissions;
+	}
+
+	public synchronized long getFailureCount() {
+		return this.failures;
+	}
+
+	/**
+	 * @return The share of exchanges that failed, between 0 and 1
+	 */
+	public synchronized double getLossRate() {
+		if (this.exchanges == 0) {
+			return 0;
+		}
+		return (double) this.failures / this.exchanges;
+	}
+
+	/**
+	 * @return The time of the last RTO update in ms
+	 */
+	public synchronized long getLastUpdate() {
+		return this.lastUpdate;
+	}
+
+	/**
+	 * @return The time of the last sample, exchange or retransmission in ms
+	 */
+	public synchronized long getLastActivity() {
+		return this.lastActivity;
+	}
+
+	@Override
+	public synchronized String toString() {
+		return "RTO: " + this.rto + " ms, strong RTT: " + this.strong.srtt + " ms, weak RTT: " + this.weak.srtt
+				+ " ms, exchanges: " + this.exchanges + ", retransmissions: " + this.retransmissions
+				+ ", failures: " + this.failures;
+	}
+
+	/**
+	 * An rfc6298 estimator with alpha = 1/8 and beta = 1/4
+	 */
+	private static class Estimator {
+		final int k;
+		long srtt = -1;
+		long rttvar;
+		long samples = 0;
+
+		Estimator(int k) {
+			this.k = k;
+		}
+
+		/**
+		 * @return The RTO of this estimator
+		 */
+		long update(long rtt) {
+			if (this.srtt < 0) {
+				this.srtt = rtt;
+				this.rttvar = rtt / 2;
+			} else {
+				this.rttvar = (3 * this.rttvar + Math.abs(this.srtt - rtt)) / 4;
+				this.srtt = (7 * this.srtt + rtt) / 8;
+			}
+			this.samples++;
+			return this.srtt + this.k * this.rttvar;
+		}
+	}
+}
@@ -0,0 +1,176 @@
+/* Copyright 2016 University of Rostock
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *****************************************************************************/
+
+package org.ws4d.coap.core.tools;
+
+import java.util.LinkedList;
+import java.util.Queue;
+
+/**
+ * Limits the number of outstanding elements, e.g. unacknowledged CON messages
+ * towards a remote endpoint (rfc7252 NSTART). Elements beyond the limit wait
+ * in a FIFO and are admitted one by one as outstanding elements are
+ * released.<br>
+ * <br>
+ * A window that was retired while idle accepts no further elements, the
+ * caller has to replace it by a new one. All methods are thread safe and
+ * synchronize on the window.
+ *
+ * @param <T>
+ *            - the type of the elements
+ */
+public class SendWindow<T> {
+
+	private final Queue<T> queue = new LinkedList<T>();
+	private int limit;
+	private int outstanding = 0;
+	private boolean retired = false;
+
+	/* statistics */
+	private int maxQueueDepth = 0;
+	private long queuedCount = 0;
+
+	/**
+	 * @param limit
+	 *            - the maximum number of outstanding elements, at least 1
+	 */
+	public SendWindow(int limit) {
+		setLimit(limit);
+	}
+
+	/**
+	 * @param element
+	 *            - the element to send
+	 * @return True, if the element may be sent now. False, if it was queued.
+	 * @throws IllegalStateException
+	 *             if the window is retired
+	 */
+	public synchronized boolean admit(T element) {
+		if (this.retired) {
+			throw new IllegalStateException("send window is retired");
+		}
+		if (this.outstanding < this.limit) {
+			this.outstanding++;
+			return true;
+		}
+		this.queue.add(element);
+		this.queuedCount++;
+		this.maxQueueDepth = Math.max(this.maxQueueDepth, this.queue.size());
+		return false;
+	}
+
+	/**
+	 * Releases an outstanding element.
+	 *
+	 * @return The next queued element, it is admitted and has to be sent by
+	 *         the caller. Null, if no element is queued.
+	 */
+	public synchronized T release() {
+		if (this.outstanding > 0) {
+			this.outstanding--;
+		}
+		return next();
+	}
+
+	/**
+	 * Removes a queued element, e.g. a message that was given up before it
+	 * was sent.
+	 *
+	 * @return True, if the element was queued. False, if it was admitted
+	 *         already or is unknown.
+	 */
+	public synchronized boolean remove(T element) {
+		return this.queue.remove(element);
+	}
+
+	/**
+	 * @return The next queued element, if the limit allows to admit it. It
+	 *         has to be sent by the caller. Null otherwise.
+	 */
+	public synchronized T next() {
+		if (this.outstanding >= this.limit || this.queue.isEmpty()) {
+			return null;
+		}
+		this.outstanding++;
+		return this.queue.poll();
+	}
+
+	/**
+	 * Changes the limit. If it is raised, the queued elements that are now
+	 * admitted can be fetched with next().
+	 *
+	 * @param limit
+	 *            - the maximum number of outstanding elements, at least 1
+	 */
+	public synchronized void setLimit(int limit) {
+		if (limit < 1) {
+			throw new IllegalArgumentException("limit must be at least 1");
+		}
+		this.limit = limit;
+	}
+
+	/**
+	 * Retires the window if nothing is outstanding or queued.
+	 *
+	 * @return True, if the window is retired
+	 */
+	public synchronized boolean retireIfIdle() {
+		if (this.outstanding == 0 && this.queue.isEmpty()) {
+			this.retired = true;
+		}
+		return this.retired;
+	}
+
+	public synchronized boolean isRetired() {
+		return this.retired;
+	}
+
+	public synchronized int getLimit() {
+		return this.limit;
+	}
+
+	public synchronized int getOutstanding() {
+		return this.outstanding;
+	}
+
+	/**
+	 * @return The number of elements waiting to be admitted
+	 */
+	public synchronized int getQueueDepth() {
+		return this.queue.size();
+	}
+
+	/**
+	 * @return The highest number of elements that were waiting at the same
+	 *         time
+	 */
+	public synchronized int getMaxQueueDepth() {
+		return this.maxQueueDepth;
+	}
+
+	/**
+	 * @return The number of elements that had to wait since the window was
+	 *         created
+	 */
+	public synchronized long getQueuedCount() {
+		return this.queuedCount;
+	}
+
+	@Override
+	public synchronized String toString() {
+		return "outstanding: " + this.outstanding + "/" + this.limit + ", queued: " + this.queue.size()
+				+ ", max queued: " + this.maxQueueDepth;
+	}
+}
@@ -0,0 +1,152 @@
+/* Copyright 2016 University of Rostock
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *****************************************************************************/
+
+package org.ws4d.coap.core.tools;
+
+/**
+ * Paces the messages towards a single remote endpoint. The bucket holds up to
+ * burst tokens and is refilled with rate tokens per second, every message
+ * takes one token. A message that finds the bucket empty reserves the next
+ * token and is told how long to wait for it, so deferred messages keep their
+ * order and the caller never blocks.<br>
+ * <br>
+ * All methods are thread safe, the time is passed in by the caller.
+ */
+public class TokenBucket {
+
+	private final double rate;
+	private final int burst;
+
+	/* negative if tokens are reserved */
+	private double tokens;
+	private long lastRefill;
+
+	/* statistics */
+	private long immediate = 0;
+	private long deferred = 0;
+	private long dropped = 0;
+	private long maxDelay = 0;
+
+	/**
+	 * @param rate
+	 *            - the tokens per second
+	 * @param burst
+	 *            - the capacity of the bucket, i.e. the number of messages
+	 *            that may be sent at once after an idle period
+	 * @param now
+	 *            - the current time in ms
+	 */
+	public TokenBucket(double rate, int burst, long now) {
+		if (rate <= 0 || burst < 1) {
+			throw new IllegalArgumentException("Rate must be positive and burst at least 1");
+		}
+		this.rate = rate;
+		this.burst = burst;
+		this.tokens = burst;
+		this.lastRefill = now;
+	}
+
+	private void refill(long now) {
+		if (now > this.lastRefill) {
+			this.tokens = Math.min(this.burst, this.tokens + (now - this.lastRefill) * this.rate / 1000);
+			this.lastRefill = now;
+		}
+	}
+
+	/**
+	 * Takes a token for a message.
+	 *
+	 * @param now
+	 *            - the current time in ms
+	 * @param maxDelay
+	 *            - the longest acceptable delay in ms
+	 * @return The delay in ms until the message may be sent, 0 to send it
+	 *         now, or -1 if it would have to wait longer than maxDelay. In the
+	 *         latter case no token is taken and the message should be
+	 *         dropped.
+	 */
+	public synchronized long reserve(long now, long maxDelay) {
+		refill(now);
+		if (this.tokens >= 1) {
+			this.tokens -= 1;
+			this.immediate++;
+			return 0;
+		}
+		long delay = (long) Math.ceil((1 - this.tokens) * 1000 / this.rate);
+		if (delay > maxDelay) {
+			this.dropped++;
+			return -1;
+		}
+		this.tokens -= 1;
+		this.deferred++;
+		if (delay > this.maxDelay) {
+			this.maxDelay = delay;
+		}
+		return delay;
+	}
+
+	/**
+	 * @return True, if the bucket is full at the given time, i.e. it does not
+	 *         influence the next messages and can be discarded
+	 */
+	public synchronized boolean isIdle(long now) {
+		refill(now);
+		return this.tokens >= this.burst;
+	}
+
+	public double getRate() {
+		return this.rate;
+	}
+
+	public int getBurst() {
+		return this.burst;
+	}
+
+	/**
+	 * @return The number of available tokens, negative if messages wait for
+	 *         tokens
+	 */
+	public synchronized double getTokens() {
+		return this.tokens;
+	}
+
+	/**
+	 * @return The number of messages sent without delay
+	 */
+	public synchronized long getImmediateCount() {
+		return this.immediate;
+	}
+
+	/**
+	 * @return The number of messages that were deferred
+	 */
+	public synchronized long getDeferredCount() {
+		return this.deferred;
+	}
+
+	/**
+	 * @return The number of messages that would have waited too long
+	 */
+	public synchronized long getDroppedCount() {
+		return this.dropped;
+	}
+
+	/**
+	 * @return The longest delay of a deferred message in ms
+	 */
+	public synchronized long getMaxDelay() {
+		return this.maxDelay;
+	}
+}
@@ -0,0 +1,216 @@
+/* Copyright 2016 University of Rostock
+
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *****************************************************************************/
+
+package org.ws4d.coap.core.test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.SocketTimeoutException;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.ws4d.coap.core.CoapConstants;
+import org.ws4d.coap.core.connection.BasicCoapChannelManager;
+import org.ws4d.coap.core.enumerations.CoapHeaderOptionType;
+import org.ws4d.coap.core.enumerations.CoapMediaType;
+import org.ws4d.coap.core.enumerations.CoapPacketType;
+import org.ws4d.coap.core.messages.CoapMessageView;
+import org.ws4d.coap.core.rest.BasicCoapResource;
+import org.ws4d.coap.core.rest.CoapData;
+import org.ws4d.coap.core.rest.CoapResourceServer;
+import org.ws4d.coap.core.rest.api.AsyncCoapResource;
+import org.ws4d.coap.core.tools.CoapFuture;
+
+/**
+ * Answers of a resource server to GET requests for an asynchronous resource:
+ * piggybacked before the ACK deadline, separate afterwards, 5.03 if the
+ * resource does not complete at all.
+ */
+public class AsyncResponseTest {
+
+	private static final int CONTENT = 0x45;
+	private static final int INTERNAL_SERVER_ERROR = 0xA0;
+	private static final int SERVICE_UNAVAILABLE = 0xA3;
+	private static final byte[] TOKEN = { 5, 6 };
+
+	private CoapResourceServer server;
+	private int port;
+	private DatagramSocket client;
+	private final BlockingQueue<CoapFuture<CoapData>> futures = new LinkedBlockingQueue<CoapFuture<CoapData>>();
+
+	@Before
+	public void setUp() throws Exception {
+		DatagramSocket probe = new DatagramSocket(0);
+		this.port = probe.getLocalPort();
+		probe.close();
+		this.server = new CoapResourceServer();
+		this.server.createResource(new AsyncResource());
+		this.server.start(this.port);
+		this.client = new DatagramSocket(0, InetAddress.getByName("127.0.0.1"));
+		this.client.setSoTimeout(2000);
+	}
+
+	@After
+	public void tearDown() {
+		((BasicCoapChannelManager) BasicCoapChannelManager.getInstance()).removeServerListener(this.server,
+				this.port);
+		this.client.close();
+	}
+
+	/* a CON GET of /async with message id 0x0201, optionally of the first block of 16 bytes */
+	private void get(boolean block2) throws IOException {
+		byte[] data = { 0x42, 0x01, 0x02, 0x01, TOKEN[0], TOKEN[1], (byte) 0xB5, 'a', 's', 'y', 'n', 'c',
+				(byte) 0xC1, 0x00 };
+		int length = block2 ? data.length : data.length - 2;
+		this.client.send(new DatagramPacket(data, length, InetAddress.getByName("127.0.0.1"), this.port));
+	}
+
+	private CoapMessageView receive() throws IOException {
+		DatagramPacket packet = new DatagramPacket(new byte[1500], 1500);
+		this.client.receive(packet);
+		return new CoapMessageView(packet.getData(), 0, packet.getLength());
+	}
+
+	private void acknowledge(CoapMessageView response) throws IOException {
+		int messageId = response.getMessageID();
+		byte[] ack = { 0x60, 0x00, (byte) (messageId >> 8), (byte) messageId };
+		this.client.send(new DatagramPacket(ack, ack.length, InetAddress.getByName("127.0.0.1"), this.port));
+	}
+
+	private CoapFuture<CoapData> takeFuture() throws InterruptedException {
+		CoapFuture<CoapData> future = this.futures.poll(2, TimeUnit.SECONDS);
+		assertNotNull(future);
+		return future;
+	}
+
+	private void awaitIdle() throws InterruptedException {
+		long end = System.currentTimeMillis() + 2000;
+		while (this.server.getPendingRequestCount() > 0 && System.currentTimeMillis() < end) {
+			Thread.sleep(5);
+		}
+		assertEquals(0, this.server.getPendingRequestCount());
+	}
+
+	@Test
+	public void piggybacksValueBeforeDeadline() throws Exception {
+		get(false);
+		takeFuture().complete(new CoapData("21.5".getBytes(), CoapMediaType.text_plain));
+
+		CoapMessageView response = receive();
+		assertEquals(CoapPacketType.ACK, response.getPacketType());
+		assertEquals(0x0201, response.getMessageID());
+		assertEquals(CONTENT, response.getMessageCodeValue());
+		assertArrayEquals(TOKEN, response.getToken());
+		assertArrayEquals("21.5".getBytes(), response.getPayload());
+		awaitIdle();
+	}
+
+	@Test
+	public void sendsSeparateResponseAfterDeadline() throws Exception {
+		this.server.setAckDeadline(20);
+		this.server.setStatelessBlock2(true);
+		get(true);
+		CoapFuture<CoapData> future = takeFuture();
+
+		CoapMessageView ack = receive();
+		assertTrue(ack.isEmpty());
+		assertEquals(CoapPacketType.ACK, ack.getPacketType());
+		assertEquals(0x0201, ack.getMessageID());
+
+		byte[] value = new byte[40];
+		future.complete(new CoapData(value, CoapMediaType.octet_stream));
+		CoapMessageView response = receive();
+		assertEquals(CoapPacketType.CON, response.getPacketType());
+		assertEquals(CONTENT, response.getMessageCodeValue());
+		assertArrayEquals(TOKEN, response.getToken());
+		/* every option of the piggybacked response is carried over */
+		assertEquals(CoapMediaType.octet_stream.getValue(),
+				response.getOptionUint(response.indexOf(CoapHeaderOptionType.Content_Format.getValue())));
+		assertTrue(response.hasOption(CoapHeaderOptionType.Block2.getValue()));
+		assertTrue(response.hasOption(CoapHeaderOptionType.Etag.getValue()));
+		assertEquals(value.length, response.getOptionUint(response.indexOf(CoapHeaderOptionType.Size2.getValue())));
+		assertEquals(16, response.getPayloadLength());
+		acknowledge(response);
+		awaitIdle();
+	}
+
+	@Test
+	public void answersUnfinishedResourceWith503() throws Exception {
+		this.server.setAckDeadline(20);
+		this.server.setAsyncTimeout(100);
+		get(false);
+		CoapFuture<CoapData> future = takeFuture();
+		assertTrue(receive().isEmpty());
+
+		CoapMessageView response = receive();
+		assertEquals(CoapPacketType.CON, response.getPacketType());
+		assertEquals(SERVICE_UNAVAILABLE, response.getMessageCodeValue());
+		assertEquals(CoapConstants.SERVICE_UNAVAILABLE_MAX_AGE_S,
+				response.getOptionUint(response.indexOf(CoapHeaderOptionType.Max_Age.getValue())));
+		acknowledge(response);
+		awaitIdle();
+
+		/* a late value is not sent anymore */
+		future.complete(new CoapData("late".getBytes(), CoapMediaType.text_plain));
+		this.client.setSoTimeout(200);
+		try {
+			receive();
+			fail("late value sent");
+		} catch (SocketTimeoutException e) {
+			/* expected */
+		}
+	}
+
+	@Test
+	public void answersMissingValueWith500() throws Exception {
+		get(false);
+		takeFuture().complete(null);
+
+		CoapMessageView response = receive();
+		assertEquals(CoapPacketType.ACK, response.getPacketType());
+		assertEquals(INTERNAL_SERVER_ERROR, response.getMessageCodeValue());
+		awaitIdle();
+	}
+
+	/**
+	 * Hands the future of every GET request over to the test.
+	 */
+	private class AsyncResource extends BasicCoapResource implements AsyncCoapResource {
+
+		AsyncResource() {
+			super("/async", "", CoapMediaType.text_plain);
+		}
+
+		@Override
+		public CoapFuture<CoapData> getAsync(List<String> query, List<CoapMediaType> mediaTypesAccepted) {
+			CoapFuture<CoapData> future = new CoapFuture<CoapData>();
+			AsyncResponseTest.this.futures.add(future);
+			return future;
+		}
+	}
+}
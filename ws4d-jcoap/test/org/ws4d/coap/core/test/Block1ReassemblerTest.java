@@ -0,0 +1,174 @@
+/* Copyright 2016 University of Rostock
+
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *****************************************************************************/
+
+package org.ws4d.coap.core.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+
+import org.junit.Test;
+import org.ws4d.coap.core.connection.Block1Reassembler;
+import org.ws4d.coap.core.connection.Block1Reassembler.Status;
+import org.ws4d.coap.core.connection.ChannelKey;
+import org.ws4d.coap.core.enumerations.CoapBlockSize;
+import org.ws4d.coap.core.enumerations.CoapPacketType;
+import org.ws4d.coap.core.enumerations.CoapRequestCode;
+import org.ws4d.coap.core.messages.BasicCoapRequest;
+import org.ws4d.coap.core.messages.CoapBlockOption;
+
+public class Block1ReassemblerTest {
+
+	private static ChannelKey endpoint(int port) throws UnknownHostException {
+		return new ChannelKey(InetAddress.getByName("127.0.0.1"), port);
+	}
+
+	private static BasicCoapRequest block(String path, int number, boolean more, Integer size1) {
+		BasicCoapRequest request = new BasicCoapRequest(CoapPacketType.CON, CoapRequestCode.PUT, number);
+		request.setUriPath(path);
+		request.setBlock1(new CoapBlockOption(number, more, CoapBlockSize.BLOCK_16));
+		if (size1 != null) {
+			request.setSize1(size1.intValue());
+		}
+		byte[] payload = new byte[16];
+		for (int i = 0; i < payload.length; i++) {
+			payload[i] = (byte) (number * 16 + i);
+		}
+		request.setPayload(payload);
+		return request;
+	}
+
+	@Test
+	public void reassemblesConcurrentTransfers() throws UnknownHostException {
+		Block1Reassembler reassembler = new Block1Reassembler(1024, 20, 10, 60000);
+		ChannelKey client = endpoint(5683);
+		assertEquals(Status.CONTINUE, reassembler.addBlock(client, block("/a", 0, true, Integer.valueOf(48)))
+				.getStatus());
+		assertEquals(Status.CONTINUE, reassembler.addBlock(client, block("/b", 0, true, null)).getStatus());
+		assertEquals(Status.CONTINUE, reassembler.addBlock(client, block("/a", 1, true, null)).getStatus());
+		assertEquals(2, reassembler.getTransferCount());
+
+		Block1Reassembler.Result result = reassembler.addBlock(client, block("/a", 2, false, null));
+		assertEquals(Status.COMPLETE, result.getStatus());
+		assertEquals(48, result.getBody().size());
+		assertTrue(result.getBody().isMapped());
+		assertEquals((byte) 47, result.getBody().getBuffer().get(47));
+
+		result = reassembler.addBlock(client, block("/b", 1, false, null));
+		assertEquals(Status.COMPLETE, result.getStatus());
+		assertEquals(32, result.getBody().size());
+		/* the second block exceeded the spill threshold */
+		assertTrue(result.getBody().isMapped());
+		assertEquals(0, reassembler.getTransferCount());
+		assertEquals(2, reassembler.getCompletedCount());
+		assertEquals(2, reassembler.getSpilledCount());
+	}
+
+	@Test
+	public void refusesLargeAndIncompleteTransfers() throws UnknownHostException {
+		Block1Reassembler reassembler = new Block1Reassembler(40, 1000, 10, 60000);
+		ChannelKey client = endpoint(5683);
+		assertEquals(Status.TOO_LARGE, reassembler.addBlock(client, block("/a", 0, true, Integer.valueOf(100)))
+				.getStatus());
+		assertEquals(Status.INCOMPLETE, reassembler.addBlock(client, block("/a", 1, true, null)).getStatus());
+
+		reassembler.addBlock(client, block("/a", 0, true, null));
+		reassembler.addBlock(client, block("/a", 1, true, null));
+		Block1Reassembler.Result result = reassembler.addBlock(client, block("/a", 2, true, null));
+		assertEquals(Status.TOO_LARGE, result.getStatus());
+		assertNull(result.getBody());
+		assertEquals(2, reassembler.getTooLargeCount());
+		assertEquals(0, reassembler.getTransferCount());
+	}
+
+	@Test
+	public void limitsBufferedBytesToBudget() throws UnknownHostException {
+		Block1Reassembler reassembler = new Block1Reassembler(1024, 1000, 10, 60000);
+		reassembler.setBudget(40);
+		ChannelKey client = endpoint(5683);
+		assertEquals(Status.TOO_LARGE, reassembler.addBlock(client, block("/a", 0, true, Integer.valueOf(48)))
+				.getStatus());
+		assertEquals(40, reassembler.getMaxBodySize());
+
+		/* Size1 is checked, but the buffer grows with the blocks */
+		assertEquals(Status.CONTINUE, reassembler.addBlock(client, block("/a", 0, true, Integer.valueOf(40)))
+				.getStatus());
+		assertEquals(Status.CONTINUE, reassembler.addBlock(client, block("/b", 0, true, null)).getStatus());
+		assertEquals(32, reassembler.getBufferedBytes());
+		/* a restarted transfer releases the bytes of the old one */
+		assertEquals(Status.CONTINUE, reassembler.addBlock(client, block("/b", 0, true, null)).getStatus());
+		assertEquals(32, reassembler.getBufferedBytes());
+
+		assertEquals(Status.BUSY, reassembler.addBlock(client, block("/b", 1, true, null)).getStatus());
+		assertEquals(16, reassembler.getBufferedBytes());
+		assertEquals(1, reassembler.getBusyCount());
+		Block1Reassembler.Result result = reassembler.addBlock(client, block("/a", 1, false, null));
+		assertEquals(Status.COMPLETE, result.getStatus());
+		assertEquals(32, result.getBody().size());
+		assertEquals(0, reassembler.getBufferedBytes());
+		assertEquals(0, reassembler.getTransferCount());
+	}
+
+	@Test
+	public void holdsBackOvertakingBlocks() throws UnknownHostException {
+		Block1Reassembler reassembler = new Block1Reassembler(1024, 1000, 10, 60000);
+		ChannelKey client = endpoint(5683);
+		reassembler.addBlock(client, block("/a", 0, true, null));
+		assertEquals(Status.CONTINUE, reassembler.addBlock(client, block("/a", 3, true, null)).getStatus());
+		assertEquals(Status.CONTINUE, reassembler.addBlock(client, block("/a", 2, true, null)).getStatus());
+		assertEquals(Status.CONTINUE, reassembler.addBlock(client, block("/a", 1, true, null)).getStatus());
+		Block1Reassembler.Result result = reassembler.addBlock(client, block("/a", 4, false, null));
+		assertEquals(Status.COMPLETE, result.getStatus());
+		assertEquals(80, result.getBody().size());
+		assertEquals((byte) 63, result.getBody().getBuffer().get(63));
+		assertEquals(2, reassembler.getReorderedCount());
+
+		/* the last block must not overtake the others, it is refused alone */
+		reassembler.addBlock(client, block("/b", 0, true, null));
+		assertEquals(Status.INCOMPLETE, reassembler.addBlock(client, block("/b", 2, false, null)).getStatus());
+		/* as is a block too far ahead */
+		int beyond = Block1Reassembler.MAX_BLOCKS_AHEAD + 2;
+		assertEquals(Status.INCOMPLETE, reassembler.addBlock(client, block("/b", beyond, true, null)).getStatus());
+		assertEquals(1, reassembler.getTransferCount());
+		assertEquals(16, reassembler.getBufferedBytes());
+
+		/* a stored block behind a gap holds the gap as well */
+		assertEquals(Status.CONTINUE, reassembler.addBlock(client, block("/b", 3, true, null)).getStatus());
+		assertEquals(64, reassembler.getBufferedBytes());
+		assertEquals(Status.CONTINUE, reassembler.addBlock(client, block("/b", 1, true, null)).getStatus());
+		assertEquals(Status.CONTINUE, reassembler.addBlock(client, block("/b", 2, true, null)).getStatus());
+		result = reassembler.addBlock(client, block("/b", 4, false, null));
+		assertEquals(Status.COMPLETE, result.getStatus());
+		assertEquals(80, result.getBody().size());
+		assertEquals((byte) 79, result.getBody().getBuffer().get(79));
+		assertEquals(0, reassembler.getBufferedBytes());
+	}
+
+	@Test
+	public void expiresAbandonedTransfers() throws UnknownHostException {
+		Block1Reassembler reassembler = new Block1Reassembler(1024, 1000, 10, 1000);
+		reassembler.addBlock(endpoint(5683), block("/a", 0, true, null));
+		reassembler.addBlock(endpoint(5684), block("/a", 0, true, null));
+		assertEquals(2, reassembler.getTransferCount());
+		assertEquals(0, reassembler.expire(System.currentTimeMillis()));
+		assertEquals(2, reassembler.expire(System.currentTimeMillis() + 2000));
+		assertEquals(Status.INCOMPLETE, reassembler.addBlock(endpoint(5683), block("/a", 1, false, null))
+				.getStatus());
+		assertEquals(2, reassembler.getExpiredCount());
+	}
+}
@@ -0,0 +1,102 @@
+/* Copyright 2016 University of Rostock
+
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *****************************************************************************/
+
+package org.ws4d.coap.core.test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+import org.junit.Test;
+import org.ws4d.coap.core.tools.BlockBuffer;
+import org.ws4d.coap.core.tools.ByteBufferInputStream;
+
+public class BlockBufferTest {
+
+	private static byte[] block(int offset, int size) {
+		byte[] data = new byte[size];
+		for (int i = 0; i < size; i++) {
+			data[i] = (byte) (offset + i);
+		}
+		return data;
+	}
+
+	@Test
+	public void preallocatesAnnouncedSize() throws IOException {
+		BlockBuffer buffer = new BlockBuffer(100, 1000, 1000);
+		buffer.write(0, block(0, 64));
+		buffer.write(64, block(64, 36));
+		assertEquals(100, buffer.getCapacity());
+		assertEquals(100, buffer.size());
+		assertFalse(buffer.isMapped());
+		assertEquals((byte) 99, buffer.getBuffer().get(99));
+	}
+
+	@Test
+	public void spillsToMappedFile() throws IOException {
+		BlockBuffer buffer = new BlockBuffer(0, 256, 4096);
+		for (int i = 0; i < 10; i++) {
+			buffer.write(i * 64, block(i * 64, 64));
+		}
+		/* a repeated block overwrites the same bytes */
+		buffer.write(64, block(64, 64));
+		buffer.close();
+		assertTrue(buffer.isMapped());
+		assertEquals(640, buffer.size());
+		byte[] expected = new byte[640];
+		for (int i = 0; i < 640; i++) {
+			expected[i] = (byte) i;
+		}
+		assertArrayEquals(expected, buffer.toByteArray());
+
+		InputStream in = new ByteBufferInputStream(buffer.getBuffer());
+		assertEquals(640, in.available());
+		assertEquals(0, in.read());
+		assertEquals(639, in.skip(1000));
+		assertEquals(-1, in.read());
+	}
+
+	@Test
+	public void keepsBlocksWrittenAheadWhileGrowing() throws IOException {
+		BlockBuffer buffer = new BlockBuffer(0, 256, 4096);
+		buffer.write(0, block(0, 64));
+		buffer.writeAhead(128, block(128, 64));
+		assertEquals(64, buffer.size());
+		assertEquals(192, buffer.extent());
+		/* the buffer spills to a file, the data behind the gap moves along */
+		buffer.writeAhead(320, block(320, 64));
+		assertTrue(buffer.isMapped());
+		buffer.write(64, block(64, 64));
+		buffer.advance(192);
+		buffer.write(192, block(192, 128));
+		buffer.advance(384);
+		assertEquals(384, buffer.size());
+		byte[] expected = new byte[384];
+		for (int i = 0; i < 384; i++) {
+			expected[i] = (byte) i;
+		}
+		assertArrayEquals(expected, buffer.toByteArray());
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void refusesGaps() throws IOException {
+		BlockBuffer buffer = new BlockBuffer(0, 1000, 1000);
+		buffer.write(64, block(64, 64));
+	}
+}
@@ -0,0 +1,239 @@
+/* Copyright 2016 University of Rostock
+
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *****************************************************************************/
+
+package org.ws4d.coap.core.test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.SocketAddress;
+import java.net.SocketTimeoutException;
+import java.util.Arrays;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.ws4d.coap.core.CoapClient;
+import org.ws4d.coap.core.connection.BasicCoapChannelManager;
+import org.ws4d.coap.core.connection.BasicCoapSocketHandler;
+import org.ws4d.coap.core.connection.api.CoapClientChannel;
+import org.ws4d.coap.core.enumerations.CoapHeaderOptionType;
+import org.ws4d.coap.core.enumerations.CoapRequestCode;
+import org.ws4d.coap.core.enumerations.CoapResponseCode;
+import org.ws4d.coap.core.messages.CoapMessageView;
+import org.ws4d.coap.core.messages.api.CoapRequest;
+import org.ws4d.coap.core.messages.api.CoapResponse;
+
+/**
+ * Drives a pipelined block wise GET of a client channel with a plain UDP
+ * socket acting as server. The server sends no Size2, so the client learns
+ * the end of the representation from the last block.
+ */
+public class BlockDownloadTest {
+
+	private static final int ACK = 2;
+	private static final int CONTENT = 0x45;
+	private static final int BAD_OPTION = 0x82;
+	private static final int NOT_FOUND = 0x84;
+	private static final int BLOCK2 = CoapHeaderOptionType.Block2.getValue();
+
+	private BasicCoapSocketHandler handler;
+	private DatagramSocket server;
+	private CoapClientChannel channel;
+	private final BlockingQueue<CoapResponse> responses = new LinkedBlockingQueue<CoapResponse>();
+	private final BlockingQueue<Boolean> failures = new LinkedBlockingQueue<Boolean>();
+	private final byte[] representation = new byte[40];
+
+	private final CoapClient client = new CoapClient() {
+		@Override
+		public void onResponse(CoapClientChannel channel, CoapResponse response) {
+			BlockDownloadTest.this.responses.add(response);
+		}
+
+		@Override
+		public void onMCResponse(CoapClientChannel channel, CoapResponse response, InetAddress srcAddress,
+				int srcPort) {
+			// not used
+		}
+
+		@Override
+		public void onConnectionFailed(CoapClientChannel channel, boolean notReachable, boolean resetByServer) {
+			BlockDownloadTest.this.failures.add(Boolean.valueOf(notReachable));
+		}
+	};
+
+	@Before
+	public void setUp() throws IOException {
+		for (int i = 0; i < this.representation.length; i++) {
+			this.representation[i] = (byte) i;
+		}
+		this.handler = new BasicCoapSocketHandler(BasicCoapChannelManager.getInstance(), 0, false, 1);
+		/* the block requests of the window are sent at once */
+		this.handler.setNstart(3);
+		this.server = new DatagramSocket(0, InetAddress.getByName("127.0.0.1"));
+		this.server.setSoTimeout(2000);
+		this.channel = this.handler.connect(this.client, InetAddress.getByName("127.0.0.1"),
+				this.server.getLocalPort());
+		this.channel.setBlockWindow(3);
+	}
+
+	@After
+	public void tearDown() {
+		this.handler.close();
+		this.server.close();
+	}
+
+	private Received receive() throws IOException {
+		DatagramPacket packet = new DatagramPacket(new byte[1500], 1500);
+		this.server.receive(packet);
+		return new Received(new CoapMessageView(packet.getData(), 0, packet.getLength()),
+				packet.getSocketAddress());
+	}
+
+	/* answers a request with a piggybacked response, with Block2 if it has content */
+	private void reply(Received request, int code, int block) throws IOException {
+		byte[] token = request.view.getToken();
+		byte[] payload = new byte[0];
+		byte[] option = new byte[0];
+		if (code == CONTENT) {
+			int end = Math.min(this.representation.length, (block + 1) * 16);
+			payload = Arrays.copyOfRange(this.representation, block * 16, end);
+			boolean more = end < this.representation.length;
+			option = new byte[] { (byte) (block << 4 | (more ? 0x08 : 0)) };
+		}
+		int length = 4 + token.length + (option.length > 0 ? 3 : 0) + (payload.length > 0 ? 1 + payload.length : 0);
+		byte[] data = new byte[length];
+		int messageId = request.view.getMessageID();
+		data[0] = (byte) (0x40 | ACK << 4 | token.length);
+		data[1] = (byte) code;
+		data[2] = (byte) (messageId >> 8);
+		data[3] = (byte) messageId;
+		System.arraycopy(token, 0, data, 4, token.length);
+		int offset = 4 + token.length;
+		if (option.length > 0) {
+			/* option delta 23 with an extended delta byte */
+			data[offset++] = (byte) (0xD0 | option.length);
+			data[offset++] = (byte) (BLOCK2 - 13);
+			data[offset++] = option[0];
+		}
+		if (payload.length > 0) {
+			data[offset++] = (byte) 0xFF;
+			System.arraycopy(payload, 0, data, offset, payload.length);
+		}
+		this.server.send(new DatagramPacket(data, data.length, request.from));
+	}
+
+	/**
+	 * Answers the GET with block 0 and collects the block requests 1 to 3
+	 * that follow at once.
+	 */
+	private Received[] startDownload() throws IOException {
+		CoapRequest request = this.channel.createRequest(true, CoapRequestCode.GET);
+		request.setUriPath("/large");
+		this.channel.sendMessage(request);
+		reply(receive(), CONTENT, 0);
+		Received[] blocks = new Received[4];
+		for (int i = 0; i < 3; i++) {
+			Received block = receive();
+			blocks[block.number()] = block;
+		}
+		for (int i = 1; i < 4; i++) {
+			assertNotNull(blocks[i]);
+		}
+		return blocks;
+	}
+
+	private void assertSilence() throws IOException {
+		this.server.setSoTimeout(300);
+		try {
+			receive();
+			fail("unexpected datagram");
+		} catch (SocketTimeoutException e) {
+			/* expected */
+		}
+		this.server.setSoTimeout(2000);
+	}
+
+	@Test
+	public void ignoresErrorBeyondTheUnknownEnd() throws Exception {
+		Received[] blocks = startDownload();
+		/* block 3 overtakes the last block 2 */
+		reply(blocks[3], BAD_OPTION, 3);
+		assertNull(this.responses.poll(300, TimeUnit.MILLISECONDS));
+		reply(blocks[1], CONTENT, 1);
+		/* nothing behind the failed block is requested */
+		assertSilence();
+		reply(blocks[2], CONTENT, 2);
+
+		CoapResponse response = this.responses.poll(2, TimeUnit.SECONDS);
+		assertNotNull(response);
+		assertEquals(CoapResponseCode.Content_205, response.getResponseCode());
+		assertArrayEquals(this.representation, response.getPayload());
+	}
+
+	@Test
+	public void reportsErrorWithinTheRepresentation() throws Exception {
+		Received[] blocks = startDownload();
+		reply(blocks[2], NOT_FOUND, 2);
+		assertNull(this.responses.poll(300, TimeUnit.MILLISECONDS));
+		/* block 1 is not the last one, so block 2 cannot be skipped */
+		reply(blocks[1], CONTENT, 1);
+
+		CoapResponse response = this.responses.poll(2, TimeUnit.SECONDS);
+		assertNotNull(response);
+		assertEquals(CoapResponseCode.Not_Found_404, response.getResponseCode());
+		/* the outstanding block is stale */
+		reply(blocks[3], BAD_OPTION, 3);
+		assertNull(this.responses.poll(300, TimeUnit.MILLISECONDS));
+	}
+
+	@Test
+	public void dropsLateBlocksAfterLostConnection() throws Exception {
+		Received[] blocks = startDownload();
+		this.channel.lostConnection(true, false);
+		assertEquals(Boolean.TRUE, this.failures.poll(2, TimeUnit.SECONDS));
+		/* the outstanding block requests are given up */
+		assertEquals(0, this.handler.getPendingExchangeCount());
+
+		/* a late block neither continues the download nor reaches the client */
+		reply(blocks[1], CONTENT, 1);
+		assertSilence();
+		assertNull(this.responses.poll());
+	}
+
+	private static class Received {
+		final CoapMessageView view;
+		final SocketAddress from;
+
+		Received(CoapMessageView view, SocketAddress from) {
+			this.view = view;
+			this.from = from;
+		}
+
+		int number() {
+			return (int) (this.view.getOptionUint(this.view.indexOf(BLOCK2)) >> 4);
+		}
+	}
+}
@@ -0,0 +1,147 @@
+/* Copyright 2016 University of Rostock
+
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *****************************************************************************/
+
+
+package org.ws4d.coap.core.test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+
+import org.junit.Test;
+import org.ws4d.coap.core.enumerations.CoapBlockSize;
+import org.ws4d.coap.core.tools.BlockDownloadWindow;
+
+public class BlockDownloadWindowTest {
+
+	private static byte[] representation(int length) {
+		byte[] data = new byte[length];
+		for (int i = 0; i < length; i++) {
+			data[i] = (byte) i;
+		}
+		return data;
+	}
+
+	private static byte[] block(byte[] data, int number) {
+		return Arrays.copyOfRange(data, number * 16, Math.min(data.length, (number + 1) * 16));
+	}
+
+	@Test
+	public void assemblesOutOfOrderBlocksOfKnownSize() {
+		byte[] data = representation(70);
+		BlockDownloadWindow window = new BlockDownloadWindow(CoapBlockSize.BLOCK_16, 2, data.length,
+				block(data, 0));
+		assertEquals(4, window.getLastBlock());
+		assertEquals(1, window.nextBlock());
+		assertEquals(2, window.nextBlock());
+		/* the window is full */
+		assertEquals(-1, window.nextBlock());
+		assertTrue(window.addBlock(2, block(data, 2), false));
+		assertEquals(3, window.nextBlock());
+		assertTrue(window.addBlock(3, block(data, 3), false));
+		assertEquals(4, window.nextBlock());
+		/* all blocks are requested */
+		assertEquals(-1, window.nextBlock());
+		assertTrue(window.addBlock(4, block(data, 4), true));
+		assertFalse(window.isComplete());
+		assertTrue(window.addBlock(1, block(data, 1), false));
+		assertTrue(window.isComplete());
+		assertEquals(0, window.getOutstanding());
+		assertArrayEquals(data, window.getPayload());
+	}
+
+	@Test
+	public void learnsTheEndFromTheLastBlock() {
+		byte[] data = representation(40);
+		BlockDownloadWindow window = new BlockDownloadWindow(CoapBlockSize.BLOCK_16, 4, 0, block(data, 0));
+		assertEquals(-1, window.getLastBlock());
+		for (int i = 1; i <= 4; i++) {
+			assertEquals(i, window.nextBlock());
+		}
+		assertTrue(window.addBlock(2, block(data, 2), true));
+		assertTrue(window.isBeyondEnd(3));
+		window.cancel(3);
+		window.cancel(4);
+		assertTrue(window.addBlock(1, block(data, 1), false));
+		assertTrue(window.isComplete());
+		assertEquals(3, window.getReceivedCount());
+		assertArrayEquals(data, window.getPayload());
+	}
+
+	@Test
+	public void defersErrorsUntilTheEndIsKnown() {
+		byte[] data = representation(40);
+		BlockDownloadWindow window = new BlockDownloadWindow(CoapBlockSize.BLOCK_16, 4, 0, block(data, 0));
+		for (int i = 1; i <= 4; i++) {
+			assertEquals(i, window.nextBlock());
+		}
+		/* the errors of blocks 3 and 4 arrive before the last block */
+		assertTrue(window.fail(4));
+		assertTrue(window.fail(3));
+		assertFalse(window.fail(4));
+		assertFalse(window.isFailed());
+		assertEquals(2, window.getOutstanding());
+		assertTrue(window.addBlock(2, block(data, 2), true));
+		assertFalse(window.isFailed());
+		assertTrue(window.addBlock(1, block(data, 1), false));
+		assertTrue(window.isComplete());
+		assertArrayEquals(data, window.getPayload());
+
+		window = new BlockDownloadWindow(CoapBlockSize.BLOCK_16, 2, 0, block(data, 0));
+		assertEquals(1, window.nextBlock());
+		assertEquals(2, window.nextBlock());
+		assertTrue(window.fail(2));
+		/* nothing behind a failed block is requested */
+		assertEquals(-1, window.nextBlock());
+		assertFalse(window.isFailed());
+		/* block 1 is not the last one, so block 2 is missing */
+		assertTrue(window.addBlock(1, block(data, 1), false));
+		assertTrue(window.isFailed());
+	}
+
+	@Test
+	public void doesNotPreallocateTheAnnouncedSize() {
+		byte[] data = representation(48);
+		/* a Size2 close to 2 GB must not be allocated at once */
+		BlockDownloadWindow window = new BlockDownloadWindow(CoapBlockSize.BLOCK_16, 2, Integer.MAX_VALUE - 1,
+				block(data, 0));
+		assertEquals((Integer.MAX_VALUE - 2) / 16, window.getLastBlock());
+		assertEquals(16, window.getPayload().length);
+		assertEquals(1, window.nextBlock());
+		assertEquals(2, window.nextBlock());
+		assertTrue(window.addBlock(2, block(data, 2), false));
+		assertTrue(window.addBlock(1, block(data, 1), false));
+		assertArrayEquals(data, window.getPayload());
+		assertEquals(3, window.nextBlock());
+		/* the buffer grows beyond the preallocated blocks */
+		assertTrue(window.addBlock(3, new byte[16], false));
+		assertEquals(64, window.getPayload().length);
+	}
+
+	@Test
+	public void rejectsUnrequestedAndDuplicateBlocks() {
+		byte[] data = representation(64);
+		BlockDownloadWindow window = new BlockDownloadWindow(CoapBlockSize.BLOCK_16, 8, data.length,
+				block(data, 0));
+		assertFalse(window.addBlock(1, block(data, 1), false));
+		assertEquals(1, window.nextBlock());
+		assertTrue(window.addBlock(1, block(data, 1), false));
+		assertFalse(window.addBlock(1, block(data, 1), false));
+		assertEquals(0, window.getOutstanding());
+	}
+}
@@ -0,0 +1,81 @@
+/* Copyright 2016 University of Rostock
+
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *****************************************************************************/
+
+package org.ws4d.coap.core.test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+
+import org.junit.Test;
+import org.ws4d.coap.core.enumerations.CoapBlockSize;
+import org.ws4d.coap.core.messages.CoapBlockOption;
+import org.ws4d.coap.core.tools.BlockSlicer;
+
+public class BlockSlicerTest {
+
+	private static byte[] representation(int length) {
+		byte[] data = new byte[length];
+		for (int i = 0; i < length; i++) {
+			data[i] = (byte) i;
+		}
+		return data;
+	}
+
+	@Test
+	public void servesRequestedBlockDirectly() {
+		byte[] data = representation(1000);
+		CoapBlockOption block = BlockSlicer.block(new CoapBlockOption(7, false, CoapBlockSize.BLOCK_64), null,
+				data.length);
+		assertEquals(7, block.getNumber());
+		assertFalse(block.isLast());
+		byte[] slice = BlockSlicer.slice(data, block);
+		assertEquals(64, slice.length);
+		assertEquals((byte) 448, slice[0]);
+
+		CoapBlockOption last = BlockSlicer.block(new CoapBlockOption(15, false, CoapBlockSize.BLOCK_64), null,
+				data.length);
+		assertTrue(last.isLast());
+		assertEquals(1000 - 15 * 64, BlockSlicer.slice(data, last).length);
+
+		assertNull(BlockSlicer.block(new CoapBlockOption(16, false, CoapBlockSize.BLOCK_64), null, data.length));
+	}
+
+	@Test
+	public void scalesBlockNumberToServerSize() {
+		CoapBlockOption block = BlockSlicer.block(new CoapBlockOption(2, false, CoapBlockSize.BLOCK_256),
+				CoapBlockSize.BLOCK_64, 2000);
+		assertEquals(CoapBlockSize.BLOCK_64, block.getBlockSize());
+		assertEquals(8, block.getNumber());
+		assertEquals(512, block.getBytePosition());
+
+		CoapBlockOption first = BlockSlicer.block(null, CoapBlockSize.BLOCK_128, 100);
+		assertEquals(0, first.getNumber());
+		assertTrue(first.isLast());
+	}
+
+	@Test
+	public void etagFollowsContent() {
+		byte[] data = representation(300);
+		assertArrayEquals(BlockSlicer.etag(data), BlockSlicer.etag(representation(300)));
+		data[299] = 0;
+		assertFalse(Arrays.equals(BlockSlicer.etag(data), BlockSlicer.etag(representation(300))));
+		assertEquals(4, BlockSlicer.etag(data).length);
+	}
+}
@@ -0,0 +1,242 @@
+/* Copyright 2016 University of Rostock
+
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *****************************************************************************/
+
+package org.ws4d.coap.core.test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.SocketAddress;
+import java.net.SocketTimeoutException;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.ws4d.coap.core.CoapClient;
+import org.ws4d.coap.core.connection.BasicCoapChannelManager;
+import org.ws4d.coap.core.connection.BasicCoapSocketHandler;
+import org.ws4d.coap.core.connection.api.CoapClientChannel;
+import org.ws4d.coap.core.enumerations.CoapBlockSize;
+import org.ws4d.coap.core.enumerations.CoapHeaderOptionType;
+import org.ws4d.coap.core.enumerations.CoapPacketType;
+import org.ws4d.coap.core.enumerations.CoapRequestCode;
+import org.ws4d.coap.core.enumerations.CoapResponseCode;
+import org.ws4d.coap.core.messages.CoapMessageView;
+import org.ws4d.coap.core.messages.api.CoapRequest;
+import org.ws4d.coap.core.messages.api.CoapResponse;
+import org.ws4d.coap.core.tools.BlockUploadWindow;
+
+/**
+ * Drives a pipelined block wise upload of a client channel with a plain UDP
+ * socket acting as server.
+ */
+public class BlockUploadTest {
+
+	private static final int ACK = 2;
+	private static final int CONTINUE = 0x5F;
+	private static final int CHANGED = 0x44;
+	private static final int TOO_LARGE = 0x8D;
+	private static final int BLOCK1 = CoapHeaderOptionType.Block1.getValue();
+
+	private BasicCoapSocketHandler handler;
+	private DatagramSocket server;
+	private CoapClientChannel channel;
+	private final BlockingQueue<CoapResponse> responses = new LinkedBlockingQueue<CoapResponse>();
+	private final BlockingQueue<Boolean> failures = new LinkedBlockingQueue<Boolean>();
+
+	private final CoapClient client = new CoapClient() {
+		@Override
+		public void onResponse(CoapClientChannel channel, CoapResponse response) {
+			BlockUploadTest.this.responses.add(response);
+		}
+
+		@Override
+		public void onMCResponse(CoapClientChannel channel, CoapResponse response, InetAddress srcAddress,
+				int srcPort) {
+			// not used
+		}
+
+		@Override
+		public void onConnectionFailed(CoapClientChannel channel, boolean notReachable, boolean resetByServer) {
+			BlockUploadTest.this.failures.add(Boolean.valueOf(notReachable));
+		}
+	};
+
+	@Before
+	public void setUp() throws IOException {
+		this.handler = new BasicCoapSocketHandler(BasicCoapChannelManager.getInstance(), 0, false, 1);
+		this.handler.setNstart(2);
+		this.server = new DatagramSocket(0, InetAddress.getByName("127.0.0.1"));
+		this.server.setSoTimeout(2000);
+		this.channel = this.handler.connect(this.client, InetAddress.getByName("127.0.0.1"),
+				this.server.getLocalPort());
+		this.channel.setMaxSendBlocksize(CoapBlockSize.BLOCK_16);
+		this.channel.setBlockWindow(2);
+	}
+
+	@After
+	public void tearDown() {
+		this.handler.close();
+		this.server.close();
+	}
+
+	private static byte[] body(int length) {
+		byte[] data = new byte[length];
+		for (int i = 0; i < length; i++) {
+			data[i] = (byte) i;
+		}
+		return data;
+	}
+
+	private BlockUploadWindow upload(boolean reliable, int length) throws IOException {
+		CoapRequest request = this.channel.createRequest(reliable, CoapRequestCode.PUT);
+		request.setUriPath("/upload");
+		return this.channel.startUpload(request, new ByteArrayInputStream(body(length)), length);
+	}
+
+	private Received receive() throws IOException {
+		DatagramPacket packet = new DatagramPacket(new byte[1500], 1500);
+		this.server.receive(packet);
+		return new Received(new CoapMessageView(packet.getData(), 0, packet.getLength()),
+				packet.getSocketAddress());
+	}
+
+	/* answers a block with a piggybacked response that echoes its Block1 option */
+	private void reply(Received block, int code) throws IOException {
+		byte[] token = block.view.getToken();
+		byte[] option = block.view.getOptionValue(block.view.indexOf(BLOCK1));
+		byte[] data = new byte[4 + token.length + 2 + option.length];
+		int messageId = block.view.getMessageID();
+		data[0] = (byte) (0x40 | ACK << 4 | token.length);
+		data[1] = (byte) code;
+		data[2] = (byte) (messageId >> 8);
+		data[3] = (byte) messageId;
+		System.arraycopy(token, 0, data, 4, token.length);
+		/* option delta 27 with an extended delta byte */
+		data[4 + token.length] = (byte) (0xD0 | option.length);
+		data[5 + token.length] = (byte) (BLOCK1 - 13);
+		System.arraycopy(option, 0, data, 6 + token.length, option.length);
+		this.server.send(new DatagramPacket(data, data.length, block.from));
+	}
+
+	private void assertSilence() throws IOException {
+		this.server.setSoTimeout(300);
+		try {
+			receive();
+			fail("unexpected datagram");
+		} catch (SocketTimeoutException e) {
+			/* expected */
+		}
+		this.server.setSoTimeout(2000);
+	}
+
+	@Test
+	public void continuesAfter231UntilFinalResponse() throws Exception {
+		BlockUploadWindow window = upload(false, 40);
+		Received first = receive();
+		/* every block is confirmable, even for a NON template */
+		assertEquals(CoapPacketType.CON, first.view.getPacketType());
+		assertEquals(0, first.number());
+		assertTrue(first.more());
+		assertEquals(40, first.view.getOptionUint(first.view.indexOf(CoapHeaderOptionType.Size1.getValue())));
+		try {
+			upload(true, 8);
+			fail("second upload started");
+		} catch (IllegalStateException e) {
+			/* expected */
+		}
+
+		reply(first, CONTINUE);
+		Received second = receive();
+		assertEquals(1, second.number());
+		/* the last block waits for the acknowledgement of block 1 */
+		assertSilence();
+		reply(second, CONTINUE);
+		Received last = receive();
+		assertEquals(2, last.number());
+		assertFalse(last.more());
+		assertArrayEquals(new byte[] { 32, 33, 34, 35, 36, 37, 38, 39 }, last.view.getPayload());
+
+		reply(last, CHANGED);
+		CoapResponse response = this.responses.poll(2, TimeUnit.SECONDS);
+		assertNotNull(response);
+		assertEquals(CoapResponseCode.Changed_204, response.getResponseCode());
+		assertTrue(window.isComplete());
+		assertEquals(40, window.getAcknowledgedBytes());
+	}
+
+	@Test
+	public void endsUploadOnErrorResponse() throws Exception {
+		BlockUploadWindow window = upload(true, 40);
+		Received first = receive();
+		reply(first, TOO_LARGE);
+		CoapResponse response = this.responses.poll(2, TimeUnit.SECONDS);
+		assertNotNull(response);
+		assertEquals(CoapResponseCode.Request_Entity_To_Large_413, response.getResponseCode());
+		assertTrue(window.isAborted());
+		assertSilence();
+
+		/* the channel is free for the next upload */
+		upload(true, 8);
+		assertEquals(0, receive().number());
+	}
+
+	@Test
+	public void abortsUploadOnLostConnection() throws Exception {
+		BlockUploadWindow window = upload(true, 40);
+		Received first = receive();
+		this.channel.lostConnection(true, false);
+		assertEquals(Boolean.TRUE, this.failures.poll(2, TimeUnit.SECONDS));
+		assertTrue(window.isAborted());
+
+		/* a late response neither continues the upload nor reaches the client */
+		reply(first, CONTINUE);
+		assertSilence();
+		assertNull(this.responses.poll());
+		upload(true, 8);
+		assertEquals(0, receive().number());
+	}
+
+	private static class Received {
+		final CoapMessageView view;
+		final SocketAddress from;
+
+		Received(CoapMessageView view, SocketAddress from) {
+			this.view = view;
+			this.from = from;
+		}
+
+		int number() {
+			return (int) (this.view.getOptionUint(this.view.indexOf(BLOCK1)) >> 4);
+		}
+
+		boolean more() {
+			return (this.view.getOptionUint(this.view.indexOf(BLOCK1)) & 0x08) != 0;
+		}
+	}
+}
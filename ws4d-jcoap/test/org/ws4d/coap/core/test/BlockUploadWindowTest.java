@@ -0,0 +1,114 @@
+/* Copyright 2016 University of Rostock
+
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *****************************************************************************/
+
+
+package org.ws4d.coap.core.test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+import org.junit.Test;
+import org.ws4d.coap.core.enumerations.CoapBlockSize;
+import org.ws4d.coap.core.tools.BlockUploadWindow;
+
+public class BlockUploadWindowTest {
+
+	private static byte[] body(int length) {
+		byte[] data = new byte[length];
+		for (int i = 0; i < length; i++) {
+			data[i] = (byte) i;
+		}
+		return data;
+	}
+
+	@Test
+	public void sendsFirstAndLastBlockAlone() throws IOException {
+		byte[] body = body(70);
+		BlockUploadWindow window = new BlockUploadWindow(new ByteArrayInputStream(body), body.length,
+				CoapBlockSize.BLOCK_16, 2);
+		BlockUploadWindow.Block first = window.nextBlock();
+		assertEquals(0, first.getOption().getNumber());
+		/* block 0 opens the transfer */
+		assertNull(window.nextBlock());
+		assertTrue(window.acknowledge(0));
+
+		assertEquals(1, window.nextBlock().getOption().getNumber());
+		assertEquals(2, window.nextBlock().getOption().getNumber());
+		assertNull(window.nextBlock());
+		assertTrue(window.acknowledge(2));
+		BlockUploadWindow.Block third = window.nextBlock();
+		assertEquals(3, third.getOption().getNumber());
+		assertArrayEquals(Arrays.copyOfRange(body, 48, 64), third.getPayload());
+		assertTrue(window.acknowledge(1));
+		/* the last block waits for the acknowledgement of block 3 */
+		assertNull(window.nextBlock());
+		assertFalse(window.acknowledge(1));
+		assertTrue(window.acknowledge(3));
+		BlockUploadWindow.Block last = window.nextBlock();
+		assertEquals(4, last.getOption().getNumber());
+		assertTrue(last.getOption().isLast());
+		assertEquals(6, last.getPayload().length);
+		assertNull(window.nextBlock());
+
+		assertEquals(64, window.getAcknowledgedBytes());
+		assertEquals(70, window.getSentBytes());
+		assertFalse(window.isComplete());
+		assertTrue(window.acknowledge(4));
+		assertTrue(window.isComplete());
+		assertEquals(70, window.getAcknowledgedBytes());
+		assertTrue(window.getThroughput() > 0);
+	}
+
+	@Test
+	public void findsTheEndOfAStreamOfUnknownSize() throws IOException {
+		BlockUploadWindow window = new BlockUploadWindow(new ByteArrayInputStream(body(32)), -1,
+				CoapBlockSize.BLOCK_16, 4);
+		assertFalse(window.nextBlock().getOption().isLast());
+		window.acknowledge(0);
+		BlockUploadWindow.Block last = window.nextBlock();
+		assertEquals(1, last.getOption().getNumber());
+		assertTrue(last.getOption().isLast());
+		assertEquals(16, last.getPayload().length);
+		window.acknowledge(1);
+		assertTrue(window.isComplete());
+	}
+
+	@Test
+	public void continuesWithSmallerBlocks() throws IOException {
+		byte[] body = body(64);
+		BlockUploadWindow window = new BlockUploadWindow(new ByteArrayInputStream(body), body.length,
+				CoapBlockSize.BLOCK_32, 4);
+		window.nextBlock();
+		assertTrue(window.reduceBlockSize(CoapBlockSize.BLOCK_16));
+		window.acknowledge(0);
+		BlockUploadWindow.Block next = window.nextBlock();
+		/* the first 32 bytes were block 0 */
+		assertEquals(2, next.getOption().getNumber());
+		assertEquals(CoapBlockSize.BLOCK_16, next.getOption().getBlockSize());
+		assertArrayEquals(Arrays.copyOfRange(body, 32, 48), next.getPayload());
+		assertFalse(window.reduceBlockSize(CoapBlockSize.BLOCK_16));
+		window.abort();
+		assertTrue(window.isAborted());
+		assertNull(window.nextBlock());
+		assertEquals(0, window.getOutstanding());
+	}
+}
@@ -0,0 +1,89 @@
+/* Copyright 2016 University of Rostock
+
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *****************************************************************************/
+
+package org.ws4d.coap.core.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+import org.ws4d.coap.core.tools.ChannelTable;
+
+public class ChannelTableTest {
+
+	@Test
+	public void evictsIdleChannels() {
+		ChannelTable<Integer, String> table = new ChannelTable<Integer, String>(10, 1000);
+		table.put(1, "one");
+		table.put(2, "two");
+		long now = System.currentTimeMillis();
+		assertTrue(table.evictIdle(now).isEmpty());
+		List<String> evicted = table.evictIdle(now + 2000);
+		assertEquals(2, evicted.size());
+		assertEquals(0, table.size());
+		assertEquals(2, table.getIdleEvictionCount());
+		assertNull(table.get(1));
+	}
+
+	@Test
+	public void evictsLeastRecentlyActiveWhenFull() throws InterruptedException {
+		ChannelTable<Integer, String> table = new ChannelTable<Integer, String>(2, 60000);
+		table.put(1, "one");
+		Thread.sleep(5);
+		table.put(2, "two");
+		Thread.sleep(5);
+		/* the lookup makes the first channel the most recently active one */
+		table.get(1);
+		List<String> evicted = table.put(3, "three");
+		assertEquals(1, evicted.size());
+		assertEquals("two", evicted.get(0));
+		assertEquals(2, table.size());
+		assertEquals(1, table.getCapacityEvictionCount());
+		assertEquals(2, table.getPeakSize());
+		assertEquals(3, table.getAddedCount());
+	}
+
+	@Test
+	public void keepsTheFirstOfConcurrentlyCreatedChannels() {
+		ChannelTable<Integer, String> table = new ChannelTable<Integer, String>(1, 60000);
+		List<String> evicted = new ArrayList<String>();
+		assertNull(table.putIfAbsent(1, "one", evicted));
+		assertEquals("one", table.putIfAbsent(1, "other", evicted));
+		assertEquals("one", table.get(1));
+		assertTrue(evicted.isEmpty());
+		assertEquals(1, table.getAddedCount());
+
+		/* a new key evicts when the table is full */
+		assertNull(table.putIfAbsent(2, "two", evicted));
+		assertEquals(1, evicted.size());
+		assertEquals("one", evicted.get(0));
+		assertEquals(1, table.size());
+	}
+
+	@Test
+	public void removesOnlyTheGivenChannel() {
+		ChannelTable<Integer, String> table = new ChannelTable<Integer, String>(10, 1000);
+		table.put(1, "one");
+		assertFalse(table.remove(1, "other"));
+		assertTrue(table.remove(1, "one"));
+		assertEquals(0, table.size());
+		assertEquals(0, table.getIdleEvictionCount() + table.getCapacityEvictionCount());
+	}
+}
@@ -0,0 +1,101 @@
+/* Copyright 2016 University of Rostock
+
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *****************************************************************************/
+
+package org.ws4d.coap.core.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Test;
+import org.ws4d.coap.core.tools.CoapExecutors;
+
+public class CoapExecutorsTest {
+
+	@Test
+	public void inlineRunsOnCaller() {
+		final AtomicReference<Thread> runner = new AtomicReference<Thread>();
+		CoapExecutors.inline().execute(new Runnable() {
+			@Override
+			public void run() {
+				runner.set(Thread.currentThread());
+			}
+		});
+		assertSame(Thread.currentThread(), runner.get());
+	}
+
+	@Test
+	public void boundedPoolRunsOnCallerWhenSaturated() throws InterruptedException {
+		ExecutorService pool = CoapExecutors.boundedPool(1, 1);
+		final CountDownLatch release = new CountDownLatch(1);
+		final AtomicReference<Thread> pooled = new AtomicReference<Thread>();
+		final AtomicReference<Thread> overflow = new AtomicReference<Thread>();
+		Runnable blocking = new Runnable() {
+			@Override
+			public void run() {
+				pooled.set(Thread.currentThread());
+				try {
+					release.await();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			}
+		};
+		try {
+			pool.execute(blocking);
+			/* waits in the queue */
+			pool.execute(new Runnable() {
+				@Override
+				public void run() {
+				}
+			});
+			pool.execute(new Runnable() {
+				@Override
+				public void run() {
+					overflow.set(Thread.currentThread());
+				}
+			});
+			assertSame(Thread.currentThread(), overflow.get());
+			release.countDown();
+		} finally {
+			pool.shutdown();
+			assertTrue(pool.awaitTermination(5, TimeUnit.SECONDS));
+		}
+		assertNotSame(Thread.currentThread(), pooled.get());
+		assertTrue(pooled.get().isDaemon());
+	}
+
+	@Test
+	public void virtualThreadsRequireSupport() {
+		if (CoapExecutors.isVirtualThreadSupported()) {
+			ExecutorService executor = CoapExecutors.virtualThreadPerRequest();
+			executor.shutdown();
+			return;
+		}
+		try {
+			CoapExecutors.virtualThreadPerRequest();
+		} catch (UnsupportedOperationException e) {
+			assertEquals("Virtual threads require Java 21 or newer", e.getMessage());
+			return;
+		}
+		throw new AssertionError("virtual threads are not supported by this JVM");
+	}
+}
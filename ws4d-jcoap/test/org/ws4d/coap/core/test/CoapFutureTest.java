@@ -0,0 +1,79 @@
+/* Copyright 2016 University of Rostock
+
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *****************************************************************************/
+
+package org.ws4d.coap.core.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+import org.ws4d.coap.core.tools.CoapFuture;
+
+public class CoapFutureTest {
+
+	private static class Recorder implements CoapFuture.Listener<String> {
+		final List<String> results = new ArrayList<String>();
+		final List<Throwable> failures = new ArrayList<Throwable>();
+
+		@Override
+		public void onComplete(String result, Throwable failure) {
+			this.results.add(result);
+			this.failures.add(failure);
+		}
+	}
+
+	@Test
+	public void notifiesListenersOnce() {
+		CoapFuture<String> future = new CoapFuture<String>();
+		Recorder recorder = new Recorder();
+		future.addListener(recorder);
+		assertFalse(future.isDone());
+		assertTrue(future.complete("value"));
+		assertFalse(future.complete("other"));
+		assertFalse(future.fail(new RuntimeException()));
+		assertEquals(1, recorder.results.size());
+		assertEquals("value", recorder.results.get(0));
+		assertNull(recorder.failures.get(0));
+		assertEquals("value", future.getResult());
+	}
+
+	@Test
+	public void notifiesLateListenerImmediately() {
+		CoapFuture<String> future = CoapFuture.completed("value");
+		Recorder recorder = new Recorder();
+		future.addListener(recorder);
+		assertEquals(1, recorder.results.size());
+		assertEquals("value", recorder.results.get(0));
+	}
+
+	@Test
+	public void reportsFailure() {
+		CoapFuture<String> future = new CoapFuture<String>();
+		Recorder recorder = new Recorder();
+		future.addListener(recorder);
+		RuntimeException cause = new RuntimeException("sensor unavailable");
+		assertTrue(future.fail(cause));
+		assertNull(recorder.results.get(0));
+		assertSame(cause, recorder.failures.get(0));
+		assertSame(cause, future.getFailure());
+		assertNull(future.getResult());
+	}
+}
@@ -0,0 +1,100 @@
+/* Copyright 2016 University of Rostock
+
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *****************************************************************************/
+
+package org.ws4d.coap.core.test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Iterator;
+
+import org.junit.Test;
+import org.ws4d.coap.core.enumerations.CoapHeaderOptionType;
+import org.ws4d.coap.core.enumerations.CoapPacketType;
+import org.ws4d.coap.core.enumerations.CoapResponseCode;
+import org.ws4d.coap.core.messages.BasicCoapResponse;
+import org.ws4d.coap.core.messages.CoapHeaderOption;
+import org.ws4d.coap.core.messages.CoapHeaderOptions;
+import org.ws4d.coap.core.messages.CoapMessageView;
+
+public class CoapHeaderOptionsTest {
+
+	@Test
+	public void keepsOptionsSorted() {
+		CoapHeaderOptions options = new CoapHeaderOptions();
+		options.addOption(CoapHeaderOptionType.Uri_Query, "q=1".getBytes());
+		options.addOption(CoapHeaderOptionType.Uri_Path, "a".getBytes());
+		options.addOption(new CoapHeaderOption(300, new byte[] { 1 }));
+		options.addOption(CoapHeaderOptionType.Content_Format, new byte[] { 50 });
+		options.addOption(CoapHeaderOptionType.Uri_Path, "b".getBytes());
+
+		int[] expected = { 11, 11, 12, 15, 300 };
+		int i = 0;
+		for (CoapHeaderOption option : options) {
+			assertEquals(expected[i++], option.getOptionTypeValue());
+		}
+		assertEquals(5, options.getOptionCount());
+		/* options with the same number keep their order */
+		assertArrayEquals("a".getBytes(), options.getOption(CoapHeaderOptionType.Uri_Path).getOptionData());
+		assertEquals(2, options.countOptions(CoapHeaderOptionType.Uri_Path.getValue()));
+		assertTrue(options.optionExists(300));
+		assertFalse(options.optionExists(CoapHeaderOptionType.Observe));
+		assertNull(options.getOption(299));
+	}
+
+	@Test
+	public void removesOptions() {
+		CoapHeaderOptions options = new CoapHeaderOptions();
+		for (int i = 0; i < 20; i++) {
+			options.addOption(CoapHeaderOptionType.Uri_Path, new byte[] { (byte) i });
+		}
+		options.addOption(CoapHeaderOptionType.Accept, new byte[] { 0 });
+		options.removeOption(CoapHeaderOptionType.Uri_Path);
+		assertFalse(options.optionExists(CoapHeaderOptionType.Uri_Path));
+		assertEquals(1, options.getOptionCount());
+
+		options.addOption(CoapHeaderOptionType.Etag, new byte[] { 1 });
+		options.addOption(CoapHeaderOptionType.Etag, new byte[] { 2 });
+		Iterator<CoapHeaderOption> it = options.iterator();
+		it.next();
+		it.remove();
+		assertTrue(options.optionExists(CoapHeaderOptionType.Etag));
+		assertArrayEquals(new byte[] { 2 }, options.getOption(CoapHeaderOptionType.Etag).getOptionData());
+		options.removeAll();
+		assertEquals(0, options.getOptionCount());
+		assertFalse(options.optionExists(CoapHeaderOptionType.Accept));
+	}
+
+	@Test
+	public void decodesUintValues() {
+		CoapHeaderOptions options = new CoapHeaderOptions();
+		options.addOption(CoapHeaderOptionType.Size1, new byte[] { 0x01, (byte) 0xF4 });
+		options.addOption(CoapHeaderOptionType.Observe, new byte[0]);
+		assertEquals(500, options.getOptionUint(CoapHeaderOptionType.Size1));
+		assertEquals(0, options.getOptionUint(CoapHeaderOptionType.Observe));
+		assertEquals(-1, options.getOptionUint(CoapHeaderOptionType.Max_Age));
+
+		BasicCoapResponse response = new BasicCoapResponse(CoapPacketType.NON, CoapResponseCode.Content_205, 1,
+				new byte[0]);
+		response.setMaxAge(0x12345678);
+		byte[] datagram = response.serialize();
+		BasicCoapResponse received = (BasicCoapResponse) new CoapMessageView(datagram, 0, datagram.length)
+				.toMessage();
+		assertEquals(0x12345678, received.getMaxAge());
+	}
+}
@@ -0,0 +1,121 @@
+/* Copyright 2016 University of Rostock
+
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *****************************************************************************/
+
+package org.ws4d.coap.core.test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.junit.Test;
+import org.ws4d.coap.core.enumerations.CoapBlockSize;
+import org.ws4d.coap.core.enumerations.CoapHeaderOptionType;
+import org.ws4d.coap.core.enumerations.CoapMediaType;
+import org.ws4d.coap.core.enumerations.CoapPacketType;
+import org.ws4d.coap.core.enumerations.CoapRequestCode;
+import org.ws4d.coap.core.messages.BasicCoapRequest;
+import org.ws4d.coap.core.messages.CoapBlockOption;
+import org.ws4d.coap.core.messages.CoapMessageView;
+import org.ws4d.coap.core.messages.api.CoapMessage;
+import org.ws4d.coap.core.messages.api.CoapRequest;
+
+public class CoapMessageViewTest {
+
+	private static byte[] createRequest() {
+		BasicCoapRequest request = new BasicCoapRequest(CoapPacketType.CON, CoapRequestCode.POST, 0x1234);
+		request.setToken(new byte[] { 1, 2, 3 });
+		request.setUriPath("/sensors/temp");
+		request.setContentType(CoapMediaType.text_plain);
+		request.setBlock2(new CoapBlockOption(2, false, CoapBlockSize.BLOCK_64));
+		/* an option delta that needs an extended delta byte */
+		request.getOptions().addOption(CoapHeaderOptionType.Size1, new byte[] { 0x01, 0x00 });
+		request.setPayload("21.5");
+		return request.serialize();
+	}
+
+	@Test
+	public void indexesHeaderAndOptions() {
+		byte[] datagram = createRequest();
+		CoapMessageView view = new CoapMessageView(datagram, 0, datagram.length);
+
+		assertEquals(CoapPacketType.CON, view.getPacketType());
+		assertTrue(view.isRequest());
+		assertEquals(0x1234, view.getMessageID());
+		assertArrayEquals(new byte[] { 1, 2, 3 }, view.getToken());
+		/* two Uri-Path options, Content-Format, Block2 and Size1 */
+		assertEquals(5, view.getOptionCount());
+		int path = view.indexOf(CoapHeaderOptionType.Uri_Path.getValue());
+		assertArrayEquals("sensors".getBytes(), view.getOptionValue(path));
+		path = view.nextIndexOf(CoapHeaderOptionType.Uri_Path.getValue(), path + 1);
+		assertArrayEquals("temp".getBytes(), view.getOptionValue(path));
+		assertEquals(-1, view.nextIndexOf(CoapHeaderOptionType.Uri_Path.getValue(), path + 1));
+		int format = view.indexOf(CoapHeaderOptionType.Content_Format.getValue());
+		assertEquals(CoapMediaType.text_plain.getValue(), view.getOptionUint(format));
+		assertEquals(-1, view.indexOf(CoapHeaderOptionType.Observe.getValue()));
+		assertEquals(256, view.getOptionUint(view.indexOf(CoapHeaderOptionType.Size1.getValue())));
+		assertArrayEquals("21.5".getBytes(), view.getPayload());
+	}
+
+	@Test
+	public void createsLazyMessage() {
+		byte[] datagram = createRequest();
+		CoapMessageView view = new CoapMessageView(datagram, 0, datagram.length);
+		CoapMessage message = view.toMessage();
+		/* the view can be reused, the message keeps its own index */
+		view.wrap(new byte[] { 0x60, 0x00, 0x00, 0x01 }, 0, 4);
+		assertTrue(view.isEmpty());
+
+		CoapRequest request = (CoapRequest) message;
+		assertEquals(CoapRequestCode.POST, request.getRequestCode());
+		assertEquals("/sensors/temp", request.getUriPath());
+		assertEquals(CoapMediaType.text_plain, request.getContentType());
+		assertEquals(2, request.getBlock2().getNumber());
+		assertNull(request.getObserveOption());
+		assertArrayEquals("21.5".getBytes(), request.getPayload());
+		assertArrayEquals(new byte[] { 1, 2, 3 }, request.getToken());
+		/* decoding the options must not change the message */
+		assertEquals(5, request.getOptions().getOptionCount());
+		assertEquals("/sensors/temp", request.getUriPath());
+		assertArrayEquals(datagram, request.serialize());
+	}
+
+	@Test
+	public void rejectsMalformedMessages() {
+		/* token length 8, but no token */
+		assertInvalid(new byte[] { 0x48, 0x01, 0x00, 0x01 });
+		/* option value exceeds the datagram */
+		assertInvalid(new byte[] { 0x40, 0x01, 0x00, 0x01, (byte) 0xB5, 'a' });
+		/* reserved option delta */
+		assertInvalid(new byte[] { 0x40, 0x01, 0x00, 0x01, (byte) 0xF1, 'a' });
+		/* unknown critical option 9 */
+		assertInvalid(new byte[] { 0x40, 0x01, 0x00, 0x01, (byte) 0x91, 'a' });
+		/* payload marker without payload */
+		assertInvalid(new byte[] { 0x40, 0x01, 0x00, 0x01, (byte) 0xFF });
+		/* unknown elective option 10 is fine */
+		CoapMessageView view = new CoapMessageView(new byte[] { 0x40, 0x01, 0x00, 0x01, (byte) 0xA1, 'a' }, 0, 6);
+		assertEquals(10, view.getOptionNumber(0));
+	}
+
+	private static void assertInvalid(byte[] datagram) {
+		try {
+			new CoapMessageView(datagram, 0, datagram.length);
+			fail("malformed message accepted");
+		} catch (IllegalArgumentException e) {
+			/* expected */
+		}
+	}
+}
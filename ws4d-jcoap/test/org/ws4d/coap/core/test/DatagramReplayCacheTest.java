@@ -0,0 +1,115 @@
+/* Copyright 2016 University of Rostock
+
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *****************************************************************************/
+
+package org.ws4d.coap.core.test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.ws4d.coap.core.tools.DatagramReplayCache;
+
+public class DatagramReplayCacheTest {
+
+	private DatagramChannel sender;
+	private DatagramChannel receiver;
+	private InetSocketAddress remote;
+
+	@Before
+	public void setUp() throws IOException {
+		this.sender = DatagramChannel.open();
+		this.sender.socket().bind(new InetSocketAddress(InetAddress.getByName("127.0.0.1"), 0));
+		this.receiver = DatagramChannel.open();
+		this.receiver.socket().bind(new InetSocketAddress(InetAddress.getByName("127.0.0.1"), 0));
+		this.remote = (InetSocketAddress) this.receiver.socket().getLocalSocketAddress();
+	}
+
+	@After
+	public void tearDown() throws IOException {
+		this.sender.close();
+		this.receiver.close();
+	}
+
+	private byte[] receive() throws IOException {
+		ByteBuffer buffer = ByteBuffer.allocate(1500);
+		this.receiver.receive(buffer);
+		return Arrays.copyOf(buffer.array(), buffer.position());
+	}
+
+	@Test
+	public void replaysStoredDatagram() throws IOException {
+		DatagramReplayCache cache = new DatagramReplayCache(1024, 16, 10000);
+		byte[] ack = new byte[] { 0x60, 0x00, 0x12, 0x34 };
+		cache.put(this.remote.getAddress(), this.remote.getPort(), 0x1234, ack, ack.length);
+
+		assertTrue(cache.replay(this.remote, 0x1234, this.sender));
+		assertArrayEquals(ack, receive());
+		assertFalse(cache.replay(this.remote, 0x1235, this.sender));
+		assertEquals(1, cache.getReplayedCount());
+		assertEquals(1, cache.getMissCount());
+	}
+
+	@Test
+	public void evictsOldestDatagrams() throws IOException {
+		Random random = new Random(42);
+		/* a small ring that wraps around many times */
+		DatagramReplayCache cache = new DatagramReplayCache(500, 8, 10000);
+		for (int mid = 0; mid < 1000; mid++) {
+			byte[] datagram = new byte[1 + random.nextInt(100)];
+			random.nextBytes(datagram);
+			cache.put(this.remote.getAddress(), this.remote.getPort(), mid, datagram, datagram.length);
+
+			assertTrue(cache.size() <= 8);
+			assertTrue(cache.getUsedBytes() <= 500);
+			assertTrue(cache.replay(this.remote, mid, this.sender));
+			assertArrayEquals(datagram, receive());
+		}
+		assertFalse(cache.replay(this.remote, 0, this.sender));
+		assertEquals(1000 - cache.size(), cache.getEvictionCount());
+	}
+
+	@Test
+	public void rejectsOversizedDatagrams() {
+		DatagramReplayCache cache = new DatagramReplayCache(100, 8, 10000);
+		byte[] datagram = new byte[100];
+		cache.put(this.remote.getAddress(), this.remote.getPort(), 1, datagram, datagram.length);
+		assertEquals(0, cache.size());
+		assertEquals(1, cache.getRejectedCount());
+	}
+
+	@Test
+	public void expiresDatagrams() throws IOException, InterruptedException {
+		DatagramReplayCache cache = new DatagramReplayCache(1024, 16, 50);
+		byte[] ack = new byte[] { 0x60, 0x00, 0x00, 0x01 };
+		cache.put(this.remote.getAddress(), this.remote.getPort(), 1, ack, ack.length);
+		Thread.sleep(80);
+		assertFalse(cache.replay(this.remote, 1, this.sender));
+		cache.put(this.remote.getAddress(), this.remote.getPort(), 2, ack, ack.length);
+		assertEquals(1, cache.size());
+		assertEquals(1, cache.getExpirationCount());
+	}
+}
@@ -0,0 +1,77 @@
+/* Copyright 2016 University of Rostock
+
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *****************************************************************************/
+
+package org.ws4d.coap.core.test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+
+import org.junit.Test;
+import org.ws4d.coap.core.enumerations.CoapPacketType;
+import org.ws4d.coap.core.enumerations.CoapRequestCode;
+import org.ws4d.coap.core.messages.BasicCoapRequest;
+import org.ws4d.coap.core.tools.DirectBufferPool;
+
+public class DirectBufferPoolTest {
+
+	@Test
+	public void reusesReleasedBuffers() {
+		DirectBufferPool pool = new DirectBufferPool(128, 2);
+		ByteBuffer first = pool.acquire();
+		ByteBuffer second = pool.acquire();
+		assertTrue(first.isDirect());
+		assertNotSame(first, second);
+		assertEquals(2, pool.getAllocatedCount());
+
+		first.put((byte) 1);
+		pool.release(first);
+		ByteBuffer reused = pool.acquire();
+		assertSame(first, reused);
+		/* a reused buffer is cleared */
+		assertEquals(0, reused.position());
+		assertEquals(128, reused.limit());
+
+		pool.release(reused);
+		pool.release(second);
+		/* the pool is full, this buffer is dropped */
+		pool.release(ByteBuffer.allocateDirect(128));
+		pool.acquire();
+		pool.acquire();
+		assertEquals(2, pool.getAllocatedCount());
+	}
+
+	@Test
+	public void serializesIntoBuffer() {
+		BasicCoapRequest request = new BasicCoapRequest(CoapPacketType.CON, CoapRequestCode.GET, 42);
+		request.setToken(new byte[] { 7, 7 });
+		request.setUriPath("/a/b");
+		request.setPayload("payload");
+		byte[] expected = request.serialize();
+
+		ByteBuffer buffer = new DirectBufferPool(1024, 1).acquire();
+		request.serializeInto(buffer);
+		assertEquals(expected.length, buffer.position());
+		assertEquals(expected.length, request.getSerializedLength());
+		buffer.flip();
+		byte[] actual = new byte[buffer.remaining()];
+		buffer.get(actual);
+		assertArrayEquals(expected, actual);
+	}
+}
@@ -0,0 +1,74 @@
+/* Copyright 2016 University of Rostock
+
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *****************************************************************************/
+
+package org.ws4d.coap.core.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+
+import org.junit.Test;
+import org.ws4d.coap.core.tools.ExchangeStore;
+
+public class ExchangeStoreTest {
+
+	@Test
+	public void detectsDuplicates() throws UnknownHostException {
+		ExchangeStore store = new ExchangeStore(10000);
+		InetAddress v4 = InetAddress.getByName("192.168.0.1");
+		InetAddress v6 = InetAddress.getByName("fe80::1");
+
+		assertTrue(store.add(v4, 5683, 1));
+		assertFalse(store.add(v4, 5683, 1));
+		/* other port, message id or address */
+		assertTrue(store.add(v4, 5684, 1));
+		assertTrue(store.add(v4, 5683, 2));
+		assertTrue(store.add(v6, 5683, 1));
+		assertFalse(store.add(v6, 5683, 1));
+		/* the IPv4 mapped IPv6 address is the same endpoint */
+		assertFalse(store.add(InetAddress.getByName("::ffff:192.168.0.1"), 5683, 1));
+		assertEquals(4, store.size());
+	}
+
+	@Test
+	public void growsBeyondInitialCapacity() throws UnknownHostException {
+		ExchangeStore store = new ExchangeStore(10000, 4, 16);
+		InetAddress addr = InetAddress.getByName("10.0.0.1");
+		for (int mid = 0; mid < 65536; mid++) {
+			assertTrue(store.add(addr, 5683, mid));
+		}
+		for (int mid = 0; mid < 65536; mid++) {
+			assertTrue(store.contains(addr, 5683, mid));
+		}
+		assertFalse(store.contains(addr, 5684, 0));
+		assertEquals(65536, store.size());
+	}
+
+	@Test
+	public void entriesExpire() throws UnknownHostException, InterruptedException {
+		ExchangeStore store = new ExchangeStore(50, 2, 16);
+		InetAddress addr = InetAddress.getByName("10.0.0.1");
+		store.add(addr, 5683, 1);
+		Thread.sleep(20);
+		assertTrue(store.contains(addr, 5683, 1));
+		/* lifetime * generations / (generations - 1) at most */
+		Thread.sleep(100);
+		assertFalse(store.contains(addr, 5683, 1));
+		assertTrue(store.add(addr, 5683, 1));
+	}
+}
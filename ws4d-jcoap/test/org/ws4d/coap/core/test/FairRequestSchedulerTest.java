@@ -0,0 +1,118 @@
+/* Copyright 2016 University of Rostock
+
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *****************************************************************************/
+
+package org.ws4d.coap.core.test;
+
+import static org.junit.Assert.assertEquals;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+import org.junit.Test;
+import org.ws4d.coap.core.connection.ChannelKey;
+import org.ws4d.coap.core.connection.FairRequestScheduler;
+
+public class FairRequestSchedulerTest {
+
+	/* holds the workers back until run() is called */
+	private static class DeferredExecutor implements Executor {
+		final List<Runnable> started = new ArrayList<Runnable>();
+
+		@Override
+		public void execute(Runnable command) {
+			this.started.add(command);
+		}
+
+		void run() {
+			while (!this.started.isEmpty()) {
+				this.started.remove(0).run();
+			}
+		}
+	}
+
+	private static Runnable record(final List<String> order, final String name) {
+		return new Runnable() {
+			@Override
+			public void run() {
+				order.add(name);
+			}
+		};
+	}
+
+	private static InetAddress localhost() throws UnknownHostException {
+		return InetAddress.getByName("127.0.0.1");
+	}
+
+	@Test
+	public void interleavesRemoteEndpoints() throws UnknownHostException {
+		DeferredExecutor executor = new DeferredExecutor();
+		FairRequestScheduler scheduler = new FairRequestScheduler(executor, 1, 16);
+		ChannelKey flooding = new ChannelKey(localhost(), 1000);
+		ChannelKey polite = new ChannelKey(localhost(), 2000);
+		List<String> order = new ArrayList<String>();
+		for (int i = 0; i < 5; i++) {
+			scheduler.execute(flooding, record(order, "F"));
+		}
+		scheduler.execute(polite, record(order, "P"));
+		scheduler.execute(polite, record(order, "P"));
+		assertEquals(1, executor.started.size());
+		assertEquals(2, scheduler.getActiveFlowCount());
+		assertEquals(7, scheduler.getQueuedCount());
+		executor.run();
+		assertEquals("[F, P, F, P, F, F, F]", order.toString());
+		assertEquals(0, scheduler.getQueuedCount());
+		assertEquals(0, scheduler.getActiveFlowCount());
+	}
+
+	@Test
+	public void servesByWeight() throws UnknownHostException {
+		DeferredExecutor executor = new DeferredExecutor();
+		FairRequestScheduler scheduler = new FairRequestScheduler(executor, 1, 16);
+		scheduler.setWeight(localhost(), 1000, 2);
+		ChannelKey gateway = new ChannelKey(localhost(), 1000);
+		ChannelKey device = new ChannelKey(localhost(), 2000);
+		List<String> order = new ArrayList<String>();
+		for (int i = 0; i < 4; i++) {
+			scheduler.execute(gateway, record(order, "G"));
+			scheduler.execute(device, record(order, "D"));
+		}
+		executor.run();
+		assertEquals("[G, G, D, G, G, D, D, D]", order.toString());
+	}
+
+	@Test
+	public void rejectsWhenQueueIsFull() throws UnknownHostException {
+		DeferredExecutor executor = new DeferredExecutor();
+		FairRequestScheduler scheduler = new FairRequestScheduler(executor, 1, 2);
+		ChannelKey flooding = new ChannelKey(localhost(), 1000);
+		List<String> order = new ArrayList<String>();
+		scheduler.execute(flooding, record(order, "F"));
+		scheduler.execute(flooding, record(order, "F"));
+		try {
+			scheduler.execute(flooding, record(order, "F"));
+			throw new AssertionError("the queue is full");
+		} catch (RejectedExecutionException e) {
+			assertEquals(1, scheduler.getRejectedCount());
+		}
+		/* other remote endpoints are not affected */
+		scheduler.execute(new ChannelKey(localhost(), 2000), record(order, "P"));
+		executor.run();
+		assertEquals("[F, P, F]", order.toString());
+	}
+}
@@ -0,0 +1,130 @@
+/* Copyright 2016 University of Rostock
+
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *****************************************************************************/
+
+package org.ws4d.coap.core.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+import org.ws4d.coap.core.tools.HashedTimingWheel;
+
+public class HashedTimingWheelTest {
+
+	private static class Task implements Runnable {
+		int runs = 0;
+
+		public void run() {
+			this.runs++;
+		}
+	}
+
+	private static void advanceFor(HashedTimingWheel wheel, long millis) throws InterruptedException {
+		long end = System.currentTimeMillis() + millis;
+		while (System.currentTimeMillis() < end) {
+			wheel.advance();
+			Thread.sleep(1);
+		}
+		wheel.advance();
+	}
+
+	@Test
+	public void expiresAfterDelay() throws InterruptedException {
+		HashedTimingWheel wheel = new HashedTimingWheel();
+		Task task = new Task();
+		HashedTimingWheel.Timeout timeout = wheel.schedule(task, 50);
+		wheel.advance();
+		assertEquals(0, task.runs);
+		assertEquals(1, wheel.size());
+
+		advanceFor(wheel, 100);
+		assertEquals(1, task.runs);
+		assertTrue(timeout.isExpired());
+		assertEquals(0, wheel.size());
+		assertEquals(-1, wheel.advance());
+	}
+
+	@Test
+	public void cancelledTaskIsNotRun() throws InterruptedException {
+		HashedTimingWheel wheel = new HashedTimingWheel();
+		Task task = new Task();
+		HashedTimingWheel.Timeout timeout = wheel.schedule(task, 20);
+		wheel.advance();
+		assertTrue(timeout.cancel());
+		assertFalse(timeout.cancel());
+
+		advanceFor(wheel, 50);
+		assertEquals(0, task.runs);
+		assertTrue(timeout.isCancelled());
+		assertEquals(0, wheel.size());
+	}
+
+	@Test
+	public void timeoutsBeyondOneRevolution() throws InterruptedException {
+		/* 8 buckets of 1 ms, the timeouts wrap around the wheel several times */
+		HashedTimingWheel wheel = new HashedTimingWheel(1, 8);
+		Task early = new Task();
+		Task late = new Task();
+		wheel.schedule(early, 5);
+		wheel.schedule(late, 60);
+
+		advanceFor(wheel, 30);
+		assertEquals(1, early.runs);
+		assertEquals(0, late.runs);
+
+		advanceFor(wheel, 60);
+		assertEquals(1, late.runs);
+	}
+
+	@Test
+	public void nextDelayAfterLongPause() throws InterruptedException {
+		HashedTimingWheel wheel = new HashedTimingWheel(1, 16);
+		List<Task> tasks = new ArrayList<Task>();
+		for (int i = 0; i < 100; i++) {
+			Task task = new Task();
+			tasks.add(task);
+			wheel.schedule(task, i);
+		}
+		long delay = wheel.advance();
+		assertTrue(delay >= 1);
+
+		/* the owner thread did not advance the wheel for a while */
+		Thread.sleep(150);
+		wheel.advance();
+		for (Task task : tasks) {
+			assertEquals(1, task.runs);
+		}
+		assertEquals(0, wheel.size());
+	}
+
+	@Test
+	public void nextDelayFindsTheNextOccupiedBucket() throws InterruptedException {
+		HashedTimingWheel wheel = new HashedTimingWheel(1, 1024);
+		wheel.schedule(new Task(), 700);
+		long delay = wheel.advance();
+		assertTrue("delay " + delay, delay > 600 && delay <= 701);
+
+		/* a deadline in a bucket before the current one wraps around the wheel */
+		HashedTimingWheel small = new HashedTimingWheel(1, 128);
+		advanceFor(small, 100);
+		small.schedule(new Task(), 60);
+		delay = small.advance();
+		assertTrue("delay " + delay, delay > 30 && delay <= 61);
+	}
+}
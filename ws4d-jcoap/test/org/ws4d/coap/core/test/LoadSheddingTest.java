@@ -0,0 +1,244 @@
+/* Copyright 2016 University of Rostock
+
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *****************************************************************************/
+
+package org.ws4d.coap.core.test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.SocketTimeoutException;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.ws4d.coap.core.CoapClient;
+import org.ws4d.coap.core.CoapConstants;
+import org.ws4d.coap.core.CoapServer;
+import org.ws4d.coap.core.connection.BasicCoapChannelManager;
+import org.ws4d.coap.core.connection.BasicCoapSocketHandler;
+import org.ws4d.coap.core.connection.api.CoapClientChannel;
+import org.ws4d.coap.core.connection.api.CoapServerChannel;
+import org.ws4d.coap.core.enumerations.CoapHeaderOptionType;
+import org.ws4d.coap.core.enumerations.CoapRequestCode;
+import org.ws4d.coap.core.messages.CoapMessageView;
+import org.ws4d.coap.core.messages.api.CoapRequest;
+import org.ws4d.coap.core.messages.api.CoapResponse;
+import org.ws4d.coap.core.tools.CoapExecutors;
+
+/**
+ * Overload handling of a socket handler: requests exceeding the inbound queue
+ * or rejected by the request executor are answered with 5.03 or dropped, NON
+ * messages exceeding the outbound queue are dropped.
+ */
+public class LoadSheddingTest {
+
+	private static final int CON = 0;
+	private static final int NON = 1;
+	private static final int GET = 0x01;
+
+	private DatagramSocket remote;
+	private int port;
+	private BlockingServer server;
+
+	@Before
+	public void setUp() throws IOException {
+		this.remote = new DatagramSocket(0, InetAddress.getByName("127.0.0.1"));
+		this.remote.setSoTimeout(2000);
+		DatagramSocket probe = new DatagramSocket(0);
+		this.port = probe.getLocalPort();
+		probe.close();
+	}
+
+	@After
+	public void tearDown() {
+		if (this.server != null) {
+			this.server.release.countDown();
+			((BasicCoapChannelManager) BasicCoapChannelManager.getInstance()).removeServerListener(this.server,
+					this.port);
+		}
+		this.remote.close();
+	}
+
+	private void listen(Executor executor) {
+		this.server = new BlockingServer();
+		BasicCoapChannelManager.getInstance().createServerListener(this.server, this.port, 1, executor);
+	}
+
+	private void request(int type, int messageId, byte[] token) throws IOException {
+		byte[] data = new byte[4 + token.length];
+		data[0] = (byte) (0x40 | type << 4 | token.length);
+		data[1] = (byte) GET;
+		data[2] = (byte) (messageId >> 8);
+		data[3] = (byte) messageId;
+		System.arraycopy(token, 0, data, 4, token.length);
+		this.remote.send(new DatagramPacket(data, data.length, InetAddress.getByName("127.0.0.1"), this.port));
+	}
+
+	private byte[] receive() throws IOException {
+		DatagramPacket packet = new DatagramPacket(new byte[1500], 1500);
+		this.remote.receive(packet);
+		return Arrays.copyOf(packet.getData(), packet.getLength());
+	}
+
+	/* an ACK with 5.03, Max-Age 5, the message id 0x0102 and the token 7, 8 */
+	private static final byte[] SERVICE_UNAVAILABLE = { 0x62, (byte) 0xA3, 0x01, 0x02, 7, 8, (byte) 0xD1, 0x01,
+			CoapConstants.SERVICE_UNAVAILABLE_MAX_AGE_S };
+
+	@Test
+	public void shedsRequestsExceedingInboundQueue() throws Exception {
+		BasicCoapChannelManager.getInstance().setQueueLimits(1, CoapConstants.OUTBOUND_QUEUE_LIMIT);
+		try {
+			listen(CoapExecutors.inline());
+		} finally {
+			BasicCoapChannelManager.getInstance().setQueueLimits(CoapConstants.INBOUND_QUEUE_LIMIT,
+					CoapConstants.OUTBOUND_QUEUE_LIMIT);
+		}
+		request(CON, 1, new byte[] { 1 });
+		assertTrue(this.server.entered.await(2, TimeUnit.SECONDS));
+
+		/* the dispatch thread is blocked, the next request fills its queue */
+		request(CON, 2, new byte[] { 2 });
+		Thread.sleep(100);
+		request(CON, 0x0102, new byte[] { 7, 8 });
+		assertArrayEquals(SERVICE_UNAVAILABLE, receive());
+		request(NON, 4, new byte[] { 4 });
+		Thread.sleep(100);
+
+		/* only the queued request is handled, the NON request was dropped */
+		this.server.release.countDown();
+		long end = System.currentTimeMillis() + 2000;
+		while (this.server.requests.get() < 2 && System.currentTimeMillis() < end) {
+			Thread.sleep(5);
+		}
+		Thread.sleep(100);
+		assertEquals(2, this.server.requests.get());
+	}
+
+	@Test
+	public void shedsRequestsRejectedByExecutor() throws Exception {
+		listen(new Executor() {
+			@Override
+			public void execute(Runnable command) {
+				throw new RejectedExecutionException("overloaded");
+			}
+		});
+		request(CON, 0x0102, new byte[] { 7, 8 });
+		byte[] response = receive();
+		/* a piggybacked 5.03 with Max-Age */
+		assertEquals(0x62, response[0]);
+		assertEquals((byte) 0xA3, response[1]);
+		assertArrayEquals(new byte[] { 0x01, 0x02, 7, 8 }, Arrays.copyOfRange(response, 2, 6));
+		CoapMessageView view = new CoapMessageView(response, 0, response.length);
+		int maxAge = view.indexOf(CoapHeaderOptionType.Max_Age.getValue());
+		assertEquals(CoapConstants.SERVICE_UNAVAILABLE_MAX_AGE_S, view.getOptionUint(maxAge));
+		assertEquals(0, this.server.requests.get());
+	}
+
+	@Test
+	public void dropsNonMessagesExceedingOutboundQueue() throws Exception {
+		BasicCoapSocketHandler handler = new BasicCoapSocketHandler(BasicCoapChannelManager.getInstance(), 0, false,
+				1);
+		try {
+			handler.setQueueLimits(CoapConstants.INBOUND_QUEUE_LIMIT, 1);
+			CoapClientChannel channel = handler.connect(new IgnoringClient(), InetAddress.getByName("127.0.0.1"),
+					this.remote.getLocalPort());
+			int sent = 2000;
+			for (int i = 0; i < sent; i++) {
+				channel.sendMessage(channel.createRequest(false, CoapRequestCode.GET));
+			}
+			int received = 0;
+			this.remote.setSoTimeout(500);
+			try {
+				while (true) {
+					receive();
+					received++;
+				}
+			} catch (SocketTimeoutException e) {
+				/* all messages that were not dropped are received */
+			}
+			long dropped = handler.getDroppedMessageCount();
+			assertTrue(dropped > 0);
+			assertTrue(received > 0);
+			assertTrue(received + dropped <= sent);
+			channel.close();
+		} finally {
+			handler.close();
+		}
+	}
+
+	/**
+	 * Counts the requests and blocks the calling thread until it is released.
+	 */
+	private static class BlockingServer implements CoapServer {
+		final CountDownLatch entered = new CountDownLatch(1);
+		final CountDownLatch release = new CountDownLatch(1);
+		final AtomicInteger requests = new AtomicInteger();
+
+		@Override
+		public CoapServer onAccept(CoapRequest request) {
+			return this;
+		}
+
+		@Override
+		public void onRequest(CoapServerChannel channel, CoapRequest request) {
+			this.requests.incrementAndGet();
+			this.entered.countDown();
+			try {
+				this.release.await(5, TimeUnit.SECONDS);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+
+		@Override
+		public void onSeparateResponseFailed(CoapServerChannel channel) {
+			// not used
+		}
+
+		@Override
+		public void onReset(CoapRequest lastRequest) {
+			// not used
+		}
+	}
+
+	private static class IgnoringClient implements CoapClient {
+		@Override
+		public void onResponse(CoapClientChannel channel, CoapResponse response) {
+			// not used
+		}
+
+		@Override
+		public void onMCResponse(CoapClientChannel channel, CoapResponse response, InetAddress srcAddress,
+				int srcPort) {
+			// not used
+		}
+
+		@Override
+		public void onConnectionFailed(CoapClientChannel channel, boolean notReachable, boolean resetByServer) {
+			// not used
+		}
+	}
+}
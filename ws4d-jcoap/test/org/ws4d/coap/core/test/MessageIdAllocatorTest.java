@@ -0,0 +1,77 @@
+/* Copyright 2016 University of Rostock
+
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *****************************************************************************/
+
+package org.ws4d.coap.core.test;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+
+import org.junit.Test;
+import org.ws4d.coap.core.tools.MessageIdAllocator;
+
+public class MessageIdAllocatorTest {
+
+	@Test
+	public void wrapsAround() {
+		MessageIdAllocator allocator = new MessageIdAllocator(65534, null);
+		assertEquals(65534, allocator.allocate());
+		assertEquals(65535, allocator.allocate());
+		assertEquals(0, allocator.allocate());
+	}
+
+	@Test
+	public void skipsLiveIds() {
+		final Set<Integer> live = new HashSet<Integer>();
+		live.add(11);
+		live.add(12);
+		MessageIdAllocator allocator = new MessageIdAllocator(10, new MessageIdAllocator.LiveCheck() {
+			public boolean isLive(int messageId) {
+				return live.contains(messageId);
+			}
+		});
+		assertEquals(10, allocator.allocate());
+		assertEquals(13, allocator.allocate());
+		assertEquals(2, allocator.getSkippedCount());
+		assertEquals(2, allocator.getAllocatedCount());
+	}
+
+	@Test
+	public void allocatesUniqueIdsConcurrently() throws InterruptedException {
+		final MessageIdAllocator allocator = new MessageIdAllocator(0, null);
+		final Set<Integer> ids = Collections.newSetFromMap(new ConcurrentHashMap<Integer, Boolean>());
+		final int threads = 4;
+		final int perThread = 10000;
+		final CountDownLatch done = new CountDownLatch(threads);
+		for (int t = 0; t < threads; t++) {
+			new Thread() {
+				@Override
+				public void run() {
+					for (int i = 0; i < perThread; i++) {
+						ids.add(allocator.allocate());
+					}
+					done.countDown();
+				}
+			}.start();
+		}
+		done.await();
+		assertEquals(threads * perThread, ids.size());
+		assertEquals(threads * perThread, allocator.getAllocatedCount());
+	}
+}
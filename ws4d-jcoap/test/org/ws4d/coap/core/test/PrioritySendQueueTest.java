@@ -0,0 +1,59 @@
+/* Copyright 2016 University of Rostock
+
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *****************************************************************************/
+
+package org.ws4d.coap.core.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import org.junit.Test;
+import org.ws4d.coap.core.tools.PrioritySendQueue;
+
+public class PrioritySendQueueTest {
+
+	@Test
+	public void servesHighestClassFirst() {
+		PrioritySendQueue<String> queue = new PrioritySendQueue<String>(3, 100);
+		queue.offer("bulk", 2);
+		queue.offer("response", 1);
+		queue.offer("ack", 0);
+		queue.offer("response2", 1);
+		assertEquals(4, queue.size());
+		assertEquals("ack", queue.poll());
+		assertEquals("response", queue.poll());
+		assertEquals("response2", queue.poll());
+		assertEquals("bulk", queue.poll());
+		assertNull(queue.poll());
+		assertEquals(2, queue.getEnqueuedCount(1));
+		assertEquals(2, queue.getMaxQueueDepth(1));
+	}
+
+	@Test
+	public void preventsStarvation() {
+		PrioritySendQueue<String> queue = new PrioritySendQueue<String>(2, 3);
+		queue.offer("bulk", 1);
+		for (int i = 0; i < 10; i++) {
+			queue.offer("ack", 0);
+		}
+		StringBuilder order = new StringBuilder();
+		for (int i = 0; i < 5; i++) {
+			order.append(queue.poll()).append(' ');
+		}
+		assertEquals("ack ack ack bulk ack ", order.toString());
+		assertEquals(1, queue.getPromotedCount(1));
+		assertEquals(6, queue.getQueueDepth(0));
+		assertEquals(0, queue.getQueueDepth(1));
+	}
+}
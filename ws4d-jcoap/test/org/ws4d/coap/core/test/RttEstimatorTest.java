@@ -0,0 +1,102 @@
+/* Copyright 2016 University of Rostock
+
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *****************************************************************************/
+
+package org.ws4d.coap.core.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+import org.ws4d.coap.core.tools.RttEstimator;
+
+public class RttEstimatorTest {
+
+	@Test
+	public void startsWithDefaultRto() {
+		RttEstimator estimator = new RttEstimator();
+		assertEquals(RttEstimator.DEFAULT_RTO_MS, estimator.getRto());
+		assertEquals(-1, estimator.getStrongRtt());
+		assertEquals(-1, estimator.getWeakRtt());
+		assertEquals(0, estimator.getLossRate(), 0);
+	}
+
+	@Test
+	public void convergesOnStrongSamples() {
+		RttEstimator estimator = new RttEstimator();
+		for (int i = 0; i < 50; i++) {
+			estimator.addSample(100, 0);
+		}
+		assertEquals(100, estimator.getStrongRtt());
+		assertEquals(50, estimator.getStrongSampleCount());
+		/* the variance decays towards zero, the RTO towards the RTT */
+		assertTrue(estimator.getRto() < 200);
+		assertTrue(estimator.getRto() >= 100);
+	}
+
+	@Test
+	public void weakSamplesMoveRtoSlower() {
+		RttEstimator strong = new RttEstimator();
+		RttEstimator weak = new RttEstimator();
+		strong.addSample(4000, 0);
+		weak.addSample(4000, 1);
+		assertEquals(1, weak.getWeakSampleCount());
+		assertEquals(-1, weak.getStrongRtt());
+		/* strong: (4000 + 4 * 2000 + 2000) / 2, weak: (4000 + 2000 + 3 * 2000) / 4 */
+		assertEquals(7000, strong.getRto());
+		assertEquals(3000, weak.getRto());
+	}
+
+	@Test
+	public void ignoresSamplesAfterManyRetransmissions() {
+		RttEstimator estimator = new RttEstimator();
+		estimator.addSample(10000, 3);
+		assertEquals(RttEstimator.DEFAULT_RTO_MS, estimator.getRto());
+		assertEquals(-1, estimator.getLastRtt());
+		assertEquals(0, estimator.getWeakSampleCount());
+	}
+
+	@Test
+	public void clampsRto() {
+		RttEstimator estimator = new RttEstimator();
+		for (int i = 0; i < 100; i++) {
+			estimator.addSample(0, 0);
+		}
+		assertEquals(RttEstimator.MIN_RTO_MS, estimator.getRto());
+		for (int i = 0; i < 100; i++) {
+			estimator.addSample(100000, 0);
+		}
+		assertEquals(RttEstimator.MAX_RTO_MS, estimator.getRto());
+	}
+
+	@Test
+	public void selectsBackoffByRto() {
+		assertEquals(3, RttEstimator.getBackoffFactor(500), 0);
+		assertEquals(2, RttEstimator.getBackoffFactor(2000), 0);
+		assertEquals(1.5, RttEstimator.getBackoffFactor(5000), 0);
+	}
+
+	@Test
+	public void countsLoss() {
+		RttEstimator estimator = new RttEstimator();
+		for (int i = 0; i < 4; i++) {
+			estimator.onExchange();
+		}
+		estimator.onRetransmission();
+		estimator.onFailure();
+		assertEquals(4, estimator.getExchangeCount());
+		assertEquals(1, estimator.getRetransmissionCount());
+		assertEquals(0.25, estimator.getLossRate(), 0);
+	}
+}
@@ -0,0 +1,113 @@
+/* Copyright 2016 University of Rostock
+
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *****************************************************************************/
+
+package org.ws4d.coap.core.test;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.ws4d.coap.core.CoapConstants;
+import org.ws4d.coap.core.enumerations.CoapMediaType;
+import org.ws4d.coap.core.enumerations.CoapPacketType;
+import org.ws4d.coap.core.enumerations.CoapResponseCode;
+import org.ws4d.coap.core.messages.BasicCoapResponse;
+import org.ws4d.coap.core.tools.DirectBufferPool;
+
+/**
+ * Compares sending a serialized byte array with serializing into a pooled
+ * direct buffer. Run main() to get the bytes allocated per send, reported by
+ * the GC profiler as gc.alloc.rate.norm.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class SendPathBenchmark {
+
+	private DatagramChannel sender;
+	private DatagramChannel receiver;
+	private InetSocketAddress remote;
+	private BasicCoapResponse response;
+	private DirectBufferPool pool;
+
+	@Setup
+	public void setup() throws IOException {
+		this.receiver = DatagramChannel.open();
+		this.receiver.socket().bind(new InetSocketAddress(InetAddress.getByName("127.0.0.1"), 0));
+		this.remote = (InetSocketAddress) this.receiver.socket().getLocalSocketAddress();
+		/* datagrams are dropped once the receive buffer is full, the send succeeds nevertheless */
+		this.sender = DatagramChannel.open();
+		this.sender.socket().bind(new InetSocketAddress(InetAddress.getByName("127.0.0.1"), 0));
+
+		this.response = new BasicCoapResponse(CoapPacketType.ACK, CoapResponseCode.Content_205, 0x1234,
+				new byte[] { 1, 2, 3, 4 });
+		this.response.setContentType(CoapMediaType.json);
+		this.response.setPayload(new byte[256]);
+		this.pool = new DirectBufferPool(CoapConstants.UDP_BUFFER_SIZE, 1);
+	}
+
+	@TearDown
+	public void tearDown() throws IOException {
+		this.sender.close();
+		this.receiver.close();
+	}
+
+	@Benchmark
+	public int serializeAndWrap() throws IOException {
+		byte[] serialized = this.response.serialize();
+		return this.sender.send(ByteBuffer.wrap(serialized), new InetSocketAddress(this.remote.getAddress(),
+				this.remote.getPort()));
+	}
+
+	@Benchmark
+	public int serializeIntoPooledBuffer() throws IOException {
+		ByteBuffer buffer = this.pool.acquire();
+		try {
+			this.response.serializeInto(buffer);
+			buffer.flip();
+			return this.sender.send(buffer, this.remote);
+		} finally {
+			this.pool.release(buffer);
+		}
+	}
+
+	public static void main(String[] args) throws RunnerException {
+		Options options = new OptionsBuilder().include(SendPathBenchmark.class.getSimpleName())
+				.addProfiler(GCProfiler.class).build();
+		new Runner(options).run();
+	}
+}
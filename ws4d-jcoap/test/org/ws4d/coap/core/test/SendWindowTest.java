@@ -0,0 +1,88 @@
+/* Copyright 2016 University of Rostock
+
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *****************************************************************************/
+
+package org.ws4d.coap.core.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+import org.ws4d.coap.core.tools.SendWindow;
+
+public class SendWindowTest {
+
+	@Test
+	public void queuesBeyondLimit() {
+		SendWindow<String> window = new SendWindow<String>(1);
+		assertTrue(window.admit("a"));
+		assertFalse(window.admit("b"));
+		assertFalse(window.admit("c"));
+		assertEquals(1, window.getOutstanding());
+		assertEquals(2, window.getQueueDepth());
+
+		/* released in FIFO order, the slot is handed over */
+		assertEquals("b", window.release());
+		assertEquals(1, window.getOutstanding());
+		assertEquals("c", window.release());
+		assertNull(window.release());
+		assertEquals(0, window.getOutstanding());
+		assertEquals(2, window.getMaxQueueDepth());
+		assertEquals(2, window.getQueuedCount());
+	}
+
+	@Test
+	public void admitsQueuedOnRaisedLimit() {
+		SendWindow<String> window = new SendWindow<String>(1);
+		window.admit("a");
+		window.admit("b");
+		window.admit("c");
+		assertNull(window.next());
+		window.setLimit(3);
+		assertEquals("b", window.next());
+		assertEquals("c", window.next());
+		assertNull(window.next());
+		assertEquals(3, window.getOutstanding());
+	}
+
+	@Test
+	public void removesQueuedElements() {
+		SendWindow<String> window = new SendWindow<String>(1);
+		window.admit("a");
+		window.admit("b");
+		window.admit("c");
+		/* an admitted element is not queued */
+		assertFalse(window.remove("a"));
+		assertTrue(window.remove("b"));
+		assertEquals(1, window.getQueueDepth());
+		assertEquals("c", window.release());
+	}
+
+	@Test
+	public void retiresOnlyIdleWindow() {
+		SendWindow<String> window = new SendWindow<String>(2);
+		window.admit("a");
+		assertFalse(window.retireIfIdle());
+		window.release();
+		assertTrue(window.retireIfIdle());
+		try {
+			window.admit("b");
+		} catch (IllegalStateException e) {
+			return;
+		}
+		throw new AssertionError("a retired window must not admit elements");
+	}
+}
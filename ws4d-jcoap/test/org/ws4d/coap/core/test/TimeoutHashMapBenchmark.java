@@ -0,0 +1,127 @@
+/* Copyright 2016 University of Rostock
+
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *****************************************************************************/
+
+package org.ws4d.coap.core.test;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.ws4d.coap.core.tools.ExchangeStore;
+import org.ws4d.coap.core.tools.TimeoutHashMap;
+
+/**
+ * Compares {@link TimeoutHashMap} and the {@link ExchangeStore} that replaced
+ * it under the access pattern of the duplicate detection: every received
+ * message is looked up and most of them are inserted afterwards.<br>
+ * <br>
+ * The socket handler owns one ExchangeStore per dispatch thread, so both
+ * structures are measured the same way: each benchmark thread gets its own
+ * TimeoutHashMap and its own ExchangeStore. The results compare the cost of
+ * the structures, not the contention of a shared map.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class TimeoutHashMapBenchmark {
+
+	/* long enough that the map is filled with live entries */
+	@Param({ "2000" })
+	public long timeout;
+
+	@State(Scope.Thread)
+	public static class Keys {
+		private final Random random = new Random();
+		Map<Integer, Boolean> map;
+		ExchangeStore store;
+		InetAddress address;
+
+		@Setup
+		public void setup(TimeoutHashMapBenchmark benchmark) throws UnknownHostException {
+			this.map = new TimeoutHashMap<Integer, Boolean>(benchmark.timeout);
+			this.store = new ExchangeStore(benchmark.timeout);
+			this.address = InetAddress.getByName("127.0.0.1");
+		}
+
+		int next() {
+			/* 16 bit message ids of a few hundred peers */
+			return this.random.nextInt(1 << 24);
+		}
+	}
+
+	@Benchmark
+	@Threads(1)
+	public Boolean timeoutHashMapSingleThread(Keys keys) {
+		return getAndPut(keys);
+	}
+
+	@Benchmark
+	@Threads(4)
+	public Boolean timeoutHashMapFourThreads(Keys keys) {
+		return getAndPut(keys);
+	}
+
+	@Benchmark
+	@Threads(1)
+	public boolean exchangeStoreSingleThread(Keys keys) {
+		return add(keys);
+	}
+
+	@Benchmark
+	@Threads(4)
+	public boolean exchangeStoreFourThreads(Keys keys) {
+		return add(keys);
+	}
+
+	private static Boolean getAndPut(Keys keys) {
+		Integer key = Integer.valueOf(keys.next());
+		Boolean old = keys.map.get(key);
+		if (old == null) {
+			keys.map.put(key, Boolean.TRUE);
+		}
+		return old;
+	}
+
+	private static boolean add(Keys keys) {
+		int key = keys.next();
+		return keys.store.add(keys.address, 5683 + (key >>> 16), key & 0xFFFF);
+	}
+
+	public static void main(String[] args) throws RunnerException {
+		Options options = new OptionsBuilder().include(TimeoutHashMapBenchmark.class.getSimpleName()).build();
+		new Runner(options).run();
+	}
+}
@@ -0,0 +1,61 @@
+/* Copyright 2016 University of Rostock
+
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *****************************************************************************/
+
+package org.ws4d.coap.core.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+import org.ws4d.coap.core.tools.TokenBucket;
+
+public class TokenBucketTest {
+
+	@Test
+	public void sendsBurstThenPaces() {
+		TokenBucket bucket = new TokenBucket(10, 3, 0);
+		assertEquals(0, bucket.reserve(0, 1000));
+		assertEquals(0, bucket.reserve(0, 1000));
+		assertEquals(0, bucket.reserve(0, 1000));
+		/* one token every 100 ms, the reservations queue up */
+		assertEquals(100, bucket.reserve(0, 1000));
+		assertEquals(200, bucket.reserve(0, 1000));
+		assertEquals(3, bucket.getImmediateCount());
+		assertEquals(2, bucket.getDeferredCount());
+		assertEquals(200, bucket.getMaxDelay());
+	}
+
+	@Test
+	public void dropsWhenDelayIsTooLong() {
+		TokenBucket bucket = new TokenBucket(10, 1, 0);
+		assertEquals(0, bucket.reserve(0, 150));
+		assertEquals(100, bucket.reserve(0, 150));
+		assertEquals(-1, bucket.reserve(0, 150));
+		assertEquals(1, bucket.getDroppedCount());
+		/* the dropped message took no token */
+		assertEquals(100, bucket.reserve(100, 150));
+	}
+
+	@Test
+	public void refillsUpToBurst() {
+		TokenBucket bucket = new TokenBucket(10, 2, 0);
+		bucket.reserve(0, 1000);
+		bucket.reserve(0, 1000);
+		assertFalse(bucket.isIdle(0));
+		assertTrue(bucket.isIdle(10000));
+		assertEquals(2, bucket.getTokens(), 0.0001);
+	}
+}
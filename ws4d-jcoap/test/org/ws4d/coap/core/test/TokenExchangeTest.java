@@ -0,0 +1,247 @@
+/* Copyright 2016 University of Rostock
+
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *****************************************************************************/
+
+
+package org.ws4d.coap.core.test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.ws4d.coap.core.CoapClient;
+import org.ws4d.coap.core.CoapConstants;
+import org.ws4d.coap.core.connection.BasicCoapChannelManager;
+import org.ws4d.coap.core.connection.BasicCoapSocketHandler;
+import org.ws4d.coap.core.connection.api.CoapChannelManager;
+import org.ws4d.coap.core.connection.api.CoapClientChannel;
+import org.ws4d.coap.core.enumerations.CoapRequestCode;
+import org.ws4d.coap.core.messages.api.CoapRequest;
+import org.ws4d.coap.core.messages.api.CoapResponse;
+
+/**
+ * Matches responses of a plain UDP socket acting as server to the requests of
+ * a client channel by their token.
+ */
+public class TokenExchangeTest {
+
+	private static final int CON = 0;
+	private static final int ACK = 2;
+	private static final int RST = 3;
+	private static final int CONTENT = 0x45;
+
+	private BasicCoapSocketHandler handler;
+	private DatagramSocket server;
+	private final BlockingQueue<CoapResponse> responses = new LinkedBlockingQueue<CoapResponse>();
+
+	private final CoapClient client = new CoapClient() {
+		@Override
+		public void onResponse(CoapClientChannel channel, CoapResponse response) {
+			TokenExchangeTest.this.responses.add(response);
+		}
+
+		@Override
+		public void onMCResponse(CoapClientChannel channel, CoapResponse response, InetAddress srcAddress,
+				int srcPort) {
+			// not used
+		}
+
+		@Override
+		public void onConnectionFailed(CoapClientChannel channel, boolean notReachable, boolean resetByServer) {
+			// not used
+		}
+	};
+
+	@Before
+	public void setUp() throws IOException {
+		this.handler = new BasicCoapSocketHandler(BasicCoapChannelManager.getInstance(), 0, false, 1);
+		this.server = new DatagramSocket(0, InetAddress.getByName("127.0.0.1"));
+		this.server.setSoTimeout(2000);
+	}
+
+	@After
+	public void tearDown() {
+		this.handler.close();
+		this.server.close();
+	}
+
+	private CoapClientChannel connect() throws IOException {
+		return this.handler.connect(this.client, InetAddress.getByName("127.0.0.1"), this.server.getLocalPort());
+	}
+
+	private static void send(CoapClientChannel channel, byte[] token) {
+		CoapRequest request = channel.createRequest(true, CoapRequestCode.GET);
+		request.setUriPath("/test");
+		request.setToken(token);
+		channel.sendMessage(request);
+	}
+
+	private DatagramPacket receive() throws IOException {
+		DatagramPacket packet = new DatagramPacket(new byte[1500], 1500);
+		this.server.receive(packet);
+		return packet;
+	}
+
+	private void reply(DatagramPacket to, int type, int code, int messageId, byte[] token) throws IOException {
+		byte[] data = new byte[4 + token.length];
+		data[0] = (byte) (0x40 | type << 4 | token.length);
+		data[1] = (byte) code;
+		data[2] = (byte) (messageId >> 8);
+		data[3] = (byte) messageId;
+		System.arraycopy(token, 0, data, 4, token.length);
+		this.server.send(new DatagramPacket(data, data.length, to.getSocketAddress()));
+	}
+
+	private static int messageId(DatagramPacket packet) {
+		return (packet.getData()[2] & 0xFF) << 8 | packet.getData()[3] & 0xFF;
+	}
+
+	private void awaitPending(int expected) throws InterruptedException {
+		long end = System.currentTimeMillis() + 2000;
+		while (this.handler.getPendingExchangeCount() != expected && System.currentTimeMillis() < end) {
+			Thread.sleep(5);
+		}
+		assertEquals(expected, this.handler.getPendingExchangeCount());
+	}
+
+	@Test
+	public void completesExchangeWithPiggybackedResponse() throws Exception {
+		CoapClientChannel channel = connect();
+		byte[] token = { 1, 2 };
+		send(channel, token);
+		assertEquals(1, this.handler.getPendingExchangeCount());
+		DatagramPacket request = receive();
+		reply(request, ACK, CONTENT, messageId(request), token);
+
+		CoapResponse response = this.responses.poll(2, TimeUnit.SECONDS);
+		assertNotNull(response);
+		assertArrayEquals(token, response.getToken());
+		awaitPending(0);
+	}
+
+	@Test
+	public void keepsExchangeUntilSeparateResponse() throws Exception {
+		CoapClientChannel channel = connect();
+		byte[] token = { 3, 4, 5 };
+		send(channel, token);
+		DatagramPacket request = receive();
+		/* the empty ACK does not complete the exchange */
+		reply(request, ACK, 0, messageId(request), new byte[0]);
+		Thread.sleep(50);
+		assertNull(this.responses.poll());
+		assertEquals(1, this.handler.getPendingExchangeCount());
+
+		reply(request, CON, CONTENT, 0x1234, token);
+		CoapResponse response = this.responses.poll(2, TimeUnit.SECONDS);
+		assertNotNull(response);
+		assertArrayEquals(token, response.getToken());
+		/* the separate response is acknowledged */
+		DatagramPacket ack = receive();
+		assertEquals(0x1234, messageId(ack));
+		awaitPending(0);
+	}
+
+	@Test
+	public void replacesExchangeOfReusedToken() throws Exception {
+		CoapClientChannel channel = connect();
+		byte[] token = { 6 };
+		send(channel, token);
+		send(channel, token);
+		assertEquals(1, this.handler.getPendingExchangeCount());
+		send(channel, new byte[] { 7 });
+		assertEquals(2, this.handler.getPendingExchangeCount());
+		channel.close();
+	}
+
+	@Test
+	public void removesExchangesOfClosedChannel() throws Exception {
+		CoapClientChannel channel = connect();
+		send(channel, new byte[] { 8 });
+		send(channel, new byte[] { 9 });
+		assertEquals(2, this.handler.getPendingExchangeCount());
+		channel.close();
+		assertEquals(0, this.handler.getPendingExchangeCount());
+
+		/* the exchanges of other channels are kept */
+		CoapClientChannel other = connect();
+		send(other, new byte[] { 8 });
+		channel.close();
+		assertEquals(1, this.handler.getPendingExchangeCount());
+		other.close();
+		assertEquals(0, this.handler.getPendingExchangeCount());
+	}
+
+	@Test
+	public void skipsMessageIdsOfQueuedRequests() throws Exception {
+		CoapClientChannel channel = connect();
+		CoapRequest first = channel.createRequest(true, CoapRequestCode.GET);
+		channel.sendMessage(first);
+		/* waits in the send window behind the first request, NSTART is 1 */
+		CoapRequest queued = channel.createRequest(true, CoapRequestCode.GET);
+		channel.sendMessage(queued);
+
+		InetAddress addr = InetAddress.getByName("127.0.0.1");
+		int port = this.server.getLocalPort();
+		for (int i = 0; i <= CoapConstants.MESSAGE_ID_MAX; i++) {
+			int messageId = this.handler.getNewMessageID(addr, port);
+			assertTrue(messageId != first.getMessageID() && messageId != queued.getMessageID());
+		}
+		assertEquals(2, this.handler.getMessageIdAllocator(addr, port).getSkippedCount());
+		channel.close();
+	}
+
+	@Test
+	public void rejectsUnmatchedResponseOfSharedEndpoint() throws Exception {
+		CoapChannelManager manager = BasicCoapChannelManager.getInstance();
+		manager.setSharedClientEndpoint(true);
+		CoapClientChannel first;
+		CoapClientChannel second;
+		try {
+			first = manager.connect(this.client, InetAddress.getByName("127.0.0.1"), this.server.getLocalPort());
+			second = manager.connect(this.client, InetAddress.getByName("127.0.0.1"), this.server.getLocalPort());
+		} finally {
+			manager.setSharedClientEndpoint(false);
+		}
+		byte[] token = { 10, 11 };
+		send(first, token);
+		DatagramPacket request = receive();
+
+		/* matches no request, no channel of the shared endpoint gets it */
+		reply(request, CON, CONTENT, 0x2345, new byte[] { 12 });
+		DatagramPacket reset = receive();
+		assertEquals(RST, (reset.getData()[0] >> 4) & 0x03);
+		assertEquals(0x2345, messageId(reset));
+		assertNull(this.responses.poll(100, TimeUnit.MILLISECONDS));
+
+		reply(request, ACK, CONTENT, messageId(request), token);
+		CoapResponse response = this.responses.poll(2, TimeUnit.SECONDS);
+		assertNotNull(response);
+		assertArrayEquals(token, response.getToken());
+		first.close();
+		second.close();
+	}
+}